@@ -0,0 +1,43 @@
+package com.jpmorgan.dtre;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The per-day sums by side of a SettlementBatch, on the scalar and the Vector API AggregationKernel.
+ *
+ * Needs JDK 17+ for the vector kernel (the forked JVM adds jdk.incubator.vector), run the scalar one alone
+ * elsewhere with -p kernel=scalar -jvmArgs -Xmx4g
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector"})
+@State(Scope.Benchmark)
+public class AggregationKernelBenchmark {
+
+    @Param({"100000", "1000000", "10000000"})
+    public int rows;
+
+    @Param({"scalar", "vector"})
+    public String kernel;
+
+    private SettlementBatch batch;
+    private AggregationKernel aggregationKernel;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        batch = SettlementBatch.of(BenchmarkData.instructions(rows));
+        aggregationKernel = "vector".equals(kernel) ? AggregationKernel.vector() : AggregationKernel.scalar();
+        if (aggregationKernel == null) {
+            throw new IllegalStateException("Vector kernel unavailable in this JVM");
+        }
+    }
+
+    @Benchmark
+    public long[] sumByDay() {
+        return batch.sumByDay(aggregationKernel);
+    }
+}
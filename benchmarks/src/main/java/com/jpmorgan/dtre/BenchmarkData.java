@@ -0,0 +1,68 @@
+package com.jpmorgan.dtre;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Reproducible instructions for the benchmarks: the same seed gives the same rows on every run
+ */
+final class BenchmarkData {
+
+    private final static long SEED = 42L;
+    private final static LocalDate FIRST_DAY = LocalDate.parse("2016-01-01");
+
+    private BenchmarkData() {
+    }
+
+    /**
+     * @param count Number of instructions
+     * @return List of count instructions over a year, prices and fx as scaled longs (2 and 4 decimal places)
+     */
+    static List<ImmutableInstruction> instructions(int count) {
+        final Random random = new Random(SEED);
+        final DataSource.ENTITIES[] entities = DataSource.ENTITIES.values();
+        final ISO4217.Currency[] currencies = ISO4217.Currency.values();
+        final ImmutableInstruction.BUYSELL[] sides = ImmutableInstruction.BUYSELL.values();
+        final List<ImmutableInstruction> rows = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            final DataSource.ENTITIES entity = entities[random.nextInt(entities.length)];
+            final LocalDate instructionDate = FIRST_DAY.plusDays(random.nextInt(365));
+            final long priceCents = Math.max(1, entity.getLastValueUSD().movePointRight(2).longValue()
+                    + random.nextInt(201) - 100);
+            rows.add(new ImmutableInstruction(
+                    entity,
+                    sides[random.nextInt(sides.length)],
+                    BigDecimal.valueOf(1 + random.nextInt(20_000), 4),
+                    currencies[random.nextInt(currencies.length)],
+                    instructionDate,
+                    instructionDate.plusDays(random.nextInt(7)),
+                    1 + random.nextInt(1_000_000),
+                    BigDecimal.valueOf(priceCents, 2)
+            ));
+        }
+        return rows;
+    }
+
+    /**
+     * The reports print to System.out, swap in a stream that discards everything so the console isn't measured
+     * @return PrintStream that was System.out, to put back afterwards
+     */
+    static PrintStream silenceStdout() {
+        final PrintStream out = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        }));
+        return out;
+    }
+}
@@ -0,0 +1,79 @@
+package com.jpmorgan.dtre;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.PrintStream;
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * The reports over 1e3 to 1e7 instructions, summing with each AggregationMode.
+ * Console output is discarded, see BenchmarkData.silenceStdout().
+ *
+ * 1e7 rows of ImmutableInstruction need a heap of several GB, e.g. -jvmArgsAppend -Xmx4g,
+ * or run a subset with -p rows=1000,10000,100000,1000000
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DailyTradesBenchmark {
+
+    @Param({"1000", "10000", "100000", "1000000", "10000000"})
+    public int rows;
+
+    /** An AggregationMode, by name: JMH can't set the package-private enum itself */
+    @Param({"BIG_DECIMAL", "SCALED_LONG"})
+    public String aggregation;
+
+    private AggregationMode mode;
+
+    private List<ImmutableInstruction> instructions;
+    private List<ImmutableInstruction> buys;
+    private DailyTrades dailyTrades;
+    private PrintStream stdout;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        stdout = BenchmarkData.silenceStdout();
+        mode = AggregationMode.valueOf(aggregation);
+        instructions = BenchmarkData.instructions(rows);
+        buys = instructions.stream()
+                .filter(in -> in.getBuySell() == ImmutableInstruction.BUYSELL.B)
+                .collect(Collectors.toList());
+        dailyTrades = new DailyTrades();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        System.setOut(stdout);
+    }
+
+    @Benchmark
+    public Map<LocalDate, BigDecimal> aggregateSumPerDay() {
+        return dailyTrades.aggregateSumPerDay(buys, mode);
+    }
+
+    @Benchmark
+    public Map<Integer, BigDecimal> aggregateSumByEntity() {
+        return dailyTrades.aggregateSumByEntity(buys, mode);
+    }
+
+    /**
+     * Every report, from a DailyReport built over all rows, as reports() does on first use
+     */
+    @Benchmark
+    public DailyReport reports() {
+        final DailyReport report = DailyReport.of(instructions, mode);
+        dailyTrades.incomingSettledUSDDaily(report);
+        dailyTrades.outgoingSettledUSDDaily(report);
+        dailyTrades.rank(report);
+        return report;
+    }
+}
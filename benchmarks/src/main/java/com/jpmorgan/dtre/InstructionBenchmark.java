@@ -0,0 +1,43 @@
+package com.jpmorgan.dtre;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of constructing one ImmutableInstruction: settlement adjustment and the USD amount of trade
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class InstructionBenchmark {
+
+    private final static int MASK = 1023;
+
+    private List<ImmutableInstruction> inputs;
+    private int i;
+
+    @Setup
+    public void setup() {
+        inputs = BenchmarkData.instructions(MASK + 1);
+    }
+
+    @Benchmark
+    public ImmutableInstruction construct() {
+        final ImmutableInstruction in = inputs.get(i++ & MASK);
+        return new ImmutableInstruction(
+                in.getEntity(),
+                in.getBuySell(),
+                in.getAgreedFx(),
+                in.getCurrency(),
+                in.getInstructionDate(),
+                in.getOriginalUnadjustedSettlementDate(),
+                in.getUnits(),
+                in.getPricePerUnit()
+        );
+    }
+}
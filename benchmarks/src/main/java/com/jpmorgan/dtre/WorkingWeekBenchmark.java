@@ -0,0 +1,49 @@
+package com.jpmorgan.dtre;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.time.LocalDate;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of adjusting a settlement date for the currency's working week, as a LocalDate and as an epoch day
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class WorkingWeekBenchmark {
+
+    private final static int MASK = 1023;
+
+    private final ISO4217.Currency[] currencies = new ISO4217.Currency[MASK + 1];
+    private final LocalDate[] dates = new LocalDate[MASK + 1];
+    private final int[] epochDays = new int[MASK + 1];
+    private int i;
+
+    @Setup
+    public void setup() {
+        final Random random = new Random(42L);
+        final ISO4217.Currency[] values = ISO4217.Currency.values();
+        for (int n = 0; n <= MASK; n++) {
+            currencies[n] = values[random.nextInt(values.length)];
+            dates[n] = LocalDate.parse("2016-01-01").plusDays(random.nextInt(365));
+            epochDays[n] = (int) dates[n].toEpochDay();
+        }
+    }
+
+    @Benchmark
+    public LocalDate adjustForWeekendByCurrency() {
+        final int n = i++ & MASK;
+        return WorkingWeek.adjustForWeekendByCurrency(currencies[n], dates[n]);
+    }
+
+    @Benchmark
+    public int adjustEpochDay() {
+        final int n = i++ & MASK;
+        return WorkingWeek.adjustEpochDay(currencies[n], epochDays[n]);
+    }
+}
@@ -0,0 +1,524 @@
+package com.jpmorgan.dtre;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.util.*;
+
+/**
+ * Materialised aggregate of the USD amount of trade, keyed by (settlement day, entity, side, currency), so
+ * any slice and roll-up of it (per day, week, month, entity, currency or side) is a read of the cube rather
+ * than a rescan of the instructions.
+ *
+ * Each settlement day with trades has a plane of cells, dense primitive arrays indexed by
+ *   (entity id * 2 + side) * slotCapacity + currency slot
+ * where currencies get a slot the first time they are seen, so the ~180 currencies of ISO4217 don't each cost
+ * a column. Days without trades cost one null reference, so a book spread over years stays small. Each cell
+ * holds the number of trades, and the sum as an unscaled long at the cube's scale, which only grows (rescaling
+ * every cell) when an amount with more decimal places arrives. A cell that would overflow a long moves to a
+ * sparse BigDecimal spill map and stays there. Each cell also keeps the largest scale added to it, so roll-ups
+ * return exactly what summing the same amounts with BigDecimal.add would: value and scale.
+ *
+ * The planes grow (by doubling the dimension that ran out) as entities and currencies arrive, so the cube
+ * suits the entities of a trading book, thousands rather than millions.
+ *
+ * As an InstructionListener it is kept up to date as instructions are appended to a DataSource.
+ * Not thread-safe.
+ */
+final class AggregateCube implements InstructionListener {
+
+    private final static ISO4217.Currency[] CURRENCIES = ISO4217.Currency.values();
+    private final static ImmutableInstruction.BUYSELL[] SIDES = ImmutableInstruction.BUYSELL.values();
+    private final static int MAX_CELLS = Integer.MAX_VALUE - 8;
+
+    /** Powers of ten that fit in a long, 10^0 to 10^18 */
+    private final static long[] POW10 = new long[19];
+
+    static {
+        POW10[0] = 1L;
+        for (int i = 1; i < POW10.length; i++) {
+            POW10[i] = POW10[i - 1] * 10L;
+        }
+    }
+
+    /** Roll-up dimension, the key each cell is summed under */
+    private enum By {DAY, WEEK, MONTH, ENTITY, CURRENCY, SIDE, ALL}
+
+    /**
+     * The cells of one settlement day
+     */
+    private static final class Plane {
+        final long[] unscaled;
+        final byte[] scale; // largest scale added to each cell
+        final int[] count;
+
+        Plane(int cells) {
+            unscaled = new long[cells];
+            scale = new byte[cells];
+            count = new int[cells];
+        }
+    }
+
+    private int scale = DailyReport.USD_SCALE; // scale of every unscaled value in the cube
+
+    private int baseDay;
+    private Plane[] planes = new Plane[0]; // by day - baseDay, null for days without trades
+    private int entityCapacity;
+    private int slotCapacity;
+    private final int[] slotOfCurrency = new int[CURRENCIES.length]; // -1 until seen
+    private int[] currencyOfSlot = new int[0];
+    private int slots;
+
+    /** Spilled cells, by key(day, cell) */
+    private final Map<Long, BigDecimal> spill = new HashMap<>();
+
+    AggregateCube() {
+        Arrays.fill(slotOfCurrency, -1);
+    }
+
+    /**
+     * Reads every instruction once into a new cube
+     * @param rows Instructions to aggregate
+     * @return AggregateCube over all of them
+     */
+    static AggregateCube of(Collection<ImmutableInstruction> rows) {
+        final AggregateCube cube = new AggregateCube();
+        for (final ImmutableInstruction in : rows) {
+            cube.add(in);
+        }
+        return cube;
+    }
+
+    /**
+     * Reads the columns of every row once into a new cube, building no ImmutableInstruction objects
+     * @param columns Instructions to aggregate
+     * @return AggregateCube over all of them
+     */
+    static AggregateCube of(InstructionColumns columns) {
+        final AggregateCube cube = new AggregateCube();
+        final InstructionColumns.DecimalColumn amount = columns.amountOfTradeUSD();
+        for (int row = 0; row < columns.size(); row++) {
+            final long key = cube.cell(columns.settlementEpochDay(row), columns.entityId(row),
+                    columns.buySell(row).ordinal(), columns.currencyOrdinal(row));
+            if (amount.isScaledLong(row)) {
+                cube.add(key, amount.unscaled(row), amount.scale(row));
+            } else {
+                cube.add(key, amount.get(row));
+            }
+        }
+        return cube;
+    }
+
+    @Override
+    public void onInstruction(ImmutableInstruction in) {
+        add(in);
+    }
+
+    /**
+     * Adds one instruction's USD amount of trade to its cell
+     * @param in ImmutableInstruction to take into account
+     */
+    void add(ImmutableInstruction in) {
+        final long key = cell((int) in.getSettlementDate().toEpochDay(), in.getEntityId(),
+                in.getBuySell().ordinal(), in.getCurrency().ordinal());
+        if (in.isAmountOfTradeUSDScaledLong()) {
+            add(key, in.getAmountOfTradeUSDUnscaled(), in.getAmountOfTradeUSDScale());
+        } else {
+            add(key, in.getAmountOfTradeUSD());
+        }
+    }
+
+    private void add(long key, long amountUnscaled, int amountScale) {
+        final Plane plane = plane(key);
+        final int i = (int) key;
+        plane.count[i]++;
+        if (amountScale >= POW10.length || amountScale < 0) {
+            // too fine (or coarse) to hold the whole cube at, keep this cell as a BigDecimal
+            addToSpill(key, BigDecimal.valueOf(amountUnscaled, amountScale));
+            return;
+        }
+        plane.scale[i] = (byte) Math.max(plane.scale[i], amountScale);
+        if (amountScale > scale) {
+            rescale(amountScale);
+        }
+        if (!spill.isEmpty() && spill.containsKey(key)) {
+            spill.put(key, spill.get(key).add(BigDecimal.valueOf(amountUnscaled, amountScale)));
+            return;
+        }
+        try {
+            plane.unscaled[i] = Math.addExact(plane.unscaled[i], Math.multiplyExact(amountUnscaled, pow10(scale - amountScale)));
+        } catch (ArithmeticException overflow) {
+            addToSpill(key, BigDecimal.valueOf(amountUnscaled, amountScale));
+        }
+    }
+
+    private void add(long key, BigDecimal amount) {
+        if (amount.unscaledValue().bitLength() < Long.SIZE) {
+            add(key, amount.unscaledValue().longValue(), amount.scale());
+        } else {
+            plane(key).count[(int) key]++;
+            addToSpill(key, amount);
+        }
+    }
+
+    /**
+     * Moves a cell to the spill map, if it isn't there already, and adds an amount to it
+     */
+    private void addToSpill(long key, BigDecimal amount) {
+        final Plane plane = plane(key);
+        final int i = (int) key;
+        final BigDecimal current = spill.containsKey(key) ? spill.get(key)
+                : BigDecimal.valueOf(plane.unscaled[i], scale).setScale(plane.scale[i]);
+        plane.unscaled[i] = 0L;
+        spill.put(key, current.add(amount));
+    }
+
+    /**
+     * Moves every cell up to a finer scale, spilling any that no longer fit a long
+     */
+    private void rescale(int newScale) {
+        final long factor = pow10(newScale - scale);
+        for (int d = 0; d < planes.length; d++) {
+            final Plane plane = planes[d];
+            if (plane == null) {
+                continue;
+            }
+            for (int i = 0; i < plane.unscaled.length; i++) {
+                if (plane.unscaled[i] != 0L) {
+                    try {
+                        plane.unscaled[i] = Math.multiplyExact(plane.unscaled[i], factor);
+                    } catch (ArithmeticException overflow) {
+                        spill.put(key(baseDay + d, i), BigDecimal.valueOf(plane.unscaled[i], scale).setScale(plane.scale[i]));
+                        plane.unscaled[i] = 0L;
+                    }
+                }
+            }
+        }
+        scale = newScale;
+    }
+
+    private static long pow10(int n) {
+        if (n >= POW10.length) {
+            throw new ArithmeticException("10^" + n + " doesn't fit a long");
+        }
+        return POW10[n];
+    }
+
+    /**
+     * @return Key of cell i of a day's plane, as the spill map holds it
+     */
+    private static long key(int day, int i) {
+        return ((long) day << 32) | i;
+    }
+
+    /**
+     * @return Plane of a key's day, created when the cell was
+     */
+    private Plane plane(long key) {
+        return planes[(int) (key >> 32) - baseDay];
+    }
+
+    /**
+     * Finds the cell of a (day, entity, side, currency), growing the cube to cover it when needed
+     * @return key of the cell
+     */
+    private long cell(int day, int entity, int side, int currencyOrdinal) {
+        if (entity < 0) {
+            throw new IllegalArgumentException("No entity with id " + entity);
+        }
+        int slot = slotOfCurrency[currencyOrdinal];
+        final boolean newSlot = slot < 0;
+        if (newSlot) {
+            slot = slots;
+        }
+        if (planes.length == 0) {
+            baseDay = day;
+            planes = new Plane[8];
+        } else if (day < baseDay || (long) day - baseDay >= planes.length) {
+            final long low = Math.min(baseDay, day);
+            final long high = Math.max((long) baseDay + planes.length - 1, day);
+            final long grown = Math.min(MAX_CELLS, Math.max(high - low + 1, (long) planes.length * 2));
+            // room below the first day, or above the last, where it's needed
+            final int newBase = day < baseDay ? (int) Math.max(Integer.MIN_VALUE, high - grown + 1) : baseDay;
+            final Plane[] grownPlanes = new Plane[(int) grown];
+            System.arraycopy(planes, 0, grownPlanes, baseDay - newBase, planes.length);
+            planes = grownPlanes;
+            baseDay = newBase;
+        }
+        if (entity >= entityCapacity || slot >= slotCapacity) {
+            relayout(entity >= entityCapacity ? Math.max(entity + 1, Math.max(16, entityCapacity * 2)) : entityCapacity,
+                    slot >= slotCapacity ? Math.min(CURRENCIES.length, Math.max(slot + 1, Math.max(4, slotCapacity * 2))) : slotCapacity);
+        }
+        if (newSlot) {
+            slotOfCurrency[currencyOrdinal] = slot;
+            currencyOfSlot[slot] = currencyOrdinal;
+            slots++;
+        }
+        if (planes[day - baseDay] == null) {
+            planes[day - baseDay] = new Plane(entityCapacity * SIDES.length * slotCapacity);
+        }
+        return key(day, index(entity, side, slot));
+    }
+
+    private int index(int entity, int side, int slot) {
+        return (entity * SIDES.length + side) * slotCapacity + slot;
+    }
+
+    /**
+     * Re-allocates every plane for more entities or currencies, moving every cell (and spilled cell) to its new index
+     */
+    private void relayout(int newEntities, int newSlots) {
+        final long cells = (long) newEntities * SIDES.length * newSlots;
+        if (cells > MAX_CELLS) {
+            throw new IllegalStateException("Aggregate cube of " + newEntities + " entities and " + newSlots
+                    + " currencies is too large");
+        }
+        final Map<Long, BigDecimal> oldSpill = new HashMap<>(spill);
+        final int oldEntities = entityCapacity;
+        final int oldSlots = slotCapacity;
+
+        spill.clear();
+        currencyOfSlot = Arrays.copyOf(currencyOfSlot, newSlots);
+        entityCapacity = newEntities;
+        slotCapacity = newSlots;
+
+        for (int d = 0; d < planes.length; d++) {
+            final Plane old = planes[d];
+            if (old == null) {
+                continue;
+            }
+            final Plane plane = new Plane((int) cells);
+            int from = 0;
+            for (int e = 0; e < oldEntities; e++) {
+                for (int s = 0; s < SIDES.length; s++) {
+                    for (int c = 0; c < oldSlots; c++, from++) {
+                        if (old.count[from] != 0) {
+                            final int i = index(e, s, c);
+                            plane.unscaled[i] = old.unscaled[from];
+                            plane.scale[i] = old.scale[from];
+                            plane.count[i] = old.count[from];
+                            final BigDecimal spilled = oldSpill.get(key(baseDay + d, from));
+                            if (spilled != null) {
+                                spill.put(key(baseDay + d, i), spilled);
+                            }
+                        }
+                    }
+                }
+            }
+            planes[d] = plane;
+        }
+    }
+
+    /**
+     * @return Map<LocalDate, BigDecimal> in date order of settlement-date-to-sum-USD-trade, over the slice
+     */
+    Map<LocalDate, BigDecimal> perDay(Slice slice) {
+        return DailyReport.toDateMap(rollUp(By.DAY, slice));
+    }
+
+    /**
+     * @return Map<LocalDate, BigDecimal> in date order of week-to-sum-USD-trade over the slice, each week
+     *         keyed by its Monday
+     */
+    Map<LocalDate, BigDecimal> perWeek(Slice slice) {
+        return DailyReport.toDateMap(rollUp(By.WEEK, slice));
+    }
+
+    /**
+     * @return Map<YearMonth, BigDecimal> in month order of month-to-sum-USD-trade, over the slice
+     */
+    Map<YearMonth, BigDecimal> perMonth(Slice slice) {
+        final ScaledSums sums = rollUp(By.MONTH, slice);
+        final Map<YearMonth, BigDecimal> monthToSum = new TreeMap<>();
+        for (int month = sums.lowKey(); sums.size() > 0 && month <= sums.highKey(); month++) {
+            if (sums.contains(month)) {
+                monthToSum.put(YearMonth.of(Math.floorDiv(month, 12), Math.floorMod(month, 12) + 1), sums.get(month));
+            }
+        }
+        return monthToSum;
+    }
+
+    /**
+     * @return Map<Integer, BigDecimal> in id order of entity-id-to-sum-USD-trade, over the slice
+     */
+    Map<Integer, BigDecimal> perEntity(Slice slice) {
+        return DailyReport.toEntityMap(rollUp(By.ENTITY, slice));
+    }
+
+    /**
+     * @return Map<Currency, BigDecimal> of currency-to-sum-USD-trade, over the slice
+     */
+    Map<ISO4217.Currency, BigDecimal> perCurrency(Slice slice) {
+        final ScaledSums sums = rollUp(By.CURRENCY, slice);
+        final Map<ISO4217.Currency, BigDecimal> currencyToSum = new EnumMap<>(ISO4217.Currency.class);
+        for (final ISO4217.Currency currency : CURRENCIES) {
+            if (sums.contains(currency.ordinal())) {
+                currencyToSum.put(currency, sums.get(currency.ordinal()));
+            }
+        }
+        return currencyToSum;
+    }
+
+    /**
+     * @return Map<BUYSELL, BigDecimal> of side-to-sum-USD-trade, over the slice
+     */
+    Map<ImmutableInstruction.BUYSELL, BigDecimal> perSide(Slice slice) {
+        final ScaledSums sums = rollUp(By.SIDE, slice);
+        final Map<ImmutableInstruction.BUYSELL, BigDecimal> sideToSum = new EnumMap<>(ImmutableInstruction.BUYSELL.class);
+        for (final ImmutableInstruction.BUYSELL side : SIDES) {
+            if (sums.contains(side.ordinal())) {
+                sideToSum.put(side, sums.get(side.ordinal()));
+            }
+        }
+        return sideToSum;
+    }
+
+    /**
+     * @return BigDecimal sum USD trade over the slice, null if no trades are in it
+     */
+    BigDecimal total(Slice slice) {
+        return rollUp(By.ALL, slice).get(0);
+    }
+
+    /**
+     * @return Number of trades in the slice
+     */
+    long count(Slice slice) {
+        final long[] total = new long[1];
+        visit(slice, (key, day, plane, i) -> total[0] += plane.count[i], By.ALL);
+        return total[0];
+    }
+
+    /**
+     * Sums every cell of the slice under its key for the dimension
+     */
+    private ScaledSums rollUp(By by, Slice slice) {
+        final ScaledSums sums = new ScaledSums(DailyReport.USD_SCALE);
+        visit(slice, (key, day, plane, i) -> {
+            final BigDecimal spilled = spill.isEmpty() ? null : spill.get(key(day, i));
+            if (spilled != null) {
+                sums.add(key, spilled);
+            } else {
+                // back down to the largest scale added, the digits below it are all zero
+                sums.add(key, plane.unscaled[i] / POW10[scale - plane.scale[i]], plane.scale[i]);
+            }
+        }, by);
+        return sums;
+    }
+
+    private interface CellVisitor {
+        void accept(int key, int day, Plane plane, int cell);
+    }
+
+    /**
+     * Visits every cell of the slice that has had a trade added, with its key for the dimension
+     */
+    private void visit(Slice slice, CellVisitor visitor, By by) {
+        final int firstDay = (int) Math.max(0, (long) slice.fromDay - baseDay);
+        final int lastDay = (int) Math.min(planes.length - 1, (long) slice.toDay - baseDay);
+        final int firstEntity = slice.entity < 0 ? 0 : slice.entity;
+        final int lastEntity = slice.entity < 0 ? entityCapacity - 1 : Math.min(slice.entity, entityCapacity - 1);
+        final int firstSlot;
+        final int lastSlot;
+        if (slice.currency == null) {
+            firstSlot = 0;
+            lastSlot = slots - 1;
+        } else {
+            firstSlot = slotOfCurrency[slice.currency.ordinal()];
+            lastSlot = firstSlot;
+            if (firstSlot < 0) {
+                return;
+            }
+        }
+        for (int d = firstDay; d <= lastDay; d++) {
+            final Plane plane = planes[d];
+            if (plane == null) {
+                continue;
+            }
+            final int day = baseDay + d;
+            int dayKey = 0;
+            if (by == By.DAY) {
+                dayKey = day;
+            } else if (by == By.WEEK) {
+                dayKey = day - (int) Math.floorMod(day + 3L, 7L); // back to Monday, epoch day 0 was a Thursday
+            } else if (by == By.MONTH) {
+                final LocalDate date = LocalDate.ofEpochDay(day);
+                dayKey = date.getYear() * 12 + date.getMonthValue() - 1;
+            }
+            for (int e = firstEntity; e <= lastEntity; e++) {
+                for (int s = 0; s < SIDES.length; s++) {
+                    if ((slice.sides & (1 << s)) == 0) {
+                        continue;
+                    }
+                    final int row = index(e, s, 0);
+                    for (int c = firstSlot; c <= lastSlot; c++) {
+                        final int i = row + c;
+                        if (plane.count[i] != 0) {
+                            final int key;
+                            switch (by) {
+                                case ENTITY: key = e; break;
+                                case CURRENCY: key = currencyOfSlot[c]; break;
+                                case SIDE: key = s; break;
+                                case ALL: key = 0; break;
+                                default: key = dayKey;
+                            }
+                            visitor.accept(key, day, plane, i);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Which cells of the cube a query reads: sides, one entity or all, one currency or all, and a range of
+     * settlement dates. Immutable, each method returns a narrower slice.
+     */
+    static final class Slice {
+        private final static Slice ALL = new Slice((1 << SIDES.length) - 1, -1, null, Integer.MIN_VALUE, Integer.MAX_VALUE);
+
+        private final int sides; // bit per BUYSELL ordinal
+        private final int entity; // -1 for all
+        private final ISO4217.Currency currency; // null for all
+        private final int fromDay;
+        private final int toDay;
+
+        private Slice(int sides, int entity, ISO4217.Currency currency, int fromDay, int toDay) {
+            this.sides = sides;
+            this.entity = entity;
+            this.currency = currency;
+            this.fromDay = fromDay;
+            this.toDay = toDay;
+        }
+
+        /**
+         * @return Slice of the whole cube
+         */
+        static Slice all() {
+            return ALL;
+        }
+
+        Slice side(ImmutableInstruction.BUYSELL side) {
+            return new Slice(1 << side.ordinal(), entity, currency, fromDay, toDay);
+        }
+
+        /**
+         * @param entityId Id of the entity in the shared EntityRegistry
+         */
+        Slice entity(int entityId) {
+            return new Slice(sides, entityId, currency, fromDay, toDay);
+        }
+
+        Slice currency(ISO4217.Currency currency) {
+            return new Slice(sides, entity, currency, fromDay, toDay);
+        }
+
+        /**
+         * @param from First settlement date
+         * @param to Last settlement date
+         */
+        Slice days(LocalDate from, LocalDate to) {
+            return new Slice(sides, entity, currency, (int) from.toEpochDay(), (int) to.toEpochDay());
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package com.jpmorgan.dtre;
+
+import java.math.BigInteger;
+import java.util.Locale;
+
+/**
+ * The inner loop of the per-day reports over a SettlementBatch: a masked sum of scaled long amounts by side.
+ *
+ * Two implementations:
+ * - scalar: a plain loop, on any JVM
+ * - vector: SIMD lanes through the JDK Vector API (jdk.incubator.vector), see VectorAggregationKernel. It is
+ *   compiled only on JDK 17 on (the vector profile, src/main/java-vector), and only used when the JVM is run
+ *   with --add-modules jdk.incubator.vector
+ *
+ * -Ddtre.kernel chooses: auto (the default, vector when it can be loaded, else scalar), scalar or vector.
+ *
+ * Each amount is summed as its high and low 32 bits, in separate longs: a long holds the sum of 2^31 such halves
+ * without overflowing, so the sums are exact for any batch that fits in an array, with no overflow check per row
+ * (which the Vector API has no lane-wise way to do). The exact total is high * 2^32 + low, see total().
+ * Stateless, so thread-safe.
+ */
+abstract class AggregationKernel {
+
+    /** System property choosing the kernel: auto, scalar or vector */
+    final static String KERNEL_PROPERTY = "dtre.kernel";
+
+    private final static String VECTOR_KERNEL = "com.jpmorgan.dtre.VectorAggregationKernel";
+
+    private final static AggregationKernel SCALAR = new Scalar();
+
+    /** Mask of the low 32 bits of an amount */
+    final static long LOW_BITS = 0xFFFF_FFFFL;
+
+    AggregationKernel() {
+    }
+
+    /**
+     * Adds the amounts of rows from (inclusive) to to (exclusive) to totals by side, as sums of their high and low
+     * 32 bits, see total()
+     * @param amount Scaled long amounts
+     * @param incoming Side of each row, true for incoming (Sell)
+     * @param totals Added to: [0] and [1] the high and low sums of the outgoing (Buy) rows, [2] and [3] of the incoming (Sell)
+     */
+    abstract void sumBySide(long[] amount, boolean[] incoming, int from, int to, long[] totals);
+
+    /**
+     * @param high Sum of the high 32 bits (signed) of some amounts
+     * @param low Sum of the low 32 bits (unsigned) of the same amounts
+     * @return Exact sum of the amounts
+     */
+    static BigInteger total(long high, long low) {
+        return BigInteger.valueOf(high).shiftLeft(Integer.SIZE).add(BigInteger.valueOf(low));
+    }
+
+    /**
+     * @return Name of this kernel, for logs and benchmarks
+     */
+    abstract String name();
+
+    @Override
+    public String toString() {
+        return name();
+    }
+
+    static AggregationKernel scalar() {
+        return SCALAR;
+    }
+
+    /**
+     * @return The Vector API kernel, or null if it wasn't built or jdk.incubator.vector isn't in this JVM
+     */
+    static AggregationKernel vector() {
+        try {
+            return (AggregationKernel) Class.forName(VECTOR_KERNEL).getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null; // not compiled in, or the module not added
+        }
+    }
+
+    /**
+     * @return Kernel chosen by -Ddtre.kernel
+     * @throws IllegalStateException if vector is asked for and can't be loaded
+     */
+    static AggregationKernel fromSystemProperty() {
+        final String kernel = System.getProperty(KERNEL_PROPERTY, "auto").toLowerCase(Locale.ROOT);
+        switch (kernel) {
+            case "scalar":
+                return SCALAR;
+            case "vector":
+                final AggregationKernel vector = vector();
+                if (vector == null) {
+                    throw new IllegalStateException("Vector kernel unavailable, run with --add-modules jdk.incubator.vector on JDK 17+");
+                }
+                return vector;
+            case "auto":
+                final AggregationKernel available = vector();
+                return available == null ? SCALAR : available;
+            default:
+                throw new IllegalArgumentException("Unknown " + KERNEL_PROPERTY + ": " + kernel);
+        }
+    }
+
+    private static final class Scalar extends AggregationKernel {
+        @Override
+        void sumBySide(long[] amount, boolean[] incoming, int from, int to, long[] totals) {
+            long allHigh = 0;
+            long allLow = 0;
+            long inHigh = 0;
+            long inLow = 0;
+            for (int i = from; i < to; i++) {
+                final long high = amount[i] >> Integer.SIZE;
+                final long low = amount[i] & LOW_BITS;
+                allHigh += high;
+                allLow += low;
+                if (incoming[i]) {
+                    inHigh += high;
+                    inLow += low;
+                }
+            }
+            totals[0] += allHigh - inHigh;
+            totals[1] += allLow - inLow;
+            totals[2] += inHigh;
+            totals[3] += inLow;
+        }
+
+        @Override
+        String name() {
+            return "scalar";
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package com.jpmorgan.dtre;
+
+/**
+ * How the USD amounts of trades are summed. Both give exactly the same totals.
+ */
+enum AggregationMode {
+    /** BigDecimal.add per row, the reference implementation */
+    BIG_DECIMAL,
+    /** Scaled long add per row (see ScaledSums), BigDecimal only for a bucket that overflows a long */
+    SCALED_LONG
+}
@@ -0,0 +1,115 @@
+package com.jpmorgan.dtre;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
+import java.util.stream.Collector;
+import java.util.stream.Collectors;
+
+/**
+ * Exact summing Collectors for BigDecimal amounts, the "mapToBigDecimal" the streams API doesn't have.
+ *
+ * Each thread of a parallel stream sums into its own accumulator, a ScaledSums, so adding a row is a long add
+ * with nothing allocated and nothing shared; the accumulators are then added together exactly. The totals, and
+ * their scales, are the same whatever the parallelism or the order the rows arrive in, and the same as the
+ * sequential DailyReport path, e.g.
+ *
+ *   ds.getRows().parallelStream().collect(BigDecimalCollectors.sumPerDay(ImmutableInstruction.BUYSELL.S))
+ *
+ * Keys (settlement epoch days, entity ids) must span a compact range, see ScaledSums.
+ */
+final class BigDecimalCollectors {
+
+    private BigDecimalCollectors() {
+    }
+
+    /**
+     * @param amount The amount of each element
+     * @return Collector of the exact sum of the amounts, as reducing from BigDecimal.ZERO with BigDecimal.add would give
+     */
+    static <T> Collector<T, ?, BigDecimal> summing(Function<? super T, BigDecimal> amount) {
+        return Collector.of(
+                () -> new ScaledSums(0),
+                (sums, t) -> sums.add(0, amount.apply(t)),
+                BigDecimalCollectors::combine,
+                sums -> sums.size() == 0 ? BigDecimal.ZERO : sums.get(0),
+                Collector.Characteristics.UNORDERED);
+    }
+
+    /**
+     * @param key The int key of each element, e.g. an epoch day or an entity id
+     * @param amount The amount of each element
+     * @return Collector of the exact sum of the amounts per key
+     */
+    static <T> Collector<T, ?, ScaledSums> summingBy(ToIntFunction<? super T> key, Function<? super T, BigDecimal> amount) {
+        return Collector.of(
+                () -> new ScaledSums(DailyReport.USD_SCALE),
+                (sums, t) -> sums.add(key.applyAsInt(t), amount.apply(t)),
+                BigDecimalCollectors::combine,
+                Collector.Characteristics.UNORDERED, Collector.Characteristics.IDENTITY_FINISH);
+    }
+
+    /**
+     * @param key The int key of each instruction, e.g. its settlement epoch day or entity id
+     * @return Collector of the exact sum of the amounts in USD per key, from each trade's scaled long form where it has one
+     */
+    static Collector<ImmutableInstruction, ?, ScaledSums> summingUSDBy(ToIntFunction<ImmutableInstruction> key) {
+        return summingUSDBy(key, null);
+    }
+
+    /**
+     * @param side S for incoming, B for outgoing, instructions on the other side are skipped
+     * @return Collector of the amount in USD settled per day, as DailyReport.perDay(side) has it
+     */
+    static Collector<ImmutableInstruction, ?, Map<LocalDate, BigDecimal>> sumPerDay(ImmutableInstruction.BUYSELL side) {
+        return Collectors.collectingAndThen(
+                summingUSDBy(in -> (int) in.getSettlementDate().toEpochDay(), side), DailyReport::toDateMap);
+    }
+
+    /**
+     * @param side S for incoming, B for outgoing, instructions on the other side are skipped
+     * @return Collector of the amount in USD per entity id, as DailyReport.perEntity(side) has it
+     */
+    static Collector<ImmutableInstruction, ?, Map<Integer, BigDecimal>> sumPerEntity(ImmutableInstruction.BUYSELL side) {
+        return Collectors.collectingAndThen(summingUSDBy(ImmutableInstruction::getEntityId, side), DailyReport::toEntityMap);
+    }
+
+    /**
+     * @param mode How to sum the amounts
+     * @return Collector of all four report totals in one pass, as DailyReport.of(rows, mode) gives them
+     */
+    static Collector<ImmutableInstruction, ?, DailyReport> dailyReport(AggregationMode mode) {
+        return Collector.of(
+                () -> new DailyReport(mode),
+                DailyReport::add,
+                DailyReport::addAll,
+                Collector.Characteristics.UNORDERED, Collector.Characteristics.IDENTITY_FINISH);
+    }
+
+    /**
+     * @param side Side to sum, or null for both
+     */
+    private static Collector<ImmutableInstruction, ScaledSums, ScaledSums> summingUSDBy(
+            ToIntFunction<ImmutableInstruction> key, ImmutableInstruction.BUYSELL side) {
+        return Collector.of(
+                () -> new ScaledSums(DailyReport.USD_SCALE),
+                (sums, in) -> {
+                    if (side == null || in.getBuySell() == side) {
+                        sums.addAmountOfTradeUSD(key.applyAsInt(in), in);
+                    }
+                },
+                BigDecimalCollectors::combine,
+                Collector.Characteristics.UNORDERED, Collector.Characteristics.IDENTITY_FINISH);
+    }
+
+    private static ScaledSums combine(ScaledSums left, ScaledSums right) {
+        if (left.size() < right.size()) {
+            right.addAll(left);
+            return right;
+        }
+        left.addAll(right);
+        return left;
+    }
+}
@@ -0,0 +1,165 @@
+package com.jpmorgan.dtre;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Concurrent ingestion into a DataSource: any number of producer threads (one per gateway feed, say) publish
+ * instructions through an InstructionRing, and one consumer thread appends them to the DataSource in the order
+ * they were published, which applies them to the store, its listeners (DailyReport, AggregateCube) and journal.
+ * The DataSource itself stays single-threaded, only the consumer touches it, so there's no global lock.
+ *
+ * Once its instruction is in the ring, each producer also adds the amount to StripedDayTotals, so the
+ * per-(day, side) totals are live, without waiting for the consumer, and contended only stripe by stripe.
+ * They can still trail the DataSource by the instructions being published at that moment, which the consumer
+ * may append before their producers have added them; every instruction is in them once its publish() returns.
+ *
+ * When the ring is full offer() fails and publish() backs off until the consumer has made room.
+ * Once flush() or close() returns, everything published before it has been appended, and the DataSource can be
+ * read from the calling thread (while no more is being published).
+ */
+final class ConcurrentIngestor implements AutoCloseable {
+
+    /** Most instructions appended per drain of the ring */
+    private final static int BATCH = 256;
+    /** Spins of an idle thread before it starts parking */
+    private final static int SPINS = 100;
+    private final static long PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    private final DataSource dataSource;
+    private final InstructionRing ring;
+    private final StripedDayTotals totals = new StripedDayTotals();
+    private final AtomicLong applied = new AtomicLong(); // written only by the consumer
+    private final Thread consumer;
+
+    private volatile boolean closed;
+    private volatile Throwable failure; // what stopped the consumer, if anything
+
+    /**
+     * Starts the consumer thread
+     * @param dataSource DataSource the instructions are appended to, by the consumer thread only from now on
+     * @param capacity Instructions held between the producers and the consumer, see InstructionRing
+     */
+    ConcurrentIngestor(DataSource dataSource, int capacity) {
+        this.dataSource = dataSource;
+        this.ring = new InstructionRing(capacity);
+        this.consumer = new Thread(this::consume, "dtre-ingest");
+        consumer.setDaemon(true);
+        consumer.start();
+    }
+
+    /**
+     * Publishes an instruction unless the ring is full, from any thread
+     * @param in ImmutableInstruction to append
+     * @return true if published, false if the ring is full
+     * @throws IllegalStateException if closed, or the consumer has failed
+     */
+    boolean offer(ImmutableInstruction in) {
+        checkOpen();
+        if (!ring.offer(in)) {
+            return false;
+        }
+        totals.add(in);
+        return true;
+    }
+
+    /**
+     * Publishes an instruction, backing off while the ring is full, from any thread
+     * @param in ImmutableInstruction to append
+     * @throws IllegalStateException if closed, or the consumer has failed
+     */
+    void publish(ImmutableInstruction in) {
+        for (int idle = 0; !offer(in); idle++) {
+            idle(idle);
+        }
+    }
+
+    /**
+     * Waits until every instruction published so far has been appended to the DataSource
+     * @throws IllegalStateException if the consumer has failed
+     */
+    void flush() {
+        final long published = ring.claimed();
+        for (int idle = 0; applied.get() < published; idle++) {
+            if (failure != null) {
+                throw new IllegalStateException("Ingestion failed", failure);
+            }
+            idle(idle);
+        }
+    }
+
+    /**
+     * Stops taking instructions, appends those already published and stops the consumer thread.
+     * Call once the producers have stopped publishing, one racing it may find its instruction taken or refused.
+     * @throws IllegalStateException if the consumer has failed
+     */
+    @Override
+    public void close() {
+        closed = true;
+        LockSupport.unpark(consumer);
+        try {
+            consumer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (failure != null) {
+            throw new IllegalStateException("Ingestion failed", failure);
+        }
+    }
+
+    /**
+     * @return Live per-(day, side) totals of every instruction whose offer() or publish() has returned
+     */
+    StripedDayTotals getTotals() {
+        return totals;
+    }
+
+    /**
+     * @return Number of instructions appended to the DataSource so far
+     */
+    long getApplied() {
+        return applied.get();
+    }
+
+    private void checkOpen() {
+        if (failure != null) {
+            throw new IllegalStateException("Ingestion failed", failure);
+        }
+        if (closed) {
+            throw new IllegalStateException("ConcurrentIngestor is closed");
+        }
+    }
+
+    /**
+     * The consumer: drains the ring into the DataSource until closed and empty
+     */
+    private void consume() {
+        try {
+            for (int idle = 0; ; ) {
+                final int taken = ring.drain(dataSource::append, BATCH);
+                if (taken > 0) {
+                    applied.lazySet(applied.get() + taken); // publishes the appends to flush()
+                    idle = 0;
+                } else if (closed && ring.isEmpty()) {
+                    return;
+                } else {
+                    idle(idle++);
+                }
+            }
+        } catch (Throwable e) {
+            failure = e; // producers and flush() see it rather than waiting on a consumer that has gone
+            if (e instanceof Error) {
+                throw (Error) e;
+            }
+        }
+    }
+
+    private static void idle(int idle) {
+        if (idle < SPINS) {
+            Thread.yield();
+        } else {
+            LockSupport.parkNanos(PARK_NANOS);
+        }
+    }
+}
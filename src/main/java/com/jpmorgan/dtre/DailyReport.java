@@ -0,0 +1,234 @@
+package com.jpmorgan.dtre;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.*;
+
+/**
+ * The four aggregates behind the daily reports, filled in a single pass over the instructions:
+ * - Amount in USD settled incoming (Sell) per day
+ * - Amount in USD settled outgoing (Buy) per day
+ * - Amount in USD incoming (Sell) per entity
+ * - Amount in USD outgoing (Buy) per entity
+ *
+ * Replaces scanning the rows once per report and copying each filtered subset into a Set (which
+ * paid ImmutableInstruction.hashCode() on every row, and silently merged identical-looking trades).
+ *
+ * Per-entity totals are keyed by entity id (see EntityRegistry), so any number of entities can be reported.
+ *
+ * In AggregationMode.SCALED_LONG (the default) the totals are ScaledSums keyed by settlement epoch day
+ * and entity id, so adding a row allocates nothing. AggregationMode.BIG_DECIMAL keeps the
+ * original BigDecimal maps, as the reference to compare against.
+ *
+ * Can also be filled straight from the primitive columns of an InstructionColumns store, without
+ * building any ImmutableInstruction objects.
+ *
+ * As an InstructionListener it keeps its totals up to date as instructions are appended to a DataSource,
+ * so reading a report costs the number of days and entities, not the number of instructions.
+ */
+final class DailyReport implements InstructionListener {
+
+    /** Minor unit scale of the report currency, the scale totals start accumulating at */
+    final static int USD_SCALE = ISO4217.Currency.USD.scale;
+
+    private final AggregationMode mode;
+
+    // AggregationMode.BIG_DECIMAL
+    private final Map<LocalDate, BigDecimal> incomingPerDay = new TreeMap<>(); // ordering on keys
+    private final Map<LocalDate, BigDecimal> outgoingPerDay = new TreeMap<>(); // ordering on keys
+    private final Map<Integer, BigDecimal> incomingPerEntity = new HashMap<>();
+    private final Map<Integer, BigDecimal> outgoingPerEntity = new HashMap<>();
+
+    // AggregationMode.SCALED_LONG
+    private final ScaledSums incomingByEpochDay = new ScaledSums(USD_SCALE);
+    private final ScaledSums outgoingByEpochDay = new ScaledSums(USD_SCALE);
+    private final ScaledSums incomingByEntity = new ScaledSums(USD_SCALE);
+    private final ScaledSums outgoingByEntity = new ScaledSums(USD_SCALE);
+
+    DailyReport(AggregationMode mode) {
+        this.mode = mode;
+    }
+
+    /**
+     * Reads the supplied instructions once and aggregates all four reports with scaled longs
+     * @param rows Instructions to report on, unfiltered
+     * @return DailyReport holding the aggregated totals
+     */
+    static DailyReport of(Collection<ImmutableInstruction> rows) {
+        return of(rows, AggregationMode.SCALED_LONG);
+    }
+
+    /**
+     * Reads the supplied instructions once and aggregates all four reports
+     * @param rows Instructions to report on, unfiltered
+     * @param mode How to sum the amounts
+     * @return DailyReport holding the aggregated totals
+     */
+    static DailyReport of(Collection<ImmutableInstruction> rows, AggregationMode mode) {
+        final DailyReport report = new DailyReport(mode);
+        for (final ImmutableInstruction in : rows) {
+            report.add(in);
+        }
+        return report;
+    }
+
+    /**
+     * Reads the columns of the supplied store once and aggregates all four reports
+     * @param columns Instructions to report on, unfiltered
+     * @param mode How to sum the amounts
+     * @return DailyReport holding the aggregated totals
+     */
+    static DailyReport of(InstructionColumns columns, AggregationMode mode) {
+        final DailyReport report = new DailyReport(mode);
+        for (int row = 0; row < columns.size(); row++) {
+            report.add(columns, row);
+        }
+        return report;
+    }
+
+    /**
+     * Reads the supplied instructions on all cores and aggregates all four reports, giving exactly the totals
+     * of(rows, mode) would, see BigDecimalCollectors.dailyReport(mode)
+     * @param rows Instructions to report on, unfiltered
+     * @param mode How to sum the amounts
+     * @return DailyReport holding the aggregated totals
+     */
+    static DailyReport ofParallel(Collection<ImmutableInstruction> rows, AggregationMode mode) {
+        return rows.parallelStream().collect(BigDecimalCollectors.dailyReport(mode));
+    }
+
+    /**
+     * Adds one instruction to the per-day and per-entity totals for its side
+     * @param in ImmutableInstruction to take into account
+     */
+    void add(ImmutableInstruction in) {
+        final boolean incoming = in.getBuySell() == ImmutableInstruction.BUYSELL.S;
+        if (mode == AggregationMode.SCALED_LONG) {
+            final int epochDay = (int) in.getSettlementDate().toEpochDay();
+            (incoming ? incomingByEpochDay : outgoingByEpochDay).addAmountOfTradeUSD(epochDay, in);
+            (incoming ? incomingByEntity : outgoingByEntity).addAmountOfTradeUSD(in.getEntityId(), in);
+        } else {
+            final BigDecimal amount = in.getAmountOfTradeUSD();
+            (incoming ? incomingPerDay : outgoingPerDay).merge(in.getSettlementDate(), amount, BigDecimal::add);
+            (incoming ? incomingPerEntity : outgoingPerEntity).merge(in.getEntityId(), amount, BigDecimal::add);
+        }
+    }
+
+    @Override
+    public void onInstruction(ImmutableInstruction in) {
+        add(in);
+    }
+
+    /**
+     * Adds one row of a columnar store to the per-day and per-entity totals for its side
+     * @param columns InstructionColumns holding the row
+     * @param row Row number
+     */
+    void add(InstructionColumns columns, int row) {
+        final boolean incoming = columns.isIncoming(row);
+        final InstructionColumns.DecimalColumn amount = columns.amountOfTradeUSD();
+        if (mode == AggregationMode.SCALED_LONG) {
+            final ScaledSums byDay = incoming ? incomingByEpochDay : outgoingByEpochDay;
+            final ScaledSums byEntity = incoming ? incomingByEntity : outgoingByEntity;
+            if (amount.isScaledLong(row)) {
+                byDay.add(columns.settlementEpochDay(row), amount.unscaled(row), amount.scale(row));
+                byEntity.add(columns.entityId(row), amount.unscaled(row), amount.scale(row));
+            } else {
+                byDay.add(columns.settlementEpochDay(row), amount.get(row));
+                byEntity.add(columns.entityId(row), amount.get(row));
+            }
+        } else {
+            (incoming ? incomingPerDay : outgoingPerDay)
+                    .merge(LocalDate.ofEpochDay(columns.settlementEpochDay(row)), amount.get(row), BigDecimal::add);
+            (incoming ? incomingPerEntity : outgoingPerEntity)
+                    .merge(columns.entityId(row), amount.get(row), BigDecimal::add);
+        }
+    }
+
+    /**
+     * Adds all four of other's totals into this report's, exactly, as if its instructions had been added here
+     * @param other DailyReport in the same AggregationMode, unchanged
+     * @return this DailyReport
+     */
+    DailyReport addAll(DailyReport other) {
+        if (other.mode != mode) {
+            throw new IllegalArgumentException("Can't add a " + other.mode + " report to a " + mode + " report");
+        }
+        if (mode == AggregationMode.SCALED_LONG) {
+            incomingByEpochDay.addAll(other.incomingByEpochDay);
+            outgoingByEpochDay.addAll(other.outgoingByEpochDay);
+            incomingByEntity.addAll(other.incomingByEntity);
+            outgoingByEntity.addAll(other.outgoingByEntity);
+        } else {
+            other.incomingPerDay.forEach((k, v) -> incomingPerDay.merge(k, v, BigDecimal::add));
+            other.outgoingPerDay.forEach((k, v) -> outgoingPerDay.merge(k, v, BigDecimal::add));
+            other.incomingPerEntity.forEach((k, v) -> incomingPerEntity.merge(k, v, BigDecimal::add));
+            other.outgoingPerEntity.forEach((k, v) -> outgoingPerEntity.merge(k, v, BigDecimal::add));
+        }
+        return this;
+    }
+
+    /**
+     * @param side S for incoming, B for outgoing
+     * @return Map<LocalDate, BigDecimal> in natural date order of date-to-sum-USD-trade
+     */
+    Map<LocalDate, BigDecimal> perDay(ImmutableInstruction.BUYSELL side) {
+        final boolean incoming = side == ImmutableInstruction.BUYSELL.S;
+        if (mode == AggregationMode.BIG_DECIMAL) {
+            return Collections.unmodifiableMap(incoming ? incomingPerDay : outgoingPerDay);
+        }
+        return Collections.unmodifiableMap(toDateMap(incoming ? incomingByEpochDay : outgoingByEpochDay));
+    }
+
+    /**
+     * @param side S for incoming, B for outgoing
+     * @return ScaledSums keyed by settlement epoch day, so a report can be rendered from the scaled longs,
+     *         or null in AggregationMode.BIG_DECIMAL
+     */
+    ScaledSums sumsPerDay(ImmutableInstruction.BUYSELL side) {
+        if (mode == AggregationMode.BIG_DECIMAL) {
+            return null;
+        }
+        return side == ImmutableInstruction.BUYSELL.S ? incomingByEpochDay : outgoingByEpochDay;
+    }
+
+    /**
+     * @param side S for incoming, B for outgoing
+     * @return Map<Integer, BigDecimal> of entity-id-to-sum-USD-trade, unsorted by value
+     */
+    Map<Integer, BigDecimal> perEntity(ImmutableInstruction.BUYSELL side) {
+        final boolean incoming = side == ImmutableInstruction.BUYSELL.S;
+        if (mode == AggregationMode.BIG_DECIMAL) {
+            return Collections.unmodifiableMap(incoming ? incomingPerEntity : outgoingPerEntity);
+        }
+        return Collections.unmodifiableMap(toEntityMap(incoming ? incomingByEntity : outgoingByEntity));
+    }
+
+    /**
+     * @param byEpochDay ScaledSums keyed by epoch day
+     * @return Map<LocalDate, BigDecimal> (TreeMap) in natural date order of date-to-sum
+     */
+    static Map<LocalDate, BigDecimal> toDateMap(ScaledSums byEpochDay) {
+        final Map<LocalDate, BigDecimal> dateToSum = new TreeMap<>();
+        for (int day = byEpochDay.lowKey(); byEpochDay.size() > 0 && day <= byEpochDay.highKey(); day++) {
+            if (byEpochDay.contains(day)) {
+                dateToSum.put(LocalDate.ofEpochDay(day), byEpochDay.get(day));
+            }
+        }
+        return dateToSum;
+    }
+
+    /**
+     * @param byEntityId ScaledSums keyed by entity id
+     * @return Map<Integer, BigDecimal> of entity-id-to-sum, in id order
+     */
+    static Map<Integer, BigDecimal> toEntityMap(ScaledSums byEntityId) {
+        final Map<Integer, BigDecimal> entityToSum = new LinkedHashMap<>();
+        for (int id = byEntityId.lowKey(); byEntityId.size() > 0 && id <= byEntityId.highKey(); id++) {
+            if (byEntityId.contains(id)) {
+                entityToSum.put(id, byEntityId.get(id));
+            }
+        }
+        return entityToSum;
+    }
+}
@@ -3,12 +3,18 @@
  */
 package com.jpmorgan.dtre;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
 import java.math.BigDecimal;
-import java.text.NumberFormat;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.time.LocalDate;
 import java.util.*;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.stream.Collectors;
+import java.util.concurrent.CompletionException;
 
 /**
  * Daily Trade Reporting Engine to process instructions sent by various clients
@@ -61,86 +67,285 @@ import java.util.stream.Collectors;
  */
 public class DailyTrades {
 
+    /** System property limiting the entity rankings to the top N, all entities are ranked if unset */
+    final static String RANK_LIMIT_PROPERTY = "dtre.rank.top";
+    /** System property limiting the reports to today and the next N business days, all dates are reported if unset */
+    final static String BUSINESS_DAYS_PROPERTY = "dtre.report.businessDays";
+    /** System property giving a port to take instructions on, see IngestionServer, before reporting */
+    final static String SERVER_PORT_PROPERTY = "dtre.server.port";
+    /** System property naming a file to stream through an InstructionPipeline and report on, keeping no rows */
+    final static String STREAM_PROPERTY = "dtre.stream";
+    /** System property running the per-day reports as an end-of-day batch, see batchReports(), rather than from the maintained totals */
+    final static String BATCH_PROPERTY = "dtre.batch";
+    /** System property adding the per-currency reports, see currencyReports(), to those over the whole book */
+    final static String CURRENCY_REPORTS_PROPERTY = "dtre.report.currency";
+
     private final DataSource ds;
-    /** Number format for US, for presentation layer */
-    private final NumberFormat nf = NumberFormat.getCurrencyInstance(Locale.US);
+    /** Number of entities printed in each ranking */
+    private final int rankLimit;
 
     public DailyTrades() {
-        ds = DataSource.getInstance();
+        this(Integer.getInteger(RANK_LIMIT_PROPERTY, Integer.MAX_VALUE));
+    }
+
+    /**
+     * @param rankLimit Number of entities to print in each ranking (top K), Integer.MAX_VALUE for all
+     */
+    public DailyTrades(int rankLimit) {
+        this(DataSource.getInstance(), rankLimit);
+    }
+
+    /**
+     * Reports on a book of its own, e.g. one of several in this JVM
+     * @param ds DataSource of the instructions to report on, read when first reported on
+     */
+    DailyTrades(DataSource ds) {
+        this(ds, Integer.getInteger(RANK_LIMIT_PROPERTY, Integer.MAX_VALUE));
+    }
+
+    /**
+     * @param ds DataSource of the instructions to report on, read when first reported on
+     * @param rankLimit Number of entities to print in each ranking (top K), Integer.MAX_VALUE for all
+     */
+    DailyTrades(DataSource ds, int rankLimit) {
+        this.ds = ds;
+        this.rankLimit = rankLimit;
     }
 
     public static void main (String[] a) {
         System.out.println("Daily Trade Reporting Engine");
 
         final DailyTrades dt = new DailyTrades();
-        dt.reports();
+        final String stream = System.getProperty(STREAM_PROPERTY);
+        if (stream != null) {
+            dt.streamReports(Paths.get(stream));
+            System.exit(0);
+        }
+        final Integer port = Integer.getInteger(SERVER_PORT_PROPERTY);
+        if (port != null) {
+            dt.serve(port);
+        }
+        final Integer businessDays = Integer.getInteger(BUSINESS_DAYS_PROPERTY);
+        if (Boolean.getBoolean(BATCH_PROPERTY)) {
+            dt.batchReports();
+        } else if (businessDays == null) {
+            dt.reports();
+        } else {
+            dt.reportsForBusinessDays(LocalDate.now(), businessDays);
+        }
 
         System.exit(0);
     }
 
+    /**
+     * Takes instructions over TCP into the data source until a line (or end of input) is read from the console
+     * @param port Port to listen on, see IngestionServer
+     */
+    public void serve(int port) {
+        final IngestionServer server;
+        try (IngestionServer open = new IngestionServer(ds, new InetSocketAddress(port), IngestionServer.DEFAULT_CAPACITY)) {
+            server = open;
+            System.out.println("Taking instructions on port " + server.getPort()
+                    + (server.isVirtual() ? " (virtual threads)" : "") + ", press Enter to stop and report");
+            new BufferedReader(new InputStreamReader(System.in, StandardCharsets.US_ASCII)).readLine();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        // closed, so everything taken is in the data source
+        System.out.println("Took " + server.getAccepted() + " instructions from " + server.getConnections()
+                + " connections, rejected " + server.getRejected());
+    }
+
+    /**
+     * Runs all reports from the totals the data source maintains as instructions are appended,
+     * so refreshing the reports does not rescan the instructions
+     */
     public void reports() {
-        incomingSettledUSDDaily();
-        outgoingSettledUSDDaily();
-        rank();
+        try (ReportSink sink = ReportSink.fromSystemProperties()) {
+            reports(ds.getDailyReport(), sink);
+            if (Boolean.getBoolean(CURRENCY_REPORTS_PROPERTY)) {
+                currencyReports(sink);
+            }
+        }
+    }
+
+    /**
+     * Renders all reports from the totals into a sink, see ReportSink
+     * @param report Totals to report on
+     * @param sink Where to render them
+     */
+    void reports(DailyReport report, ReportSink sink) {
+        incomingSettledUSDDaily(report, sink);
+        outgoingSettledUSDDaily(report, sink);
+        rank(report, sink);
+    }
+
+    /**
+     * Runs all reports over a file of any size, read, parsed and aggregated concurrently by an
+     * InstructionPipeline without keeping the instructions (or touching the data source)
+     * @param file Pipe-delimited instruction file
+     */
+    public void streamReports(Path file) {
+        final InstructionPipeline pipeline = new InstructionPipeline();
+        final DailyReport report;
+        try {
+            report = pipeline.aggregate(file).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+        System.out.println("Streamed " + pipeline.getRows() + " instructions from " + file
+                + ", rejected " + pipeline.getRejected()
+                + (pipeline.getFirstRejection() == null ? "" : ", first: " + pipeline.getFirstRejection()));
+        try (ReportSink sink = ReportSink.fromSystemProperties()) {
+            reports(report, sink);
+        }
+    }
+
+    /**
+     * Runs all reports over the instructions settling in a window of dates, reading only those
+     * instructions (see SettlementIndex) rather than the whole book
+     * @param from First settlement date
+     * @param to Last settlement date
+     */
+    public void reports(LocalDate from, LocalDate to) {
+        try (ReportSink sink = ReportSink.fromSystemProperties()) {
+            sink.heading("Settling " + from + " to " + to);
+            reports(ds.getDailyReport(from, to), sink);
+        }
+    }
+
+    /**
+     * Runs all reports over the instructions settling from today to the businessDays-th USD business day after it,
+     * e.g. today and the next three business days
+     * @param today First settlement date
+     * @param businessDays Number of business days after today to include
+     */
+    public void reportsForBusinessDays(LocalDate today, int businessDays) {
+        reports(today, businessDaysAfter(today, businessDays));
+    }
+
+    /**
+     * @return LocalDate the businessDays-th business day after date, by the USD working week and holidays
+     */
+    static LocalDate businessDaysAfter(LocalDate date, int businessDays) {
+        int day = (int) date.toEpochDay();
+        for (int i = 0; i < businessDays; i++) {
+            day = WorkingWeek.adjustEpochDay(ISO4217.Currency.USD, day + 1);
+        }
+        return LocalDate.ofEpochDay(day);
+    }
+
+    /**
+     * Prints the amount in USD settled incoming and outgoing every day, summed over every instruction by the
+     * AggregationKernel chosen by -Ddtre.kernel (see SettlementBatch): for the largest end-of-day batches.
+     * main() runs it in place of reports() with -Ddtre.batch=true
+     */
+    public void batchReports() {
+        try (ReportSink sink = ReportSink.fromSystemProperties()) {
+            batchReports(AggregationKernel.fromSystemProperty(), sink);
+        }
+    }
+
+    void batchReports(AggregationKernel kernel, ReportSink sink) {
+        final SettlementBatch batch = ds.getSettlementBatch();
+        final long[] sums = batch.sumByDay(kernel);
+        sink.begin(ReportSink.Report.INCOMING_PER_DAY);
+        renderPerDay(batch.perDay(ImmutableInstruction.BUYSELL.S, sums), sink);
+        sink.begin(ReportSink.Report.OUTGOING_PER_DAY);
+        renderPerDay(batch.perDay(ImmutableInstruction.BUYSELL.B, sums), sink);
+    }
+
+    /**
+     * Prints the amount in USD settled incoming and outgoing per trade currency, read from the aggregate cube
+     * the data source maintains, so it costs the size of the cube and not the number of instructions.
+     * reports() adds them to its own with -Ddtre.report.currency=true
+     */
+    public void currencyReports() {
+        try (ReportSink sink = ReportSink.fromSystemProperties()) {
+            currencyReports(sink);
+        }
+    }
+
+    void currencyReports(ReportSink sink) {
+        final AggregateCube cube = ds.getAggregateCube();
+        sink.begin(ReportSink.Report.INCOMING_PER_CURRENCY);
+        renderPerCurrency(cube.perCurrency(AggregateCube.Slice.all().side(ImmutableInstruction.BUYSELL.S)), sink);
+        sink.begin(ReportSink.Report.OUTGOING_PER_CURRENCY);
+        renderPerCurrency(cube.perCurrency(AggregateCube.Slice.all().side(ImmutableInstruction.BUYSELL.B)), sink);
+    }
+
+    private void renderPerCurrency(Map<ISO4217.Currency, BigDecimal> currencyToSum, ReportSink sink) {
+        sink.expectRows(currencyToSum.size());
+        for (final Map.Entry<ISO4217.Currency, BigDecimal> e : currencyToSum.entrySet()) {
+            sink.currency(e.getKey());
+            sink.amount(e.getValue());
+        }
     }
 
     /**
      * Incoming = Sell orders
      */
-    void incomingSettledUSDDaily() {
-        final Set<ImmutableInstruction> sellOrders = ds.getRows()
-                .stream()
-                .filter(r -> r.getBuySell() == ImmutableInstruction.BUYSELL.S)
-                // it would be nice to use mapToDouble (or ideally a new mapToBigDecimal) at this point, but we can't
-                // so we drop the java 8 lambda aggregation and process individual BigDecimal objects, otherwise
-                // we risk losing either precision or number of digits
-                // so just collect, don't map and aggregate (yet)
-                .collect(Collectors.toSet());
+    void incomingSettledUSDDaily(DailyReport report) {
+        try (ReportSink sink = ReportSink.console(System.out)) {
+            incomingSettledUSDDaily(report, sink);
+        }
+    }
 
-        System.out.println("=== Amount in USD settled incoming (Sell) every day ===");
-        aggregateSumPerDay(sellOrders);
+    void incomingSettledUSDDaily(DailyReport report, ReportSink sink) {
+        sink.begin(ReportSink.Report.INCOMING_PER_DAY);
+        renderPerDay(report, ImmutableInstruction.BUYSELL.S, sink);
     }
 
     /**
      * Outgoing = Buy orders
      */
-    void outgoingSettledUSDDaily() {
-        final Set<ImmutableInstruction> buyOrders = ds.getRows()
-                .stream()
-                .filter(r -> r.getBuySell() == ImmutableInstruction.BUYSELL.B)
-                // it would be nice to use mapToDouble (or ideally a new mapToBigDecimal) at this point, but we can't
-                // so we drop the java 8 lambda aggregation and process individual BigDecimal objects, otherwise
-                // we risk losing either precision or number of digits
-                // so just collect, don't map and aggregate (yet)
-                .collect(Collectors.toSet());
-
-        System.out.println("=== Amount in USD settled outgoing (Buy) every day ===");
-        aggregateSumPerDay(buyOrders);
-    }
-
-    void rank() {
-        final Set<ImmutableInstruction> sellOrders = ds.getRows()
-                .stream()
-                .filter(r -> r.getBuySell() == ImmutableInstruction.BUYSELL.S)
-                // it would be nice to use mapToDouble (or ideally a new mapToBigDecimal) at this point, but we can't
-                // so we drop the java 8 lambda aggregation and process individual BigDecimal objects, otherwise
-                // we risk losing either precision or number of digits
-                // so just collect, don't map and aggregate (yet)
-                .collect(Collectors.toSet());
-        System.out.println("=== Rank Incoming (Sell) ===");
-        aggregateSumByEntity(sellOrders);
-
-        final Set<ImmutableInstruction> buyOrders = ds.getRows()
-                .stream()
-                .filter(r -> r.getBuySell() == ImmutableInstruction.BUYSELL.B)
-                // it would be nice to use mapToDouble (or ideally a new mapToBigDecimal) at this point, but we can't
-                // so we drop the java 8 lambda aggregation and process individual BigDecimal objects, otherwise
-                // we risk losing either precision or number of digits
-                // so just collect, don't map and aggregate (yet)
-                .collect(Collectors.toSet());
-        System.out.println("=== Rank Outgoing (Buy) ===");
-        aggregateSumByEntity(buyOrders);
+    void outgoingSettledUSDDaily(DailyReport report) {
+        try (ReportSink sink = ReportSink.console(System.out)) {
+            outgoingSettledUSDDaily(report, sink);
+        }
+    }
 
+    void outgoingSettledUSDDaily(DailyReport report, ReportSink sink) {
+        sink.begin(ReportSink.Report.OUTGOING_PER_DAY);
+        renderPerDay(report, ImmutableInstruction.BUYSELL.B, sink);
+    }
+
+    void rank(DailyReport report) {
+        try (ReportSink sink = ReportSink.console(System.out)) {
+            rank(report, sink);
+        }
+    }
+
+    void rank(DailyReport report, ReportSink sink) {
+        sink.begin(ReportSink.Report.RANK_INCOMING);
+        renderRanking(report.perEntity(ImmutableInstruction.BUYSELL.S), sink);
+
+        sink.begin(ReportSink.Report.RANK_OUTGOING);
+        renderRanking(report.perEntity(ImmutableInstruction.BUYSELL.B), sink);
+    }
+
+    /**
+     * Renders one row per settlement date of a side, straight from the scaled long totals where the report has them
+     */
+    private void renderPerDay(DailyReport report, ImmutableInstruction.BUYSELL side, ReportSink sink) {
+        final ScaledSums sums = report.sumsPerDay(side);
+        if (sums == null) {
+            renderPerDay(report.perDay(side), sink);
+            return;
+        }
+        sink.expectRows(sums.size());
+        for (int day = sums.lowKey(); sums.size() > 0 && day <= sums.highKey(); day++) {
+            if (sums.isScaledLong(day)) {
+                sink.day(day);
+                sink.amount(sums.unscaled(day), sums.scale(day));
+            } else if (sums.contains(day)) {
+                sink.day(day);
+                sink.amount(sums.get(day));
+            }
+        }
     }
 
     int dataRowsLoaded() {
@@ -149,12 +354,31 @@ public class DailyTrades {
 
     /**
      * Prints out a list of aggregate 'AmountOfTradeUSD' by date, sorted by date.
-     * Note: Operates on the entire list of sample data (no defined date range)
+     * Note: Operates on the entire collection supplied (no defined date range, see reports(from, to) for that)
      *       and will not print a date with $0.00, if no data exist
-     * @param orders Pre-filtered Set of ImmutableInstruction objects to take into account
+     * @param orders Pre-filtered Collection of ImmutableInstruction objects to take into account
+     * @return Map<LocalDate, BigDecimal> (TreeMap) in natural date order of date-to-sum-USD-trade
+     */
+    Map<LocalDate, BigDecimal> aggregateSumPerDay(Collection<ImmutableInstruction> orders) {
+        return aggregateSumPerDay(orders, AggregationMode.BIG_DECIMAL);
+    }
+
+    /**
+     * As aggregateSumPerDay(orders), summing the amounts as chosen by mode (same totals either way),
+     * SCALED_LONG summing on all cores, see BigDecimalCollectors
+     * @param orders Pre-filtered Collection of ImmutableInstruction objects to take into account
+     * @param mode How to sum the amounts
      * @return Map<LocalDate, BigDecimal> (TreeMap) in natural date order of date-to-sum-USD-trade
      */
-    Map<LocalDate, BigDecimal> aggregateSumPerDay(Set<ImmutableInstruction> orders) {
+    Map<LocalDate, BigDecimal> aggregateSumPerDay(Collection<ImmutableInstruction> orders, AggregationMode mode) {
+        if (mode == AggregationMode.SCALED_LONG) {
+            final ScaledSums sums = orders.parallelStream()
+                    .collect(BigDecimalCollectors.summingUSDBy(in -> (int) in.getSettlementDate().toEpochDay()));
+            final Map<LocalDate, BigDecimal> dateToSumPerDay = DailyReport.toDateMap(sums);
+            printPerDay(dateToSumPerDay);
+            return dateToSumPerDay;
+        }
+
         final Map<LocalDate, BigDecimal> dateToSumPerDay = new TreeMap<>(); // ordering on keys
         for (final ImmutableInstruction in : orders) {
             BigDecimal existingAmount = dateToSumPerDay.get(in.getSettlementDate());
@@ -164,28 +388,44 @@ public class DailyTrades {
             dateToSumPerDay.put(in.getSettlementDate(), existingAmount.add(in.getAmountOfTradeUSD()));
         }
 
-        for (final Map.Entry<LocalDate, BigDecimal> e : dateToSumPerDay.entrySet()) {
-            System.out.println(e.getKey()+" => "+nf.format(e.getValue()));
-        }
+        printPerDay(dateToSumPerDay);
         return dateToSumPerDay;
     }
 
-    Map<DataSource.ENTITIES, BigDecimal> aggregateSumByEntity(Set<ImmutableInstruction> orders) {
-        final Map<DataSource.ENTITIES, BigDecimal> entityToSumPerDay = new HashMap<>();
+    /**
+     * Prints out the entities ranked by aggregate 'AmountOfTradeUSD'
+     * @param orders Pre-filtered Collection of ImmutableInstruction objects to take into account
+     * @return Map<Integer, BigDecimal> of entity-id-to-sum-USD-trade (see EntityRegistry), unsorted by value
+     */
+    Map<Integer, BigDecimal> aggregateSumByEntity(Collection<ImmutableInstruction> orders) {
+        return aggregateSumByEntity(orders, AggregationMode.BIG_DECIMAL);
+    }
+
+    /**
+     * Prints out the entities ranked by aggregate 'AmountOfTradeUSD', summing as chosen by mode (same totals either way),
+     * SCALED_LONG summing on all cores, see BigDecimalCollectors
+     * @param orders Pre-filtered Collection of ImmutableInstruction objects to take into account
+     * @param mode How to sum the amounts
+     * @return Map<Integer, BigDecimal> of entity-id-to-sum-USD-trade (see EntityRegistry), unsorted by value
+     */
+    Map<Integer, BigDecimal> aggregateSumByEntity(Collection<ImmutableInstruction> orders, AggregationMode mode) {
+        if (mode == AggregationMode.SCALED_LONG) {
+            final ScaledSums sums = orders.parallelStream().collect(BigDecimalCollectors.summingUSDBy(ImmutableInstruction::getEntityId));
+            final Map<Integer, BigDecimal> entityToSumPerDay = DailyReport.toEntityMap(sums);
+            printRanking(entityToSumPerDay);
+            return entityToSumPerDay;
+        }
+
+        final Map<Integer, BigDecimal> entityToSumPerDay = new HashMap<>();
         for (final ImmutableInstruction in : orders) {
-            BigDecimal existingAmount = entityToSumPerDay.get(in.getEntity());
+            BigDecimal existingAmount = entityToSumPerDay.get(in.getEntityId());
             if (existingAmount == null) {
                 existingAmount = BigDecimal.ZERO;
             }
-            entityToSumPerDay.put(in.getEntity(), existingAmount.add(in.getAmountOfTradeUSD()));
+            entityToSumPerDay.put(in.getEntityId(), existingAmount.add(in.getAmountOfTradeUSD()));
         }
 
-
-        // Java 8: sort this, by value, descending (.reversed())
-        final AtomicInteger rank = new AtomicInteger(1);
-        entityToSumPerDay.entrySet().stream()
-                .sorted(Map.Entry.<DataSource.ENTITIES, BigDecimal>comparingByValue().reversed())
-                .forEach(e -> System.out.println(rank.getAndAdd(1) + ". " + e.getKey() + " => " + nf.format(e.getValue())));
+        printRanking(entityToSumPerDay);
 
         // Java 7: sort this, by value, descending
 //        final Map<DataSource.ENTITIES, BigDecimal> sortedMap = sortByValueDesc(entityToSumPerDay);
@@ -197,6 +437,48 @@ public class DailyTrades {
         return entityToSumPerDay;
     }
 
+    /**
+     * Prints one line per date, in the iteration order of the supplied map
+     * @param dateToSum Map<LocalDate, BigDecimal> of date-to-sum-USD-trade, expected in date order
+     */
+    private void printPerDay(Map<LocalDate, BigDecimal> dateToSum) {
+        try (ReportSink sink = ReportSink.console(System.out)) {
+            renderPerDay(dateToSum, sink);
+        }
+    }
+
+    private void renderPerDay(Map<LocalDate, BigDecimal> dateToSum, ReportSink sink) {
+        sink.expectRows(dateToSum.size());
+        for (final Map.Entry<LocalDate, BigDecimal> e : dateToSum.entrySet()) {
+            sink.day((int) e.getKey().toEpochDay());
+            sink.amount(e.getValue());
+        }
+    }
+
+    /**
+     * Prints the top rankLimit entities ranked by sum total USD trade, highest first, ties in entity symbol order
+     * @param entityToSum Map<Integer, BigDecimal> of entity-id-to-sum-USD-trade, in any order
+     * @return List of the entries printed, in rank order
+     */
+    List<Map.Entry<Integer, BigDecimal>> printRanking(Map<Integer, BigDecimal> entityToSum) {
+        try (ReportSink sink = ReportSink.console(System.out)) {
+            return renderRanking(entityToSum, sink);
+        }
+    }
+
+    private List<Map.Entry<Integer, BigDecimal>> renderRanking(Map<Integer, BigDecimal> entityToSum, ReportSink sink) {
+        final EntityRegistry entities = EntityRegistry.getInstance();
+        // ids follow first-intern order, which parallel parsers make racy, so ties go by symbol instead
+        final List<Map.Entry<Integer, BigDecimal>> ranked = Ranking.top(entityToSum, rankLimit, Comparator.comparing(entities::symbol));
+        sink.expectRows(ranked.size());
+        int rank = 1;
+        for (final Map.Entry<Integer, BigDecimal> e : ranked) {
+            sink.rank(rank++, entities.symbol(e.getKey()));
+            sink.amount(e.getValue());
+        }
+        return ranked;
+    }
+
 //    Java 7: shown here for information in the assessment only, wouldn't leave so-called "zombie code" lying around production
 //    /**
 //     * Sort by value (descending) specifically for a map of DataSource.ENTITIES to BigDecimal
@@ -1,20 +1,88 @@
 package com.jpmorgan.dtre;
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.math.BigDecimal;
-import java.math.RoundingMode;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.time.LocalDate;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
 import java.util.Random;
 
 /**
  * Invented sample data source (replace with DB or otherwise)
+ *
+ * The rows come from an InstructionSource, read the first time they're needed rather than when the
+ * DataSource is created, so nothing is generated or loaded until a report (or an append) asks for them.
+ * Any number of DataSources, each over its own source, can live in one JVM; getInstance() is the one
+ * over the source the system properties choose, itself only created when first asked for.
+ *
+ * Rows are held either as a List of ImmutableInstruction objects (the default) or, with
+ * -Ddtre.store=columnar, in an InstructionColumns store that keeps each field in a primitive array.
+ * With -Ddtre.input=file the rows are loaded from a pipe-delimited file (see InstructionFileParser)
+ * rather than generated, on -Ddtre.parallelism threads (see ParallelInstructionLoader).
+ * With -Ddtre.snapshot=file the rows are reloaded from that binary snapshot if it exists (see InstructionSnapshot),
+ * else loaded or generated as above and then written to it, so the next start skips the parse.
+ * With -Ddtre.journal=directory every instruction append()ed is also journaled there (see InstructionJournal),
+ * and on start the journaled instructions are recovered on top of the rows above. The snapshot is written
+ * before the journal is recovered, so it never holds journaled instructions twice. close() forces the journal
+ * to disk and closes it; getInstance()'s is closed by a shutdown hook.
+ * With -Ddtre.dedup=true an instruction append()ed with a client reference already accepted is rejected
+ * (see DedupIndex), and the references survive a restart when journaling.
+ * Generated rows come from a SampleDataGenerator, -Ddtre.sample.rows of them from seed -Ddtre.sample.seed.
+ * A DataSource is not thread-safe: to append from many threads at once, publish through a ConcurrentIngestor,
+ * whose one consumer thread appends for them.
  * @author Peter D Bell, 4rd May 2017
  */
-public class DataSource {
-    private final static DataSource data = new DataSource();
+public class DataSource implements Closeable {
+    /** System property choosing the backing store, see Store */
+    final static String STORE_PROPERTY = "dtre.store";
+    /** System property naming a pipe-delimited instruction file to load instead of generating sample data */
+    final static String INPUT_PROPERTY = "dtre.input";
+    /** System property naming a binary snapshot to reload the rows from, or to write them to if it doesn't exist */
+    final static String SNAPSHOT_PROPERTY = "dtre.snapshot";
+    /** System property giving the number of rows of sample data generated, 100 if unset */
+    final static String SAMPLE_ROWS_PROPERTY = "dtre.sample.rows";
+    /** System property giving the seed the sample data is generated from, so a run can be repeated */
+    final static String SAMPLE_SEED_PROPERTY = "dtre.sample.seed";
 
-    private final List<ImmutableInstruction> rows;
+    /** The DataSource getInstance() gives, created the first time it's asked for, not when DataSource is loaded */
+    private static final class Instance {
+        private final static DataSource data = new DataSource();
+
+        static {
+            Runtime.getRuntime().addShutdownHook(new Thread(data::close, "dtre-datasource-close"));
+        }
+    }
+
+    /** How the rows are held in memory */
+    enum Store {
+        LIST,
+        COLUMNAR;
+
+        static Store fromSystemProperty() {
+            return Store.valueOf(System.getProperty(STORE_PROPERTY, LIST.name()).toUpperCase(Locale.ROOT));
+        }
+    }
+
+    private final InstructionSource source;
+    private final Store store;
+    private final String journalDirectory; // null unless journaling
+    private boolean loaded;
+    private volatile boolean closed;
+
+    private List<ImmutableInstruction> rows; // null when columnar
+    private InstructionColumns columns; // null unless columnar
+    private InstructionJournal journal; // null unless journaling
+    private final DedupIndex dedup; // null unless deduplicating
+
+    private final List<InstructionListener> listeners = new ArrayList<>();
+    private DailyReport dailyReport; // created and kept up to date once asked for
+    private AggregateCube aggregateCube; // created and kept up to date once asked for
+    private SettlementIndex settlementIndex; // built on the first windowed report, rebuilt as rows are appended
 
     enum ENTITIES { // this is a sample of first 20 from NASDAQ
         PIH	 ("1347 Property Insurance Holdings, Inc.", new BigDecimal("7.1")),
@@ -65,41 +133,133 @@ public class DataSource {
     }
 
     private DataSource() {
-        System.out.println("Generating DataSource...");
-        rows = new ArrayList<>();
-
-        // sample data says "SGP" but that's Singapore's 3-letter ISO country code, not currency code.
-        // ISO4217 exists to standardise the currency code, make up (where possible) from:
-        // - two letters of the ISO 3166-1 alpha-2 country codes (e.g. 'SG')
-        // - usually the initial of the currency itself (e.g. Dollar -> 'D')
-        // Singapore Dollar = 'SGD' and the sample data is supplying an unrecognised currency.
-
-        System.out.println("Adding sample data...");
-        rows.add(new ImmutableInstruction(
-                ENTITIES.foo,
-                ImmutableInstruction.BUYSELL.B,
-                new BigDecimal("0.50"),
-                ISO4217.Currency.SGD,
-                LocalDate.parse("2016-01-01"),
-                LocalDate.parse("2016-01-02"),
-                200,
-                ENTITIES.foo.getLastValueUSD()
-        ));
-
-        rows.add(new ImmutableInstruction(
-                ENTITIES.bar,
-                ImmutableInstruction.BUYSELL.S,
-                new BigDecimal("0.22"),
-                ISO4217.Currency.AED,
-                LocalDate.parse("2016-01-05"),
-                LocalDate.parse("2016-01-07"),
-                450,
-                ENTITIES.bar.getLastValueUSD()
-        ));
-
-        final int numRows = 100;
-        System.out.println("Adding "+numRows+" rows of generated data...");
-        generateRandomSampleData(numRows);
+        this(Store.fromSystemProperty(), InstructionSource.fromSystemProperties(),
+                System.getProperty(InstructionJournal.JOURNAL_PROPERTY), Boolean.getBoolean(DedupIndex.DEDUP_PROPERTY));
+    }
+
+    DataSource(Store store, String inputFile) {
+        this(store, inputFile, null, null);
+    }
+
+    DataSource(Store store, String inputFile, String snapshotFile, String journalDirectory) {
+        this(store, inputFile, snapshotFile, journalDirectory, false);
+    }
+
+    /**
+     * A DataSource over the file, snapshot or sample data named, read and recovered straight away
+     */
+    DataSource(Store store, String inputFile, String snapshotFile, String journalDirectory, boolean deduplicate) {
+        this(store, InstructionSource.of(inputFile, snapshotFile), journalDirectory, deduplicate);
+        load();
+    }
+
+    /**
+     * A DataSource over its own InstructionSource, read when the rows are first needed
+     * @param source Where the rows come from
+     */
+    DataSource(InstructionSource source) {
+        this(Store.fromSystemProperty(), source, null, false);
+    }
+
+    /**
+     * A DataSource over its own InstructionSource, read when the rows are first needed
+     * @param store How to hold the rows
+     * @param source Where the rows come from
+     * @param journalDirectory Directory to journal appended instructions to, and recover them from, or null
+     * @param deduplicate true to reject instructions appended with a client reference already accepted
+     */
+    DataSource(Store store, InstructionSource source, String journalDirectory, boolean deduplicate) {
+        this.store = store;
+        this.source = source;
+        this.journalDirectory = journalDirectory;
+        this.dedup = deduplicate ? new DedupIndex() : null;
+    }
+
+    /**
+     * Reads the source, then recovers the journal on top of it, the first time only
+     */
+    private void load() {
+        if (loaded) {
+            return;
+        }
+        System.out.println("Loading DataSource ("+store+") from "+source+"...");
+        if (store == Store.COLUMNAR) {
+            columns = source.load();
+        } else {
+            final List<ImmutableInstruction> read = new ArrayList<>();
+            source.forEach(read::add);
+            rows = read;
+        }
+        System.out.println("Loaded "+(columns != null ? columns.size() : rows.size())+" rows");
+
+        if (journalDirectory != null) {
+            try {
+                journal = new InstructionJournal(Paths.get(journalDirectory));
+            } catch (IOException e) {
+                throw new UncheckedIOException("Unable to open journal "+journalDirectory, e);
+            }
+            final InstructionColumns recovered = journal.recovered();
+            System.out.println("Recovered "+recovered.size()+" rows from journal "+journalDirectory);
+            if (columns != null) {
+                columns.appendAll(recovered);
+            } else {
+                rows.addAll(recovered.asList());
+            }
+            if (dedup != null) {
+                dedup.restore(journal.recoveredReferences());
+            }
+            listeners.add(journal); // not addListener(), that would journal every row again
+        }
+        loaded = true;
+    }
+
+    /**
+     * Forces every journaled instruction to disk, if journaling
+     */
+    void syncJournal() {
+        if (journal != null) {
+            journal.sync();
+        }
+    }
+
+    /**
+     * Forces every journaled instruction to disk and closes the journal, if journaling.
+     * The rows can still be reported on, but no more can be appended
+     * @throws UncheckedIOException if the journal can't be closed
+     */
+    @Override
+    public void close() {
+        closed = true;
+        final InstructionJournal open = journal;
+        if (open != null) {
+            try {
+                open.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException("Unable to close journal "+journalDirectory, e);
+            }
+        }
+    }
+
+    /**
+     * Writes every row to a binary snapshot, see InstructionSnapshot
+     * @param file Snapshot file, replaced if it exists
+     * @throws UncheckedIOException if the snapshot can't be written
+     */
+    void writeSnapshot(Path file) {
+        load();
+        System.out.println("Writing snapshot of "+getRowsCount()+" rows to "+file+"...");
+        InstructionColumns snapshot = columns;
+        if (snapshot == null) {
+            snapshot = new InstructionColumns(rows.size());
+            for (final ImmutableInstruction in : rows) {
+                snapshot.append(in);
+            }
+        }
+        try {
+            InstructionSnapshot.write(snapshot, file);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to write "+file, e);
+        }
     }
 
     /**
@@ -107,61 +267,172 @@ public class DataSource {
      * @return DataSource
      */
     public static DataSource getInstance() {
-        return data;
+        return Instance.data;
+    }
+
+    /**
+     * Appends an instruction to this data source, and tells every registered listener about it
+     * @param instruction ImmutableInstruction to add
+     */
+    public void append(ImmutableInstruction instruction) {
+        checkOpen();
+        load();
+        add(instruction);
+        for (final InstructionListener listener : listeners) {
+            listener.onInstruction(instruction);
+        }
+    }
+
+    /**
+     * Appends an instruction unless its client reference has been accepted before, see DedupIndex
+     * @param instruction ImmutableInstruction to add
+     * @param clientReference Reference the client sent it under, or null to append it unchecked
+     * @return true if appended, false if rejected as a duplicate
+     */
+    public boolean append(ImmutableInstruction instruction, String clientReference) {
+        checkOpen();
+        load();
+        if (dedup == null || clientReference == null) {
+            append(instruction);
+            return true;
+        }
+        if (dedup.accept(clientReference, instruction.getId()) != DedupIndex.NONE) {
+            return false;
+        }
+        append(instruction);
+        if (journal != null) {
+            journal.appendReference(instruction.getId(), clientReference); // after the instruction it refers to
+        }
+        return true;
     }
 
-    private void generateRandomSampleData(int numRows) {
-        final Random random = new Random();
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("DataSource is closed");
+        }
+    }
 
-        for (int i=0; i < numRows; i++) {
-            final ENTITIES entity = ENTITIES.randomEntity();
-            final LocalDate instructionDate = getRandomInstructionDate(random);
-            rows.add(new ImmutableInstruction(
-                    entity,
-                    ImmutableInstruction.BUYSELL.randomBuySell(),
-                    // TODO: agreedFX could in reality be between almost zero and have no upper bound (this is sample data)
-                    new BigDecimal(random.nextDouble()).setScale(5, RoundingMode.HALF_EVEN),
-                    ISO4217.Currency.randomCurrency(),
-                    instructionDate,
-                    getRandomSettlementDateAfter(random, instructionDate),
-                    // TODO: sample data limited to 1 mil units per instruction (upper bound not specified in requirements)
-                    random.nextInt(1_000_000),
-                    // TODO: sample data price per unit is the last traded price for that entity, adjusted up or down slightly (at random)
-                    entity.getLastValueUSD().add(BigDecimal.valueOf((random.nextDouble() - 0.5) * entity.getLastValueUSD().doubleValue()))
-            ));
+    /**
+     * Registers a listener, first replaying every row already held to it
+     * @param listener InstructionListener to tell about all instructions, existing and appended
+     */
+    void addListener(InstructionListener listener) {
+        load();
+        for (final ImmutableInstruction in : getRows()) {
+            listener.onInstruction(in);
         }
+        listeners.add(listener);
+    }
+
+    void removeListener(InstructionListener listener) {
+        listeners.remove(listener);
     }
 
     /**
-     * For sample data, gets a local date within 2 weeks of now, 1 week either side
-     * @param random Supplied Random object reference
-     * @return LocalDate that falls within 1 week ago to 1 week from now
+     * The daily report totals over every row, maintained as rows are appended: built from the rows
+     * the first time it's asked for, then updated per append(), never recomputed
+     * @return DailyReport over all rows in this data source
      */
-    private LocalDate getRandomInstructionDate(Random random) {
-        if (random.nextBoolean()) { //
-            return LocalDate.now().plusDays(random.nextInt(7));
-        } else { // or down
-            return LocalDate.now().minusDays(random.nextInt(7));
+    DailyReport getDailyReport() {
+        load();
+        if (dailyReport == null) {
+            dailyReport = columns != null
+                    ? DailyReport.of(columns, AggregationMode.SCALED_LONG) // straight from the primitive columns
+                    : DailyReport.of(rows);
+            listeners.add(dailyReport);
         }
+        return dailyReport;
     }
 
     /**
-     * For sample data, gets a local date after the supplied date, up to 1 week
-     *
-     * @param random Supplied Random object reference
-     * @param instructionDate Date this new date must be after
-     * @return LocalDate that falls within 1 week from the supplied instruction date
+     * Every row as a SettlementBatch, built on each call: for end-of-day reporting over the whole book with an
+     * AggregationKernel, rather than kept up to date per append() like getDailyReport()
+     * @return SettlementBatch of all rows in this data source
      */
-    private LocalDate getRandomSettlementDateAfter(Random random, LocalDate instructionDate) {
-        return instructionDate.plusDays(random.nextInt(7));
+    SettlementBatch getSettlementBatch() {
+        load();
+        return columns != null ? SettlementBatch.of(columns) : SettlementBatch.of(rows);
+    }
+
+    /**
+     * The aggregate cube over every row, maintained as rows are appended like getDailyReport(), so any
+     * slice or roll-up of the totals is a read of the cube
+     * @return AggregateCube over all rows in this data source
+     */
+    AggregateCube getAggregateCube() {
+        load();
+        if (aggregateCube == null) {
+            aggregateCube = columns != null ? AggregateCube.of(columns) : AggregateCube.of(rows);
+            listeners.add(aggregateCube);
+        }
+        return aggregateCube;
+    }
+
+    /**
+     * The daily report totals over the rows settling in a window of dates, read through a SettlementIndex
+     * so only those rows are visited. Rows appended since the index was built are checked one by one,
+     * until there are enough of them to be worth rebuilding it.
+     * @param from First (adjusted) settlement date
+     * @param to Last (adjusted) settlement date
+     * @return DailyReport over the rows settling from from to to inclusive
+     */
+    DailyReport getDailyReport(LocalDate from, LocalDate to) {
+        load();
+        final int fromDay = (int) from.toEpochDay();
+        final int toDay = (int) to.toEpochDay();
+        final SettlementIndex index = getSettlementIndex();
+        final DailyReport report = new DailyReport(AggregationMode.SCALED_LONG);
+        if (columns != null) {
+            index.forEachRow(fromDay, toDay, row -> report.add(columns, row));
+            for (int row = index.rowCount(); row < columns.size(); row++) {
+                final int day = columns.settlementEpochDay(row);
+                if (day >= fromDay && day <= toDay) {
+                    report.add(columns, row);
+                }
+            }
+        } else {
+            index.forEachRow(fromDay, toDay, row -> report.add(rows.get(row)));
+            for (int row = index.rowCount(); row < rows.size(); row++) {
+                final long day = rows.get(row).getSettlementDate().toEpochDay();
+                if (day >= fromDay && day <= toDay) {
+                    report.add(rows.get(row));
+                }
+            }
+        }
+        return report;
+    }
+
+    /**
+     * @return SettlementIndex over the rows, rebuilt once the rows appended since it was built
+     *         number more than an eighth of those in it
+     */
+    SettlementIndex getSettlementIndex() {
+        load();
+        final int count = getRowsCount();
+        if (settlementIndex == null || count - settlementIndex.rowCount() > Math.max(1024, settlementIndex.rowCount() >> 3)) {
+            settlementIndex = columns != null
+                    ? new SettlementIndex(count, columns::settlementEpochDay)
+                    : new SettlementIndex(count, row -> (int) rows.get(row).getSettlementDate().toEpochDay());
+        }
+        return settlementIndex;
+    }
+
+    private void add(ImmutableInstruction instruction) {
+        if (columns != null) {
+            columns.append(instruction);
+        } else {
+            rows.add(instruction);
+        }
     }
 
     /**
      * Returns all the rows this data source has to offer
+     * Note: when columnar, this is a view building each ImmutableInstruction as it is read
      * @return List<ImmutableInstruction> all instructions available
      */
     public List<ImmutableInstruction> getRows() {
-        return rows;
+        load();
+        return columns != null ? columns.asList() : rows;
     }
 
     /**
@@ -169,6 +440,28 @@ public class DataSource {
      * @return Number of rows of data
      */
     public int getRowsCount() {
-        return rows.size();
+        load();
+        return columns != null ? columns.size() : rows.size();
+    }
+
+    /**
+     * @return true if the rows are held in an InstructionColumns store, see getColumns()
+     */
+    boolean isColumnar() {
+        load();
+        return columns != null;
+    }
+
+    /**
+     * Gives aggregations direct access to the primitive columns
+     * @return InstructionColumns backing this data source
+     * @throws IllegalStateException if this data source is not columnar
+     */
+    InstructionColumns getColumns() {
+        load();
+        if (columns == null) {
+            throw new IllegalStateException("DataSource is not columnar, see -D"+STORE_PROPERTY);
+        }
+        return columns;
     }
 }
@@ -0,0 +1,63 @@
+package com.jpmorgan.dtre;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Index of the client-supplied reference of each instruction accepted, so an instruction resent under a
+ * reference already seen is rejected at ingestion rather than counted twice (see DataSource.append(in, reference)).
+ *
+ * References are compared exactly, as Strings, and map to the id of the instruction first accepted under them.
+ * Instructions loaded from a file or snapshot have no reference; references accepted while journaling are
+ * journaled too and put back by DataSource on recovery.
+ * Thread-safe.
+ */
+final class DedupIndex {
+
+    /** System property turning deduplication on, off if unset */
+    final static String DEDUP_PROPERTY = "dtre.dedup";
+
+    /** Returned by accept() and find() when the reference hasn't been seen */
+    final static long NONE = 0L;
+
+    private final Map<String, Long> idByReference = new ConcurrentHashMap<>();
+
+    /**
+     * Accepts a reference for an instruction, unless it has been seen before
+     * @param reference Client reference, not empty
+     * @param id Id of the instruction, see ImmutableInstruction.getId()
+     * @return NONE if accepted, else the id of the instruction already accepted under this reference
+     */
+    long accept(String reference, long id) {
+        if (reference.isEmpty()) {
+            throw new IllegalArgumentException("Client reference must not be empty");
+        }
+        final Long existing = idByReference.putIfAbsent(reference, id);
+        return existing == null ? NONE : existing;
+    }
+
+    /**
+     * @return long id of the instruction accepted under the reference, or NONE
+     */
+    long find(String reference) {
+        final Long id = idByReference.get(reference);
+        return id == null ? NONE : id;
+    }
+
+    /**
+     * Puts back references accepted before a restart
+     * @param references Map of instruction id by client reference, see InstructionJournal.recoveredReferences()
+     */
+    void restore(Map<String, Long> references) {
+        for (final Map.Entry<String, Long> e : references.entrySet()) {
+            idByReference.putIfAbsent(e.getKey(), e.getValue());
+        }
+    }
+
+    /**
+     * @return Number of references accepted
+     */
+    int size() {
+        return idByReference.size();
+    }
+}
@@ -0,0 +1,272 @@
+package com.jpmorgan.dtre;
+
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Runtime registry of entities: interns each symbol (e.g. "FLWS") to a dense int id, 0, 1, 2...
+ * so instructions and aggregations can be keyed by int rather than by enum or String.
+ *
+ * Storage is a handful of primitive arrays, whatever the number of entities, with no object per entity:
+ * - symbols and names as concatenated UTF-8 bytes plus offsets
+ * - reference prices as unscaled long plus scale
+ * - an open-addressing hash table (linear probing, at most half full) of ids, looked up straight
+ *   from raw bytes, so a parser never needs to build a String to find an entity
+ *
+ * The shared instance is seeded with DataSource.ENTITIES in ordinal order, so their ids are their ordinals.
+ * Any other symbol is added the first time it is interned.
+ *
+ * Lookups don't lock. Interning a new symbol is synchronized, and published to lookups through the
+ * volatile count; a lookup that misses (or sees an id not yet published) falls back to the lock.
+ */
+final class EntityRegistry {
+
+    private final static EntityRegistry registry = new EntityRegistry(DataSource.ENTITIES.values());
+
+    private final static int INITIAL_CAPACITY = 64;
+    private final static byte NO_PRICE = Byte.MIN_VALUE;
+
+    /** Arrays behind the registry, replaced as a whole when they grow */
+    private final static class State {
+        final int[] slots;          // id + 1 per slot, 0 for an empty slot; length is a power of two
+        final int[] hashes;         // per id
+        final int[] symbolOffsets;  // per id + 1, symbol of id is symbolBytes[symbolOffsets[id], symbolOffsets[id+1])
+        final byte[] symbolBytes;
+        final int[] nameOffsets;    // per id + 1, as for symbols; an empty name is no name
+        final byte[] nameBytes;
+        final long[] priceUnscaled; // per id
+        final byte[] priceScale;    // per id, NO_PRICE if there's no reference price
+
+        State(int ids, int symbolCapacity, int nameCapacity) {
+            slots = new int[Integer.highestOneBit(Math.max(2, ids) * 2 - 1) * 2];
+            hashes = new int[ids];
+            symbolOffsets = new int[ids + 1];
+            symbolBytes = new byte[symbolCapacity];
+            nameOffsets = new int[ids + 1];
+            nameBytes = new byte[nameCapacity];
+            priceUnscaled = new long[ids];
+            priceScale = new byte[ids];
+        }
+    }
+
+    private volatile int count;
+    private volatile State state = new State(INITIAL_CAPACITY, INITIAL_CAPACITY * 8, INITIAL_CAPACITY * 32);
+
+    /**
+     * An empty registry
+     */
+    EntityRegistry() {
+    }
+
+    /**
+     * A registry seeded with the given entities, in order, so each one's id is its ordinal
+     */
+    EntityRegistry(DataSource.ENTITIES[] seed) {
+        for (final DataSource.ENTITIES e : seed) {
+            intern(e.name(), e.getEntityName(), e.getLastValueUSD());
+        }
+    }
+
+    /**
+     * Obtains the registry shared by the whole engine
+     * @return EntityRegistry seeded with DataSource.ENTITIES
+     */
+    static EntityRegistry getInstance() {
+        return registry;
+    }
+
+    /**
+     * @return Number of entities registered, ids run from 0 to size()-1
+     */
+    int size() {
+        return count;
+    }
+
+    /**
+     * Finds a symbol without adding it
+     * @param buf Bytes holding the symbol (absolute gets only)
+     * @param start Index of the symbol's first byte
+     * @param end Index after the symbol's last byte
+     * @return int id, or -1 if the symbol isn't registered
+     */
+    int find(ByteBuffer buf, int start, int end) {
+        final int published = count; // read before state, see intern()
+        final State s = state;
+        final int hash = hash(buf, start, end);
+        final int mask = s.slots.length - 1;
+        for (int slot = hash & mask; s.slots[slot] != 0; slot = (slot + 1) & mask) {
+            final int id = s.slots[slot] - 1;
+            if (id < published && s.hashes[id] == hash && symbolEquals(s, id, buf, start, end)) {
+                return id;
+            }
+        }
+        return -1;
+    }
+
+    int find(String symbol) {
+        final byte[] bytes = symbol.getBytes(StandardCharsets.UTF_8);
+        return find(ByteBuffer.wrap(bytes), 0, bytes.length);
+    }
+
+    /**
+     * Finds a symbol, adding it (with no name or reference price) if it isn't registered yet
+     * @param buf Bytes holding the symbol (absolute gets only)
+     * @param start Index of the symbol's first byte
+     * @param end Index after the symbol's last byte
+     * @return int id of the symbol
+     */
+    int intern(ByteBuffer buf, int start, int end) {
+        final int id = find(buf, start, end);
+        return id >= 0 ? id : add(buf, start, end, null, null);
+    }
+
+    int intern(String symbol) {
+        return intern(symbol, null, null);
+    }
+
+    /**
+     * Finds a symbol, adding it if it isn't registered yet
+     * @param symbol Entity symbol, e.g. "FLWS"
+     * @param name Entity name, used only if the symbol is new (may be null)
+     * @param referencePrice Last known price in USD, used only if the symbol is new (may be null)
+     * @return int id of the symbol
+     */
+    int intern(String symbol, String name, BigDecimal referencePrice) {
+        final byte[] bytes = symbol.getBytes(StandardCharsets.UTF_8);
+        final ByteBuffer buf = ByteBuffer.wrap(bytes);
+        final int id = find(buf, 0, bytes.length);
+        return id >= 0 ? id : add(buf, 0, bytes.length, name, referencePrice);
+    }
+
+    /**
+     * @return String symbol of a registered id
+     */
+    String symbol(int id) {
+        final State s = checkedState(id);
+        return new String(s.symbolBytes, s.symbolOffsets[id], s.symbolOffsets[id + 1] - s.symbolOffsets[id], StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return String name of a registered id, or null if it was registered without one
+     */
+    String name(int id) {
+        final State s = checkedState(id);
+        final int length = s.nameOffsets[id + 1] - s.nameOffsets[id];
+        return length == 0 ? null : new String(s.nameBytes, s.nameOffsets[id], length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return BigDecimal last known price in USD of a registered id, or null if it was registered without one
+     */
+    BigDecimal referencePrice(int id) {
+        final State s = checkedState(id);
+        return s.priceScale[id] == NO_PRICE ? null : BigDecimal.valueOf(s.priceUnscaled[id], s.priceScale[id]);
+    }
+
+    private State checkedState(int id) {
+        if (id < 0 || id >= count) {
+            throw new IllegalArgumentException("No entity with id " + id);
+        }
+        return state;
+    }
+
+    private synchronized int add(ByteBuffer buf, int start, int end, String name, BigDecimal referencePrice) {
+        // someone may have added it since we looked
+        final int existing = find(buf, start, end);
+        if (existing >= 0) {
+            return existing;
+        }
+        if (end <= start) {
+            throw new IllegalArgumentException("Empty entity symbol");
+        }
+        final byte[] nameBytes = name == null ? new byte[0] : name.getBytes(StandardCharsets.UTF_8);
+        final int id = count;
+        final State s = ensureCapacity(id + 1, end - start, nameBytes.length);
+
+        s.hashes[id] = hash(buf, start, end);
+        final int symbolStart = s.symbolOffsets[id];
+        for (int i = start; i < end; i++) {
+            s.symbolBytes[symbolStart + i - start] = buf.get(i);
+        }
+        s.symbolOffsets[id + 1] = symbolStart + end - start;
+        System.arraycopy(nameBytes, 0, s.nameBytes, s.nameOffsets[id], nameBytes.length);
+        s.nameOffsets[id + 1] = s.nameOffsets[id] + nameBytes.length;
+        if (referencePrice != null && referencePrice.unscaledValue().bitLength() < Long.SIZE
+                && referencePrice.scale() > NO_PRICE && referencePrice.scale() <= Byte.MAX_VALUE) {
+            s.priceUnscaled[id] = referencePrice.unscaledValue().longValue();
+            s.priceScale[id] = (byte) referencePrice.scale();
+        } else {
+            s.priceScale[id] = NO_PRICE;
+        }
+        insert(s, id);
+
+        count = id + 1; // publishes everything above to lock-free find()
+        return id;
+    }
+
+    /**
+     * Makes sure the arrays can take one more id with the given symbol and name lengths,
+     * replacing the state with larger copies if not
+     */
+    private State ensureCapacity(int ids, int symbolLength, int nameLength) {
+        final State s = state;
+        final int symbolsUsed = s.symbolOffsets[ids - 1];
+        final int namesUsed = s.nameOffsets[ids - 1];
+        if (ids <= s.hashes.length && ids * 2 <= s.slots.length
+                && symbolsUsed + symbolLength <= s.symbolBytes.length && namesUsed + nameLength <= s.nameBytes.length) {
+            return s;
+        }
+        final int previous = ids - 1;
+        final State grown = new State(Math.max(ids, s.hashes.length * 2),
+                Math.max(symbolsUsed + symbolLength, s.symbolBytes.length * 2),
+                Math.max(namesUsed + nameLength, s.nameBytes.length * 2));
+        System.arraycopy(s.hashes, 0, grown.hashes, 0, previous);
+        System.arraycopy(s.symbolOffsets, 0, grown.symbolOffsets, 0, ids);
+        System.arraycopy(s.symbolBytes, 0, grown.symbolBytes, 0, symbolsUsed);
+        System.arraycopy(s.nameOffsets, 0, grown.nameOffsets, 0, ids);
+        System.arraycopy(s.nameBytes, 0, grown.nameBytes, 0, namesUsed);
+        System.arraycopy(s.priceUnscaled, 0, grown.priceUnscaled, 0, previous);
+        System.arraycopy(s.priceScale, 0, grown.priceScale, 0, previous);
+        for (int id = 0; id < previous; id++) {
+            insert(grown, id);
+        }
+        state = grown;
+        return grown;
+    }
+
+    private static void insert(State s, int id) {
+        final int mask = s.slots.length - 1;
+        int slot = s.hashes[id] & mask;
+        while (s.slots[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        s.slots[slot] = id + 1;
+    }
+
+    private static boolean symbolEquals(State s, int id, ByteBuffer buf, int start, int end) {
+        final int offset = s.symbolOffsets[id];
+        if (s.symbolOffsets[id + 1] - offset != end - start) {
+            return false;
+        }
+        for (int i = start; i < end; i++) {
+            if (s.symbolBytes[offset + i - start] != buf.get(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int hash(ByteBuffer buf, int start, int end) {
+        int h = 0x811c9dc5; // FNV-1a
+        for (int i = start; i < end; i++) {
+            h = (h ^ (buf.get(i) & 0xff)) * 0x01000193;
+        }
+        return h ^ (h >>> 16);
+    }
+
+    @Override
+    public String toString() {
+        return "EntityRegistry{size=" + count + ", slots=" + state.slots.length + "}";
+    }
+}
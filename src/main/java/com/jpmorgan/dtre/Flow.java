@@ -0,0 +1,52 @@
+package com.jpmorgan.dtre;
+
+/**
+ * The interfaces of java.util.concurrent.Flow (Java 9), which the engine can't use while it builds against the
+ * Java 8 API. Same names, methods and rules (the Reactive Streams specification), so a stage written against
+ * these moves to the JDK's by changing its imports. See InstructionPipeline.
+ */
+final class Flow {
+
+    private Flow() {
+    }
+
+    /**
+     * A producer of items, sent to a Subscriber only as fast as it requests them
+     */
+    @FunctionalInterface
+    interface Publisher<T> {
+        void subscribe(Subscriber<? super T> subscriber);
+    }
+
+    /**
+     * A receiver of items. Its methods are called one at a time, never concurrently, and onNext() at most as many
+     * times as it has requested
+     */
+    interface Subscriber<T> {
+        void onSubscribe(Subscription subscription);
+
+        void onNext(T item);
+
+        void onError(Throwable throwable);
+
+        void onComplete();
+    }
+
+    /**
+     * The link between a Publisher and a Subscriber, through which the Subscriber asks for more items or stops
+     */
+    interface Subscription {
+        /**
+         * Adds n to the number of items the Subscriber can take, Long.MAX_VALUE for no limit
+         */
+        void request(long n);
+
+        void cancel();
+    }
+
+    /**
+     * A stage that is both a Subscriber and a Publisher
+     */
+    interface Processor<T, R> extends Subscriber<T>, Publisher<R> {
+    }
+}
@@ -0,0 +1,216 @@
+package com.jpmorgan.dtre;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * One stage of a Flow pipeline: takes items from upstream into a bounded buffer, applies a function to each on
+ * an executor, and publishes the results downstream (a null result publishes nothing).
+ *
+ * Upstream is asked for capacity items to start with, then for batch more each time batch have been taken from
+ * the buffer, so the buffer never holds more than capacity items and requests go upstream in batches rather
+ * than one per item. Items are taken from the buffer only while downstream has asked for results, so a slow
+ * stage holds back every stage before it, and memory is bounded however much input there is.
+ *
+ * The function runs for one item at a time, in order, but not always on the same executor thread: it may keep
+ * state without locks, as each run happens-before the next. Anything it throws, an Error included, cancels
+ * upstream and is passed to downstream's onError rather than lost on the executor thread. An error from
+ * upstream is passed on before the next item is taken, dropping what's buffered, so a stage never completes
+ * normally after its input failed.
+ *
+ * One downstream Subscriber only.
+ */
+final class FlowStage<T, R> implements Flow.Processor<T, R> {
+
+    private final Function<? super T, ? extends R> function;
+    private final Executor executor;
+    private final int batch;
+    private final ArrayBlockingQueue<T> buffer;
+
+    private final AtomicInteger wip = new AtomicInteger(); // drains asked for, only the first runs the loop
+    private final AtomicLong requested = new AtomicLong(); // by downstream, not yet published
+    private volatile Flow.Subscription upstream;
+    private volatile Flow.Subscriber<? super R> downstream;
+    private volatile boolean done;
+    private volatile Throwable error;
+    private volatile boolean cancelled;
+    private int taken; // since upstream was last asked for more, drain loop only
+
+    /**
+     * @param function Applied to each item, in order
+     * @param executor Runs the function and publishes its results
+     * @param capacity Most items buffered from upstream
+     */
+    FlowStage(Function<? super T, ? extends R> function, Executor executor, int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        this.function = function;
+        this.executor = executor;
+        this.batch = Math.max(1, capacity / 2);
+        this.buffer = new ArrayBlockingQueue<>(capacity);
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        if (upstream != null) {
+            subscription.cancel(); // one upstream only
+            return;
+        }
+        upstream = subscription;
+        subscription.request(buffer.remainingCapacity());
+    }
+
+    @Override
+    public void onNext(T item) {
+        if (!buffer.offer(item)) {
+            onError(new IllegalStateException("Upstream published more than requested"));
+            return;
+        }
+        drain();
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        error = throwable;
+        done = true;
+        drain();
+    }
+
+    @Override
+    public void onComplete() {
+        done = true;
+        drain();
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super R> subscriber) {
+        if (downstream != null) {
+            subscriber.onSubscribe(new Flow.Subscription() {
+                @Override
+                public void request(long n) {
+                }
+
+                @Override
+                public void cancel() {
+                }
+            });
+            subscriber.onError(new IllegalStateException("FlowStage takes one subscriber only"));
+            return;
+        }
+        subscriber.onSubscribe(new Flow.Subscription() {
+            @Override
+            public void request(long n) {
+                if (n <= 0) {
+                    error = new IllegalArgumentException("Non-positive request: " + n);
+                    cancelUpstream();
+                } else {
+                    requested.accumulateAndGet(n, (a, b) -> a + b < 0 ? Long.MAX_VALUE : a + b);
+                }
+                drain();
+            }
+
+            @Override
+            public void cancel() {
+                cancelled = true;
+                cancelUpstream();
+            }
+        });
+        downstream = subscriber;
+        drain();
+    }
+
+    private void cancelUpstream() {
+        final Flow.Subscription s = upstream;
+        if (s != null) {
+            s.cancel();
+        }
+    }
+
+    /**
+     * Runs the drain loop on the executor, unless it's running already, in which case it goes round again
+     */
+    private void drain() {
+        if (wip.getAndIncrement() == 0) {
+            executor.execute(this::drainLoop);
+        }
+    }
+
+    private void drainLoop() {
+        int missed = 1;
+        do {
+            final Flow.Subscriber<? super R> d = downstream;
+            if (cancelled) {
+                buffer.clear();
+                return;
+            }
+            if (d != null) {
+                if (failed(d)) {
+                    return;
+                }
+                final long demand = requested.get();
+                long published = 0;
+                while (published != demand) {
+                    final boolean finished = done; // read before error, which onError() sets first
+                    if (failed(d)) {
+                        return;
+                    }
+                    final T item = buffer.poll();
+                    if (item == null) {
+                        if (finished) {
+                            cancelled = true;
+                            d.onComplete();
+                            return;
+                        }
+                        break;
+                    }
+                    if (++taken == batch) {
+                        taken = 0;
+                        upstream.request(batch);
+                    }
+                    final R result;
+                    try {
+                        result = function.apply(item);
+                    } catch (Throwable e) {
+                        buffer.clear();
+                        cancelled = true;
+                        cancelUpstream();
+                        d.onError(e);
+                        return;
+                    }
+                    if (result != null) {
+                        d.onNext(result);
+                        published++;
+                    }
+                }
+                if (done && buffer.isEmpty() && error == null) {
+                    cancelled = true;
+                    d.onComplete();
+                    return;
+                }
+                if (published != 0 && demand != Long.MAX_VALUE) {
+                    requested.addAndGet(-published);
+                }
+            }
+            missed = wip.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    /**
+     * Passes an error from upstream, or a bad request from downstream, on to downstream, dropping what's buffered
+     * @return true if there was one, and the stage is finished
+     */
+    private boolean failed(Flow.Subscriber<? super R> d) {
+        final Throwable e = error;
+        if (e == null) {
+            return false;
+        }
+        buffer.clear();
+        cancelled = true;
+        d.onError(e);
+        return true;
+    }
+}
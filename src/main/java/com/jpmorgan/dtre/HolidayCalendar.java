@@ -0,0 +1,173 @@
+package com.jpmorgan.dtre;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.DateTimeException;
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.util.*;
+
+/**
+ * Business days of one currency: a weekend plus any public holidays, held as a bitset with one bit per day
+ * (set for a business day) from a start epoch day. 110 years of days fit in about 5KB.
+ *
+ * nextBusinessDay() masks off the days before the one asked for and takes numberOfTrailingZeros of the
+ * first non-zero word, so it looks at one word (64 days) per step, never at dates one by one. It takes more
+ * than one step only across a run of 64 or more non-business days.
+ *
+ * Calendars are read from a local file of pipe-delimited lines, e.g.
+ *   # comment
+ *   GBP|2017-12-25
+ *   AED|weekend|FRIDAY,SATURDAY
+ * a currency and an ISO date for each holiday, or a currency, "weekend" and its weekend days to replace the
+ * WorkingWeek default. Every currency named in the file gets a calendar.
+ */
+final class HolidayCalendar {
+
+    /** System property naming the holiday file read by WorkingWeek, no holidays if unset */
+    final static String HOLIDAYS_PROPERTY = "dtre.holidays";
+
+    private final static String WEEKEND = "weekend";
+
+    private final int start;
+    private final long[] business;
+    private final int weekendMask; // bit (ISO day of week - 1) set for each weekend day
+
+    /**
+     * @param weekend Days of the week that are never business days
+     * @param holidays Epoch days that are not business days, any outside the range are ignored
+     * @param startEpochDay First day covered
+     * @param endEpochDay Last day covered (rounded up to a whole 64-day word)
+     */
+    HolidayCalendar(Set<DayOfWeek> weekend, int[] holidays, int startEpochDay, int endEpochDay) {
+        if (endEpochDay < startEpochDay) {
+            throw new IllegalArgumentException("Calendar ends before it starts");
+        }
+        if (weekend.size() == DayOfWeek.values().length) {
+            throw new IllegalArgumentException("Weekend can't be the whole week");
+        }
+        int mask = 0;
+        for (final DayOfWeek dow : weekend) {
+            mask |= 1 << dow.ordinal();
+        }
+        this.weekendMask = mask;
+        this.start = startEpochDay;
+        this.business = new long[(int) (((long) endEpochDay - startEpochDay) / Long.SIZE) + 1];
+
+        // a week of weekday bits, repeated every 7 days
+        for (int i = 0; i < business.length * Long.SIZE; i++) {
+            if (!isWeekend(start + i)) {
+                business[i >>> 6] |= 1L << i;
+            }
+        }
+        for (final int holiday : holidays) {
+            final long i = (long) holiday - start;
+            if (i >= 0 && i < (long) business.length * Long.SIZE) {
+                business[(int) (i >>> 6)] &= ~(1L << i);
+            }
+        }
+    }
+
+    private boolean isWeekend(long epochDay) {
+        return (weekendMask & (1 << (int) Math.floorMod(epochDay + 3, 7L))) != 0; // epoch day 0 was a Thursday
+    }
+
+    /**
+     * @return true if the day is covered by the bitset, rather than only by the weekend
+     */
+    boolean covers(long epochDay) {
+        final long i = epochDay - start;
+        return i >= 0 && i < (long) business.length * Long.SIZE;
+    }
+
+    boolean isBusinessDay(long epochDay) {
+        if (covers(epochDay)) {
+            final int i = (int) (epochDay - start);
+            return (business[i >>> 6] & (1L << i)) != 0;
+        }
+        return !isWeekend(epochDay);
+    }
+
+    /**
+     * Finds the next (or same) business day
+     * @param epochDay Date as an epoch day
+     * @return long epochDay if it is a business day, else the epoch day of the next one
+     */
+    long nextBusinessDay(long epochDay) {
+        if (covers(epochDay)) {
+            final int i = (int) (epochDay - start);
+            int word = i >>> 6;
+            long bits = business[word] & (-1L << i); // drop the days before i
+            while (bits == 0 && ++word < business.length) {
+                bits = business[word];
+            }
+            if (bits != 0) {
+                return start + ((long) word << 6) + Long.numberOfTrailingZeros(bits);
+            }
+            epochDay = start + (long) business.length * Long.SIZE; // no holidays known past the bitset
+        }
+        while (isWeekend(epochDay)) {
+            epochDay++;
+        }
+        return epochDay;
+    }
+
+    /**
+     * Reads a holiday file, see the class comment for its format
+     * @param file Holiday file
+     * @param startEpochDay First day each calendar covers
+     * @param endEpochDay Last day each calendar covers
+     * @return Map of calendar per currency named in the file
+     * @throws IOException if the file can't be read
+     */
+    static Map<ISO4217.Currency, HolidayCalendar> load(Path file, int startEpochDay, int endEpochDay) throws IOException {
+        final Map<ISO4217.Currency, Set<DayOfWeek>> weekends = new EnumMap<>(ISO4217.Currency.class);
+        final Map<ISO4217.Currency, List<Integer>> holidays = new EnumMap<>(ISO4217.Currency.class);
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            int lineNumber = 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                try {
+                    final String[] fields = line.split("\\|");
+                    final ISO4217.Currency currency = ISO4217.Currency.fromAlpha(fields[0].trim());
+                    if (currency == null) {
+                        throw new IllegalArgumentException("unknown currency " + fields[0].trim());
+                    }
+                    holidays.computeIfAbsent(currency, c -> new ArrayList<>());
+                    if (fields.length == 3 && WEEKEND.equalsIgnoreCase(fields[1].trim())) {
+                        final Set<DayOfWeek> weekend = EnumSet.noneOf(DayOfWeek.class);
+                        for (final String day : fields[2].split(",")) {
+                            if (!day.trim().isEmpty()) {
+                                weekend.add(DayOfWeek.valueOf(day.trim().toUpperCase(Locale.ROOT)));
+                            }
+                        }
+                        weekends.put(currency, weekend);
+                    } else if (fields.length == 2) {
+                        holidays.get(currency).add((int) LocalDate.parse(fields[1].trim()).toEpochDay());
+                    } else {
+                        throw new IllegalArgumentException("expected currency|date or currency|weekend|days");
+                    }
+                } catch (IllegalArgumentException | DateTimeException e) {
+                    throw new IllegalArgumentException("Malformed holiday at line " + lineNumber + " of " + file + ": " + e.getMessage(), e);
+                }
+            }
+        }
+        final Map<ISO4217.Currency, HolidayCalendar> calendars = new EnumMap<>(ISO4217.Currency.class);
+        for (final Map.Entry<ISO4217.Currency, List<Integer>> e : holidays.entrySet()) {
+            final Set<DayOfWeek> weekend = weekends.containsKey(e.getKey())
+                    ? weekends.get(e.getKey())
+                    : WorkingWeek.getWeekend(e.getKey());
+            final int[] days = e.getValue().stream().mapToInt(Integer::intValue).toArray();
+            calendars.put(e.getKey(), new HolidayCalendar(weekend, days, startEpochDay, endEpochDay));
+        }
+        return calendars;
+    }
+}
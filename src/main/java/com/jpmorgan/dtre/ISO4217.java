@@ -196,26 +196,77 @@ public class ISO4217 {
         private final static Currency[] VALUES = values();
         private final static Random random = new Random();
 
+        /** Currencies indexed by their 3 letter alphabetic code, see alphaIndex() */
+        private final static Currency[] BY_ALPHA = new Currency[26 * 26 * 26];
+        /** Currencies indexed by their numeric code, 0 to 999 */
+        private final static Currency[] BY_NUMERIC = new Currency[1000];
+
+        static {
+            for (final Currency c : VALUES) {
+                BY_ALPHA[alphaIndex(c.name().charAt(0), c.name().charAt(1), c.name().charAt(2))] = c;
+                BY_NUMERIC[c.numericCode] = c;
+            }
+        }
+
         final int numericCode;
         final Integer minorUnit; // support null
         final String currency;
+        final int scale; // minorUnit as a decimal scale, 0 where there is no minor unit
+        private final String numericCode3Digits;
+        private final String string;
         // Alphabetic Code (Numeric Code,Minor unit,"Currency")
         Currency (int numericCode, Integer minorUnit, String currency) {
             this.numericCode = numericCode;
             this.minorUnit   = minorUnit;
             this.currency = currency;
+            this.scale = minorUnit == null ? 0 : minorUnit;
+            this.numericCode3Digits = String.format("%03d", numericCode);
+            this.string = name()+","+numericCode+","+numericCode3Digits+","+minorUnit+","+currency;
         }
 
         public String getNumericCode3Digits() {
-            return String.format("%03d", numericCode);
+            return numericCode3Digits;
         }
 
         public static Currency randomCurrency() {
             return VALUES[(random.nextInt(VALUES.length))];
         }
 
+        /**
+         * Resolves an alphabetic code from its three characters (or ASCII bytes), without building a String
+         * @return Currency, or null if this isn't a known upper case code
+         */
+        static Currency fromAlpha(int a, int b, int c) {
+            final int index = alphaIndex(a, b, c);
+            return index < 0 ? null : BY_ALPHA[index];
+        }
+
+        /**
+         * @return Currency with this alphabetic code, or null if code isn't a known upper case code
+         */
+        static Currency fromAlpha(CharSequence code) {
+            return code.length() == 3 ? fromAlpha(code.charAt(0), code.charAt(1), code.charAt(2)) : null;
+        }
+
+        /**
+         * @return Currency with this numeric code, or null if there isn't one
+         */
+        static Currency fromNumeric(int numericCode) {
+            return numericCode >= 0 && numericCode < BY_NUMERIC.length ? BY_NUMERIC[numericCode] : null;
+        }
+
+        /**
+         * @return Index of a 3 letter upper case code in 0 to 26^3-1, or -1 if any character isn't A-Z
+         */
+        private static int alphaIndex(int a, int b, int c) {
+            if (a < 'A' || a > 'Z' || b < 'A' || b > 'Z' || c < 'A' || c > 'Z') {
+                return -1;
+            }
+            return ((a - 'A') * 26 + (b - 'A')) * 26 + (c - 'A');
+        }
+
         public String toString() {
-            return name()+","+numericCode+","+getNumericCode3Digits()+","+minorUnit+","+currency;
+            return string;
         }
     }
 }
@@ -4,15 +4,26 @@ import java.math.BigDecimal;
 import java.time.DayOfWeek;
 import java.time.LocalDate;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static com.jpmorgan.dtre.DataSource.*;
 import static java.time.temporal.TemporalAdjusters.nextOrSame;
 
 /**
+ * Every instruction carries a long id, taken from a single increasing sequence as it is ingested (constructed,
+ * parsed or generated) and kept when it is stored, snapshotted or journaled. Identity is the id: two instructions
+ * are equal only if they have the same id, however alike their fields, so distinct but identical-looking trades
+ * are never merged by a Set or Map, and hashing is one long. sameTradeAs() compares the fields.
+ *
  * @author Peter D Bell, 5rd May 2017
  */
 public final class ImmutableInstruction {
 
+    private final static ENTITIES[] ENTITY_VALUES = ENTITIES.values();
+
+    /** Last id handed out, ids start at 1 */
+    private final static AtomicLong LAST_ID = new AtomicLong();
+
     enum BUYSELL {
         B("Buy"),
         S("Sell");
@@ -31,7 +42,9 @@ public final class ImmutableInstruction {
         }
     }
 
-    private final ENTITIES entity;
+    private final long id;
+    private final int entityId; // see EntityRegistry
+    private final ENTITIES entity; // null for an entity that isn't one of DataSource.ENTITIES
     private final BUYSELL buySell;
     private final BigDecimal agreedFx;
     private final ISO4217.Currency currency;
@@ -44,10 +57,41 @@ public final class ImmutableInstruction {
     private final BigDecimal amountOfTradeUSD;
     private final double amountOfTradeUSDDoubleValue;
     private final long amountOfTradeUSDCentsLongValue;
+    // exact scaled long form of amountOfTradeUSD, for allocation-free aggregation (see ScaledSums)
+    private final boolean amountOfTradeUSDFitsLong;
+    private final long amountOfTradeUSDUnscaled;
+    private final int amountOfTradeUSDScale;
 
     public ImmutableInstruction(ENTITIES entity, BUYSELL buySell, BigDecimal agreedFx, ISO4217.Currency currency,
                                 LocalDate instructionDate, LocalDate settlementDate, int units, BigDecimal pricePerUnit) {
-        this.entity = entity;
+        // the shared EntityRegistry is seeded with ENTITIES, so the ordinal is the id
+        this(entity.ordinal(), buySell, agreedFx, currency, instructionDate, settlementDate, units, pricePerUnit);
+    }
+
+    /**
+     * @param entityId Id of the entity in the shared EntityRegistry
+     */
+    ImmutableInstruction(int entityId, BUYSELL buySell, BigDecimal agreedFx, ISO4217.Currency currency,
+                         LocalDate instructionDate, LocalDate settlementDate, int units, BigDecimal pricePerUnit) {
+        this(nextId(), entityId, buySell, agreedFx, currency, instructionDate, settlementDate, units, pricePerUnit);
+    }
+
+    /**
+     * Rebuilds an instruction that was given its id when first ingested, see InstructionColumns.get()
+     * @param id Id from nextId()
+     * @param entityId Id of the entity in the shared EntityRegistry
+     */
+    ImmutableInstruction(long id, int entityId, BUYSELL buySell, BigDecimal agreedFx, ISO4217.Currency currency,
+                         LocalDate instructionDate, LocalDate settlementDate, int units, BigDecimal pricePerUnit) {
+        if (id < 1) {
+            throw new IllegalArgumentException("No instruction id " + id);
+        }
+        if (entityId < 0 || entityId >= EntityRegistry.getInstance().size()) {
+            throw new IllegalArgumentException("No entity with id " + entityId);
+        }
+        this.id = id;
+        this.entityId = entityId;
+        this.entity = entityId < ENTITY_VALUES.length ? ENTITY_VALUES[entityId] : null;
         this.buySell = buySell;
         this.agreedFx = agreedFx;
         this.currency = currency;
@@ -68,12 +112,67 @@ public final class ImmutableInstruction {
         this.amountOfTradeUSD = pricePerUnit.multiply(new BigDecimal(units)).multiply(agreedFx);
         this.amountOfTradeUSDDoubleValue = amountOfTradeUSD.doubleValue(); // possible precision loss
         this.amountOfTradeUSDCentsLongValue = amountOfTradeUSD.multiply(BigDecimal.valueOf(100)).longValue(); // possible truncation
+        // no truncation: keep the unscaled value and its scale, when the unscaled value fits in a long
+        this.amountOfTradeUSDFitsLong = amountOfTradeUSD.unscaledValue().bitLength() < Long.SIZE;
+        this.amountOfTradeUSDUnscaled = amountOfTradeUSDFitsLong ? amountOfTradeUSD.unscaledValue().longValue() : 0L;
+        this.amountOfTradeUSDScale = amountOfTradeUSD.scale();
+    }
+
+    /**
+     * @return long id of a newly ingested instruction, greater than every id handed out or reserved before
+     */
+    static long nextId() {
+        return LAST_ID.incrementAndGet();
     }
 
+    /**
+     * @param count Number of ids
+     * @return long first of count consecutive ids, all greater than every id handed out or reserved before
+     */
+    static long nextIds(int count) {
+        return LAST_ID.getAndAdd(count) + 1;
+    }
+
+    /**
+     * Makes sure nextId() never hands out an id already given to an instruction restored from a snapshot or journal
+     * @param id Id of a restored instruction
+     */
+    static void reserveId(long id) {
+        long last;
+        while ((last = LAST_ID.get()) < id && !LAST_ID.compareAndSet(last, id)) {
+            // another thread moved it on, look again
+        }
+    }
+
+    /**
+     * @return long id of this instruction, unique within the ids handed out by nextId()
+     */
+    public long getId() {
+        return id;
+    }
+
+    /**
+     * @return ENTITIES value of this instruction's entity, or null if it's not one of DataSource.ENTITIES
+     *         (see getEntityId() and getEntitySymbol())
+     */
     public ENTITIES getEntity() {
         return entity;
     }
 
+    /**
+     * @return int id of this instruction's entity in the shared EntityRegistry
+     */
+    public int getEntityId() {
+        return entityId;
+    }
+
+    /**
+     * @return String symbol of this instruction's entity, e.g. "FLWS"
+     */
+    public String getEntitySymbol() {
+        return EntityRegistry.getInstance().symbol(entityId);
+    }
+
     public BUYSELL getBuySell() {
         return buySell;
     }
@@ -142,21 +241,47 @@ public final class ImmutableInstruction {
     /**
      * The representation in long form of:
      *   USD cents amount of a trade = 100 * (Price per unit * Units * Agreed Fx)
+     * Note: fractions of a cent are truncated, so do not sum these - see getAmountOfTradeUSDUnscaled()
      * @return long amount of a trade in USD cents
      */
     public long getAmountOfTradeUSDCentsLongValue() {
         return amountOfTradeUSDCentsLongValue;
     }
 
-    @Override
-    public boolean equals(Object o) {
-        if (this == o) return true;
-        if (o == null || getClass() != o.getClass()) return false;
+    /**
+     * @return true if getAmountOfTradeUSD() can be represented exactly by
+     *         getAmountOfTradeUSDUnscaled() and getAmountOfTradeUSDScale()
+     */
+    boolean isAmountOfTradeUSDScaledLong() {
+        return amountOfTradeUSDFitsLong;
+    }
 
-        ImmutableInstruction that = (ImmutableInstruction) o;
+    /**
+     * The exact scaled long form of the USD amount of a trade:
+     *   getAmountOfTradeUSD() = getAmountOfTradeUSDUnscaled() * 10^-getAmountOfTradeUSDScale()
+     * Only valid when isAmountOfTradeUSDScaledLong() is true
+     * @return long unscaled value of the USD amount of a trade
+     */
+    long getAmountOfTradeUSDUnscaled() {
+        return amountOfTradeUSDUnscaled;
+    }
+
+    /**
+     * @return int scale of the USD amount of a trade, see getAmountOfTradeUSDUnscaled()
+     */
+    int getAmountOfTradeUSDScale() {
+        return amountOfTradeUSDScale;
+    }
 
+    /**
+     * Compares every field but the id, so two separately ingested instructions for the same trade match
+     * @param that ImmutableInstruction to compare with
+     * @return true if both have the same entity, side, fx, currency, dates, units and price
+     */
+    public boolean sameTradeAs(ImmutableInstruction that) {
+        if (this == that) return true;
         if (units != that.units) return false;
-        if (entity != that.entity) return false;
+        if (entityId != that.entityId) return false;
         if (buySell != that.buySell) return false;
         if (!agreedFx.equals(that.agreedFx)) return false;
         if (currency != that.currency) return false;
@@ -166,24 +291,23 @@ public final class ImmutableInstruction {
         return pricePerUnit.equals(that.pricePerUnit);
     }
 
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        return id == ((ImmutableInstruction) o).id;
+    }
+
     @Override
     public int hashCode() {
-        int result = entity.hashCode();
-        result = 31 * result + buySell.hashCode();
-        result = 31 * result + agreedFx.hashCode();
-        result = 31 * result + currency.hashCode();
-        result = 31 * result + instructionDate.hashCode();
-        result = 31 * result + originalUnadjustedSettlementDate.hashCode();
-        result = 31 * result + settlementDate.hashCode();
-        result = 31 * result + units;
-        result = 31 * result + pricePerUnit.hashCode();
-        return result;
+        return Long.hashCode(id);
     }
 
     @Override
     public String toString() {
         return "ImmutableInstruction{" +
-                "entity='" + entity + '\'' +
+                "id=" + id +
+                ", entity='" + getEntitySymbol() + '\'' +
                 ", buySell=" + buySell +
                 ", agreedFx=" + agreedFx +
                 ", currency=" + currency +
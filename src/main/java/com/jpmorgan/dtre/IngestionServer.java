@@ -0,0 +1,347 @@
+package com.jpmorgan.dtre;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Embedded TCP endpoint taking instructions from any number of client connections into a DataSource.
+ *
+ * Each connection sends instructions in the pipe-delimited layout of InstructionFileParser, framed one of two
+ * ways, told apart by the first byte the client sends:
+ * - newline-delimited: one instruction per line, as in a file (blank and header lines are skipped)
+ * - length-delimited: the first byte is 0, and each instruction is a 4-byte big-endian length, at most
+ *   MAX_FRAME (so its first byte is always 0), followed by that many bytes of one instruction
+ * An instruction that can't be parsed is counted as rejected and skipped, the connection carries on. A line
+ * or frame too long, or a bad length, closes the connection.
+ *
+ * Each connection is read by its own virtual thread when the JVM has them (Java 21 on), so hundreds of
+ * mostly-idle connections cost no platform threads; on older JVMs, or with -Ddtre.server.virtual=false,
+ * by a cached pool of platform threads. The virtual thread executor is looked up reflectively, so the
+ * engine still builds and runs on Java 8.
+ *
+ * Parsed instructions are published into a ConcurrentIngestor, whose single consumer appends them to the
+ * DataSource. When it falls behind and the ring is full, a connection stops reading its socket until there is
+ * room (counted in getStalls()), so the client's sends back up through TCP flow control rather than the
+ * server buffering without bound.
+ */
+final class IngestionServer implements AutoCloseable {
+
+    /** System property choosing virtual threads per connection when the JVM has them, true if unset */
+    final static String VIRTUAL_PROPERTY = "dtre.server.virtual";
+
+    /** Longest line, or frame, of one instruction */
+    final static int MAX_FRAME = 1 << 16;
+    /** Instructions held between the connections and the DataSource */
+    final static int DEFAULT_CAPACITY = 1 << 14;
+
+    private final static long STALL_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+    /** First and longest waits before accepting again after accept() fails, e.g. out of file descriptors */
+    private final static long ACCEPT_BACKOFF_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private final static long MAX_ACCEPT_BACKOFF_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final ServerSocketChannel server;
+    private final ConcurrentIngestor ingestor;
+    private final ExecutorService connections;
+    private final boolean virtual;
+    private final Thread acceptor;
+    private final Set<SocketChannel> open = ConcurrentHashMap.newKeySet();
+
+    private final LongAdder connected = new LongAdder();
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder stalls = new LongAdder();
+
+    private volatile boolean closed;
+
+    /**
+     * Binds and starts accepting connections
+     * @param dataSource DataSource the instructions are appended to, by the ingestor's consumer thread only from now on
+     * @param address Address to listen on, port 0 for any free port (see getPort())
+     * @param capacity Instructions held between the connections and the DataSource
+     * @throws UncheckedIOException if the address can't be bound
+     */
+    IngestionServer(DataSource dataSource, InetSocketAddress address, int capacity) {
+        this(dataSource, address, capacity, Boolean.parseBoolean(System.getProperty(VIRTUAL_PROPERTY, "true")));
+    }
+
+    /**
+     * As IngestionServer(dataSource, address, capacity), choosing whether to try virtual threads
+     */
+    IngestionServer(DataSource dataSource, InetSocketAddress address, int capacity, boolean tryVirtual) {
+        ExecutorService executor = tryVirtual ? newVirtualThreadPerTaskExecutor() : null;
+        this.virtual = executor != null;
+        if (executor == null) {
+            executor = Executors.newCachedThreadPool(task -> {
+                final Thread thread = new Thread(task, "dtre-connection");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        this.connections = executor;
+        try {
+            this.server = ServerSocketChannel.open();
+            server.bind(address);
+        } catch (IOException e) {
+            connections.shutdown();
+            throw new UncheckedIOException("Can't listen on " + address, e);
+        }
+        this.ingestor = new ConcurrentIngestor(dataSource, capacity);
+        this.acceptor = new Thread(this::accept, "dtre-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * @return Executors.newVirtualThreadPerTaskExecutor(), or null if this JVM has no virtual threads
+     */
+    static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            final Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null; // before Java 21, or a preview not enabled
+        }
+    }
+
+    /**
+     * @return Port listened on
+     */
+    int getPort() {
+        try {
+            return ((InetSocketAddress) server.getLocalAddress()).getPort();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @return true if each connection is read by a virtual thread
+     */
+    boolean isVirtual() {
+        return virtual;
+    }
+
+    /**
+     * @return Number of connections accepted so far
+     */
+    long getConnections() {
+        return connected.sum();
+    }
+
+    /**
+     * @return Number of instructions parsed and published so far
+     */
+    long getAccepted() {
+        return accepted.sum();
+    }
+
+    /**
+     * @return Number of instructions that couldn't be parsed
+     */
+    long getRejected() {
+        return rejected.sum();
+    }
+
+    /**
+     * @return Number of times a connection had to wait for room in the ring
+     */
+    long getStalls() {
+        return stalls.sum();
+    }
+
+    /**
+     * Waits until every instruction published so far has been appended to the DataSource, see ConcurrentIngestor
+     */
+    void flush() {
+        ingestor.flush();
+    }
+
+    /**
+     * Stops listening, closes every connection, then appends the instructions already published and stops
+     */
+    @Override
+    public void close() {
+        closed = true;
+        LockSupport.unpark(acceptor); // if backing off
+        try {
+            server.close();
+        } catch (IOException e) {
+            // closing anyway
+        }
+        for (final SocketChannel channel : open) {
+            closeQuietly(channel);
+        }
+        connections.shutdown();
+        try {
+            acceptor.join();
+            connections.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        ingestor.close();
+    }
+
+    private void accept() {
+        long backoff = 0;
+        while (!closed) {
+            final SocketChannel channel;
+            try {
+                channel = server.accept();
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                // one client's problem, or a lasting one such as no file descriptors left: wait longer each time
+                backoff = backoff == 0 ? ACCEPT_BACKOFF_NANOS : Math.min(backoff * 2, MAX_ACCEPT_BACKOFF_NANOS);
+                LockSupport.parkNanos(backoff);
+                continue;
+            }
+            backoff = 0;
+            connected.increment();
+            open.add(channel);
+            try {
+                connections.execute(() -> {
+                    try {
+                        read(channel);
+                    } catch (IOException | IllegalArgumentException | IllegalStateException e) {
+                        // connection dropped, broke the framing or the ingestor stopped: it's closed below, the others carry on
+                    } finally {
+                        open.remove(channel);
+                        closeQuietly(channel);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                open.remove(channel); // accepted as close() began
+                closeQuietly(channel);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Reads one connection to its end, in whichever framing its first byte shows
+     */
+    private void read(SocketChannel channel) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(MAX_FRAME);
+        final InstructionColumns parsed = new InstructionColumns();
+        final InstructionFileParser parser = new InstructionFileParser(parsed);
+        if (channel.read(buffer) < 0) {
+            return;
+        }
+        if (buffer.position() > 0 && buffer.get(0) == 0) {
+            readFrames(channel, buffer, parser, parsed);
+        } else {
+            readLines(channel, buffer, parser, parsed);
+        }
+    }
+
+    private void readLines(SocketChannel channel, ByteBuffer buffer, InstructionFileParser parser,
+                           InstructionColumns parsed) throws IOException {
+        long offset = 0; // of buffer index 0 in the stream, for error messages
+        while (true) {
+            int lineStart = 0;
+            for (int i = 0; i < buffer.position(); i++) {
+                if (buffer.get(i) == '\n') {
+                    parse(parser, parsed, buffer, lineStart, i, offset);
+                    lineStart = i + 1;
+                }
+            }
+            // keep the part line for the next read
+            buffer.flip().position(lineStart);
+            buffer.compact();
+            offset += lineStart;
+            if (!buffer.hasRemaining()) {
+                throw new IllegalArgumentException("Line longer than " + MAX_FRAME + " bytes at byte " + offset);
+            }
+            if (channel.read(buffer) < 0) {
+                if (buffer.position() > 0) {
+                    parse(parser, parsed, buffer, 0, buffer.position(), offset); // last line, unterminated
+                }
+                return;
+            }
+        }
+    }
+
+    private void readFrames(SocketChannel channel, ByteBuffer buffer, InstructionFileParser parser,
+                            InstructionColumns parsed) throws IOException {
+        long offset = 0;
+        while (true) {
+            if (!fill(channel, buffer, 4)) {
+                if (buffer.position() > 0) {
+                    throw new EOFException("Connection closed mid-length at byte " + offset);
+                }
+                return; // clean end, between frames
+            }
+            final int length = buffer.getInt(0);
+            if (length < 1 || length > MAX_FRAME - 4) {
+                throw new IllegalArgumentException("Bad frame length " + length + " at byte " + offset);
+            }
+            if (!fill(channel, buffer, 4 + length)) {
+                throw new EOFException("Connection closed mid-frame at byte " + offset);
+            }
+            parse(parser, parsed, buffer, 4, 4 + length, offset);
+            // keep whatever of the next frame has arrived
+            buffer.flip().position(4 + length);
+            buffer.compact();
+            offset += 4 + length;
+        }
+    }
+
+    /**
+     * Reads until the buffer holds at least count bytes
+     * @return false if the connection ended first
+     */
+    private static boolean fill(SocketChannel channel, ByteBuffer buffer, int count) throws IOException {
+        while (buffer.position() < count) {
+            if (channel.read(buffer) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Parses one instruction and publishes it, waiting while the ring is full
+     */
+    private void parse(InstructionFileParser parser, InstructionColumns parsed, ByteBuffer buffer,
+                       int start, int end, long offset) {
+        try {
+            parser.parse(buffer, start, end, offset);
+        } catch (IllegalArgumentException e) {
+            rejected.increment();
+            parsed.clear();
+            return;
+        }
+        for (int row = 0; row < parsed.size(); row++) {
+            final ImmutableInstruction in = parsed.get(row);
+            while (!ingestor.offer(in)) {
+                stalls.increment();
+                LockSupport.parkNanos(STALL_NANOS);
+            }
+            accepted.increment();
+        }
+        parsed.clear();
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // nothing more to do
+        }
+    }
+}
@@ -0,0 +1,544 @@
+package com.jpmorgan.dtre;
+
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.time.LocalDate;
+import java.util.*;
+
+/**
+ * Column-oriented store of instructions: one primitive array per field, so a row costs around 60 bytes
+ * rather than an ImmutableInstruction with its BigDecimals and LocalDates (several hundred bytes).
+ *
+ * Columns:
+ * - instruction id (see ImmutableInstruction.getId()), kept as appended, or given to each row appended from
+ *   its raw fields
+ * - entity id (see EntityRegistry), side (BUYSELL ordinal) and currency ordinal
+ * - instruction date, adjusted settlement date and original (unadjusted) settlement date as epoch days
+ * - units
+ * - price per unit, agreed fx and USD amount of trade as scaled longs (see DecimalColumn)
+ *
+ * get(row) and asList() still hand out ImmutableInstruction objects, built on demand, while aggregations
+ * can read the primitive columns directly.
+ *
+ * A store a worker thread parses or generates part of a file into is unnumbered(): its rows get no ids,
+ * and are given them, in row order, when it's appended to a numbered store with appendAll() (or by number()).
+ * Ids then follow file order, whatever order the workers finished in, and are the same at any parallelism.
+ * Not thread-safe.
+ */
+final class InstructionColumns {
+
+    private final static int DEFAULT_CAPACITY = 1024;
+
+    /**
+     * Bytes per row written by putRecord() and read by appendRecord(): instruction id (long), entity id (int), side (byte),
+     * currency ordinal (short), instruction, settlement and unadjusted settlement epoch days (int),
+     * units (int), then price, agreed fx and amount each as unscaled (long) and scale (byte)
+     */
+    final static int RECORD_BYTES = 58;
+
+    private final static ImmutableInstruction.BUYSELL[] BUYSELL = ImmutableInstruction.BUYSELL.values();
+    private final static ISO4217.Currency[] CURRENCIES = ISO4217.Currency.values();
+
+    /** Id of a row not numbered yet, ids start at 1 */
+    private final static long UNNUMBERED = 0L;
+
+    private int size;
+    private boolean numbered = true;
+
+    private long[] id;
+    private int[] entity;
+    private byte[] side;
+    private short[] currency;
+    private int[] instructionDay;
+    private int[] settlementDay;
+    private int[] unadjustedSettlementDay;
+    private int[] units;
+    private final DecimalColumn price;
+    private final DecimalColumn agreedFx;
+    private final DecimalColumn amount;
+
+    InstructionColumns() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    InstructionColumns(int initialCapacity) {
+        final int capacity = Math.max(1, initialCapacity);
+        id = new long[capacity];
+        entity = new int[capacity];
+        side = new byte[capacity];
+        currency = new short[capacity];
+        instructionDay = new int[capacity];
+        settlementDay = new int[capacity];
+        unadjustedSettlementDay = new int[capacity];
+        units = new int[capacity];
+        price = new DecimalColumn(capacity);
+        agreedFx = new DecimalColumn(capacity);
+        amount = new DecimalColumn(capacity);
+    }
+
+    /**
+     * @param initialCapacity Rows to allocate up front
+     * @return InstructionColumns whose rows appended from raw fields get their ids when merged, see appendAll()
+     */
+    static InstructionColumns unnumbered(int initialCapacity) {
+        final InstructionColumns columns = new InstructionColumns(initialCapacity);
+        columns.numbered = false;
+        return columns;
+    }
+
+    /**
+     * Gives every row of an unnumbered store its id, in row order, making it a numbered one
+     */
+    void number() {
+        if (!numbered) {
+            final long first = ImmutableInstruction.nextIds(size);
+            for (int row = 0; row < size; row++) {
+                id[row] = first + row;
+            }
+            numbered = true;
+        }
+    }
+
+    /**
+     * Appends an instruction, decomposing it into the columns
+     * @param in ImmutableInstruction to store
+     * @return int row number it was stored at
+     */
+    int append(ImmutableInstruction in) {
+        if (!numbered) {
+            throw new IllegalStateException("Instructions already have ids, append them to a numbered store");
+        }
+        final int row = nextRow();
+        id[row] = in.getId();
+        entity[row] = in.getEntityId();
+        side[row] = (byte) in.getBuySell().ordinal();
+        currency[row] = (short) in.getCurrency().ordinal();
+        instructionDay[row] = (int) in.getInstructionDate().toEpochDay();
+        settlementDay[row] = (int) in.getSettlementDate().toEpochDay();
+        unadjustedSettlementDay[row] = (int) in.getOriginalUnadjustedSettlementDate().toEpochDay();
+        units[row] = in.getUnits();
+        price.set(row, in.getPricePerUnit());
+        agreedFx.set(row, in.getAgreedFx());
+        if (in.isAmountOfTradeUSDScaledLong()) {
+            amount.set(row, in.getAmountOfTradeUSDUnscaled(), in.getAmountOfTradeUSDScale());
+        } else {
+            amount.set(row, in.getAmountOfTradeUSD());
+        }
+        size++;
+        return row;
+    }
+
+    /**
+     * Appends an instruction from its raw fields, without building an ImmutableInstruction.
+     * It is given the next instruction id, see ImmutableInstruction.nextId(), unless the store is unnumbered.
+     * The settlement date is adjusted for the currency's working week and the USD amount of trade
+     * computed here, exactly as the ImmutableInstruction constructor would.
+     * @param entityId Id of the entity in the shared EntityRegistry
+     * @param buySell Buy or Sell
+     * @param tradeCurrency Currency of the trade
+     * @param instructionEpochDay Instruction date as an epoch day
+     * @param unadjustedSettlementEpochDay Instructed settlement date as an epoch day, before adjustment
+     * @param unitCount Units
+     * @param priceUnscaled Unscaled price per unit
+     * @param priceScale Scale of the price per unit
+     * @param fxUnscaled Unscaled agreed fx
+     * @param fxScale Scale of the agreed fx
+     * @return int row number it was stored at
+     */
+    int append(int entityId, ImmutableInstruction.BUYSELL buySell, ISO4217.Currency tradeCurrency,
+               int instructionEpochDay, int unadjustedSettlementEpochDay, int unitCount,
+               long priceUnscaled, int priceScale, long fxUnscaled, int fxScale) {
+        final int row = appendFields(entityId, buySell, tradeCurrency, instructionEpochDay, unadjustedSettlementEpochDay, unitCount);
+        price.set(row, priceUnscaled, priceScale);
+        agreedFx.set(row, fxUnscaled, fxScale);
+        try {
+            // Price per unit * Units * Agreed Fx, the scale of the product is the sum of the scales
+            amount.set(row, Math.multiplyExact(Math.multiplyExact(priceUnscaled, unitCount), fxUnscaled), priceScale + fxScale);
+        } catch (ArithmeticException overflow) {
+            amount.set(row, BigDecimal.valueOf(priceUnscaled, priceScale)
+                    .multiply(new BigDecimal(unitCount))
+                    .multiply(BigDecimal.valueOf(fxUnscaled, fxScale)));
+        }
+        size++;
+        return row;
+    }
+
+    /**
+     * As the raw fields append(), for a price or agreed fx with too many digits for a scaled long
+     */
+    int append(int entityId, ImmutableInstruction.BUYSELL buySell, ISO4217.Currency tradeCurrency,
+               int instructionEpochDay, int unadjustedSettlementEpochDay, int unitCount,
+               BigDecimal pricePerUnit, BigDecimal fx) {
+        final int row = appendFields(entityId, buySell, tradeCurrency, instructionEpochDay, unadjustedSettlementEpochDay, unitCount);
+        price.set(row, pricePerUnit);
+        agreedFx.set(row, fx);
+        amount.set(row, pricePerUnit.multiply(new BigDecimal(unitCount)).multiply(fx));
+        size++;
+        return row;
+    }
+
+    /**
+     * Sets every column of a new row but the decimals, which the caller sets before counting the row in size
+     */
+    private int appendFields(int entityId, ImmutableInstruction.BUYSELL buySell, ISO4217.Currency tradeCurrency,
+                             int instructionEpochDay, int unadjustedSettlementEpochDay, int unitCount) {
+        final int row = nextRow();
+        id[row] = numbered ? ImmutableInstruction.nextId() : UNNUMBERED;
+        entity[row] = entityId;
+        side[row] = (byte) buySell.ordinal();
+        currency[row] = (short) tradeCurrency.ordinal();
+        instructionDay[row] = instructionEpochDay;
+        settlementDay[row] = WorkingWeek.adjustEpochDay(tradeCurrency, unadjustedSettlementEpochDay);
+        unadjustedSettlementDay[row] = unadjustedSettlementEpochDay;
+        units[row] = unitCount;
+        return row;
+    }
+
+    /**
+     * Appends every row of another store, in order, copying the columns in bulk.
+     * Rows of an unnumbered store are given their ids here, in order, unless this store is unnumbered too
+     * @param other InstructionColumns to copy from, unchanged
+     */
+    void appendAll(InstructionColumns other) {
+        ensureCapacity(size + other.size);
+        if (other.numbered || !numbered) {
+            System.arraycopy(other.id, 0, id, size, other.size);
+        } else {
+            final long first = ImmutableInstruction.nextIds(other.size);
+            for (int row = 0; row < other.size; row++) {
+                id[size + row] = first + row;
+            }
+        }
+        System.arraycopy(other.entity, 0, entity, size, other.size);
+        System.arraycopy(other.side, 0, side, size, other.size);
+        System.arraycopy(other.currency, 0, currency, size, other.size);
+        System.arraycopy(other.instructionDay, 0, instructionDay, size, other.size);
+        System.arraycopy(other.settlementDay, 0, settlementDay, size, other.size);
+        System.arraycopy(other.unadjustedSettlementDay, 0, unadjustedSettlementDay, size, other.size);
+        System.arraycopy(other.units, 0, units, size, other.size);
+        price.copyFrom(other.price, other.size, size);
+        agreedFx.copyFrom(other.agreedFx, other.size, size);
+        amount.copyFrom(other.amount, other.size, size);
+        size += other.size;
+    }
+
+    /**
+     * Writes one row as a fixed-width record of RECORD_BYTES at the buffer's position.
+     * A decimal held in an overflow map is written with scale Byte.MIN_VALUE, see DecimalColumn.isScaledLong(),
+     * and has to be stored separately by the caller.
+     * @param row Row number, 0 to size()-1
+     * @param out ByteBuffer to write to, advanced by RECORD_BYTES
+     */
+    void putRecord(int row, ByteBuffer out) {
+        checkRow(row);
+        checkNumbered();
+        out.putLong(id[row])
+                .putInt(entity[row])
+                .put(side[row])
+                .putShort(currency[row])
+                .putInt(instructionDay[row])
+                .putInt(settlementDay[row])
+                .putInt(unadjustedSettlementDay[row])
+                .putInt(units[row]);
+        price.put(row, out);
+        agreedFx.put(row, out);
+        amount.put(row, out);
+    }
+
+    /**
+     * Appends a row from a record written by putRecord(), taking the columns as stored (nothing is recomputed),
+     * and reserves its instruction id so no instruction ingested later is given it again.
+     * A decimal written as overflow must be restored with DecimalColumn.restore() before the row is read.
+     * @param in ByteBuffer to read from, advanced by RECORD_BYTES
+     * @param entityIds Id in the shared EntityRegistry of each entity id as written
+     * @return int row number it was stored at
+     * @throws IllegalArgumentException if the record holds an id or ordinal that doesn't exist
+     */
+    int appendRecord(ByteBuffer in, int[] entityIds) {
+        final int row = nextRow();
+        final long writtenId = in.getLong();
+        final int writtenEntity = in.getInt();
+        final byte writtenSide = in.get();
+        final short writtenCurrency = in.getShort();
+        if (writtenId < 1 || writtenEntity < 0 || writtenEntity >= entityIds.length
+                || writtenSide < 0 || writtenSide >= BUYSELL.length
+                || writtenCurrency < 0 || writtenCurrency >= CURRENCIES.length) {
+            throw new IllegalArgumentException("Record " + row + " has an unknown id, entity, side or currency");
+        }
+        ImmutableInstruction.reserveId(writtenId);
+        id[row] = writtenId;
+        entity[row] = entityIds[writtenEntity];
+        side[row] = writtenSide;
+        currency[row] = writtenCurrency;
+        instructionDay[row] = in.getInt();
+        settlementDay[row] = in.getInt();
+        unadjustedSettlementDay[row] = in.getInt();
+        units[row] = in.getInt();
+        price.take(row, in);
+        agreedFx.take(row, in);
+        amount.take(row, in);
+        size++;
+        return row;
+    }
+
+    /**
+     * Removes every row, keeping the arrays for reuse
+     */
+    void clear() {
+        size = 0;
+        price.overflow.clear();
+        agreedFx.overflow.clear();
+        amount.overflow.clear();
+    }
+
+    /**
+     * @return Number of rows stored
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Builds an ImmutableInstruction from the columns of one row
+     * @param row Row number, 0 to size()-1
+     * @return ImmutableInstruction equal to the one appended
+     */
+    ImmutableInstruction get(int row) {
+        checkRow(row);
+        checkNumbered();
+        return new ImmutableInstruction(
+                id[row],
+                entity[row],
+                BUYSELL[side[row]],
+                agreedFx.get(row),
+                CURRENCIES[currency[row]],
+                LocalDate.ofEpochDay(instructionDay[row]),
+                LocalDate.ofEpochDay(unadjustedSettlementDay[row]),
+                units[row],
+                price.get(row)
+        );
+    }
+
+    /**
+     * @return Read-only List view of the rows, building each ImmutableInstruction as it is asked for
+     */
+    List<ImmutableInstruction> asList() {
+        return new RowView();
+    }
+
+    /**
+     * @return Instruction id of the row, see ImmutableInstruction.getId()
+     */
+    long id(int row) {
+        return id[row];
+    }
+
+    /**
+     * @return Id of the row's entity in the shared EntityRegistry
+     */
+    int entityId(int row) {
+        return entity[row];
+    }
+
+    ImmutableInstruction.BUYSELL buySell(int row) {
+        return BUYSELL[side[row]];
+    }
+
+    /**
+     * @return true if this row is a Sell (incoming) instruction
+     */
+    boolean isIncoming(int row) {
+        return side[row] == ImmutableInstruction.BUYSELL.S.ordinal();
+    }
+
+    int currencyOrdinal(int row) {
+        return currency[row];
+    }
+
+    int instructionEpochDay(int row) {
+        return instructionDay[row];
+    }
+
+    /**
+     * @return Adjusted settlement date of the row, as an epoch day
+     */
+    int settlementEpochDay(int row) {
+        return settlementDay[row];
+    }
+
+    /**
+     * @return Settlement date of the row as instructed, before adjustment, as an epoch day
+     */
+    int unadjustedSettlementEpochDay(int row) {
+        return unadjustedSettlementDay[row];
+    }
+
+    int units(int row) {
+        return units[row];
+    }
+
+    DecimalColumn pricePerUnit() {
+        return price;
+    }
+
+    DecimalColumn agreedFx() {
+        return agreedFx;
+    }
+
+    /**
+     * @return USD amount of trade column, Price per unit * Units * Agreed Fx
+     */
+    DecimalColumn amountOfTradeUSD() {
+        return amount;
+    }
+
+    private void checkRow(int row) {
+        if (row < 0 || row >= size) {
+            throw new IndexOutOfBoundsException("Row " + row + " of " + size);
+        }
+    }
+
+    private void checkNumbered() {
+        if (!numbered) {
+            throw new IllegalStateException("Rows have no ids until number()ed or appended to a numbered store");
+        }
+    }
+
+    private int nextRow() {
+        if (size == entity.length) {
+            ensureCapacity(entity.length + Math.max(1, entity.length >> 1));
+        }
+        return size;
+    }
+
+    /**
+     * Grows the columns, if needed, to hold at least capacity rows without re-allocating
+     * @param capacity Number of rows
+     */
+    void ensureCapacity(int capacity) {
+        if (capacity > entity.length) {
+            id = Arrays.copyOf(id, capacity);
+            entity = Arrays.copyOf(entity, capacity);
+            side = Arrays.copyOf(side, capacity);
+            currency = Arrays.copyOf(currency, capacity);
+            instructionDay = Arrays.copyOf(instructionDay, capacity);
+            settlementDay = Arrays.copyOf(settlementDay, capacity);
+            unadjustedSettlementDay = Arrays.copyOf(unadjustedSettlementDay, capacity);
+            units = Arrays.copyOf(units, capacity);
+            price.grow(capacity);
+            agreedFx.grow(capacity);
+            amount.grow(capacity);
+        }
+    }
+
+    /**
+     * A column of decimals held as unscaled long and scale:
+     *   value = unscaled * 10^-scale
+     * A value whose unscaled value does not fit a long (or whose scale does not fit a byte) is kept
+     * as a BigDecimal in a sparse overflow map instead, so the rare odd value doesn't cost every row.
+     */
+    static final class DecimalColumn {
+        private final static byte OVERFLOW = Byte.MIN_VALUE;
+
+        private long[] unscaled;
+        private byte[] scale;
+        private final Map<Integer, BigDecimal> overflow = new HashMap<>();
+
+        private DecimalColumn(int capacity) {
+            unscaled = new long[capacity];
+            scale = new byte[capacity];
+        }
+
+        private void grow(int capacity) {
+            unscaled = Arrays.copyOf(unscaled, capacity);
+            scale = Arrays.copyOf(scale, capacity);
+        }
+
+        /**
+         * Copies the first count rows of another column to this one, starting at row offset
+         */
+        private void copyFrom(DecimalColumn other, int count, int offset) {
+            System.arraycopy(other.unscaled, 0, unscaled, offset, count);
+            System.arraycopy(other.scale, 0, scale, offset, count);
+            for (final Map.Entry<Integer, BigDecimal> e : other.overflow.entrySet()) {
+                overflow.put(e.getKey() + offset, e.getValue());
+            }
+        }
+
+        private void set(int row, BigDecimal value) {
+            if (value.unscaledValue().bitLength() < Long.SIZE) {
+                set(row, value.unscaledValue().longValue(), value.scale());
+            } else {
+                scale[row] = OVERFLOW;
+                overflow.put(row, value);
+            }
+        }
+
+        private void set(int row, long unscaledValue, int valueScale) {
+            if (valueScale > Byte.MIN_VALUE && valueScale <= Byte.MAX_VALUE) {
+                unscaled[row] = unscaledValue;
+                scale[row] = (byte) valueScale;
+            } else {
+                scale[row] = OVERFLOW;
+                overflow.put(row, BigDecimal.valueOf(unscaledValue, valueScale));
+            }
+        }
+
+        private void put(int row, ByteBuffer out) {
+            out.putLong(isScaledLong(row) ? unscaled[row] : 0L).put(scale[row]);
+        }
+
+        private void take(int row, ByteBuffer in) {
+            unscaled[row] = in.getLong();
+            scale[row] = in.get();
+        }
+
+        /**
+         * Sets a value written as overflow by putRecord(), once the row has been appended by appendRecord()
+         */
+        void restore(int row, BigDecimal value) {
+            set(row, value);
+        }
+
+        /**
+         * @return Rows whose value doesn't fit a scaled long, in no particular order
+         */
+        Set<Integer> overflowRows() {
+            return Collections.unmodifiableSet(overflow.keySet());
+        }
+
+        /**
+         * @return true if unscaled(row) and scale(row) hold the value, false if only get(row) does
+         */
+        boolean isScaledLong(int row) {
+            return scale[row] != OVERFLOW;
+        }
+
+        long unscaled(int row) {
+            return unscaled[row];
+        }
+
+        int scale(int row) {
+            return scale[row];
+        }
+
+        BigDecimal get(int row) {
+            return isScaledLong(row) ? BigDecimal.valueOf(unscaled[row], scale[row]) : overflow.get(row);
+        }
+    }
+
+    /**
+     * Read-only List over the rows, materialising ImmutableInstruction objects on demand
+     */
+    private final class RowView extends AbstractList<ImmutableInstruction> implements RandomAccess {
+        @Override
+        public ImmutableInstruction get(int index) {
+            return InstructionColumns.this.get(index);
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+}
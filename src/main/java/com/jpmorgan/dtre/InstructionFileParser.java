@@ -0,0 +1,438 @@
+package com.jpmorgan.dtre;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads instructions in the pipe-delimited layout documented on DailyTrades, one per line:
+ *   Entity | Buy/Sell | AgreedFx | Currency | InstructionDate | SettlementDate | Units | Price per unit
+ *    foo   |    B     |   0.50   |   SGD    |   01 Jan 2016   |  02 Jan 2016   |  200  |    100.25
+ *
+ * The file is memory-mapped and each field parsed straight from the bytes into an InstructionColumns
+ * store: no String per line or per field, no split(), no valueOf(String). Entities are interned into the
+ * shared EntityRegistry and currencies resolved, both straight from their bytes; dates and decimals are
+ * computed in place. An entity symbol seen for the first time is registered, not rejected.
+ *
+ * Whitespace around fields is ignored, as are blank lines, '\r' line endings and the header line, whose first
+ * two fields are "Entity" and "Buy/Sell" (no instruction can have that side). Anything else that can't be parsed is an IllegalArgumentException giving the byte offset.
+ *
+ * Files over 2GB are mapped a window at a time, each window ending on a line boundary.
+ * A parser instance is not thread-safe, use one per thread.
+ */
+final class InstructionFileParser {
+
+    /** Largest window mapped at once, kept well under the 2GB limit of a MappedByteBuffer */
+    private final static int MAX_WINDOW = 1 << 30;
+
+    private final static byte PIPE = '|';
+    private final static byte[] HEADER_ENTITY = "Entity".getBytes(StandardCharsets.US_ASCII);
+    private final static byte[] HEADER_SIDE = "Buy/Sell".getBytes(StandardCharsets.US_ASCII);
+
+    /** Cumulative days before each month, in a non-leap year */
+    private final static int[] DAYS_BEFORE_MONTH = {0, 31, 59, 90, 120, 151, 181, 212, 243, 273, 304, 334};
+
+    private final InstructionColumns into;
+    private final EntityRegistry entities = EntityRegistry.getInstance();
+
+    // the buffer being parsed and our position in it
+    private ByteBuffer buf;
+    private int pos;
+    private int lineEnd;
+    private long baseOffset; // file offset of buf's index 0, for error messages
+
+    // decimal field just parsed, see decimal()
+    private long decimalUnscaled;
+    private int decimalScale;
+    private BigDecimal decimalOverflow;
+
+    /**
+     * @param into Store to append parsed instructions to
+     */
+    InstructionFileParser(InstructionColumns into) {
+        this.into = into;
+    }
+
+    /**
+     * Memory-maps and parses the whole file
+     * @param file Pipe-delimited instruction file
+     * @return InstructionColumns holding every instruction in the file, in file order
+     * @throws IOException if the file can't be read
+     */
+    static InstructionColumns parse(Path file) throws IOException {
+        final InstructionColumns columns = new InstructionColumns();
+        new InstructionFileParser(columns).parseFile(file);
+        return columns;
+    }
+
+    /**
+     * Memory-maps and parses the whole file, a window at a time
+     * @param file Pipe-delimited instruction file
+     * @throws IOException if the file can't be read
+     */
+    void parseFile(Path file) throws IOException {
+        parseFile(file, MAX_WINDOW);
+    }
+
+    /**
+     * As parseFile(file), mapping at most maxWindow bytes at a time
+     */
+    void parseFile(Path file, int maxWindow) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            final long size = channel.size();
+            long offset = 0;
+            while (offset < size) {
+                final int length = (int) Math.min(maxWindow, size - offset);
+                final MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+                int end = length;
+                if (offset + length < size) {
+                    // stop at the last whole line, the next window starts after it
+                    end = lastLineEnd(window, length);
+                    if (end == 0) {
+                        throw new IllegalArgumentException("Line longer than " + maxWindow + " bytes at byte " + offset);
+                    }
+                }
+                parse(window, 0, end, offset);
+                offset += end;
+            }
+        }
+    }
+
+    /**
+     * Parses whole lines between two indexes of a buffer
+     * @param buffer Bytes to read, not modified (absolute gets only)
+     * @param start Index of the first byte of the first line
+     * @param end Index after the last byte of the last line
+     * @param fileOffset Position of the buffer's index 0 in the file, used in error messages only
+     */
+    void parse(ByteBuffer buffer, int start, int end, long fileOffset) {
+        buf = buffer;
+        baseOffset = fileOffset;
+        int lineStart = start;
+        while (lineStart < end) {
+            int eol = lineStart;
+            while (eol < end && buf.get(eol) != '\n') {
+                eol++;
+            }
+            parseLine(lineStart, eol);
+            lineStart = eol + 1;
+        }
+    }
+
+    /**
+     * @return Index after the last '\n' in the first length bytes, 0 if there is none
+     */
+    static int lastLineEnd(ByteBuffer buffer, int length) {
+        for (int i = length - 1; i >= 0; i--) {
+            if (buffer.get(i) == '\n') {
+                return i + 1;
+            }
+        }
+        return 0;
+    }
+
+    private void parseLine(int start, int end) {
+        pos = start;
+        lineEnd = end;
+        if (lineEnd > pos && buf.get(lineEnd - 1) == '\r') {
+            lineEnd--;
+        }
+        skipWhitespace();
+        if (pos == lineEnd || isHeader()) {
+            return; // blank or header line
+        }
+
+        final int entityId = entity();
+        expectPipe();
+        final ImmutableInstruction.BUYSELL buySell = buySell();
+        expectPipe();
+        decimal();
+        final long fxUnscaled = decimalUnscaled;
+        final int fxScale = decimalScale;
+        final BigDecimal fxOverflow = decimalOverflow;
+        expectPipe();
+        final ISO4217.Currency currency = currency();
+        expectPipe();
+        final int instructionDay = date();
+        expectPipe();
+        final int settlementDay = date();
+        expectPipe();
+        final int units = units();
+        expectPipe();
+        decimal();
+        skipWhitespace();
+        if (pos != lineEnd) {
+            throw malformed("unexpected data after price");
+        }
+
+        if (fxOverflow == null && decimalOverflow == null) {
+            into.append(entityId, buySell, currency, instructionDay, settlementDay, units,
+                    decimalUnscaled, decimalScale, fxUnscaled, fxScale);
+        } else {
+            // too many digits for a scaled long, rare enough to go the long way round
+            into.append(entityId, buySell, currency, instructionDay, settlementDay, units,
+                    decimalOverflow != null ? decimalOverflow : BigDecimal.valueOf(decimalUnscaled, decimalScale),
+                    fxOverflow != null ? fxOverflow : BigDecimal.valueOf(fxUnscaled, fxScale));
+        }
+    }
+
+    private int entity() {
+        final int start = pos;
+        final int end = fieldEnd();
+        if (end == start) {
+            throw malformed("missing entity");
+        }
+        pos = end;
+        return entities.intern(buf, start, end);
+    }
+
+    private ImmutableInstruction.BUYSELL buySell() {
+        final byte b = next();
+        switch (b) {
+            case 'B': return ImmutableInstruction.BUYSELL.B;
+            case 'S': return ImmutableInstruction.BUYSELL.S;
+            default: throw malformed("Buy/Sell must be B or S");
+        }
+    }
+
+    private ISO4217.Currency currency() {
+        final int start = pos;
+        if (fieldEnd() - start != 3) {
+            throw malformed("currency must be a 3 letter code");
+        }
+        final ISO4217.Currency currency = ISO4217.Currency.fromAlpha(buf.get(start), buf.get(start + 1), buf.get(start + 2));
+        if (currency == null) {
+            throw malformed("unknown currency");
+        }
+        pos = start + 3;
+        return currency;
+    }
+
+    /**
+     * Parses a date of the form "01 Jan 2016"
+     * @return int epoch day
+     */
+    private int date() {
+        final int day = digits(2);
+        if (next() != ' ') {
+            throw malformed("date must be dd Mon yyyy");
+        }
+        final int month = month(next(), next(), next());
+        if (next() != ' ') {
+            throw malformed("date must be dd Mon yyyy");
+        }
+        final int year = digits(4);
+        final boolean leap = (year & 3) == 0 && (year % 100 != 0 || year % 400 == 0);
+        final int daysInMonth = month == 12 ? 31 : DAYS_BEFORE_MONTH[month] - DAYS_BEFORE_MONTH[month - 1] + (leap && month == 2 ? 1 : 0);
+        if (day < 1 || day > daysInMonth) {
+            throw malformed("no such day in month");
+        }
+        return epochDay(year, month, day);
+    }
+
+    private int month(byte a, byte b, byte c) {
+        switch ((a << 16) | (b << 8) | c) {
+            case ('J' << 16) | ('a' << 8) | 'n': return 1;
+            case ('F' << 16) | ('e' << 8) | 'b': return 2;
+            case ('M' << 16) | ('a' << 8) | 'r': return 3;
+            case ('A' << 16) | ('p' << 8) | 'r': return 4;
+            case ('M' << 16) | ('a' << 8) | 'y': return 5;
+            case ('J' << 16) | ('u' << 8) | 'n': return 6;
+            case ('J' << 16) | ('u' << 8) | 'l': return 7;
+            case ('A' << 16) | ('u' << 8) | 'g': return 8;
+            case ('S' << 16) | ('e' << 8) | 'p': return 9;
+            case ('O' << 16) | ('c' << 8) | 't': return 10;
+            case ('N' << 16) | ('o' << 8) | 'v': return 11;
+            case ('D' << 16) | ('e' << 8) | 'c': return 12;
+            default: throw malformed("unknown month");
+        }
+    }
+
+    /**
+     * Days since 1970-01-01, as LocalDate.toEpochDay() but without creating a LocalDate
+     */
+    static int epochDay(int year, int month, int day) {
+        final int y = year - 1;
+        int days = 365 * y + y / 4 - y / 100 + y / 400 // days in the years before this one
+                + DAYS_BEFORE_MONTH[month - 1] + day - 1;
+        if (month > 2 && (year & 3) == 0 && (year % 100 != 0 || year % 400 == 0)) {
+            days++;
+        }
+        return days - 719_162; // days from 0001-01-01 to 1970-01-01
+    }
+
+    private int units() {
+        final int start = pos;
+        long units = 0;
+        while (pos < lineEnd && isDigit(buf.get(pos))) {
+            units = units * 10 + (buf.get(pos++) - '0');
+            if (units > Integer.MAX_VALUE) {
+                throw malformed("units too large");
+            }
+        }
+        if (pos == start) {
+            throw malformed("units must be a whole number");
+        }
+        return (int) units;
+    }
+
+    /**
+     * Parses a decimal such as 100.25 into decimalUnscaled and decimalScale, or decimalOverflow if the
+     * digits don't fit in a long
+     */
+    private void decimal() {
+        final int start = pos;
+        final boolean negative = pos < lineEnd && buf.get(pos) == '-';
+        if (negative) {
+            pos++;
+        }
+        long unscaled = 0;
+        int scale = 0;
+        boolean point = false;
+        boolean digits = false;
+        boolean overflow = false;
+        while (pos < lineEnd) {
+            final byte b = buf.get(pos);
+            if (isDigit(b)) {
+                digits = true;
+                if (!overflow) {
+                    if (unscaled > (Long.MAX_VALUE - 9) / 10) {
+                        overflow = true;
+                    } else {
+                        unscaled = unscaled * 10 + (b - '0');
+                    }
+                }
+                if (point) {
+                    scale++;
+                }
+            } else if (b == '.' && !point) {
+                point = true;
+            } else {
+                break;
+            }
+            pos++;
+        }
+        if (!digits) {
+            throw malformed("expected a number");
+        }
+        if (overflow) {
+            decimalOverflow = new BigDecimal(new String(bytes(start, pos), StandardCharsets.US_ASCII));
+        } else {
+            decimalOverflow = null;
+            decimalUnscaled = negative ? -unscaled : unscaled;
+            decimalScale = scale;
+        }
+    }
+
+    private int digits(int count) {
+        int value = 0;
+        for (int i = 0; i < count; i++) {
+            final byte b = next();
+            if (!isDigit(b)) {
+                throw malformed("expected a digit");
+            }
+            value = value * 10 + (b - '0');
+        }
+        return value;
+    }
+
+    private void expectPipe() {
+        skipWhitespace();
+        if (pos >= lineEnd || buf.get(pos) != PIPE) {
+            throw malformed("expected '|'");
+        }
+        pos++;
+        skipWhitespace();
+    }
+
+    private byte next() {
+        if (pos >= lineEnd) {
+            throw malformed("line ended early");
+        }
+        return buf.get(pos++);
+    }
+
+    /**
+     * @return Index after the last non-whitespace byte of the field starting at pos
+     */
+    private int fieldEnd() {
+        int end = pos;
+        while (end < lineEnd && buf.get(end) != PIPE) {
+            end++;
+        }
+        while (end > pos && isWhitespace(buf.get(end - 1))) {
+            end--;
+        }
+        return end;
+    }
+
+    private void skipWhitespace() {
+        while (pos < lineEnd && isWhitespace(buf.get(pos))) {
+            pos++;
+        }
+    }
+
+    /**
+     * @return true if the line from pos starts with the header's first two fields, pos unchanged
+     */
+    private boolean isHeader() {
+        final int start = pos;
+        try {
+            if (!startsWith(HEADER_ENTITY)) {
+                return false;
+            }
+            pos += HEADER_ENTITY.length;
+            skipWhitespace();
+            if (pos == lineEnd || buf.get(pos) != PIPE) {
+                return false;
+            }
+            pos++;
+            skipWhitespace();
+            if (!startsWith(HEADER_SIDE)) {
+                return false;
+            }
+            pos += HEADER_SIDE.length;
+            skipWhitespace();
+            return pos == lineEnd || buf.get(pos) == PIPE;
+        } finally {
+            pos = start;
+        }
+    }
+
+    private boolean startsWith(byte[] prefix) {
+        if (lineEnd - pos < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (buf.get(pos + i) != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private byte[] bytes(int start, int end) {
+        final byte[] bytes = new byte[end - start];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buf.get(start + i);
+        }
+        return bytes;
+    }
+
+    private IllegalArgumentException malformed(String reason) {
+        return new IllegalArgumentException("Malformed instruction at byte " + (baseOffset + pos) + ": " + reason);
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t';
+    }
+}
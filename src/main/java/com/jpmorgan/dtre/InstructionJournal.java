@@ -0,0 +1,426 @@
+package com.jpmorgan.dtre;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of instructions, so the instructions appended during the day survive a crash.
+ *
+ * The journal is a directory of fixed-size segment files (journal-0000000000.seg, journal-0000000001.seg...),
+ * each memory-mapped and filled in order. Appending copies a record into the mapped segment, no system call,
+ * so a record is safe from a crash of this process as soon as append() returns. It is safe from a crash of
+ * the machine once forced to disk, which happens every syncEvery records or syncEveryMillis, whichever comes
+ * first, on sync(), when a segment fills and on close(). The time is checked as records are appended and by a
+ * background timer, so the last records before appends stop are forced within syncEveryMillis too.
+ *
+ * Segments start with MAGIC and VERSION, then hold frames of:
+ *   length (int, of type and payload), type (byte), payload, CRC32 of type and payload (int)
+ * The length is written last, so unwritten space reads as a zero length. Frame types:
+ * - ENTITY: entity id (int) and its symbol, written before the first instruction of that entity in each run
+ *   because ids are only stable within one run
+ * - INSTRUCTION: a fixed record (see InstructionColumns.putRecord()), then any decimals too wide for a scaled
+ *   long as count (byte) and column (byte), scale (int), length (int) and unscaled bytes for each
+ * - REFERENCE: instruction id (long) and the client reference (UTF-8) it was accepted under, written after
+ *   the instruction, so the DedupIndex can be rebuilt from recoveredReferences()
+ *
+ * Opening a journal recovers it: every whole frame is replayed into recovered(), and the first torn or
+ * corrupt frame, and everything after it (including any later segments), is dropped so appends carry on
+ * from the last good record.
+ */
+final class InstructionJournal implements InstructionListener, Closeable {
+
+    /** System property naming the journal directory, no journal if unset */
+    final static String JOURNAL_PROPERTY = "dtre.journal";
+    /** System property setting the number of records between forces to disk */
+    final static String SYNC_EVERY_PROPERTY = "dtre.journal.syncEvery";
+    /** System property setting the most milliseconds between forces to disk */
+    final static String SYNC_MILLIS_PROPERTY = "dtre.journal.syncMillis";
+
+    final static int MAGIC = 0x4a525444; // "DTRJ" little-endian
+    final static short VERSION = 2;
+    final static int SEGMENT_HEADER_BYTES = 8;
+    final static int DEFAULT_SEGMENT_BYTES = 64 << 20;
+
+    private final static byte ENTITY = 1;
+    private final static byte INSTRUCTION = 2;
+    private final static byte REFERENCE = 3;
+    private final static int FRAME_OVERHEAD = Integer.BYTES + 1 + Integer.BYTES;
+
+    /** One daemon thread forcing every open journal to disk on time, created with the first journal */
+    private static final class Timer {
+        private final static ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread t = new Thread(r, "dtre-journal-sync");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final int syncEvery;
+    private final long syncEveryNanos;
+
+    private final InstructionColumns recovered = new InstructionColumns();
+    private final Map<String, Long> recoveredReferences = new LinkedHashMap<>();
+    private final InstructionColumns scratch = new InstructionColumns(1);
+    private final BitSet entitiesWritten = new BitSet();
+    private final CRC32 crc = new CRC32();
+
+    private FileChannel channel;
+    private MappedByteBuffer segment;
+    private int segmentNumber;
+    private int unsynced;
+    private long lastSync = System.nanoTime();
+    private final ScheduledFuture<?> timedSync; // null if syncEveryMillis isn't positive
+
+    /**
+     * Opens the journal with syncEvery and syncEveryMillis from -Ddtre.journal.syncEvery (default 1024)
+     * and -Ddtre.journal.syncMillis (default 1000)
+     * @param directory Journal directory, created if need be
+     * @throws IOException if the journal can't be read or written
+     */
+    InstructionJournal(Path directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_BYTES, Integer.getInteger(SYNC_EVERY_PROPERTY, 1024),
+                Long.getLong(SYNC_MILLIS_PROPERTY, 1000L));
+    }
+
+    /**
+     * Opens the journal, recovering everything it holds into recovered()
+     * @param directory Journal directory, created if need be
+     * @param segmentBytes Size of each segment file
+     * @param syncEvery Records appended between forces to disk
+     * @param syncEveryMillis Most milliseconds between forces to disk, checked as records are appended
+     * @throws IOException if the journal can't be read or written
+     */
+    InstructionJournal(Path directory, int segmentBytes, int syncEvery, long syncEveryMillis) throws IOException {
+        if (segmentBytes < SEGMENT_HEADER_BYTES + FRAME_OVERHEAD + InstructionColumns.RECORD_BYTES * 2 || syncEvery < 1) {
+            throw new IllegalArgumentException("segmentBytes too small or syncEvery not positive");
+        }
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.syncEvery = syncEvery;
+        this.syncEveryNanos = TimeUnit.MILLISECONDS.toNanos(syncEveryMillis);
+        Files.createDirectories(directory);
+        recover();
+        timedSync = syncEveryMillis > 0 ? Timer.executor.scheduleWithFixedDelay(
+                this::syncIfDue, syncEveryMillis, syncEveryMillis, TimeUnit.MILLISECONDS) : null;
+    }
+
+    /**
+     * @return InstructionColumns holding every instruction recovered when the journal was opened, in order
+     */
+    InstructionColumns recovered() {
+        return recovered;
+    }
+
+    /**
+     * @return Map of instruction id by client reference, for every reference recovered when the journal was opened
+     */
+    Map<String, Long> recoveredReferences() {
+        return recoveredReferences;
+    }
+
+    @Override
+    public void onInstruction(ImmutableInstruction in) {
+        append(in);
+    }
+
+    /**
+     * Appends an instruction to the journal
+     * @param in ImmutableInstruction to journal
+     */
+    synchronized void append(ImmutableInstruction in) {
+        if (segment == null) {
+            throw new IllegalStateException("Journal is closed");
+        }
+        final int entityId = in.getEntityId();
+        if (!entitiesWritten.get(entityId)) {
+            final byte[] symbol = in.getEntitySymbol().getBytes(StandardCharsets.UTF_8);
+            final int start = beginFrame(ENTITY, Integer.BYTES + symbol.length);
+            segment.putInt(entityId).put(symbol);
+            endFrame(start);
+            entitiesWritten.set(entityId);
+        }
+
+        scratch.clear();
+        scratch.append(in);
+        final InstructionColumns.DecimalColumn[] decimals = decimalColumns(scratch);
+        int payload = InstructionColumns.RECORD_BYTES + 1;
+        int overflowCount = 0;
+        for (final InstructionColumns.DecimalColumn column : decimals) {
+            if (!column.isScaledLong(0)) {
+                payload += 10 + column.get(0).unscaledValue().bitLength() / 8;
+                overflowCount++;
+            }
+        }
+        final int start = beginFrame(INSTRUCTION, payload);
+        scratch.putRecord(0, segment);
+        segment.put((byte) overflowCount);
+        for (int c = 0; c < decimals.length; c++) {
+            if (!decimals[c].isScaledLong(0)) {
+                final BigDecimal value = decimals[c].get(0);
+                final byte[] unscaled = value.unscaledValue().toByteArray();
+                segment.put((byte) c).putInt(value.scale()).putInt(unscaled.length).put(unscaled);
+            }
+        }
+        endFrame(start);
+        countRecord();
+    }
+
+    /**
+     * Records the client reference an instruction already journaled was accepted under
+     * @param id Id of the instruction, see ImmutableInstruction.getId()
+     * @param reference Client reference
+     */
+    synchronized void appendReference(long id, String reference) {
+        if (segment == null) {
+            throw new IllegalStateException("Journal is closed");
+        }
+        final byte[] bytes = reference.getBytes(StandardCharsets.UTF_8);
+        final int start = beginFrame(REFERENCE, Long.BYTES + bytes.length);
+        segment.putLong(id).put(bytes);
+        endFrame(start);
+        countRecord();
+    }
+
+    /**
+     * Counts a record appended, forcing to disk if it's time
+     */
+    private void countRecord() {
+        if (++unsynced >= syncEvery || System.nanoTime() - lastSync >= syncEveryNanos) {
+            sync();
+        }
+    }
+
+    /**
+     * @return Records appended since the journal was last forced to disk
+     */
+    synchronized int unsyncedRecords() {
+        return unsynced;
+    }
+
+    /**
+     * Forces to disk if anything appended has waited syncEveryMillis, run by the timer
+     */
+    private synchronized void syncIfDue() {
+        if (unsynced > 0 && System.nanoTime() - lastSync >= syncEveryNanos) {
+            sync();
+        }
+    }
+
+    /**
+     * Forces everything appended so far to disk
+     */
+    synchronized void sync() {
+        if (segment != null && unsynced > 0) {
+            segment.force();
+        }
+        unsynced = 0;
+        lastSync = System.nanoTime();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (timedSync != null) {
+            timedSync.cancel(false);
+        }
+        if (segment != null) {
+            sync();
+            segment = null;
+            channel.close();
+        }
+    }
+
+    /**
+     * Starts a frame of payload bytes at the segment's position, moving to a new segment if it won't fit
+     * @return int position of the frame, for endFrame()
+     */
+    private int beginFrame(byte type, int payload) {
+        final int frame = FRAME_OVERHEAD + payload;
+        if (frame > segmentBytes - SEGMENT_HEADER_BYTES) {
+            throw new IllegalArgumentException("Record of " + frame + " bytes is larger than a journal segment");
+        }
+        if (segment.remaining() < frame) {
+            try {
+                nextSegment();
+            } catch (IOException e) {
+                throw new UncheckedIOException("Unable to start journal segment " + (segmentNumber + 1), e);
+            }
+        }
+        final int start = segment.position();
+        segment.position(start + Integer.BYTES); // length is written last, by endFrame()
+        segment.put(type);
+        return start;
+    }
+
+    private void endFrame(int start) {
+        final int end = segment.position();
+        final ByteBuffer body = segment.duplicate();
+        body.position(start + Integer.BYTES).limit(end);
+        crc.reset();
+        crc.update(body);
+        segment.putInt((int) crc.getValue());
+        segment.putInt(start, end - start - Integer.BYTES);
+    }
+
+    private void nextSegment() throws IOException {
+        segment.force();
+        channel.close();
+        openSegment(segmentNumber + 1, true);
+    }
+
+    private void openSegment(int number, boolean create) throws IOException {
+        segmentNumber = number;
+        channel = FileChannel.open(segmentPath(number), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+        segment.order(ByteOrder.LITTLE_ENDIAN);
+        if (create) {
+            segment.putInt(MAGIC).putShort(VERSION).putShort((short) 0);
+        } else {
+            segment.position(SEGMENT_HEADER_BYTES);
+        }
+    }
+
+    private Path segmentPath(int number) {
+        return directory.resolve(String.format("journal-%010d.seg", number));
+    }
+
+    /**
+     * Replays every segment into recovered, zeroes any torn tail and leaves the last segment open for appends
+     */
+    private void recover() throws IOException {
+        final List<Integer> numbers = segmentNumbers();
+        if (numbers.isEmpty()) {
+            openSegment(0, true);
+            return;
+        }
+        int[] entityIds = new int[0];
+        for (int n = 0; n < numbers.size(); n++) {
+            openSegment(numbers.get(n), false);
+            if (segment.getInt(0) != MAGIC || segment.getShort(4) != VERSION) {
+                throw new IllegalArgumentException("Unable to read journal segment " + segmentPath(segmentNumber)
+                        + ": not a journal of version " + VERSION);
+            }
+            int pos = SEGMENT_HEADER_BYTES;
+            boolean torn = false;
+            while (pos + FRAME_OVERHEAD <= segmentBytes) {
+                final int length = segment.getInt(pos);
+                if (length == 0) {
+                    break; // end of what was written to this segment
+                }
+                if (length < 1 || length > segmentBytes - pos - FRAME_OVERHEAD + 1 || !crcMatches(pos, length)) {
+                    torn = true;
+                    break;
+                }
+                final ByteBuffer frame = segment.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+                frame.position(pos + Integer.BYTES + 1).limit(pos + Integer.BYTES + length);
+                final byte type = segment.get(pos + Integer.BYTES);
+                if (type == ENTITY) {
+                    final int id = frame.getInt();
+                    if (id >= entityIds.length) {
+                        entityIds = Arrays.copyOf(entityIds, Math.max(id + 1, entityIds.length * 2));
+                    }
+                    entityIds[id] = EntityRegistry.getInstance().intern(frame, frame.position(), frame.limit());
+                } else if (type == INSTRUCTION) {
+                    replayInstruction(frame, entityIds);
+                } else if (type == REFERENCE) {
+                    final long id = frame.getLong();
+                    final byte[] reference = new byte[frame.remaining()];
+                    frame.get(reference);
+                    recoveredReferences.putIfAbsent(new String(reference, StandardCharsets.UTF_8), id);
+                } else {
+                    torn = true;
+                    break;
+                }
+                pos += length + FRAME_OVERHEAD - 1;
+            }
+            segment.position(pos);
+            if (torn) {
+                // a torn frame ends the journal: clear the rest of this segment and drop any later ones
+                final ByteBuffer tail = segment.duplicate();
+                tail.position(pos);
+                final byte[] zeros = new byte[Math.min(tail.remaining(), 1 << 16)];
+                while (tail.hasRemaining()) {
+                    tail.put(zeros, 0, Math.min(zeros.length, tail.remaining()));
+                }
+                segment.force();
+                for (int later = n + 1; later < numbers.size(); later++) {
+                    Files.delete(segmentPath(numbers.get(later)));
+                }
+                return;
+            }
+            if (n == numbers.size() - 1) {
+                return; // carry on appending to the last segment
+            }
+            channel.close();
+        }
+    }
+
+    private boolean crcMatches(int pos, int length) {
+        final ByteBuffer body = segment.duplicate();
+        body.position(pos + Integer.BYTES).limit(pos + Integer.BYTES + length);
+        crc.reset();
+        crc.update(body);
+        return (int) crc.getValue() == segment.getInt(pos + Integer.BYTES + length);
+    }
+
+    private void replayInstruction(ByteBuffer frame, int[] entityIds) {
+        final int row = recovered.appendRecord(frame, entityIds);
+        final InstructionColumns.DecimalColumn[] decimals = decimalColumns(recovered);
+        final int overflowCount = frame.get();
+        for (int i = 0; i < overflowCount; i++) {
+            final int column = frame.get();
+            final int scale = frame.getInt();
+            final byte[] unscaled = new byte[frame.getInt()];
+            frame.get(unscaled);
+            decimals[column].restore(row, new BigDecimal(new BigInteger(unscaled), scale));
+        }
+    }
+
+    /**
+     * @return Numbers of the segment files in the directory, in order
+     */
+    private List<Integer> segmentNumbers() throws IOException {
+        final List<Integer> numbers = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "journal-*.seg")) {
+            for (final Path file : files) {
+                final String name = file.getFileName().toString();
+                numbers.add(Integer.parseInt(name.substring("journal-".length(), name.length() - ".seg".length())));
+            }
+        }
+        Collections.sort(numbers);
+        return numbers;
+    }
+
+    /**
+     * The decimal columns in the order their index is written for overflow values
+     */
+    private static InstructionColumns.DecimalColumn[] decimalColumns(InstructionColumns columns) {
+        return new InstructionColumns.DecimalColumn[]{columns.pricePerUnit(), columns.agreedFx(), columns.amountOfTradeUSD()};
+    }
+}
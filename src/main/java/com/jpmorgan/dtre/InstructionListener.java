@@ -0,0 +1,14 @@
+package com.jpmorgan.dtre;
+
+/**
+ * Told about every instruction appended to a DataSource, so aggregates can be kept up to date
+ * as instructions arrive rather than recomputed from all the rows.
+ */
+interface InstructionListener {
+
+    /**
+     * Called once per instruction, in the order they were appended
+     * @param in ImmutableInstruction just appended
+     */
+    void onInstruction(ImmutableInstruction in);
+}
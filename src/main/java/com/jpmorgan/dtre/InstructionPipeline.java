@@ -0,0 +1,390 @@
+package com.jpmorgan.dtre;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+/**
+ * Streams an instruction file through a pipeline of Flow stages, each on its own thread, so reading, parsing
+ * and aggregating overlap and only a bounded part of the file is in memory at any time:
+ *
+ *   read:      line-aligned chunks of the file, read only as they are asked for
+ *   parse:     each line parsed and validated, settlement adjusted to a working day (see InstructionColumns),
+ *              into a batch of columns; a malformed line is rejected and counted, the rest of the file goes on
+ *   build:     (load only) the batch given its ids, in file order, and built as ImmutableInstructions
+ *   aggregate: totals per day and per entity (aggregate), or appends to a DataSource and its listeners (load)
+ *
+ * Each stage buffers at most capacity batches and asks the stage before it for more in batches as it takes
+ * them (see FlowStage), so a slow stage holds back the reader rather than filling the heap.
+ * aggregate() keeps no rows at all: memory is about chunkSize * capacity per stage whatever the file size.
+ *
+ * Rows keep their file order, as InstructionFileParser.parse() would give them.
+ */
+final class InstructionPipeline {
+
+    final static int DEFAULT_CHUNK_SIZE = 1 << 20;
+    final static int DEFAULT_CAPACITY = 4;
+    /** Bytes a line is allowed to be, a longer one fails the pipeline */
+    private final static int MAX_LINE = 1 << 24;
+
+    private final int chunkSize;
+    private final int capacity;
+    private final AtomicLong rows = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicReference<String> firstRejection = new AtomicReference<>();
+    private final AtomicLong chunksRead = new AtomicLong();
+    private final AtomicLong chunksParsed = new AtomicLong();
+    private final AtomicInteger maxOutstanding = new AtomicInteger();
+
+    InstructionPipeline() {
+        this(DEFAULT_CHUNK_SIZE, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param chunkSize Bytes of the file read at a time, a chunk is a batch of whole lines
+     * @param capacity Batches each stage buffers at most
+     */
+    InstructionPipeline(int chunkSize, int capacity) {
+        if (chunkSize < 1 || capacity < 1) {
+            throw new IllegalArgumentException("chunkSize and capacity must be positive: " + chunkSize + ", " + capacity);
+        }
+        this.chunkSize = chunkSize;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Aggregates every instruction in the file into totals, without keeping the instructions
+     * @param file Pipe-delimited instruction file
+     * @return DailyReport of every valid line, scaled long totals, once the file has been read
+     */
+    CompletableFuture<DailyReport> aggregate(Path file) {
+        final DailyReport report = new DailyReport(AggregationMode.SCALED_LONG);
+        final Pipeline pipeline = new Pipeline(3);
+        final FlowStage<Chunk, InstructionColumns> parse = pipeline.stage(this::parse);
+        final FlowStage<InstructionColumns, Object> aggregate = pipeline.stage(columns -> {
+            for (int row = 0; row < columns.size(); row++) {
+                report.add(columns, row);
+            }
+            return null;
+        });
+        pipeline.read(file).subscribe(parse);
+        parse.subscribe(aggregate);
+        return pipeline.run(aggregate).thenApply(done -> report);
+    }
+
+    /**
+     * Appends every instruction in the file to a DataSource, whose listeners (e.g. its DailyReport) see each
+     * @param file Pipe-delimited instruction file
+     * @param ds DataSource to append to
+     * @return Number of instructions appended, once the file has been read
+     */
+    CompletableFuture<Long> load(Path file, DataSource ds) {
+        final Pipeline pipeline = new Pipeline(4);
+        final FlowStage<Chunk, InstructionColumns> parse = pipeline.stage(this::parse);
+        final FlowStage<InstructionColumns, List<ImmutableInstruction>> build = pipeline.stage(InstructionPipeline::build);
+        final FlowStage<List<ImmutableInstruction>, Object> append = pipeline.stage(batch -> {
+            batch.forEach(ds::append);
+            return null;
+        });
+        pipeline.read(file).subscribe(parse);
+        parse.subscribe(build);
+        build.subscribe(append);
+        return pipeline.run(append).thenApply(done -> rows.get());
+    }
+
+    /**
+     * @return Instructions parsed so far
+     */
+    long getRows() {
+        return rows.get();
+    }
+
+    /**
+     * @return Malformed lines skipped so far
+     */
+    long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * @return Why the first malformed line was skipped, with its byte position in the file, null if none has been
+     */
+    String getFirstRejection() {
+        return firstRejection.get();
+    }
+
+    /**
+     * @return Most chunks read and not yet parsed at any one time: at most capacity, plus the one being parsed
+     */
+    int getMaxOutstandingChunks() {
+        return maxOutstanding.get();
+    }
+
+    /**
+     * Parse stage: one chunk of whole lines into columns, a malformed line rejected on its own
+     */
+    private InstructionColumns parse(Chunk chunk) {
+        chunksParsed.incrementAndGet();
+        final InstructionColumns columns = InstructionColumns.unnumbered(Math.max(16, chunk.length / 64));
+        final InstructionFileParser parser = new InstructionFileParser(columns);
+        final ByteBuffer buffer = ByteBuffer.wrap(chunk.bytes, 0, chunk.length);
+        int lineStart = 0;
+        while (lineStart < chunk.length) {
+            int eol = lineStart;
+            while (eol < chunk.length && chunk.bytes[eol] != '\n') {
+                eol++;
+            }
+            try {
+                // the parser reports buffer indexes, lineStart included, so the chunk's offset makes them file positions
+                parser.parse(buffer, lineStart, eol, chunk.offset);
+            } catch (IllegalArgumentException e) {
+                rejected.incrementAndGet();
+                firstRejection.compareAndSet(null, e.getMessage());
+            }
+            lineStart = eol + 1;
+        }
+        rows.addAndGet(columns.size());
+        return columns;
+    }
+
+    /**
+     * Build stage: a batch of columns as the ImmutableInstructions the DataSource takes
+     */
+    private static List<ImmutableInstruction> build(InstructionColumns columns) {
+        columns.number();
+        final List<ImmutableInstruction> batch = new ArrayList<>(columns.size());
+        for (int row = 0; row < columns.size(); row++) {
+            batch.add(columns.get(row));
+        }
+        return batch;
+    }
+
+    /**
+     * Whole lines of the file, and where they start in it
+     */
+    static final class Chunk {
+        final byte[] bytes;
+        final int length;
+        final long offset;
+
+        Chunk(byte[] bytes, int length, long offset) {
+            this.bytes = bytes;
+            this.length = length;
+            this.offset = offset;
+        }
+    }
+
+    /**
+     * The stages of one run and the threads they run on, one per stage, shut down when the run ends
+     */
+    private final class Pipeline {
+        private final ExecutorService executor;
+
+        Pipeline(int stages) {
+            final AtomicInteger count = new AtomicInteger();
+            executor = Executors.newFixedThreadPool(stages, r -> {
+                final Thread t = new Thread(r, "dtre-pipeline-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+        }
+
+        <T, R> FlowStage<T, R> stage(Function<? super T, ? extends R> function) {
+            return new FlowStage<>(function, executor, capacity);
+        }
+
+        Flow.Publisher<Chunk> read(Path file) {
+            return subscriber -> subscriber.onSubscribe(new ChunkReader(file, subscriber, executor));
+        }
+
+        /**
+         * Subscribes to the last stage, which publishes nothing, and completes when it does
+         */
+        CompletableFuture<Void> run(Flow.Publisher<?> last) {
+            final CompletableFuture<Void> done = new CompletableFuture<>();
+            last.subscribe(new Flow.Subscriber<Object>() {
+                @Override
+                public void onSubscribe(Flow.Subscription subscription) {
+                    subscription.request(Long.MAX_VALUE);
+                }
+
+                @Override
+                public void onNext(Object item) {
+                }
+
+                @Override
+                public void onError(Throwable throwable) {
+                    done.completeExceptionally(throwable);
+                }
+
+                @Override
+                public void onComplete() {
+                    done.complete(null);
+                }
+            });
+            done.whenComplete((v, e) -> executor.shutdown());
+            return done;
+        }
+    }
+
+    /**
+     * Publishes the file a chunk at a time as the subscriber asks, reading on the executor. A chunk ends at
+     * the last line break read, the partial line after it starts the next chunk.
+     */
+    private final class ChunkReader implements Flow.Subscription {
+        private final Path file;
+        private final Flow.Subscriber<? super Chunk> subscriber;
+        private final ExecutorService executor;
+        private final AtomicLong requested = new AtomicLong();
+        private final AtomicInteger wip = new AtomicInteger();
+        private volatile boolean cancelled;
+        // read loop only
+        private FileChannel channel;
+        private byte[] carry = new byte[0];
+        private int carried;
+        private long offset;
+
+        ChunkReader(Path file, Flow.Subscriber<? super Chunk> subscriber, ExecutorService executor) {
+            this.file = file;
+            this.subscriber = subscriber;
+            this.executor = executor;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                cancel();
+                subscriber.onError(new IllegalArgumentException("Non-positive request: " + n));
+                return;
+            }
+            requested.accumulateAndGet(n, (a, b) -> a + b < 0 ? Long.MAX_VALUE : a + b);
+            if (wip.getAndIncrement() == 0) {
+                executor.execute(this::readLoop);
+            }
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            if (wip.getAndIncrement() == 0) {
+                // idle, so nothing else will see the flag: run the loop once more to close the channel
+                try {
+                    executor.execute(this::readLoop);
+                } catch (RejectedExecutionException e) {
+                    closeQuietly(); // no loop can start while wip is held
+                }
+            }
+        }
+
+        private void readLoop() {
+            int missed = 1;
+            do {
+                try {
+                    while (!cancelled && requested.get() > 0) {
+                        final Chunk chunk = next();
+                        if (chunk == null) {
+                            close();
+                            subscriber.onComplete();
+                            return;
+                        }
+                        requested.decrementAndGet();
+                        final long outstanding = chunksRead.incrementAndGet() - chunksParsed.get();
+                        maxOutstanding.accumulateAndGet((int) outstanding, Math::max);
+                        subscriber.onNext(chunk);
+                    }
+                    if (cancelled) {
+                        closeQuietly();
+                        return;
+                    }
+                } catch (IOException | RuntimeException e) {
+                    cancelled = true;
+                    closeQuietly();
+                    subscriber.onError(e instanceof IOException
+                            ? new UncheckedIOException("Can't read " + file, (IOException) e) : e);
+                    return;
+                }
+                missed = wip.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        /**
+         * @return The next chunk of whole lines, the last line whole or not, null at the end of the file
+         */
+        private Chunk next() throws IOException {
+            if (channel == null) {
+                channel = FileChannel.open(file, StandardOpenOption.READ);
+            }
+            byte[] bytes = new byte[Math.max(chunkSize, carried + chunkSize / 2)];
+            System.arraycopy(carry, 0, bytes, 0, carried);
+            int length = carried;
+            final long start = offset;
+            while (true) {
+                final int read = channel.read(ByteBuffer.wrap(bytes, length, bytes.length - length));
+                if (read < 0) {
+                    carried = 0;
+                    offset += length;
+                    return length == 0 ? null : new Chunk(bytes, length, start);
+                }
+                length += read;
+                if (length < bytes.length) {
+                    continue;
+                }
+                final int end = lastLineEnd(bytes, length);
+                if (end > 0) {
+                    carried = length - end;
+                    if (carry.length < carried) {
+                        carry = new byte[Math.max(carried, chunkSize)];
+                    }
+                    System.arraycopy(bytes, end, carry, 0, carried);
+                    offset += end;
+                    return new Chunk(bytes, end, start);
+                }
+                if (bytes.length >= MAX_LINE) {
+                    throw new IllegalArgumentException("Line longer than " + MAX_LINE + " bytes at byte " + start);
+                }
+                bytes = Arrays.copyOf(bytes, bytes.length * 2); // no line break yet, one long line
+            }
+        }
+
+        private void close() throws IOException {
+            if (channel != null) {
+                channel.close();
+                channel = null;
+            }
+        }
+
+        /**
+         * Closes the channel once nothing more will be read or signalled
+         */
+        private void closeQuietly() {
+            try {
+                close();
+            } catch (IOException ignored) {
+                // cancelled or already failing, nobody to tell
+            }
+        }
+    }
+
+    private static int lastLineEnd(byte[] bytes, int length) {
+        for (int i = length - 1; i >= 0; i--) {
+            if (bytes[i] == '\n') {
+                return i + 1;
+            }
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,104 @@
+package com.jpmorgan.dtre;
+
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * Bounded multi-producer, single-consumer ring buffer of instructions, lock-free for producers.
+ *
+ * Producers claim a sequence number by compare-and-set on the tail (failing, rather than waiting, when the
+ * ring is full) and then publish the instruction into the slot of that sequence with an ordered write.
+ * The one consumer takes slots in sequence order, stopping at a slot not yet published, clears each one
+ * and moves the head on, which is what frees the slot for the producers' next lap.
+ * A producer that claims a sequence never waits on another producer, and the consumer never takes a lock.
+ *
+ * Capacity is rounded up to a power of two, so a sequence maps to its slot with a mask.
+ */
+final class InstructionRing {
+
+    private final AtomicReferenceArray<ImmutableInstruction> slots;
+    private final int mask;
+
+    private final AtomicLong tail = new AtomicLong(); // next sequence to claim, written by producers
+    private final AtomicLong head = new AtomicLong(); // next sequence to take, written only by the consumer
+
+    /**
+     * @param capacity Least number of instructions held before offer() fails
+     */
+    InstructionRing(int capacity) {
+        if (capacity < 1 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("capacity must be from 1 to 2^30, not " + capacity);
+        }
+        final int size = Integer.highestOneBit(capacity) == capacity ? capacity : Integer.highestOneBit(capacity) << 1;
+        this.slots = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+    }
+
+    /**
+     * @return Number of slots
+     */
+    int capacity() {
+        return slots.length();
+    }
+
+    /**
+     * Publishes an instruction, from any thread
+     * @param in ImmutableInstruction to publish
+     * @return true if published, false if the ring is full
+     */
+    boolean offer(ImmutableInstruction in) {
+        Objects.requireNonNull(in, "in");
+        long sequence;
+        do {
+            sequence = tail.get();
+            if (sequence - head.get() >= slots.length()) {
+                return false;
+            }
+        } while (!tail.compareAndSet(sequence, sequence + 1));
+        slots.lazySet((int) sequence & mask, in);
+        return true;
+    }
+
+    /**
+     * Takes published instructions in sequence order, from the consumer thread only
+     * @param action Given each instruction taken
+     * @param limit Most instructions to take
+     * @return Number taken, 0 if the next sequence isn't published yet
+     */
+    int drain(Consumer<? super ImmutableInstruction> action, int limit) {
+        long sequence = head.get();
+        int taken = 0;
+        while (taken < limit) {
+            final int slot = (int) sequence & mask;
+            final ImmutableInstruction in = slots.get(slot);
+            if (in == null) {
+                break; // empty, or claimed and not yet published
+            }
+            slots.lazySet(slot, null);
+            head.lazySet(++sequence); // after clearing the slot, so a producer seeing the space sees it empty
+            taken++;
+            action.accept(in);
+        }
+        return taken;
+    }
+
+    /**
+     * @return Number of sequences claimed by producers so far
+     */
+    long claimed() {
+        return tail.get();
+    }
+
+    /**
+     * @return Number of instructions claimed and not yet taken
+     */
+    int size() {
+        return (int) Math.max(0L, tail.get() - head.get());
+    }
+
+    boolean isEmpty() {
+        return tail.get() == head.get();
+    }
+}
@@ -0,0 +1,298 @@
+package com.jpmorgan.dtre;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Binary snapshot of an InstructionColumns store, so a restart reloads the rows rather than re-parsing text.
+ *
+ * Layout, little-endian:
+ * - header of HEADER_BYTES: magic "DTRS", version, record size, number of currencies and sides the ordinals
+ *   refer to, entity count, entity table size, row count, overflow count, then CRC32 of everything after it
+ * - entity table: the symbol of each entity id as written (short length, UTF-8 bytes), re-interned on read
+ *   because ids are only stable within one run
+ * - one fixed-width record per row, see InstructionColumns.putRecord()
+ * - overflow: each decimal too wide for a scaled long as row (int), column (byte), scale (int),
+ *   length (int) and the bytes of its unscaled value
+ *
+ * A snapshot is written to a temporary file that is then moved over the target, so a crash mid-write leaves
+ * the previous snapshot in place. Reading maps the file, checks the checksum and then copies the records
+ * straight into the columns: read() into one store of every row, forEach() into a store of STREAM_BLOCK_ROWS
+ * reused for each block, so streaming a snapshot of any size holds only one block in the heap.
+ */
+final class InstructionSnapshot {
+
+    final static int MAGIC = 0x53525444; // "DTRS" little-endian
+    final static short VERSION = 2;
+    final static int HEADER_BYTES = 40;
+
+    /** Largest region mapped at once, kept well under the 2GB limit of a MappedByteBuffer */
+    private final static int MAX_WINDOW = 1 << 30;
+    /** Number of decimal columns, see decimalColumns() */
+    private final static int DECIMAL_COLUMNS = 3;
+    /** Rows decoded at a time by forEach() */
+    private final static int STREAM_BLOCK_ROWS = 1 << 14;
+    /** Size of the buffer records are written through */
+    private final static int WRITE_BUFFER = 1 << 20;
+
+    private InstructionSnapshot() {
+    }
+
+    /**
+     * Writes every row of the store to a snapshot, replacing any file already there
+     * @param columns InstructionColumns to write, unchanged
+     * @param file Snapshot file
+     * @throws IOException if the file can't be written
+     */
+    static void write(InstructionColumns columns, Path file) throws IOException {
+        final Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        final EntityRegistry entities = EntityRegistry.getInstance();
+        final int entityCount = entities.size();
+        final InstructionColumns.DecimalColumn[] decimals = decimalColumns(columns);
+        int overflowCount = 0;
+        for (final InstructionColumns.DecimalColumn column : decimals) {
+            overflowCount += column.overflowRows().size();
+        }
+
+        final CRC32 crc = new CRC32();
+        final ByteBuffer out = ByteBuffer.allocateDirect(WRITE_BUFFER).order(ByteOrder.LITTLE_ENDIAN);
+        int entityBytes = 0;
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            channel.position(HEADER_BYTES);
+
+            for (int id = 0; id < entityCount; id++) {
+                final byte[] symbol = entities.symbol(id).getBytes(StandardCharsets.UTF_8);
+                ensureRoom(out, channel, crc, Short.BYTES + symbol.length);
+                out.putShort((short) symbol.length).put(symbol);
+                entityBytes += Short.BYTES + symbol.length;
+            }
+            for (int row = 0; row < columns.size(); row++) {
+                ensureRoom(out, channel, crc, InstructionColumns.RECORD_BYTES);
+                columns.putRecord(row, out);
+            }
+            for (int c = 0; c < decimals.length; c++) {
+                for (final int row : decimals[c].overflowRows()) {
+                    final BigDecimal value = decimals[c].get(row);
+                    final byte[] unscaled = value.unscaledValue().toByteArray();
+                    ensureRoom(out, channel, crc, 13 + unscaled.length);
+                    out.putInt(row).put((byte) c).putInt(value.scale()).putInt(unscaled.length).put(unscaled);
+                }
+            }
+            drain(out, channel, crc);
+
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC)
+                    .putShort(VERSION)
+                    .putShort((short) InstructionColumns.RECORD_BYTES)
+                    .putShort((short) ISO4217.Currency.values().length)
+                    .putShort((short) ImmutableInstruction.BUYSELL.values().length)
+                    .putInt(entityCount)
+                    .putInt(entityBytes)
+                    .putLong(columns.size())
+                    .putInt(overflowCount)
+                    .putInt((int) crc.getValue())
+                    .putInt(0); // reserved
+            header.flip();
+            while (header.hasRemaining()) {
+                channel.write(header, HEADER_BYTES - header.remaining());
+            }
+            channel.force(true);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Makes room for bytes more in the buffer, writing out what it holds if need be
+     */
+    private static void ensureRoom(ByteBuffer out, FileChannel channel, CRC32 crc, int bytes) throws IOException {
+        if (out.remaining() < bytes) {
+            drain(out, channel, crc);
+            if (out.remaining() < bytes) {
+                throw new IllegalArgumentException("Value of " + bytes + " bytes is too large for a snapshot");
+            }
+        }
+    }
+
+    private static void drain(ByteBuffer out, FileChannel channel, CRC32 crc) throws IOException {
+        out.flip();
+        crc.update(out.duplicate());
+        while (out.hasRemaining()) {
+            channel.write(out);
+        }
+        out.clear();
+    }
+
+    /**
+     * Reads a snapshot back into a new store
+     * @param file Snapshot file written by write()
+     * @return InstructionColumns holding every row of the snapshot, in order
+     * @throws IOException if the file can't be read
+     * @throws IllegalArgumentException if the file isn't a snapshot this version can read, or is corrupt
+     */
+    static InstructionColumns read(Path file) throws IOException {
+        final List<InstructionColumns> read = new ArrayList<>(1);
+        decode(file, Integer.MAX_VALUE, read::add);
+        return read.isEmpty() ? new InstructionColumns() : read.get(0);
+    }
+
+    /**
+     * Reads a snapshot a block of rows at a time, handing each row, in order, to action as it is decoded
+     * @param file Snapshot file written by write()
+     * @param action Given every row of the snapshot, as read() would hold it
+     * @throws IOException if the file can't be read
+     * @throws IllegalArgumentException if the file isn't a snapshot this version can read, or is corrupt
+     */
+    static void forEach(Path file, Consumer<? super ImmutableInstruction> action) throws IOException {
+        decode(file, STREAM_BLOCK_ROWS, block -> block.asList().forEach(action));
+    }
+
+    /**
+     * Checks the snapshot, then decodes its rows into one store of at most blockRows rows, cleared and reused
+     * for each block, handing each full (or last) block to blocks
+     */
+    private static void decode(Path file, int blockRows, Consumer<InstructionColumns> blocks) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            final long size = channel.size();
+            if (size < HEADER_BYTES) {
+                throw corrupt(file, "too short for a header");
+            }
+            final ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            if (header.getInt() != MAGIC) {
+                throw corrupt(file, "not a snapshot");
+            }
+            final short version = header.getShort();
+            if (version != VERSION) {
+                throw corrupt(file, "version " + version + " can't be read, expected " + VERSION);
+            }
+            if (header.getShort() != InstructionColumns.RECORD_BYTES
+                    || header.getShort() != ISO4217.Currency.values().length
+                    || header.getShort() != ImmutableInstruction.BUYSELL.values().length) {
+                throw corrupt(file, "written with a different record layout or set of currencies");
+            }
+            final int entityCount = header.getInt();
+            final int entityBytes = header.getInt();
+            final long rows = header.getLong();
+            final int overflowCount = header.getInt();
+            final int checksum = header.getInt();
+            final long recordsStart = HEADER_BYTES + (long) entityBytes;
+            final long overflowStart = recordsStart + rows * InstructionColumns.RECORD_BYTES;
+            if (entityCount < 0 || entityBytes < 0 || rows < 0 || rows > Integer.MAX_VALUE
+                    || overflowCount < 0 || overflowStart > size || size - overflowStart > MAX_WINDOW) {
+                throw corrupt(file, "header doesn't match the file size");
+            }
+
+            // check everything before decoding anything
+            final List<ByteBuffer> windows = map(channel, HEADER_BYTES, size);
+            final CRC32 crc = new CRC32();
+            for (final ByteBuffer window : windows) {
+                crc.update(window.duplicate());
+            }
+            if ((int) crc.getValue() != checksum) {
+                throw corrupt(file, "checksum mismatch");
+            }
+
+            final ByteBuffer entityTable = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_BYTES, entityBytes)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            final EntityRegistry entities = EntityRegistry.getInstance();
+            final int[] entityIds = new int[entityCount];
+            for (int id = 0; id < entityCount; id++) {
+                final int length = entityTable.getShort();
+                entityIds[id] = entities.intern(entityTable, entityTable.position(), entityTable.position() + length);
+                entityTable.position(entityTable.position() + length);
+            }
+
+            final List<NavigableMap<Integer, BigDecimal>> overflow = readOverflow(file, channel, overflowStart, size,
+                    overflowCount, rows);
+            final InstructionColumns block = new InstructionColumns((int) Math.min(blockRows, rows));
+            final InstructionColumns.DecimalColumn[] decimals = decimalColumns(block);
+            final int windowRecords = MAX_WINDOW / InstructionColumns.RECORD_BYTES;
+            ByteBuffer records = null;
+            for (int first = 0; first < rows; first += block.size()) {
+                final int count = (int) Math.min(blockRows, rows - first);
+                block.clear();
+                for (int row = first; row < first + count; row++) {
+                    if (row % windowRecords == 0) {
+                        records = channel.map(FileChannel.MapMode.READ_ONLY,
+                                recordsStart + (long) row * InstructionColumns.RECORD_BYTES,
+                                Math.min(windowRecords, rows - row) * InstructionColumns.RECORD_BYTES)
+                                .order(ByteOrder.LITTLE_ENDIAN);
+                    }
+                    block.appendRecord(records, entityIds);
+                }
+                for (int c = 0; c < decimals.length; c++) {
+                    for (final Map.Entry<Integer, BigDecimal> value : overflow.get(c).subMap(first, first + count).entrySet()) {
+                        decimals[c].restore(value.getKey() - first, value.getValue());
+                    }
+                }
+                blocks.accept(block);
+            }
+        }
+    }
+
+    /**
+     * Reads the overflow section
+     * @return For each decimal column, the values too wide for a scaled long by row
+     */
+    private static List<NavigableMap<Integer, BigDecimal>> readOverflow(Path file, FileChannel channel, long overflowStart,
+            long size, int overflowCount, long rows) throws IOException {
+        final ByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, overflowStart, size - overflowStart)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        final List<NavigableMap<Integer, BigDecimal>> overflow = new ArrayList<>();
+        for (int c = 0; c < DECIMAL_COLUMNS; c++) {
+            overflow.add(new TreeMap<>());
+        }
+        for (int i = 0; i < overflowCount; i++) {
+            final int row = in.getInt();
+            final int column = in.get();
+            final int scale = in.getInt();
+            final byte[] unscaled = new byte[in.getInt()];
+            in.get(unscaled);
+            if (row < 0 || row >= rows || column < 0 || column >= DECIMAL_COLUMNS) {
+                throw corrupt(file, "overflow value for an unknown row or column");
+            }
+            overflow.get(column).put(row, new BigDecimal(new BigInteger(unscaled), scale));
+        }
+        return overflow;
+    }
+
+    /**
+     * Maps [from, to) of the file in windows of at most MAX_WINDOW bytes
+     */
+    private static List<ByteBuffer> map(FileChannel channel, long from, long to) throws IOException {
+        final List<ByteBuffer> windows = new ArrayList<>();
+        for (long offset = from; offset < to; offset += MAX_WINDOW) {
+            final MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(MAX_WINDOW, to - offset));
+            windows.add(window);
+        }
+        return windows;
+    }
+
+    /**
+     * The decimal columns in the order their index is written in the overflow section
+     */
+    private static InstructionColumns.DecimalColumn[] decimalColumns(InstructionColumns columns) {
+        return new InstructionColumns.DecimalColumn[]{columns.pricePerUnit(), columns.agreedFx(), columns.amountOfTradeUSD()};
+    }
+
+    private static IllegalArgumentException corrupt(Path file, String reason) {
+        return new IllegalArgumentException("Unable to read snapshot " + file + ": " + reason);
+    }
+}
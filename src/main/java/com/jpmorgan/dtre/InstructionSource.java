@@ -0,0 +1,240 @@
+package com.jpmorgan.dtre;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Where a DataSource's instructions come from. Nothing is read or generated until a DataSource first needs its
+ * rows, then the source is read once, either streamed an instruction at a time (forEach) into a List store
+ * or loaded whole (load) into a columnar one. Every backend streams forEach a block or window at a time rather
+ * than building a whole columnar store to copy into the List; only a snapshot being written holds one, dropped
+ * before its rows are streamed back.
+ *
+ * Backends:
+ * - sample(): the two instructions of the brief, then generated rows around today (what DataSource has always held)
+ * - generated(): rows from a SampleDataGenerator
+ * - file(): a pipe-delimited instruction file, parsed in parallel (see ParallelInstructionLoader)
+ * - snapshot(): a binary snapshot (see InstructionSnapshot), written from another source the first time
+ * - of(): instructions already in memory
+ * fromSystemProperties() picks one as -Ddtre.input, -Ddtre.snapshot and -Ddtre.sample.* have always done.
+ */
+interface InstructionSource {
+
+    /**
+     * Reads every instruction, in order, handing each to action as it is read
+     * @throws UncheckedIOException if the instructions can't be read
+     */
+    void forEach(Consumer<? super ImmutableInstruction> action);
+
+    /**
+     * Reads every instruction into a columnar store, in order
+     * @throws UncheckedIOException if the instructions can't be read
+     */
+    default InstructionColumns load() {
+        final InstructionColumns columns = new InstructionColumns();
+        forEach(columns::append);
+        return columns;
+    }
+
+    /**
+     * @return The two sample instructions of the brief, then -Ddtre.sample.rows (100) generated around today
+     *         from seed -Ddtre.sample.seed
+     */
+    static InstructionSource sample() {
+        final int rows = Integer.getInteger(DataSource.SAMPLE_ROWS_PROPERTY, 100);
+        final long seed = Long.getLong(DataSource.SAMPLE_SEED_PROPERTY, System.nanoTime());
+        final LocalDate today = LocalDate.now();
+        // instruction dates within 1 week either side of today, settling up to 1 week after
+        final InstructionSource generated = generated(seed, today.minusDays(6), today.plusDays(6), rows);
+        return new InstructionSource() {
+            @Override
+            public void forEach(Consumer<? super ImmutableInstruction> action) {
+                System.out.println("Adding sample data...");
+                sampleInstructions().forEach(action);
+                System.out.println("Adding " + rows + " rows of generated data...");
+                generated.forEach(action);
+            }
+
+            @Override
+            public String toString() {
+                return "sample data";
+            }
+        };
+    }
+
+    /**
+     * @return SampleDataGenerator rows, the same for the same arguments
+     */
+    static InstructionSource generated(long seed, LocalDate from, LocalDate to, int rows) {
+        return new InstructionSource() {
+            @Override
+            public void forEach(Consumer<? super ImmutableInstruction> action) {
+                new SampleDataGenerator(seed, from, to).forEach(rows, ParallelInstructionLoader.defaultParallelism(), action);
+            }
+
+            @Override
+            public InstructionColumns load() {
+                return new SampleDataGenerator(seed, from, to).generate(rows, ParallelInstructionLoader.defaultParallelism());
+            }
+
+            @Override
+            public String toString() {
+                return rows + " generated rows";
+            }
+        };
+    }
+
+    /**
+     * @param file Pipe-delimited instruction file, see InstructionFileParser
+     */
+    static InstructionSource file(Path file) {
+        return new InstructionSource() {
+            @Override
+            public void forEach(Consumer<? super ImmutableInstruction> action) {
+                try {
+                    new ParallelInstructionLoader(ParallelInstructionLoader.defaultParallelism()).forEach(file, action);
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Unable to load " + file, e);
+                }
+            }
+
+            @Override
+            public InstructionColumns load() {
+                try {
+                    return new ParallelInstructionLoader(ParallelInstructionLoader.defaultParallelism()).load(file);
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Unable to load " + file, e);
+                }
+            }
+
+            @Override
+            public String toString() {
+                return file.toString();
+            }
+        };
+    }
+
+    /**
+     * @param file Binary snapshot, read if it exists, else written from source once that has been read
+     * @param source Where the instructions come from while there's no snapshot
+     */
+    static InstructionSource snapshot(Path file, InstructionSource source) {
+        return new InstructionSource() {
+            @Override
+            public void forEach(Consumer<? super ImmutableInstruction> action) {
+                if (!Files.exists(file)) {
+                    // the columns are garbage once written, the rows are then streamed back from the snapshot
+                    write(source.load());
+                }
+                try {
+                    InstructionSnapshot.forEach(file, action);
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Unable to load " + file, e);
+                }
+            }
+
+            @Override
+            public InstructionColumns load() {
+                if (Files.exists(file)) {
+                    try {
+                        return InstructionSnapshot.read(file);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException("Unable to load " + file, e);
+                    }
+                }
+                final InstructionColumns columns = source.load();
+                write(columns);
+                return columns;
+            }
+
+            private void write(InstructionColumns columns) {
+                System.out.println("Writing snapshot of " + columns.size() + " rows to " + file + "...");
+                try {
+                    InstructionSnapshot.write(columns, file);
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Unable to write " + file, e);
+                }
+            }
+
+            @Override
+            public String toString() {
+                return Files.exists(file) ? file.toString() : source + ", snapshot to " + file;
+            }
+        };
+    }
+
+    /**
+     * @param instructions Instructions in memory, read as they are when the DataSource first needs them
+     */
+    static InstructionSource of(List<ImmutableInstruction> instructions) {
+        return new InstructionSource() {
+            @Override
+            public void forEach(Consumer<? super ImmutableInstruction> action) {
+                instructions.forEach(action);
+            }
+
+            @Override
+            public String toString() {
+                return instructions.size() + " instructions in memory";
+            }
+        };
+    }
+
+    /**
+     * @param inputFile Pipe-delimited instruction file, or null for sample data
+     * @param snapshotFile Binary snapshot to read, or write from the above if it doesn't exist, or null for none
+     */
+    static InstructionSource of(String inputFile, String snapshotFile) {
+        final InstructionSource source = inputFile == null ? sample() : file(Paths.get(inputFile));
+        return snapshotFile == null ? source : snapshot(Paths.get(snapshotFile), source);
+    }
+
+    /**
+     * @return InstructionSource chosen by -Ddtre.input and -Ddtre.snapshot, sample data if neither is set
+     */
+    static InstructionSource fromSystemProperties() {
+        return of(System.getProperty(DataSource.INPUT_PROPERTY), System.getProperty(DataSource.SNAPSHOT_PROPERTY));
+    }
+
+    /**
+     * sample data says "SGP" but that's Singapore's 3-letter ISO country code, not currency code.
+     * ISO4217 exists to standardise the currency code, make up (where possible) from:
+     * - two letters of the ISO 3166-1 alpha-2 country codes (e.g. 'SG')
+     * - usually the initial of the currency itself (e.g. Dollar -> 'D')
+     * Singapore Dollar = 'SGD' and the sample data is supplying an unrecognised currency.
+     * @return The two instructions of the brief's sample data
+     */
+    static List<ImmutableInstruction> sampleInstructions() {
+        final List<ImmutableInstruction> sample = new ArrayList<>(2);
+        sample.add(new ImmutableInstruction(
+                DataSource.ENTITIES.foo,
+                ImmutableInstruction.BUYSELL.B,
+                new BigDecimal("0.50"),
+                ISO4217.Currency.SGD,
+                LocalDate.parse("2016-01-01"),
+                LocalDate.parse("2016-01-02"),
+                200,
+                DataSource.ENTITIES.foo.getLastValueUSD()
+        ));
+        sample.add(new ImmutableInstruction(
+                DataSource.ENTITIES.bar,
+                ImmutableInstruction.BUYSELL.S,
+                new BigDecimal("0.22"),
+                ISO4217.Currency.AED,
+                LocalDate.parse("2016-01-05"),
+                LocalDate.parse("2016-01-07"),
+                450,
+                DataSource.ENTITIES.bar.getLastValueUSD()
+        ));
+        return Collections.unmodifiableList(sample);
+    }
+}
@@ -0,0 +1,205 @@
+package com.jpmorgan.dtre;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Consumer;
+
+/**
+ * Loads a pipe-delimited instruction file (see InstructionFileParser) on all cores.
+ *
+ * Each memory-mapped window of the file is split into byte ranges that start and end on line boundaries.
+ * Every range is parsed by a ForkJoinPool worker into its own unnumbered InstructionColumns, then the results
+ * are appended to the final store in range order, which is when the rows are given their ids. The rows, ids
+ * included, therefore come out in file order whatever the parallelism, exactly as a sequential parse would
+ * give them.
+ *
+ * load() merges every window into one store; forEach() hands the rows of each window over as soon as it is
+ * parsed and maps at most STREAM_WINDOW bytes at a time, so only one window's rows are in the heap at once.
+ */
+final class ParallelInstructionLoader {
+
+    /** System property setting the number of worker threads, defaults to the number of processors */
+    final static String PARALLELISM_PROPERTY = "dtre.parallelism";
+
+    /** Largest window mapped at once, see InstructionFileParser */
+    private final static int MAX_WINDOW = 1 << 30;
+    /** Largest window mapped at once by forEach(), bounding the rows it holds to those of 64MB of text */
+    private final static int STREAM_WINDOW = 1 << 26;
+    /** Smallest range worth handing to a worker */
+    private final static int DEFAULT_MIN_CHUNK = 1 << 22;
+    /** Ranges per worker, so a slow range doesn't leave the other workers idle */
+    private final static int CHUNKS_PER_WORKER = 4;
+
+    private final int parallelism;
+    private final int minChunk;
+    private final int maxWindow;
+
+    /**
+     * @param parallelism Number of worker threads
+     */
+    ParallelInstructionLoader(int parallelism) {
+        this(parallelism, DEFAULT_MIN_CHUNK, MAX_WINDOW);
+    }
+
+    /**
+     * @param parallelism Number of worker threads
+     * @param minChunk Smallest range, in bytes, handed to a worker
+     * @param maxWindow Largest window, in bytes, mapped at once
+     */
+    ParallelInstructionLoader(int parallelism, int minChunk, int maxWindow) {
+        if (parallelism < 1 || minChunk < 1 || maxWindow < 1) {
+            throw new IllegalArgumentException("parallelism, minChunk and maxWindow must be positive");
+        }
+        this.parallelism = parallelism;
+        this.minChunk = minChunk;
+        this.maxWindow = maxWindow;
+    }
+
+    /**
+     * @return Parallelism from -Ddtre.parallelism, or the number of available processors
+     */
+    static int defaultParallelism() {
+        return Integer.getInteger(PARALLELISM_PROPERTY, Runtime.getRuntime().availableProcessors());
+    }
+
+    int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Memory-maps and parses the whole file in parallel
+     * @param file Pipe-delimited instruction file
+     * @return InstructionColumns holding every instruction in the file, in file order
+     * @throws IOException if the file can't be read
+     */
+    InstructionColumns load(Path file) throws IOException {
+        final InstructionColumns merged = new InstructionColumns();
+        parse(file, maxWindow, ranges -> {
+            int rows = merged.size();
+            for (final InstructionColumns range : ranges) {
+                rows += range.size();
+            }
+            merged.ensureCapacity(rows);
+            for (final InstructionColumns range : ranges) {
+                merged.appendAll(range);
+            }
+        });
+        return merged;
+    }
+
+    /**
+     * Memory-maps and parses the file in parallel a window at a time, handing each instruction, in file order,
+     * to action once its window is parsed
+     * @param file Pipe-delimited instruction file
+     * @param action Given every instruction in the file, with the ids load() would give them
+     * @throws IOException if the file can't be read
+     */
+    void forEach(Path file, Consumer<? super ImmutableInstruction> action) throws IOException {
+        parse(file, Math.min(maxWindow, STREAM_WINDOW), ranges -> {
+            for (final InstructionColumns range : ranges) {
+                range.number();
+                range.asList().forEach(action);
+            }
+        });
+    }
+
+    /**
+     * Parses the file a window of at most window bytes at a time, handing windows the unnumbered rows of each
+     * window's ranges, in file order
+     */
+    private void parse(Path file, int window, Consumer<List<InstructionColumns>> windows) throws IOException {
+        final ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            final long size = channel.size();
+            long offset = 0;
+            while (offset < size) {
+                final int length = (int) Math.min(window, size - offset);
+                final MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+                int end = length;
+                if (offset + length < size) {
+                    end = InstructionFileParser.lastLineEnd(mapped, length);
+                    if (end == 0) {
+                        throw new IllegalArgumentException("Line longer than " + window + " bytes at byte " + offset);
+                    }
+                }
+                windows.accept(parseWindow(pool, mapped, end, offset));
+                offset += end;
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Parses one window in parallel
+     * @return The rows of each range of the window, in order
+     */
+    private List<InstructionColumns> parseWindow(ForkJoinPool pool, ByteBuffer window, int end, long fileOffset) {
+        final List<ParseRange> ranges = split(window, end, fileOffset);
+        pool.invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                invokeAll(ranges);
+            }
+        });
+        final List<InstructionColumns> parsed = new ArrayList<>(ranges.size());
+        for (final ParseRange range : ranges) {
+            parsed.add(range.join());
+        }
+        return parsed;
+    }
+
+    /**
+     * Splits [0, end) of the window into ranges, each ending just after a '\n' (or at end)
+     */
+    private List<ParseRange> split(ByteBuffer window, int end, long fileOffset) {
+        final int chunk = Math.max(minChunk, end / (parallelism * CHUNKS_PER_WORKER));
+        final List<ParseRange> ranges = new ArrayList<>();
+        int start = 0;
+        while (start < end) {
+            int stop = (int) Math.min((long) start + chunk, end);
+            while (stop < end && window.get(stop - 1) != '\n') {
+                stop++;
+            }
+            ranges.add(new ParseRange(window.duplicate(), start, stop, fileOffset));
+            start = stop;
+        }
+        return ranges;
+    }
+
+    /**
+     * Parses one range of whole lines into a store of its own
+     */
+    private final static class ParseRange extends RecursiveTask<InstructionColumns> {
+        private static final long serialVersionUID = 1L;
+
+        private final ByteBuffer buffer;
+        private final int start;
+        private final int end;
+        private final long fileOffset;
+
+        ParseRange(ByteBuffer buffer, int start, int end, long fileOffset) {
+            this.buffer = buffer;
+            this.start = start;
+            this.end = end;
+            this.fileOffset = fileOffset;
+        }
+
+        @Override
+        protected InstructionColumns compute() {
+            // sized on a guess of 64 bytes a line, the store grows if that's short
+            final InstructionColumns columns = InstructionColumns.unnumbered((end - start) / 64);
+            new InstructionFileParser(columns).parse(buffer, start, end, fileOffset);
+            return columns;
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package com.jpmorgan.dtre;
+
+import java.math.BigDecimal;
+import java.util.*;
+
+/**
+ * Ranks totals highest first, keeping only the top K.
+ *
+ * Rather than sorting every total, a bounded heap holds the best K seen so far (worst at the head),
+ * so ranking N totals costs O(N log K) time and O(K) space; only the K survivors are sorted.
+ * Equal totals are ranked by key, in the key's natural order (ordinal order for an enum) or by a given
+ * tie-break, so the ranking is deterministic whatever the iteration order of the map.
+ */
+final class Ranking {
+
+    private Ranking() {
+    }
+
+    /**
+     * @param totals Map of key-to-total, in any order
+     * @param k Number of ranks wanted, Integer.MAX_VALUE for all
+     * @return List of the top k entries, highest total first, ties in key order
+     */
+    static <K extends Comparable<? super K>> List<Map.Entry<K, BigDecimal>> top(Map<K, BigDecimal> totals, int k) {
+        return top(totals, k, Comparator.<K>naturalOrder());
+    }
+
+    /**
+     * @param totals Map of key-to-total, in any order
+     * @param k Number of ranks wanted, Integer.MAX_VALUE for all
+     * @param tieBreak Comparator<K> ordering keys with equal totals, consistent whatever order keys were created in
+     * @return List of the top k entries, highest total first, ties in tieBreak order
+     */
+    static <K> List<Map.Entry<K, BigDecimal>> top(Map<K, BigDecimal> totals, int k, Comparator<? super K> tieBreak) {
+        if (k <= 0 || totals.isEmpty()) {
+            return Collections.emptyList();
+        }
+        final Comparator<Map.Entry<K, BigDecimal>> rankOrder = Map.Entry.<K, BigDecimal>comparingByValue().reversed()
+                .thenComparing(Map.Entry.comparingByKey(tieBreak));
+
+        final List<Map.Entry<K, BigDecimal>> ranked;
+        if (k >= totals.size()) {
+            ranked = new ArrayList<>(totals.entrySet());
+        } else {
+            final PriorityQueue<Map.Entry<K, BigDecimal>> heap = new PriorityQueue<>(k + 1, rankOrder.reversed());
+            for (final Map.Entry<K, BigDecimal> e : totals.entrySet()) {
+                if (heap.size() < k) {
+                    heap.add(new AbstractMap.SimpleImmutableEntry<>(e));
+                } else if (rankOrder.compare(e, heap.peek()) < 0) {
+                    heap.poll();
+                    heap.add(new AbstractMap.SimpleImmutableEntry<>(e));
+                }
+            }
+            ranked = new ArrayList<>(heap);
+        }
+        ranked.sort(rankOrder);
+        return ranked;
+    }
+}
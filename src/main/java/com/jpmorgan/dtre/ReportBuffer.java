@@ -0,0 +1,155 @@
+package com.jpmorgan.dtre;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.Arrays;
+
+/**
+ * Growable byte buffer a report is rendered into, then written out in one go (see ReportSink).
+ *
+ * Numbers and dates are written straight into the bytes, with no String built for them: the point of this
+ * class is that rendering a report of a few hundred thousand lines allocates next to nothing per line.
+ * Text is encoded as UTF-8, with a fast path for the ASCII that reports are nearly all made of.
+ * Not thread-safe.
+ */
+final class ReportBuffer {
+
+    private byte[] bytes;
+    private int size;
+
+    /**
+     * @param capacity Bytes to allocate up front, see ensureCapacity()
+     */
+    ReportBuffer(int capacity) {
+        bytes = new byte[Math.max(16, capacity)];
+    }
+
+    /**
+     * Makes room for at least more bytes, so a report of a known size is rendered without regrowing
+     */
+    void ensureCapacity(int more) {
+        final long needed = (long) size + more;
+        if (needed > bytes.length) {
+            if (needed > Integer.MAX_VALUE - 8) {
+                throw new IllegalStateException("Report larger than 2GB");
+            }
+            bytes = Arrays.copyOf(bytes, (int) Math.min(Integer.MAX_VALUE - 8, Math.max(needed, (long) bytes.length * 2)));
+        }
+    }
+
+    ReportBuffer append(char c) {
+        if (c < 0x80) {
+            ensureCapacity(1);
+            bytes[size++] = (byte) c;
+            return this;
+        }
+        return append(String.valueOf(c));
+    }
+
+    ReportBuffer append(String s) {
+        final int length = s.length();
+        ensureCapacity(length);
+        for (int i = 0; i < length; i++) {
+            final char c = s.charAt(i);
+            if (c >= 0x80) {
+                // not ASCII, encode the rest properly
+                final byte[] encoded = s.substring(i).getBytes(StandardCharsets.UTF_8);
+                ensureCapacity(encoded.length);
+                System.arraycopy(encoded, 0, bytes, size, encoded.length);
+                size += encoded.length;
+                return this;
+            }
+            bytes[size++] = (byte) c;
+        }
+        return this;
+    }
+
+    /**
+     * Appends a whole number in decimal
+     */
+    ReportBuffer append(long n) {
+        if (n < 0) {
+            if (n == Long.MIN_VALUE) {
+                return append(Long.toString(n));
+            }
+            append('-');
+            n = -n;
+        }
+        return appendDigits(n, 1, false);
+    }
+
+    /**
+     * Appends a non-negative number in decimal
+     * @param n Number to append, not negative
+     * @param minDigits Least digits to write, padding with leading zeros
+     * @param grouped true to separate each group of three digits with a comma, as in 1,234,567
+     */
+    ReportBuffer appendDigits(long n, int minDigits, boolean grouped) {
+        int digits = 1;
+        for (long rest = n / 10; rest > 0; rest /= 10) {
+            digits++;
+        }
+        digits = Math.max(digits, minDigits);
+        final int length = grouped ? digits + (digits - 1) / 3 : digits;
+        ensureCapacity(length);
+        int pos = size + length;
+        for (int written = 0; written < digits; written++) {
+            if (grouped && written > 0 && written % 3 == 0) {
+                bytes[--pos] = ',';
+            }
+            bytes[--pos] = (byte) ('0' + n % 10);
+            n /= 10;
+        }
+        size += length;
+        return this;
+    }
+
+    /**
+     * Appends an epoch day as an ISO-8601 date, as LocalDate.toString() would, e.g. 2016-01-04
+     */
+    ReportBuffer appendDate(int epochDay) {
+        // civil date from days since 1970-01-01, in eras of 400 years starting 0000-03-01
+        final long z = epochDay + 719_468L;
+        final long era = Math.floorDiv(z, 146_097L);
+        final long dayOfEra = z - era * 146_097L;
+        final long yearOfEra = (dayOfEra - dayOfEra / 1_460 + dayOfEra / 36_524 - dayOfEra / 146_096) / 365;
+        final long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        final long monthFromMarch = (5 * dayOfYear + 2) / 153;
+        final long day = dayOfYear - (153 * monthFromMarch + 2) / 5 + 1;
+        final long month = monthFromMarch < 10 ? monthFromMarch + 3 : monthFromMarch - 9;
+        final long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+        if (year < 0 || year > 9999) {
+            return append(LocalDate.ofEpochDay(epochDay).toString()); // signed or 5+ digit years
+        }
+        appendDigits(year, 4, false);
+        append('-');
+        appendDigits(month, 2, false);
+        append('-');
+        return appendDigits(day, 2, false);
+    }
+
+    /**
+     * @return Number of bytes rendered
+     */
+    int size() {
+        return size;
+    }
+
+    void clear() {
+        size = 0;
+    }
+
+    /**
+     * Writes every byte rendered to out, in a single write
+     */
+    void writeTo(OutputStream out) throws IOException {
+        out.write(bytes, 0, size);
+    }
+
+    @Override
+    public String toString() {
+        return new String(bytes, 0, size, StandardCharsets.UTF_8);
+    }
+}
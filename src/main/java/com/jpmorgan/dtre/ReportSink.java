@@ -0,0 +1,382 @@
+package com.jpmorgan.dtre;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Locale;
+
+/**
+ * Where the reports are rendered to: the console, a CSV file or a file of JSON lines (one object per line).
+ *
+ * A report is begun, then written a row at a time, each row a key (a settlement date, a ranked entity or a
+ * currency) followed by its USD amount. Amounts are taken as exact scaled longs where they have one, and
+ * formatted by UsdFormat: as $#,##0.00 on the console, exactly (every decimal place summed) in CSV and JSON.
+ *
+ * Everything is rendered into one ReportBuffer, pre-sized by expectRows(), and written to the output in a
+ * single write when the sink is closed, so the cost per line is formatting into bytes and nothing more.
+ *
+ *   console: === Amount in USD settled incoming (Sell) every day ===
+ *            2016-01-07 => $14,899.50
+ *   csv:     report,date,rank,entity,currency,usd
+ *            incoming_per_day,2016-01-07,,,,14899.5000
+ *   jsonl:   {"report":"incoming_per_day","date":"2016-01-07","usd":14899.5000}
+ *
+ * Not thread-safe.
+ */
+abstract class ReportSink implements Closeable {
+
+    /** System property choosing the sink the reports are rendered to, see Format, console if unset */
+    final static String FORMAT_PROPERTY = "dtre.report.format";
+    /** System property naming the file the reports are written to, the console if unset */
+    final static String OUTPUT_PROPERTY = "dtre.report.output";
+
+    /** Bytes allowed per row when pre-sizing the buffer */
+    private final static int ROW_BYTES = 64;
+    private final static int INITIAL_CAPACITY = 1 << 12;
+
+    enum Format {
+        CONSOLE,
+        CSV,
+        JSONL;
+
+        static Format fromSystemProperty() {
+            return Format.valueOf(System.getProperty(FORMAT_PROPERTY, CONSOLE.name()).toUpperCase(Locale.ROOT));
+        }
+    }
+
+    /** The reports DailyTrades renders */
+    enum Report {
+        INCOMING_PER_DAY("Amount in USD settled incoming (Sell) every day"),
+        OUTGOING_PER_DAY("Amount in USD settled outgoing (Buy) every day"),
+        RANK_INCOMING("Rank Incoming (Sell)"),
+        RANK_OUTGOING("Rank Outgoing (Buy)"),
+        INCOMING_PER_CURRENCY("Amount in USD settled incoming (Sell) per currency"),
+        OUTGOING_PER_CURRENCY("Amount in USD settled outgoing (Buy) per currency");
+
+        final String title;
+        final String key; // as named in CSV and JSON
+
+        Report(String title) {
+            this.title = title;
+            this.key = name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    final ReportBuffer out = new ReportBuffer(INITIAL_CAPACITY);
+    private final OutputStream target;
+    private final boolean closeTarget;
+    /** Report being written, null before the first begin() */
+    Report report;
+
+    private ReportSink(OutputStream target, boolean closeTarget) {
+        this.target = target;
+        this.closeTarget = closeTarget;
+    }
+
+    /**
+     * @param target Stream written once the sink is closed, flushed but not closed
+     */
+    static ReportSink console(OutputStream target) {
+        return new Console(target, false);
+    }
+
+    static ReportSink csv(OutputStream target) {
+        return new Csv(target, false);
+    }
+
+    static ReportSink jsonLines(OutputStream target) {
+        return new JsonLines(target, false);
+    }
+
+    /**
+     * @param format How to render the reports
+     * @param file File to write them to, created or truncated, or null for the console
+     */
+    static ReportSink open(Format format, Path file) {
+        final OutputStream target;
+        try {
+            target = file == null ? System.out : Files.newOutputStream(file);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Can't write reports to " + file, e);
+        }
+        final boolean closeTarget = file != null;
+        switch (format) {
+            case CSV: return new Csv(target, closeTarget);
+            case JSONL: return new JsonLines(target, closeTarget);
+            default: return new Console(target, closeTarget);
+        }
+    }
+
+    /**
+     * @return ReportSink chosen by -Ddtre.report.format and -Ddtre.report.output
+     */
+    static ReportSink fromSystemProperties() {
+        final String file = System.getProperty(OUTPUT_PROPERTY);
+        return open(Format.fromSystemProperty(), file == null ? null : Paths.get(file));
+    }
+
+    /**
+     * Starts a report, the rows that follow belong to it
+     */
+    void begin(Report report) {
+        this.report = report;
+        header(report);
+    }
+
+    /**
+     * Makes room in the buffer for about this many more rows
+     */
+    void expectRows(int rows) {
+        out.ensureCapacity((int) Math.min(Integer.MAX_VALUE - 8, (long) rows * ROW_BYTES));
+    }
+
+    abstract void header(Report report);
+
+    /**
+     * Heads the reports that follow with a line for people, e.g. the dates they cover, on the console only:
+     * machine-readable output holds the rows alone
+     */
+    abstract void heading(String text);
+
+    /**
+     * Starts a row keyed by a settlement date, to be ended by amount()
+     */
+    abstract void day(int epochDay);
+
+    /**
+     * Starts a row of a ranking, to be ended by amount()
+     */
+    abstract void rank(int rank, String entity);
+
+    /**
+     * Starts a row keyed by a trade currency, to be ended by amount()
+     */
+    abstract void currency(ISO4217.Currency currency);
+
+    /**
+     * Ends a row with its amount, unscaled * 10^-scale USD
+     */
+    abstract void amount(long unscaled, int scale);
+
+    /**
+     * Ends a row with its amount in USD
+     */
+    abstract void amount(BigDecimal amount);
+
+    /**
+     * Writes everything rendered to the output in one write, and flushes it
+     */
+    @Override
+    public void close() {
+        try {
+            out.writeTo(target);
+            target.flush();
+            out.clear();
+            if (closeTarget) {
+                target.close();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @return Key of the report being written, as named in CSV and JSON
+     */
+    final String reportKey() {
+        return report == null ? "" : report.key;
+    }
+
+    /**
+     * For people: the layout DailyTrades has always printed
+     */
+    private static final class Console extends ReportSink {
+        Console(OutputStream target, boolean closeTarget) {
+            super(target, closeTarget);
+        }
+
+        @Override
+        void header(Report report) {
+            out.append("=== ").append(report.title).append(" ===\n");
+        }
+
+        @Override
+        void heading(String text) {
+            out.append("=== ").append(text).append(" ===\n");
+        }
+
+        @Override
+        void day(int epochDay) {
+            out.appendDate(epochDay).append(" => ");
+        }
+
+        @Override
+        void rank(int rank, String entity) {
+            out.append(rank).append(". ").append(entity).append(" => ");
+        }
+
+        @Override
+        void currency(ISO4217.Currency currency) {
+            out.append(currency.name()).append(" => ");
+        }
+
+        @Override
+        void amount(long unscaled, int scale) {
+            UsdFormat.currency(out, unscaled, scale);
+            out.append('\n');
+        }
+
+        @Override
+        void amount(BigDecimal amount) {
+            UsdFormat.currency(out, amount);
+            out.append('\n');
+        }
+    }
+
+    /**
+     * RFC 4180 CSV, a header line then one line per row of every report, each naming its report
+     */
+    private static final class Csv extends ReportSink {
+        Csv(OutputStream target, boolean closeTarget) {
+            super(target, closeTarget);
+            out.append("report,date,rank,entity,currency,usd\n");
+        }
+
+        @Override
+        void header(Report report) {
+            // each row names its report
+        }
+
+        @Override
+        void heading(String text) {
+            // rows only
+        }
+
+        @Override
+        void day(int epochDay) {
+            out.append(reportKey()).append(',').appendDate(epochDay).append(",,,,");
+        }
+
+        @Override
+        void rank(int rank, String entity) {
+            out.append(reportKey()).append(",,").append(rank).append(',');
+            field(entity);
+            out.append(",,");
+        }
+
+        @Override
+        void currency(ISO4217.Currency currency) {
+            out.append(reportKey()).append(",,,,").append(currency.name()).append(',');
+        }
+
+        @Override
+        void amount(long unscaled, int scale) {
+            UsdFormat.plain(out, unscaled, scale);
+            out.append('\n');
+        }
+
+        @Override
+        void amount(BigDecimal amount) {
+            UsdFormat.plain(out, amount);
+            out.append('\n');
+        }
+
+        /**
+         * Quotes a field holding a comma, quote or line break, doubling any quotes
+         */
+        private void field(String value) {
+            boolean quote = false;
+            for (int i = 0; i < value.length() && !quote; i++) {
+                final char c = value.charAt(i);
+                quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+            }
+            if (!quote) {
+                out.append(value);
+                return;
+            }
+            out.append('"').append(value.replace("\"", "\"\"")).append('"');
+        }
+    }
+
+    /**
+     * One JSON object per line, amounts as exact JSON numbers
+     */
+    private static final class JsonLines extends ReportSink {
+        JsonLines(OutputStream target, boolean closeTarget) {
+            super(target, closeTarget);
+        }
+
+        @Override
+        void header(Report report) {
+            // each object names its report
+        }
+
+        @Override
+        void heading(String text) {
+            // rows only
+        }
+
+        @Override
+        void day(int epochDay) {
+            start();
+            out.append(",\"date\":\"").appendDate(epochDay).append('"');
+        }
+
+        @Override
+        void rank(int rank, String entity) {
+            start();
+            out.append(",\"rank\":").append(rank).append(",\"entity\":");
+            string(entity);
+        }
+
+        @Override
+        void currency(ISO4217.Currency currency) {
+            start();
+            out.append(",\"currency\":\"").append(currency.name()).append('"');
+        }
+
+        @Override
+        void amount(long unscaled, int scale) {
+            out.append(",\"usd\":");
+            UsdFormat.plain(out, unscaled, scale);
+            out.append("}\n");
+        }
+
+        @Override
+        void amount(BigDecimal amount) {
+            out.append(",\"usd\":");
+            UsdFormat.plain(out, amount);
+            out.append("}\n");
+        }
+
+        private void start() {
+            out.append("{\"report\":\"").append(reportKey()).append('"');
+        }
+
+        /**
+         * Appends a JSON string, escaping quotes, backslashes and control characters
+         */
+        private void string(String value) {
+            out.append('"');
+            for (int i = 0; i < value.length(); i++) {
+                final char c = value.charAt(i);
+                if (c == '"' || c == '\\') {
+                    out.append('\\').append(c);
+                } else if (c < 0x20) {
+                    out.append("\\u00").append(Character.forDigit(c >> 4, 16)).append(Character.forDigit(c & 0xF, 16));
+                } else if (Character.isHighSurrogate(c) && i + 1 < value.length()) {
+                    out.append(value.substring(i, i + 2)); // the pair encodes as one character
+                    i++;
+                } else {
+                    out.append(c);
+                }
+            }
+            out.append('"');
+        }
+    }
+}
@@ -0,0 +1,366 @@
+package com.jpmorgan.dtre;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+/**
+ * Synthetic instructions for load testing, reproducible from a seed.
+ *
+ * Rows are generated in blocks of BLOCK_ROWS, each with its own SplittableRandom split off the seed's in block
+ * order, so the rows depend only on the seed and the settings, never on the number of threads generating them.
+ *
+ * Each row has:
+ * - an entity drawn from the entity weights (default: DataSource.ENTITIES, evenly)
+ * - Buy or Sell evenly
+ * - an agreed fx from 0.0001 to 2.0000, 4 decimal places
+ * - a currency drawn from the currency weights (default: every ISO4217.Currency, evenly)
+ * - an instruction date in [from, to] and an (unadjusted) settlement date 0 to 6 days after it
+ * - 1 to 1,000,000 units
+ * - a price per unit from 0.5 to 1.5 times the entity's reference price (1.00 if it has none), 4 decimal places
+ *
+ * generate() builds the rows in memory. forEach() hands them over one at a time and write() streams them to a
+ * pipe-delimited file (see InstructionFileParser), both holding only a few blocks per thread in the heap, so any
+ * number of rows can be read or written.
+ *
+ *   java -cp target/classes com.jpmorgan.dtre.SampleDataGenerator file rows [seed [from to]]
+ */
+public final class SampleDataGenerator {
+
+    /** Rows per block, the unit of work and of randomness; changing it changes the rows for a seed */
+    final static int BLOCK_ROWS = 1 << 14;
+
+    private final static int FX_SCALE = 4;
+    private final static int PRICE_SCALE = 4;
+    private final static int MAX_UNITS = 1_000_000;
+    private final static int MAX_SETTLEMENT_DAYS = 6;
+    private final static String[] MONTHS = {"Jan", "Feb", "Mar", "Apr", "May", "Jun", "Jul", "Aug", "Sep", "Oct", "Nov", "Dec"};
+
+    private final long seed;
+    private final int fromEpochDay;
+    private final int days;
+    private final int[] entityIds;
+    private final double[] entityCumulative;
+    private final long[] referencePrice; // unscaled at PRICE_SCALE, per entry of entityIds
+    private final ISO4217.Currency[] currencies;
+    private final double[] currencyCumulative;
+
+    /**
+     * A generator with entities and currencies drawn evenly
+     * @param seed Seed, the same seed and settings always give the same rows
+     * @param from First instruction date
+     * @param to Last instruction date
+     */
+    public SampleDataGenerator(long seed, LocalDate from, LocalDate to) {
+        this(seed, from, to, seededEntityIds(), null, ISO4217.Currency.values(), null);
+    }
+
+    private SampleDataGenerator(long seed, LocalDate from, LocalDate to, int[] entityIds, double[] entityWeights,
+                                ISO4217.Currency[] currencies, double[] currencyWeights) {
+        if (to.isBefore(from)) {
+            throw new IllegalArgumentException("Date range ends before it starts");
+        }
+        this.seed = seed;
+        this.fromEpochDay = (int) from.toEpochDay();
+        this.days = (int) (to.toEpochDay() - from.toEpochDay()) + 1;
+        this.entityIds = entityIds;
+        this.entityCumulative = cumulative(entityWeights, entityIds.length);
+        this.referencePrice = new long[entityIds.length];
+        for (int i = 0; i < entityIds.length; i++) {
+            final BigDecimal reference = EntityRegistry.getInstance().referencePrice(entityIds[i]);
+            referencePrice[i] = (reference == null ? BigDecimal.ONE : reference)
+                    .setScale(PRICE_SCALE, RoundingMode.HALF_EVEN).unscaledValue().longValueExact();
+        }
+        this.currencies = currencies;
+        this.currencyCumulative = cumulative(currencyWeights, currencies.length);
+    }
+
+    /**
+     * @param weights Relative weight of each entity, by id in the shared EntityRegistry
+     * @return SampleDataGenerator like this one, drawing entities by these weights
+     */
+    public SampleDataGenerator withEntityWeights(Map<Integer, Double> weights) {
+        final int[] ids = new int[weights.size()];
+        final double[] w = new double[weights.size()];
+        int i = 0;
+        for (final Map.Entry<Integer, Double> e : weights.entrySet()) {
+            EntityRegistry.getInstance().symbol(e.getKey()); // throws if there's no such entity
+            ids[i] = e.getKey();
+            w[i++] = e.getValue();
+        }
+        return new SampleDataGenerator(seed, LocalDate.ofEpochDay(fromEpochDay), LocalDate.ofEpochDay(fromEpochDay + days - 1),
+                ids, w, currencies, weightsOf(currencyCumulative));
+    }
+
+    /**
+     * @param weights Relative weight of each currency
+     * @return SampleDataGenerator like this one, drawing currencies by these weights
+     */
+    public SampleDataGenerator withCurrencyWeights(Map<ISO4217.Currency, Double> weights) {
+        final ISO4217.Currency[] c = weights.keySet().toArray(new ISO4217.Currency[0]);
+        final double[] w = new double[c.length];
+        for (int i = 0; i < c.length; i++) {
+            w[i] = weights.get(c[i]);
+        }
+        return new SampleDataGenerator(seed, LocalDate.ofEpochDay(fromEpochDay), LocalDate.ofEpochDay(fromEpochDay + days - 1),
+                entityIds, weightsOf(entityCumulative), c, w);
+    }
+
+    /**
+     * Generates rows in memory, in parallel
+     * @param rows Number of rows
+     * @param parallelism Number of threads
+     * @return InstructionColumns holding the rows, the same for any parallelism
+     */
+    InstructionColumns generate(int rows, int parallelism) {
+        final InstructionColumns generated = new InstructionColumns(rows);
+        final ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            final SplittableRandom root = new SplittableRandom(seed);
+            final Deque<Future<InstructionColumns>> pending = new ArrayDeque<>();
+            for (long start = 0; start < rows; start += BLOCK_ROWS) {
+                final SplittableRandom random = root.split(); // in block order, whatever the threads
+                final int count = (int) Math.min(BLOCK_ROWS, rows - start);
+                pending.add(pool.submit(() -> block(random, count)));
+                if (pending.size() > parallelism * 2) {
+                    generated.appendAll(join(pending.poll()));
+                }
+            }
+            while (!pending.isEmpty()) {
+                generated.appendAll(join(pending.poll()));
+            }
+        } finally {
+            pool.shutdown();
+        }
+        return generated;
+    }
+
+    /**
+     * Generates rows in parallel and hands each, in order, to action, without holding them all in the heap
+     * @param rows Number of rows
+     * @param parallelism Number of threads
+     * @param action Given every row, the same as generate() would hold for any parallelism
+     */
+    void forEach(long rows, int parallelism, Consumer<? super ImmutableInstruction> action) {
+        final ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            final SplittableRandom root = new SplittableRandom(seed);
+            final Deque<Future<InstructionColumns>> pending = new ArrayDeque<>();
+            for (long start = 0; start < rows; start += BLOCK_ROWS) {
+                final SplittableRandom random = root.split();
+                final int count = (int) Math.min(BLOCK_ROWS, rows - start);
+                pending.add(pool.submit(() -> block(random, count)));
+                if (pending.size() > parallelism * 2) {
+                    handOver(join(pending.poll()), action);
+                }
+            }
+            while (!pending.isEmpty()) {
+                handOver(join(pending.poll()), action);
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Streams rows to a pipe-delimited file with a header line, in parallel, without holding them all in the heap
+     * @param rows Number of rows
+     * @param file File to write, replaced if it exists
+     * @param parallelism Number of threads
+     * @throws IOException if the file can't be written
+     */
+    void write(long rows, Path file, int parallelism) throws IOException {
+        final ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            write(channel, ByteBuffer.wrap(("Entity|Buy/Sell|AgreedFx|Currency|InstructionDate|SettlementDate|Units|Price per unit\n")
+                    .getBytes(StandardCharsets.US_ASCII)));
+            final SplittableRandom root = new SplittableRandom(seed);
+            final Deque<Future<ByteBuffer>> pending = new ArrayDeque<>();
+            for (long start = 0; start < rows; start += BLOCK_ROWS) {
+                final SplittableRandom random = root.split();
+                final int count = (int) Math.min(BLOCK_ROWS, rows - start);
+                pending.add(pool.submit(() -> format(block(random, count))));
+                if (pending.size() > parallelism * 2) {
+                    write(channel, join(pending.poll()));
+                }
+            }
+            while (!pending.isEmpty()) {
+                write(channel, join(pending.poll()));
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Numbers an unnumbered block, then hands its rows to action in order
+     */
+    private static void handOver(InstructionColumns block, Consumer<? super ImmutableInstruction> action) {
+        block.number();
+        block.asList().forEach(action);
+    }
+
+    /**
+     * Generates one block of rows from its own random
+     */
+    private InstructionColumns block(SplittableRandom random, int count) {
+        final InstructionColumns columns = InstructionColumns.unnumbered(count);
+        for (int i = 0; i < count; i++) {
+            final int entity = pick(entityCumulative, random);
+            final ImmutableInstruction.BUYSELL side = random.nextBoolean() ? ImmutableInstruction.BUYSELL.B : ImmutableInstruction.BUYSELL.S;
+            final long fx = 1 + random.nextInt(2 * 10_000);
+            final ISO4217.Currency currency = currencies[pick(currencyCumulative, random)];
+            final int instructionDay = fromEpochDay + random.nextInt(days);
+            final int settlementDay = instructionDay + random.nextInt(MAX_SETTLEMENT_DAYS + 1);
+            final int units = 1 + random.nextInt(MAX_UNITS);
+            final long reference = referencePrice[entity];
+            // 0.5 to 1.5 times the reference price
+            final long price = Math.max(1, reference / 2 + (long) (random.nextDouble() * reference));
+            columns.append(entityIds[entity], side, currency, instructionDay, settlementDay, units, price, PRICE_SCALE, fx, FX_SCALE);
+        }
+        return columns;
+    }
+
+    /**
+     * Formats a block as lines of the instruction file format
+     */
+    private static ByteBuffer format(InstructionColumns columns) {
+        final StringBuilder sb = new StringBuilder(columns.size() * 72);
+        final EntityRegistry registry = EntityRegistry.getInstance();
+        final ISO4217.Currency[] currencies = ISO4217.Currency.values();
+        for (int row = 0; row < columns.size(); row++) {
+            sb.append(registry.symbol(columns.entityId(row))).append('|')
+                    .append(columns.buySell(row).name()).append('|');
+            decimal(sb, columns.agreedFx().unscaled(row), columns.agreedFx().scale(row)).append('|');
+            sb.append(currencies[columns.currencyOrdinal(row)].name()).append('|');
+            date(sb, columns.instructionEpochDay(row)).append('|');
+            date(sb, columns.unadjustedSettlementEpochDay(row)).append('|');
+            sb.append(columns.units(row)).append('|');
+            decimal(sb, columns.pricePerUnit().unscaled(row), columns.pricePerUnit().scale(row)).append('\n');
+        }
+        final byte[] bytes = new byte[sb.length()];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) sb.charAt(i); // ASCII only
+        }
+        return ByteBuffer.wrap(bytes);
+    }
+
+    private static StringBuilder decimal(StringBuilder sb, long unscaled, int scale) {
+        final long pow = (long) Math.pow(10, scale);
+        sb.append(unscaled / pow).append('.');
+        final String fraction = Long.toString(unscaled % pow);
+        for (int i = fraction.length(); i < scale; i++) {
+            sb.append('0');
+        }
+        return sb.append(fraction);
+    }
+
+    /**
+     * Appends a date as "01 Jan 2016"
+     */
+    private static StringBuilder date(StringBuilder sb, long epochDay) {
+        final LocalDate date = LocalDate.ofEpochDay(epochDay);
+        if (date.getDayOfMonth() < 10) {
+            sb.append('0');
+        }
+        return sb.append(date.getDayOfMonth()).append(' ').append(MONTHS[date.getMonthValue() - 1]).append(' ').append(date.getYear());
+    }
+
+    private static void write(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static <T> T join(Future<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted generating sample data", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Unable to generate sample data", e.getCause());
+        }
+    }
+
+    /**
+     * @return Index drawn from a cumulative distribution
+     */
+    private static int pick(double[] cumulative, SplittableRandom random) {
+        final int i = Arrays.binarySearch(cumulative, random.nextDouble() * cumulative[cumulative.length - 1]);
+        return Math.min(i >= 0 ? i + 1 : -i - 1, cumulative.length - 1);
+    }
+
+    /**
+     * @return Running totals of the weights, all 1 where weights is null
+     */
+    private static double[] cumulative(double[] weights, int length) {
+        if (length == 0) {
+            throw new IllegalArgumentException("Nothing to draw from");
+        }
+        final double[] cumulative = new double[length];
+        double total = 0;
+        for (int i = 0; i < length; i++) {
+            final double w = weights == null ? 1 : weights[i];
+            if (!(w >= 0) || Double.isInfinite(w)) {
+                throw new IllegalArgumentException("Weights must be finite and not negative");
+            }
+            total += w;
+            cumulative[i] = total;
+        }
+        if (total <= 0) {
+            throw new IllegalArgumentException("Weights must not all be zero");
+        }
+        return cumulative;
+    }
+
+    private static double[] weightsOf(double[] cumulative) {
+        final double[] weights = new double[cumulative.length];
+        for (int i = 0; i < cumulative.length; i++) {
+            weights[i] = cumulative[i] - (i == 0 ? 0 : cumulative[i - 1]);
+        }
+        return weights;
+    }
+
+    private static int[] seededEntityIds() {
+        final int[] ids = new int[DataSource.ENTITIES.values().length];
+        for (final DataSource.ENTITIES e : DataSource.ENTITIES.values()) {
+            ids[e.ordinal()] = e.ordinal(); // seeded into the registry in ordinal order
+        }
+        return ids;
+    }
+
+    /**
+     * Writes a sample instruction file: file rows [seed [from to]], from and to as ISO dates (default 2016)
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: SampleDataGenerator file rows [seed [from to]]");
+            System.exit(1);
+        }
+        final long rows = Long.parseLong(args[1]);
+        final long seed = args.length > 2 ? Long.parseLong(args[2]) : 42L;
+        final LocalDate from = LocalDate.parse(args.length > 4 ? args[3] : "2016-01-01");
+        final LocalDate to = LocalDate.parse(args.length > 4 ? args[4] : "2016-12-31");
+        final long start = System.nanoTime();
+        new SampleDataGenerator(seed, from, to).write(rows, Paths.get(args[0]), ParallelInstructionLoader.defaultParallelism());
+        System.out.println("Wrote " + rows + " rows to " + args[0] + " in " + (System.nanoTime() - start) / 1_000_000 + "ms");
+    }
+}
@@ -0,0 +1,272 @@
+package com.jpmorgan.dtre;
+
+import java.math.BigDecimal;
+
+/**
+ * Exact running totals, one bucket per int key (an entity ordinal, an epoch day, ...), held as scaled longs:
+ *   value = unscaled * 10^-scale
+ *
+ * Each bucket starts at the minimum scale given (e.g. the minor unit of the report currency) and only
+ * rescales up when an amount with more decimal places arrives. Adding is a long add, with no BigDecimal
+ * allocated and no map get/put per row. A bucket that would overflow a long falls back to BigDecimal
+ * (for that bucket only) and stays there.
+ *
+ * get() returns exactly what summing the same amounts with BigDecimal.add would: same value and same scale.
+ *
+ * Keys are stored densely between the lowest and highest key seen, so only use this for compact key ranges.
+ * Not thread-safe.
+ */
+final class ScaledSums {
+
+    private final static int INITIAL_CAPACITY = 16;
+
+    /** Powers of ten that fit in a long, 10^0 to 10^18 */
+    private final static long[] POW10 = new long[19];
+
+    static {
+        POW10[0] = 1L;
+        for (int i = 1; i < POW10.length; i++) {
+            POW10[i] = POW10[i - 1] * 10L;
+        }
+    }
+
+    private final int minScale;
+
+    private int base;          // key held at index 0
+    private int count;         // number of buckets holding a value
+    private int lowKey = Integer.MAX_VALUE;
+    private int highKey = Integer.MIN_VALUE;
+
+    private boolean[] present = new boolean[0];
+    private long[] unscaled = new long[0];
+    private int[] scale = new int[0];       // scale the bucket is accumulating at
+    private int[] resultScale = new int[0]; // largest scale added, what BigDecimal.add would have produced
+    private BigDecimal[] spill = new BigDecimal[0]; // non-null once a bucket has overflowed a long
+
+    /**
+     * @param minScale Scale every bucket starts at, normally the minor unit of the report currency
+     */
+    ScaledSums(int minScale) {
+        this.minScale = minScale;
+    }
+
+    /**
+     * Adds an amount to a bucket
+     * @param key Bucket key
+     * @param amount BigDecimal amount, taken as a scaled long where the unscaled value fits
+     */
+    void add(int key, BigDecimal amount) {
+        if (amount.unscaledValue().bitLength() < Long.SIZE) {
+            add(key, amount.unscaledValue().longValue(), amount.scale());
+        } else {
+            final int i = index(key);
+            touch(i, key);
+            resultScale[i] = Math.max(resultScale[i], amount.scale());
+            spill[i] = toBigDecimal(i).add(amount);
+        }
+    }
+
+    /**
+     * Adds an amount of unscaledValue * 10^-valueScale to a bucket
+     * @param key Bucket key
+     * @param unscaledValue Unscaled value of the amount
+     * @param valueScale Scale of the amount
+     */
+    void add(int key, long unscaledValue, int valueScale) {
+        final int i = index(key);
+        touch(i, key);
+        resultScale[i] = Math.max(resultScale[i], valueScale);
+
+        if (spill[i] != null) {
+            spill[i] = spill[i].add(BigDecimal.valueOf(unscaledValue, valueScale));
+            return;
+        }
+
+        try {
+            final int bucketScale = scale[i];
+            if (valueScale == bucketScale) {
+                unscaled[i] = Math.addExact(unscaled[i], unscaledValue);
+            } else if (valueScale < bucketScale) {
+                unscaled[i] = Math.addExact(unscaled[i], Math.multiplyExact(unscaledValue, pow10(bucketScale - valueScale)));
+            } else {
+                // rescale the bucket up to the finer scale, then add
+                unscaled[i] = Math.addExact(Math.multiplyExact(unscaled[i], pow10(valueScale - bucketScale)), unscaledValue);
+                scale[i] = valueScale;
+            }
+        } catch (ArithmeticException overflow) {
+            spill[i] = toBigDecimal(i).add(BigDecimal.valueOf(unscaledValue, valueScale));
+        }
+    }
+
+    /**
+     * Adds the USD amount of a trade to a bucket, using its precomputed scaled long form where it has one
+     * @param key Bucket key
+     * @param in ImmutableInstruction whose getAmountOfTradeUSD() is to be added
+     */
+    void addAmountOfTradeUSD(int key, ImmutableInstruction in) {
+        if (in.isAmountOfTradeUSDScaledLong()) {
+            add(key, in.getAmountOfTradeUSDUnscaled(), in.getAmountOfTradeUSDScale());
+        } else {
+            add(key, in.getAmountOfTradeUSD());
+        }
+    }
+
+    /**
+     * Adds every bucket of other into this one, exactly: the sums and their scales come out as if every amount
+     * added to other had been added here instead (how per-thread totals are combined, see BigDecimalCollectors)
+     * @param other ScaledSums to add, unchanged
+     */
+    void addAll(ScaledSums other) {
+        for (int key = other.lowKey; other.count > 0 && key <= other.highKey; key++) {
+            if (!other.contains(key)) {
+                continue;
+            }
+            final int i = index(key);
+            touch(i, key);
+            final int j = key - other.base;
+            final int addedScale = Math.max(resultScale[i], other.resultScale[j]);
+            if (other.spill[j] == null) {
+                add(key, other.unscaled[j], other.scale[j]);
+            } else {
+                add(key, other.spill[j]);
+            }
+            // other's bucket may sit at a finer scale (minScale) than anything added to it, those digits are zero
+            resultScale[i] = addedScale;
+        }
+    }
+
+    /**
+     * @param key Bucket key
+     * @return BigDecimal sum for this key, or null if nothing was added under it
+     */
+    BigDecimal get(int key) {
+        if (!contains(key)) {
+            return null;
+        }
+        final int i = key - base;
+        // the bucket may sit at a finer scale than anything added (minScale), those digits are all zero
+        return toBigDecimal(i).setScale(resultScale[i]);
+    }
+
+    /**
+     * @param key Bucket key
+     * @return true if the sum for this key is held as a scaled long, see unscaled(key) and scale(key)
+     */
+    boolean isScaledLong(int key) {
+        return contains(key) && spill[key - base] == null;
+    }
+
+    /**
+     * @param key Bucket key, whose sum isScaledLong(key)
+     * @return Unscaled value of the sum for this key, at scale(key), so no BigDecimal need be built to read it
+     */
+    long unscaled(int key) {
+        final int i = key - base;
+        return unscaled[i] / POW10[scale[i] - resultScale[i]];
+    }
+
+    /**
+     * @param key Bucket key
+     * @return Scale of the sum for this key, as get(key) would have it
+     */
+    int scale(int key) {
+        return resultScale[key - base];
+    }
+
+    boolean contains(int key) {
+        final long i = (long) key - base;
+        return i >= 0 && i < present.length && present[(int) i];
+    }
+
+    /**
+     * @return Lowest key added, only meaningful if size() > 0
+     */
+    int lowKey() {
+        return lowKey;
+    }
+
+    /**
+     * @return Highest key added, only meaningful if size() > 0
+     */
+    int highKey() {
+        return highKey;
+    }
+
+    /**
+     * @return Number of keys holding a sum
+     */
+    int size() {
+        return count;
+    }
+
+    private BigDecimal toBigDecimal(int i) {
+        return spill[i] != null ? spill[i] : BigDecimal.valueOf(unscaled[i], scale[i]);
+    }
+
+    private void touch(int i, int key) {
+        if (!present[i]) {
+            present[i] = true;
+            scale[i] = minScale;
+            resultScale[i] = 0; // as summing from BigDecimal.ZERO would
+            count++;
+            lowKey = Math.min(lowKey, key);
+            highKey = Math.max(highKey, key);
+        }
+    }
+
+    /**
+     * Finds the array index for a key, growing the arrays to cover it when needed
+     */
+    private int index(int key) {
+        if (present.length == 0) {
+            base = key;
+            allocate(INITIAL_CAPACITY, 0);
+            return 0;
+        }
+        final long i = (long) key - base;
+        if (i >= 0 && i < present.length) {
+            return (int) i;
+        }
+        final long newLow = Math.min((long) base, key);
+        final long newHigh = Math.max((long) base + present.length - 1, key);
+        final long span = newHigh - newLow + 1;
+        if (span > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("Key range too wide for dense buckets: " + newLow + " to " + newHigh);
+        }
+        // grow by at least half again, in the direction we need the room
+        final int capacity = (int) Math.min(Integer.MAX_VALUE - 8, Math.max(span, present.length + (present.length >> 1)));
+        final int shift = (int) (base - newLow) + (key < base ? capacity - (int) span : 0);
+        allocate(capacity, shift);
+        base -= shift;
+        return key - base;
+    }
+
+    /**
+     * Re-allocates the arrays at the new capacity, moving existing buckets up by shift
+     */
+    private void allocate(int capacity, int shift) {
+        final int length = present.length;
+        final boolean[] p = new boolean[capacity];
+        final long[] u = new long[capacity];
+        final int[] s = new int[capacity];
+        final int[] r = new int[capacity];
+        final BigDecimal[] b = new BigDecimal[capacity];
+        System.arraycopy(present, 0, p, shift, length);
+        System.arraycopy(unscaled, 0, u, shift, length);
+        System.arraycopy(scale, 0, s, shift, length);
+        System.arraycopy(resultScale, 0, r, shift, length);
+        System.arraycopy(spill, 0, b, shift, length);
+        present = p;
+        unscaled = u;
+        scale = s;
+        resultScale = r;
+        spill = b;
+    }
+
+    private static long pow10(int n) {
+        if (n >= POW10.length) {
+            throw new ArithmeticException("10^" + n + " overflows long");
+        }
+        return POW10[n];
+    }
+}
@@ -0,0 +1,248 @@
+package com.jpmorgan.dtre;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A batch of instructions reduced to what the per-day reports sum, in primitive arrays an AggregationKernel
+ * streams through: each row's side and its amount in USD as a long at one scale for the whole batch.
+ *
+ * Rows are laid out in settlement date order (a counting sort on the day offset from the first settlement
+ * date), so the rows settling on a day are one contiguous run, dayStart[d] to dayStart[d + 1], and the sums
+ * by day are a masked sum by side over each run, with no key to look up per row.
+ *
+ * The totals are exact and come out as DailyReport.perDay() has them, value and scale. A row whose amount
+ * won't fit a long at the batch scale is kept out of the arrays and summed as a BigDecimal instead.
+ *
+ * Built once, for a large end-of-day batch, then read any number of times. Immutable.
+ */
+final class SettlementBatch {
+
+    /** Powers of ten that fit in a long, 10^0 to 10^18 */
+    private final static long[] POW10 = new long[19];
+
+    static {
+        POW10[0] = 1L;
+        for (int i = 1; i < POW10.length; i++) {
+            POW10[i] = POW10[i - 1] * 10L;
+        }
+    }
+
+    /** Settlement epoch day of day offset 0 */
+    final int baseDay;
+    /** Number of days from the first settlement date to the last */
+    final int days;
+    /** Scale of every amount */
+    final int scale;
+    /** Amount in USD of each row, unscaled at scale */
+    final long[] amount;
+    /** true for incoming (Sell) rows */
+    final boolean[] incoming;
+    /** Index of the first row settling on each day offset, and the row count at days */
+    final int[] dayStart;
+
+    /** Per bucket, day offset * 2 + (incoming ? 1 : 0): rows, and the largest scale of any of their amounts */
+    private final int[] count;
+    private final int[] resultScale;
+    /** Per bucket, the sum of the rows kept out of the arrays */
+    private final Map<Integer, BigDecimal> remainder;
+
+    /**
+     * The instructions as SettlementBatch reads them, from an InstructionColumns store or a List
+     */
+    private interface Rows {
+        int size();
+        boolean isIncoming(int row);
+        int settlementEpochDay(int row);
+        boolean isScaledLong(int row);
+        long unscaled(int row);
+        int scale(int row);
+        BigDecimal amount(int row);
+    }
+
+    private SettlementBatch(Rows rows) {
+        final int size = rows.size();
+        // first pass: the day range and the batch scale
+        int low = Integer.MAX_VALUE;
+        int high = Integer.MIN_VALUE;
+        int batchScale = DailyReport.USD_SCALE;
+        for (int row = 0; row < size; row++) {
+            low = Math.min(low, rows.settlementEpochDay(row));
+            high = Math.max(high, rows.settlementEpochDay(row));
+            if (rows.isScaledLong(row)) {
+                batchScale = Math.max(batchScale, Math.min(rows.scale(row), POW10.length - 1));
+            }
+        }
+        final long span = size == 0 ? 0 : (long) high - low + 1;
+        if (span > Integer.MAX_VALUE / 2 - 1) {
+            throw new IllegalArgumentException("Settlement dates too far apart for one batch: " + low + " to " + high);
+        }
+        this.baseDay = size == 0 ? 0 : low;
+        this.days = (int) span;
+        this.scale = batchScale;
+        this.count = new int[days * 2];
+        this.resultScale = new int[days * 2];
+        this.remainder = new HashMap<>();
+
+        // second pass: count the rows per day, taking each amount in the batch scale or as a remainder
+        final long[] scaled = new long[size];
+        final boolean[] inArrays = new boolean[size];
+        final int[] perDay = new int[days + 1];
+        int kept = 0;
+        for (int row = 0; row < size; row++) {
+            final int offset = rows.settlementEpochDay(row) - baseDay;
+            final int bucket = offset * 2 + (rows.isIncoming(row) ? 1 : 0);
+            count[bucket]++;
+            resultScale[bucket] = Math.max(resultScale[bucket], rows.isScaledLong(row) ? rows.scale(row) : rows.amount(row).scale());
+            if (rows.isScaledLong(row) && rows.scale(row) <= batchScale && batchScale - rows.scale(row) < POW10.length) {
+                try {
+                    scaled[row] = Math.multiplyExact(rows.unscaled(row), POW10[batchScale - rows.scale(row)]);
+                    inArrays[row] = true;
+                    perDay[offset + 1]++;
+                    kept++;
+                    continue;
+                } catch (ArithmeticException overflow) {
+                    // summed as a BigDecimal below
+                }
+            }
+            remainder.merge(bucket, rows.amount(row), BigDecimal::add);
+        }
+
+        // third pass: place the rows in day order
+        for (int d = 0; d < days; d++) {
+            perDay[d + 1] += perDay[d];
+        }
+        this.dayStart = perDay.clone();
+        this.amount = new long[kept];
+        this.incoming = new boolean[kept];
+        for (int row = 0; row < size; row++) {
+            if (inArrays[row]) {
+                final int i = perDay[rows.settlementEpochDay(row) - baseDay]++;
+                amount[i] = scaled[row];
+                incoming[i] = rows.isIncoming(row);
+            }
+        }
+    }
+
+    /**
+     * @param columns Instructions to report on, unfiltered
+     * @return SettlementBatch of every row, read straight from the primitive columns
+     */
+    static SettlementBatch of(InstructionColumns columns) {
+        final InstructionColumns.DecimalColumn usd = columns.amountOfTradeUSD();
+        return new SettlementBatch(new Rows() {
+            @Override public int size() { return columns.size(); }
+            @Override public boolean isIncoming(int row) { return columns.isIncoming(row); }
+            @Override public int settlementEpochDay(int row) { return columns.settlementEpochDay(row); }
+            @Override public boolean isScaledLong(int row) { return usd.isScaledLong(row); }
+            @Override public long unscaled(int row) { return usd.unscaled(row); }
+            @Override public int scale(int row) { return usd.scale(row); }
+            @Override public BigDecimal amount(int row) { return usd.get(row); }
+        });
+    }
+
+    /**
+     * @param rows Instructions to report on, unfiltered
+     * @return SettlementBatch of every instruction
+     */
+    static SettlementBatch of(List<ImmutableInstruction> rows) {
+        return new SettlementBatch(new Rows() {
+            @Override public int size() { return rows.size(); }
+            @Override public boolean isIncoming(int row) { return rows.get(row).getBuySell() == ImmutableInstruction.BUYSELL.S; }
+            @Override public int settlementEpochDay(int row) { return (int) rows.get(row).getSettlementDate().toEpochDay(); }
+            @Override public boolean isScaledLong(int row) { return rows.get(row).isAmountOfTradeUSDScaledLong(); }
+            @Override public long unscaled(int row) { return rows.get(row).getAmountOfTradeUSDUnscaled(); }
+            @Override public int scale(int row) { return rows.get(row).getAmountOfTradeUSDScale(); }
+            @Override public BigDecimal amount(int row) { return rows.get(row).getAmountOfTradeUSD(); }
+        });
+    }
+
+    /**
+     * @return Number of rows in the primitive arrays, the rest are summed as BigDecimal
+     */
+    int rows() {
+        return amount.length;
+    }
+
+    /**
+     * Sums every day's rows by side with the kernel
+     * @return long[] of days * 4 sums at scale, from index day offset * 4: the outgoing (Buy) then the incoming
+     *         (Sell) sums of the high and low 32 bits of the amounts, see AggregationKernel.total()
+     */
+    long[] sumByDay(AggregationKernel kernel) {
+        final long[] sums = new long[days * 4];
+        final long[] totals = new long[4];
+        for (int d = 0; d < days; d++) {
+            if (dayStart[d] == dayStart[d + 1]) {
+                continue;
+            }
+            Arrays.fill(totals, 0L);
+            kernel.sumBySide(amount, incoming, dayStart[d], dayStart[d + 1], totals);
+            System.arraycopy(totals, 0, sums, d * 4, 4);
+        }
+        return sums;
+    }
+
+    /**
+     * @param side S for incoming, B for outgoing
+     * @param kernel AggregationKernel to sum with
+     * @return Map<LocalDate, BigDecimal> in natural date order of date-to-sum-USD-trade, as DailyReport.perDay(side)
+     */
+    Map<LocalDate, BigDecimal> perDay(ImmutableInstruction.BUYSELL side, AggregationKernel kernel) {
+        return perDay(side, sumByDay(kernel));
+    }
+
+    /**
+     * @param side S for incoming, B for outgoing
+     * @param sums What sumByDay() returned, so both sides are reported from one pass
+     * @return Map<LocalDate, BigDecimal> in natural date order of date-to-sum-USD-trade, as DailyReport.perDay(side)
+     */
+    Map<LocalDate, BigDecimal> perDay(ImmutableInstruction.BUYSELL side, long[] sums) {
+        final int s = side == ImmutableInstruction.BUYSELL.S ? 1 : 0;
+        final Map<LocalDate, BigDecimal> dateToSum = new TreeMap<>();
+        for (int d = 0; d < days; d++) {
+            final int bucket = d * 2 + s;
+            if (count[bucket] != 0) {
+                dateToSum.put(LocalDate.ofEpochDay(baseDay + d), total(bucket, sums[bucket * 2], sums[bucket * 2 + 1]));
+            }
+        }
+        return dateToSum;
+    }
+
+    /**
+     * @param kernel AggregationKernel to sum with
+     * @return Total USD of the whole batch by side, [0] outgoing (Buy), [1] incoming (Sell)
+     */
+    BigDecimal[] totalBySide(AggregationKernel kernel) {
+        final long[] totals = new long[4];
+        kernel.sumBySide(amount, incoming, 0, amount.length, totals);
+        BigDecimal outgoing = new BigDecimal(AggregationKernel.total(totals[0], totals[1]), scale);
+        BigDecimal incomingTotal = new BigDecimal(AggregationKernel.total(totals[2], totals[3]), scale);
+        for (final Map.Entry<Integer, BigDecimal> e : remainder.entrySet()) {
+            if ((e.getKey() & 1) == 0) {
+                outgoing = outgoing.add(e.getValue());
+            } else {
+                incomingTotal = incomingTotal.add(e.getValue());
+            }
+        }
+        return new BigDecimal[]{outgoing, incomingTotal};
+    }
+
+    /**
+     * @return Exact sum of a bucket, from the kernel's sums and any remainder, at the scale BigDecimal.add would give
+     */
+    private BigDecimal total(int bucket, long high, long low) {
+        BigDecimal sum = new BigDecimal(AggregationKernel.total(high, low), scale);
+        final BigDecimal rest = remainder.get(bucket);
+        if (rest != null) {
+            sum = sum.add(rest);
+        }
+        // every amount in the bucket had at most resultScale places, the rest of the digits are zero
+        return sum.setScale(resultScale[bucket]);
+    }
+}
@@ -0,0 +1,146 @@
+package com.jpmorgan.dtre;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Row numbers of a DataSource sorted by (adjusted) settlement epoch day, so a report over a window of
+ * settlement dates reads only the rows settling in it rather than scanning the whole book.
+ *
+ * Layout:
+ * - days: each distinct settlement epoch day, ascending
+ * - offsets: the rows of days[i] are rowsByDay[offsets[i]] to rowsByDay[offsets[i + 1] - 1]
+ * - rowsByDay: row numbers, by settlement day and then in row order
+ * A window [from, to] is two binary searches of days, then one run of rowsByDay.
+ *
+ * Built with a counting sort over the range of days (a few hundred or thousand, normally), falling back to
+ * sorting (day, row) pairs if the days are spread too thinly for that. Covers the first rowCount() rows of
+ * the store it was built from; rows appended since are not in it, see DataSource.getDailyReport(from, to).
+ * Immutable.
+ */
+final class SettlementIndex {
+
+    /** Widest range of days counted into a table, beyond this the pairs are sorted instead */
+    private final static int MAX_COUNTED_DAYS = 1 << 22;
+
+    private final int rowCount;
+    private final int[] days;
+    private final int[] offsets;
+    private final int[] rowsByDay;
+
+    /**
+     * Indexes rows 0 to rowCount-1
+     * @param rowCount Number of rows to index
+     * @param settlementDay Settlement epoch day of each row number
+     */
+    SettlementIndex(int rowCount, IntUnaryOperator settlementDay) {
+        this.rowCount = rowCount;
+        final int[] dayOfRow = new int[rowCount];
+        long low = Long.MAX_VALUE;
+        long high = Long.MIN_VALUE;
+        for (int row = 0; row < rowCount; row++) {
+            dayOfRow[row] = settlementDay.applyAsInt(row);
+            low = Math.min(low, dayOfRow[row]);
+            high = Math.max(high, dayOfRow[row]);
+        }
+        rowsByDay = new int[rowCount];
+        if (rowCount == 0) {
+            days = new int[0];
+            offsets = new int[1];
+        } else if (high - low < MAX_COUNTED_DAYS) {
+            // counting sort: rows per day, then where each day starts
+            final int base = (int) low;
+            final int[] start = new int[(int) (high - low) + 2];
+            int distinct = 0;
+            for (final int day : dayOfRow) {
+                if (start[day - base + 1]++ == 0) {
+                    distinct++;
+                }
+            }
+            days = new int[distinct];
+            offsets = new int[distinct + 1];
+            int d = 0;
+            for (int i = 1; i < start.length; i++) {
+                if (start[i] != 0) {
+                    days[d] = base + i - 1;
+                    offsets[d + 1] = offsets[d] + start[i];
+                    d++;
+                }
+                start[i] += start[i - 1];
+            }
+            for (int row = 0; row < rowCount; row++) {
+                rowsByDay[start[dayOfRow[row] - base]++] = row;
+            }
+        } else {
+            final long[] pairs = new long[rowCount];
+            for (int row = 0; row < rowCount; row++) {
+                pairs[row] = ((long) dayOfRow[row] << 32) | row; // sorts by day, then row
+            }
+            Arrays.sort(pairs);
+            int distinct = 0;
+            for (int i = 0; i < rowCount; i++) {
+                if (i == 0 || (int) (pairs[i] >> 32) != (int) (pairs[i - 1] >> 32)) {
+                    distinct++;
+                }
+            }
+            days = new int[distinct];
+            offsets = new int[distinct + 1];
+            int d = 0;
+            for (int i = 0; i < rowCount; i++) {
+                final int day = (int) (pairs[i] >> 32);
+                if (i == 0 || day != days[d - 1]) {
+                    days[d++] = day;
+                }
+                offsets[d] = i + 1;
+                rowsByDay[i] = (int) pairs[i];
+            }
+        }
+    }
+
+    /**
+     * @return Number of rows indexed, the first rowCount() rows of the store
+     */
+    int rowCount() {
+        return rowCount;
+    }
+
+    /**
+     * @return Number of indexed rows settling from fromDay to toDay inclusive
+     */
+    int count(int fromDay, int toDay) {
+        return toDay < fromDay ? 0 : offsets[firstAfter(toDay)] - offsets[firstFrom(fromDay)];
+    }
+
+    /**
+     * Visits every indexed row settling from fromDay to toDay inclusive, by settlement day then row order
+     * @param fromDay First settlement epoch day
+     * @param toDay Last settlement epoch day
+     * @param action Given each row number
+     */
+    void forEachRow(int fromDay, int toDay, IntConsumer action) {
+        if (toDay < fromDay) {
+            return;
+        }
+        final int end = offsets[firstAfter(toDay)];
+        for (int i = offsets[firstFrom(fromDay)]; i < end; i++) {
+            action.accept(rowsByDay[i]);
+        }
+    }
+
+    /**
+     * @return Index into days of the first day on or after day
+     */
+    private int firstFrom(int day) {
+        final int i = Arrays.binarySearch(days, day);
+        return i >= 0 ? i : -i - 1;
+    }
+
+    /**
+     * @return Index into days of the first day after day
+     */
+    private int firstAfter(int day) {
+        final int i = Arrays.binarySearch(days, day);
+        return i >= 0 ? i + 1 : -i - 1;
+    }
+}
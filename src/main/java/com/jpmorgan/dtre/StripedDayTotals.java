@@ -0,0 +1,151 @@
+package com.jpmorgan.dtre;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * USD amount of trade per (settlement day, side), added to by any number of threads at once without a lock.
+ *
+ * Each (day, side) has a LongAdder per amount scale, 0 to 18, summing the unscaled amounts of that scale.
+ * A LongAdder stripes its count over cells picked per thread, so threads adding to the same day and side
+ * mostly touch different cache lines rather than contending on one. Amounts whose unscaled value is 2^31 or
+ * more in magnitude, or which have no long form, go to a BigDecimal per (day, side), summed by
+ * compare-and-set. The small amounts can then only overflow a LongAdder after 2^32 of them land on one day,
+ * side and scale.
+ *
+ * Reading adds the scales up with BigDecimal, so a total equals, value and scale, summing the same amounts
+ * with BigDecimal.add (see DailyReport.perDay). A total read while threads are adding holds some
+ * of their amounts and not others.
+ */
+final class StripedDayTotals {
+
+    private final static int SCALES = 19; // 10^18 is the largest power of ten in a long
+    private final static long SMALL = 1L << 31;
+
+    /**
+     * The totals of one (day, side)
+     */
+    private static final class Total {
+        final AtomicReferenceArray<LongAdder> byScale = new AtomicReferenceArray<>(SCALES);
+        final AtomicReference<BigDecimal> large = new AtomicReference<>();
+        final LongAdder count = new LongAdder();
+
+        LongAdder scale(int scale) {
+            final LongAdder adder = byScale.get(scale);
+            if (adder != null) {
+                return adder;
+            }
+            byScale.compareAndSet(scale, null, new LongAdder());
+            return byScale.get(scale);
+        }
+
+        BigDecimal sum() {
+            BigDecimal sum = large.get();
+            for (int scale = 0; scale < SCALES; scale++) {
+                final LongAdder adder = byScale.get(scale);
+                if (adder != null) {
+                    final BigDecimal part = BigDecimal.valueOf(adder.sum(), scale);
+                    sum = sum == null ? part : sum.add(part);
+                }
+            }
+            return sum;
+        }
+    }
+
+    private final ConcurrentHashMap<Long, Total> totals = new ConcurrentHashMap<>();
+
+    private static long key(int epochDay, ImmutableInstruction.BUYSELL side) {
+        return ((long) epochDay << 1) | side.ordinal();
+    }
+
+    private Total total(int epochDay, ImmutableInstruction.BUYSELL side) {
+        final Long key = key(epochDay, side);
+        final Total total = totals.get(key); // computeIfAbsent alone would lock the bin on every add
+        return total != null ? total : totals.computeIfAbsent(key, k -> new Total());
+    }
+
+    /**
+     * Adds one instruction's USD amount of trade to its settlement day and side, from any thread
+     * @param in ImmutableInstruction to take into account
+     */
+    void add(ImmutableInstruction in) {
+        final int epochDay = (int) in.getSettlementDate().toEpochDay();
+        if (in.isAmountOfTradeUSDScaledLong()) {
+            add(epochDay, in.getBuySell(), in.getAmountOfTradeUSDUnscaled(), in.getAmountOfTradeUSDScale());
+        } else {
+            add(epochDay, in.getBuySell(), in.getAmountOfTradeUSD());
+        }
+    }
+
+    /**
+     * Adds unscaled * 10^-scale to a settlement day and side, from any thread
+     */
+    void add(int epochDay, ImmutableInstruction.BUYSELL side, long unscaled, int scale) {
+        if (scale < 0 || scale >= SCALES || unscaled <= -SMALL || unscaled >= SMALL) {
+            addLarge(epochDay, side, BigDecimal.valueOf(unscaled, scale));
+            return;
+        }
+        final Total total = total(epochDay, side);
+        total.scale(scale).add(unscaled);
+        total.count.increment();
+    }
+
+    /**
+     * Adds an amount to a settlement day and side, from any thread
+     */
+    void add(int epochDay, ImmutableInstruction.BUYSELL side, BigDecimal amount) {
+        if (amount.unscaledValue().bitLength() < Long.SIZE) {
+            add(epochDay, side, amount.unscaledValue().longValue(), amount.scale());
+        } else {
+            addLarge(epochDay, side, amount);
+        }
+    }
+
+    private void addLarge(int epochDay, ImmutableInstruction.BUYSELL side, BigDecimal amount) {
+        final Total total = total(epochDay, side);
+        total.large.accumulateAndGet(amount, (sum, x) -> sum == null ? x : sum.add(x));
+        total.count.increment();
+    }
+
+    /**
+     * @param side S for incoming, B for outgoing
+     * @return Map<LocalDate, BigDecimal> in date order of settlement-date-to-sum-USD-trade for the side
+     */
+    Map<LocalDate, BigDecimal> perDay(ImmutableInstruction.BUYSELL side) {
+        final Map<LocalDate, BigDecimal> dateToSum = new TreeMap<>();
+        totals.forEach((key, total) -> {
+            if ((int) (key & 1L) == side.ordinal()) {
+                final BigDecimal sum = total.sum();
+                if (sum != null) {
+                    dateToSum.put(LocalDate.ofEpochDay(key >> 1), sum);
+                }
+            }
+        });
+        return dateToSum;
+    }
+
+    /**
+     * @return BigDecimal sum USD trade settling on the date on the side, null if none
+     */
+    BigDecimal get(LocalDate date, ImmutableInstruction.BUYSELL side) {
+        final Total total = totals.get(key((int) date.toEpochDay(), side));
+        return total == null ? null : total.sum();
+    }
+
+    /**
+     * @return Number of amounts added, over every day and side
+     */
+    long count() {
+        long count = 0L;
+        for (final Total total : totals.values()) {
+            count += total.count.sum();
+        }
+        return count;
+    }
+}
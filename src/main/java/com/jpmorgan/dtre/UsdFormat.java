@@ -0,0 +1,125 @@
+package com.jpmorgan.dtre;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+/**
+ * Formats USD amounts into a ReportBuffer, from their exact scaled long form where they have one.
+ *
+ * Replaces NumberFormat.getCurrencyInstance(Locale.US), which is slow, not thread-safe and needs a boxed
+ * BigDecimal. currency() gives the same text: $1,234.56, rounded half-even to cents, with a leading minus
+ * sign when negative (-$1,234.56, as the CLDR locale data of Java 9 on has it). plain() gives the exact value,
+ * as BigDecimal.toPlainString() would, for machine-readable output.
+ *
+ * Amounts with no scaled long form, or too large to round in a long, go the BigDecimal way round.
+ * Stateless, so thread-safe.
+ */
+final class UsdFormat {
+
+    private final static int CENTS = ISO4217.Currency.USD.scale;
+
+    /** Powers of ten that fit in a long, 10^0 to 10^18 */
+    private final static long[] POW10 = new long[19];
+
+    static {
+        POW10[0] = 1L;
+        for (int i = 1; i < POW10.length; i++) {
+            POW10[i] = POW10[i - 1] * 10L;
+        }
+    }
+
+    private UsdFormat() {
+    }
+
+    /**
+     * Appends unscaled * 10^-scale as $#,##0.00, rounded half-even to cents
+     */
+    static void currency(ReportBuffer out, long unscaled, int scale) {
+        long cents;
+        if (scale >= CENTS && scale - CENTS < POW10.length) {
+            final long divisor = POW10[scale - CENTS];
+            cents = unscaled / divisor;
+            final long twiceRemainder = Math.abs(unscaled % divisor) * 2; // under 2 * 10^18, no overflow
+            if (twiceRemainder > divisor || (twiceRemainder == divisor && (cents & 1L) != 0)) {
+                cents += Long.signum(unscaled);
+            }
+        } else if (scale < CENTS && scale >= CENTS - POW10.length + 1) {
+            final long factor = POW10[CENTS - scale];
+            if (Math.abs(unscaled) > Long.MAX_VALUE / factor) {
+                currency(out, BigDecimal.valueOf(unscaled, scale));
+                return;
+            }
+            cents = unscaled * factor;
+        } else {
+            currency(out, BigDecimal.valueOf(unscaled, scale));
+            return;
+        }
+        if (cents == Long.MIN_VALUE) {
+            currency(out, BigDecimal.valueOf(unscaled, scale));
+            return;
+        }
+        if (cents < 0) {
+            out.append('-');
+            cents = -cents;
+        }
+        out.append('$');
+        out.appendDigits(cents / 100, 1, true);
+        out.append('.');
+        out.appendDigits(cents % 100, 2, false);
+    }
+
+    /**
+     * Appends an amount as $#,##0.00, rounded half-even to cents
+     */
+    static void currency(ReportBuffer out, BigDecimal amount) {
+        final BigDecimal rounded = amount.setScale(CENTS, RoundingMode.HALF_EVEN);
+        if (rounded.unscaledValue().bitLength() < Long.SIZE - 1) {
+            currency(out, rounded.unscaledValue().longValue(), CENTS);
+            return;
+        }
+        // beyond 92 quadrillion dollars: group the digits of the plain string
+        final String digits = rounded.abs().toPlainString();
+        final int point = digits.indexOf('.');
+        if (rounded.signum() < 0) {
+            out.append('-');
+        }
+        out.append('$');
+        for (int i = 0; i < point; i++) {
+            if (i > 0 && (point - i) % 3 == 0) {
+                out.append(',');
+            }
+            out.append(digits.charAt(i));
+        }
+        out.append(digits.substring(point));
+    }
+
+    /**
+     * Appends unscaled * 10^-scale exactly, as BigDecimal.valueOf(unscaled, scale).toPlainString() would
+     */
+    static void plain(ReportBuffer out, long unscaled, int scale) {
+        if (scale < 0 || scale >= POW10.length || unscaled == Long.MIN_VALUE) {
+            out.append(BigDecimal.valueOf(unscaled, scale).toPlainString());
+            return;
+        }
+        if (unscaled < 0) {
+            out.append('-');
+            unscaled = -unscaled;
+        }
+        out.appendDigits(unscaled / POW10[scale], 1, false);
+        if (scale > 0) {
+            out.append('.');
+            out.appendDigits(unscaled % POW10[scale], scale, false);
+        }
+    }
+
+    /**
+     * Appends an amount exactly, as amount.toPlainString() would
+     */
+    static void plain(ReportBuffer out, BigDecimal amount) {
+        if (amount.unscaledValue().bitLength() < Long.SIZE) {
+            plain(out, amount.unscaledValue().longValue(), amount.scale());
+        } else {
+            out.append(amount.toPlainString());
+        }
+    }
+}
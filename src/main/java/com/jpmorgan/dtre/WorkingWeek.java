@@ -1,15 +1,23 @@
 package com.jpmorgan.dtre;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Paths;
 import java.time.DayOfWeek;
 import java.time.LocalDate;
 import java.util.*;
 
-
-import static java.time.temporal.TemporalAdjusters.nextOrSame;
-
 /**
  * A work week starts Monday and ends Friday, unless the currency of the trade is AED or SAR, where
- * the work week starts Sunday and ends Thursday. No other holidays to be taken into account.
+ * the work week starts Sunday and ends Thursday. No other holidays to be taken into account, unless
+ * a holiday file is given with -Ddtre.holidays (see HolidayCalendar): a currency named there is adjusted
+ * to its next business day by its own calendar instead, skipping its holidays as well as its weekend.
+ *
+ * Adjustment is precomputed: for each working-week pattern there is a table, indexed by epoch day, of the
+ * number of days to move forward to the next (or same) business day. Adjusting a settlement date is then
+ * one array load and an add, see adjustEpochDay(). The tables cover a horizon of dates, by default
+ * 1990-01-01 to 2099-12-31, set with -Ddtre.calendar.from and -Ddtre.calendar.to (ISO dates);
+ * dates outside the horizon are adjusted by day of week instead, with the same result.
  *
  * @author Peter D Bell, 5th May 2017
  */
@@ -28,6 +36,29 @@ public final class WorkingWeek {
 
     private final static Map<ISO4217.Currency, DayOfWeek> ADJUSTMENTBUREAU = new HashMap<>();
 
+    /** System properties setting the first and last day of the precomputed horizon, ISO dates */
+    final static String HORIZON_FROM_PROPERTY = "dtre.calendar.from";
+    final static String HORIZON_TO_PROPERTY = "dtre.calendar.to";
+
+    /** Working-week patterns, indexes into the tables below */
+    private final static int MON_FRI = 0;
+    private final static int SUN_THU = 1;
+
+    /** Pattern of each currency, by ordinal */
+    private final static byte[] PATTERN_BY_CURRENCY = new byte[ISO4217.Currency.values().length];
+
+    /** Days to the next (or same) business day, per pattern, by ISO day of week - 1 (Monday is 0) */
+    private final static byte[][] SHIFT_BY_DAY_OF_WEEK = new byte[2][7];
+
+    /** Days to the next (or same) business day, per pattern, by epoch day - horizonStart */
+    private final static byte[][] SHIFT_BY_EPOCH_DAY = new byte[2][];
+
+    private final static int horizonStart;
+    private final static int horizonEnd;
+
+    /** Holiday calendar of each currency, by ordinal, null where there is none */
+    private static volatile HolidayCalendar[] holidayCalendars = new HolidayCalendar[ISO4217.Currency.values().length];
+
     static {
         // what are the weekends in a Mon-Fri working week?
         WEEKEND_FOR_MON_FRI.add(DayOfWeek.SATURDAY);
@@ -40,6 +71,87 @@ public final class WorkingWeek {
         // adjustments needed for the following currencies
         ADJUSTMENTBUREAU.put(ISO4217.Currency.AED, DayOfWeek.SUNDAY);
         ADJUSTMENTBUREAU.put(ISO4217.Currency.SAR, DayOfWeek.SUNDAY);
+
+        for (final ISO4217.Currency currency : ISO4217.Currency.values()) {
+            PATTERN_BY_CURRENCY[currency.ordinal()] = (byte) (isAdjustedCurrency(currency) ? SUN_THU : MON_FRI);
+        }
+        fillShifts(SHIFT_BY_DAY_OF_WEEK[MON_FRI], WEEKEND_FOR_MON_FRI, defaultFirstDayOfWeek);
+        fillShifts(SHIFT_BY_DAY_OF_WEEK[SUN_THU], WEEKEND_FOR_SUN_THU, DayOfWeek.SUNDAY);
+
+        horizonStart = (int) LocalDate.parse(System.getProperty(HORIZON_FROM_PROPERTY, "1990-01-01")).toEpochDay();
+        horizonEnd = (int) LocalDate.parse(System.getProperty(HORIZON_TO_PROPERTY, "2099-12-31")).toEpochDay();
+        for (int pattern = 0; pattern < SHIFT_BY_EPOCH_DAY.length; pattern++) {
+            final byte[] table = new byte[Math.max(0, horizonEnd - horizonStart + 1)];
+            for (int i = 0; i < table.length; i++) {
+                table[i] = SHIFT_BY_DAY_OF_WEEK[pattern][dayOfWeekIndex(horizonStart + i)];
+            }
+            SHIFT_BY_EPOCH_DAY[pattern] = table;
+        }
+
+        final String holidayFile = System.getProperty(HolidayCalendar.HOLIDAYS_PROPERTY);
+        if (holidayFile != null) {
+            try {
+                setHolidayCalendars(HolidayCalendar.load(Paths.get(holidayFile), horizonStart, horizonEnd));
+            } catch (IOException e) {
+                throw new UncheckedIOException("Unable to load "+holidayFile, e);
+            }
+        }
+    }
+
+    /**
+     * Replaces the holiday calendars, a currency without one is adjusted for its weekend only
+     * @param calendars Map of calendar per currency, empty for none
+     */
+    static void setHolidayCalendars(Map<ISO4217.Currency, HolidayCalendar> calendars) {
+        final HolidayCalendar[] byOrdinal = new HolidayCalendar[ISO4217.Currency.values().length];
+        for (final Map.Entry<ISO4217.Currency, HolidayCalendar> e : calendars.entrySet()) {
+            byOrdinal[e.getKey().ordinal()] = e.getValue();
+        }
+        holidayCalendars = byOrdinal;
+    }
+
+    /**
+     * Fills in, for each day of the week, how far it is to firstDayOfWeek if it's a weekend day, else 0
+     */
+    private static void fillShifts(byte[] shifts, Set<DayOfWeek> weekend, DayOfWeek firstDayOfWeek) {
+        for (final DayOfWeek dow : DayOfWeek.values()) {
+            shifts[dow.ordinal()] = (byte) (weekend.contains(dow)
+                    ? Math.floorMod(firstDayOfWeek.getValue() - dow.getValue(), 7)
+                    : 0);
+        }
+    }
+
+    /**
+     * @return ISO day of week - 1 of an epoch day, so Monday is 0 (epoch day 0, 1970-01-01, was a Thursday)
+     */
+    private static int dayOfWeekIndex(long epochDay) {
+        return (int) Math.floorMod(epochDay + 3, 7L);
+    }
+
+    /**
+     * @return Days to move epochDay forward to the next (or same) business day for this currency
+     */
+    private static int shift(ISO4217.Currency currency, long epochDay) {
+        final HolidayCalendar calendar = holidayCalendars[currency.ordinal()];
+        if (calendar != null) {
+            return (int) (calendar.nextBusinessDay(epochDay) - epochDay);
+        }
+        final int pattern = PATTERN_BY_CURRENCY[currency.ordinal()];
+        final byte[] table = SHIFT_BY_EPOCH_DAY[pattern];
+        final long i = epochDay - horizonStart;
+        return i >= 0 && i < table.length
+                ? table[(int) i]
+                : SHIFT_BY_DAY_OF_WEEK[pattern][dayOfWeekIndex(epochDay)];
+    }
+
+    /**
+     * Epoch-day form of adjustForWeekendByCurrency, without creating any LocalDate
+     * @param currency Currency to check against - it matters when the host country does business
+     * @param epochDay Date as an epoch day
+     * @return int epochDay if that is a business day for this currency, else the epoch day of the next one
+     */
+    static int adjustEpochDay(ISO4217.Currency currency, int epochDay) {
+        return epochDay + shift(currency, epochDay);
     }
 
     /**
@@ -49,24 +161,22 @@ public final class WorkingWeek {
      * @return boolean true if this is a weekend, false if it's the working business week, for this currency
      */
     public static LocalDate adjustForWeekendByCurrency(ISO4217.Currency currency, LocalDate date) {
-
-        if (isWeekendByCurrency(currency, date)) {
-            return ADJUSTMENTBUREAU.containsKey(currency)
-                    ? date.with(nextOrSame(ADJUSTMENTBUREAU.get(currency))) // adjust according to currency
-                    : date.with(nextOrSame(defaultFirstDayOfWeek)); // or default
-        } else {
-            return date; // no change
-        }
+        final int days = shift(currency, date.toEpochDay());
+        return days == 0 ? date : date.plusDays(days); // no change, or forward to the first day of the week
     }
 
+    /**
+     * @return true if the date is not a business day for the currency: a weekend, or a holiday in its calendar
+     */
     static boolean isWeekendByCurrency(ISO4217.Currency currency, LocalDate date) {
+        return shift(currency, date.toEpochDay()) != 0;
+    }
 
-        if (ADJUSTMENTBUREAU.containsKey(currency)) {
-            // TODO: consider future proofing where adjustment currency maps to a Pair<DayOfWeek,Set<DayOfWeek>> (start to weekends)
-            return WEEKEND_FOR_SUN_THU.contains(date.getDayOfWeek());
-        } else {
-            return WEEKEND_FOR_MON_FRI.contains(date.getDayOfWeek());
-        }
+    /**
+     * @return Set<DayOfWeek> Weekend days of the currency's working week, before any holiday calendar
+     */
+    static Set<DayOfWeek> getWeekend(ISO4217.Currency currency) {
+        return Collections.unmodifiableSet(isAdjustedCurrency(currency) ? WEEKEND_FOR_SUN_THU : WEEKEND_FOR_MON_FRI);
     }
 
     static boolean isAdjustedCurrency(ISO4217.Currency currency) {
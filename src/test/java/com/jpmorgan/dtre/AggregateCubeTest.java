@@ -0,0 +1,156 @@
+package com.jpmorgan.dtre;
+
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.util.*;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+import static java.time.temporal.TemporalAdjusters.previousOrSame;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the AggregateCube: every roll-up must equal, value and scale, summing the same instructions with BigDecimal
+ */
+public class AggregateCubeTest {
+
+    private final static LocalDate FROM = LocalDate.parse("2016-01-01");
+    private final static LocalDate TO = LocalDate.parse("2016-03-31");
+
+    private static List<ImmutableInstruction> sample() {
+        return new SampleDataGenerator(11L, FROM, TO).generate(5_000, 2).asList();
+    }
+
+    /**
+     * The reference: group and sum with BigDecimal, in key order
+     */
+    private static <K> Map<K, BigDecimal> groupBy(Collection<ImmutableInstruction> rows,
+                                                  Predicate<ImmutableInstruction> filter,
+                                                  Function<ImmutableInstruction, K> key) {
+        final Map<K, BigDecimal> sums = new HashMap<>();
+        for (final ImmutableInstruction in : rows) {
+            if (filter.test(in)) {
+                sums.merge(key.apply(in), in.getAmountOfTradeUSD(), BigDecimal::add);
+            }
+        }
+        return sums;
+    }
+
+    @Test
+    public void rollUpsMatchBigDecimal() {
+        final List<ImmutableInstruction> rows = sample();
+        final InstructionColumns columns = new InstructionColumns();
+        rows.forEach(columns::append);
+
+        for (final AggregateCube cube : new AggregateCube[]{AggregateCube.of(rows), AggregateCube.of(columns)}) {
+            for (final ImmutableInstruction.BUYSELL side : ImmutableInstruction.BUYSELL.values()) {
+                final AggregateCube.Slice slice = AggregateCube.Slice.all().side(side);
+                final Predicate<ImmutableInstruction> onSide = in -> in.getBuySell() == side;
+                assertThat(cube.perDay(slice), equalTo(groupBy(rows, onSide, ImmutableInstruction::getSettlementDate)));
+                assertThat(cube.perEntity(slice), equalTo(groupBy(rows, onSide, ImmutableInstruction::getEntityId)));
+                assertThat(cube.perCurrency(slice), equalTo(groupBy(rows, onSide, ImmutableInstruction::getCurrency)));
+                assertThat(cube.perWeek(slice), equalTo(groupBy(rows, onSide,
+                        in -> in.getSettlementDate().with(previousOrSame(DayOfWeek.MONDAY)))));
+                assertThat(cube.perMonth(slice), equalTo(groupBy(rows, onSide, in -> YearMonth.from(in.getSettlementDate()))));
+            }
+            assertThat(cube.perSide(AggregateCube.Slice.all()), equalTo(groupBy(rows, in -> true, ImmutableInstruction::getBuySell)));
+            assertThat(cube.total(AggregateCube.Slice.all()), equalTo(groupBy(rows, in -> true, in -> 0).get(0)));
+            assertThat(cube.count(AggregateCube.Slice.all()), is((long) rows.size()));
+        }
+    }
+
+    /**
+     * Report totals read from the cube are those of the DailyReport
+     */
+    @Test
+    public void matchesDailyReport() {
+        final List<ImmutableInstruction> rows = sample();
+        final AggregateCube cube = AggregateCube.of(rows);
+        final DailyReport report = DailyReport.of(rows, AggregationMode.BIG_DECIMAL);
+        for (final ImmutableInstruction.BUYSELL side : ImmutableInstruction.BUYSELL.values()) {
+            assertThat(cube.perDay(AggregateCube.Slice.all().side(side)), equalTo(report.perDay(side)));
+            assertThat(cube.perEntity(AggregateCube.Slice.all().side(side)), equalTo(report.perEntity(side)));
+        }
+    }
+
+    @Test
+    public void narrowSlices() {
+        final List<ImmutableInstruction> rows = sample();
+        final AggregateCube cube = AggregateCube.of(rows);
+        final ImmutableInstruction first = rows.get(0);
+        final LocalDate from = first.getSettlementDate().minusDays(10);
+        final LocalDate to = first.getSettlementDate().plusDays(10);
+        final AggregateCube.Slice slice = AggregateCube.Slice.all()
+                .side(first.getBuySell())
+                .entity(first.getEntityId())
+                .currency(first.getCurrency())
+                .days(from, to);
+        final Predicate<ImmutableInstruction> inSlice = in -> in.getBuySell() == first.getBuySell()
+                && in.getEntityId() == first.getEntityId()
+                && in.getCurrency() == first.getCurrency()
+                && !in.getSettlementDate().isBefore(from) && !in.getSettlementDate().isAfter(to);
+
+        assertThat(cube.perDay(slice), equalTo(groupBy(rows, inSlice, ImmutableInstruction::getSettlementDate)));
+        assertThat(cube.total(slice), equalTo(groupBy(rows, inSlice, in -> 0).get(0)));
+        assertThat(cube.count(slice), is(rows.stream().filter(inSlice).count()));
+
+        // nothing there
+        assertThat(cube.perDay(AggregateCube.Slice.all().days(TO.plusYears(1), TO.plusYears(2))).entrySet(), empty());
+        assertThat(cube.total(AggregateCube.Slice.all().days(TO, FROM)), nullValue());
+        assertThat(cube.perEntity(AggregateCube.Slice.all().entity(1_000_000)).entrySet(), empty());
+    }
+
+    /**
+     * Days before and after the first, entities and currencies arriving out of order all grow the cube in place
+     */
+    @Test
+    public void growsInEveryDirection() {
+        final List<ImmutableInstruction> rows = new ArrayList<>(sample());
+        Collections.shuffle(rows, new Random(3));
+        final AggregateCube cube = new AggregateCube();
+        final List<ImmutableInstruction> added = new ArrayList<>();
+        for (final ImmutableInstruction in : rows) {
+            cube.onInstruction(in);
+            added.add(in);
+            if (added.size() % 997 == 0) {
+                assertThat(cube.perDay(AggregateCube.Slice.all()),
+                        equalTo(groupBy(added, x -> true, ImmutableInstruction::getSettlementDate)));
+            }
+        }
+        assertThat(cube.perCurrency(AggregateCube.Slice.all()), equalTo(groupBy(rows, x -> true, ImmutableInstruction::getCurrency)));
+    }
+
+    /**
+     * Amounts too large for a long, or with more decimal places than a long can be scaled to, stay exact
+     */
+    @Test
+    public void spillsToBigDecimal() {
+        final List<ImmutableInstruction> rows = new ArrayList<>();
+        rows.add(instruction(new BigDecimal("0.5"), 1_000_000, new BigDecimal("9000000000000.25")));
+        rows.add(instruction(new BigDecimal("0.5"), 1_000_000, new BigDecimal("9000000000000.25")));
+        rows.add(instruction(new BigDecimal("0.123456789012345678901"), 1, new BigDecimal("1.01")));
+        rows.add(instruction(new BigDecimal("1.0001"), 3, new BigDecimal("2.5")));
+        final AggregateCube cube = AggregateCube.of(rows);
+        assertThat(cube.perDay(AggregateCube.Slice.all()), equalTo(groupBy(rows, x -> true, ImmutableInstruction::getSettlementDate)));
+        assertThat(cube.total(AggregateCube.Slice.all()), equalTo(groupBy(rows, x -> true, x -> 0).get(0)));
+    }
+
+    private static ImmutableInstruction instruction(BigDecimal fx, int units, BigDecimal price) {
+        return new ImmutableInstruction(DataSource.ENTITIES.foo, ImmutableInstruction.BUYSELL.B, fx, ISO4217.Currency.USD,
+                FROM, FROM.plusDays(4), units, price);
+    }
+
+    @Test
+    public void dataSourceKeepsCubeUpToDate() {
+        final DataSource ds = new DataSource(DataSource.Store.COLUMNAR, null);
+        final AggregateCube cube = ds.getAggregateCube();
+        ds.append(instruction(new BigDecimal("0.5"), 10, new BigDecimal("1.25")));
+        assertThat(cube.perEntity(AggregateCube.Slice.all()), equalTo(groupBy(ds.getRows(), x -> true, ImmutableInstruction::getEntityId)));
+        assertThat(cube.count(AggregateCube.Slice.all()), is((long) ds.getRowsCount()));
+    }
+}
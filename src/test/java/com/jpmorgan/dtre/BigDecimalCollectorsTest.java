@@ -0,0 +1,80 @@
+package com.jpmorgan.dtre;
+
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for BigDecimalCollectors: on all cores, exactly what the sequential path gives, scales included
+ */
+public class BigDecimalCollectorsTest {
+
+    private final static LocalDate FROM = LocalDate.parse("2016-01-01");
+
+    private static List<ImmutableInstruction> rows(long seed, int count) {
+        final List<ImmutableInstruction> rows = new ArrayList<>(new SampleDataGenerator(seed, FROM, FROM.plusDays(90)).generate(count, 4).asList());
+        Collections.shuffle(rows, new Random(seed));
+        return rows;
+    }
+
+    /**
+     * BigDecimal.equals() compares scales too, so these are identical totals
+     */
+    @Test
+    public void parallelReportsMatchSequential() {
+        final List<ImmutableInstruction> rows = rows(11L, 200_000);
+        final DailyReport reference = DailyReport.of(rows, AggregationMode.BIG_DECIMAL);
+        for (final AggregationMode mode : AggregationMode.values()) {
+            final DailyReport sequential = DailyReport.of(rows, mode);
+            final DailyReport parallel = DailyReport.ofParallel(rows, mode);
+            for (final ImmutableInstruction.BUYSELL side : ImmutableInstruction.BUYSELL.values()) {
+                assertThat(parallel.perDay(side), equalTo(sequential.perDay(side)));
+                assertThat(parallel.perEntity(side), equalTo(sequential.perEntity(side)));
+                assertThat(parallel.perDay(side), equalTo(reference.perDay(side)));
+                assertThat(rows.parallelStream().collect(BigDecimalCollectors.sumPerDay(side)), equalTo(sequential.perDay(side)));
+                assertThat(rows.parallelStream().collect(BigDecimalCollectors.sumPerEntity(side)), equalTo(sequential.perEntity(side)));
+            }
+        }
+    }
+
+    @Test
+    public void summingMatchesReduce() {
+        final Random random = new Random(5);
+        final List<BigDecimal> amounts = new ArrayList<>();
+        for (int i = 0; i < 100_000; i++) {
+            amounts.add(BigDecimal.valueOf(random.nextLong() >> random.nextInt(64), random.nextInt(12) - 2));
+        }
+        amounts.add(new BigDecimal("123456789012345678901234567890.123")); // beyond a long
+        final BigDecimal expected = amounts.stream().reduce(BigDecimal.ZERO, BigDecimal::add);
+        final BigDecimal sum = amounts.parallelStream().collect(BigDecimalCollectors.summing(a -> a));
+        assertThat(sum, equalTo(expected));
+        assertThat(amounts.stream().collect(BigDecimalCollectors.summing(a -> a)), equalTo(expected));
+        assertThat(new ArrayList<BigDecimal>().parallelStream().collect(BigDecimalCollectors.summing(a -> a)), is(BigDecimal.ZERO));
+    }
+
+    /**
+     * Per-thread totals that overflowed a long, or sit at a finer scale than was added, combine exactly
+     */
+    @Test
+    public void summingByCombinesExactly() {
+        final BigDecimal big = BigDecimal.valueOf(Long.MAX_VALUE, 2);
+        final ScaledSums sums = IntStream.range(0, 10_000).parallel().boxed()
+                .collect(BigDecimalCollectors.summingBy(i -> i % 7, i -> i % 1_000 == 0 ? big : BigDecimal.valueOf(i)));
+        for (int key = 0; key < 7; key++) {
+            BigDecimal expected = BigDecimal.ZERO;
+            for (int i = key; i < 10_000; i += 7) {
+                expected = expected.add(i % 1_000 == 0 ? big : BigDecimal.valueOf(i));
+            }
+            assertThat(sums.get(key), equalTo(expected));
+        }
+    }
+}
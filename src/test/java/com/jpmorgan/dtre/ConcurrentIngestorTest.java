@@ -0,0 +1,118 @@
+package com.jpmorgan.dtre;
+
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the ConcurrentIngestor: instructions published from many threads all reach the DataSource once,
+ * and its aggregates agree with the striped totals
+ */
+public class ConcurrentIngestorTest {
+
+    @Test
+    public void manyProducers() throws InterruptedException {
+        final DataSource ds = new DataSource(DataSource.Store.COLUMNAR, null);
+        final int generated = ds.getRowsCount();
+        final DailyReport report = ds.getDailyReport(); // kept up to date by the consumer
+        final LocalDate today = LocalDate.now();
+        final List<ImmutableInstruction> rows = new SampleDataGenerator(9L, today.minusDays(6), today.plusDays(6))
+                .generate(40_000, 2).asList();
+
+        final List<Thread> producers = new ArrayList<>();
+        try (ConcurrentIngestor ingestor = new ConcurrentIngestor(ds, 128)) {
+            for (int p = 0; p < 4; p++) {
+                final List<ImmutableInstruction> mine = rows.subList(p * 10_000, (p + 1) * 10_000);
+                final Thread thread = new Thread(() -> mine.forEach(ingestor::publish));
+                thread.start();
+                producers.add(thread);
+            }
+            for (final Thread thread : producers) {
+                thread.join();
+            }
+            ingestor.flush();
+            assertThat(ingestor.getApplied(), is((long) rows.size()));
+            assertThat(ingestor.getTotals().count(), is((long) rows.size()));
+
+            final DailyReport published = DailyReport.of(rows, AggregationMode.BIG_DECIMAL);
+            for (final ImmutableInstruction.BUYSELL side : ImmutableInstruction.BUYSELL.values()) {
+                assertThat(ingestor.getTotals().perDay(side), equalTo(published.perDay(side)));
+            }
+        }
+
+        assertThat(ds.getRowsCount(), is(generated + rows.size()));
+        final DailyReport expected = DailyReport.of(ds.getRows(), AggregationMode.BIG_DECIMAL);
+        for (final ImmutableInstruction.BUYSELL side : ImmutableInstruction.BUYSELL.values()) {
+            assertThat(report.perDay(side), equalTo(expected.perDay(side)));
+            assertThat(report.perEntity(side), equalTo(expected.perEntity(side)));
+        }
+        final List<Long> ids = new ArrayList<>();
+        ds.getRows().subList(generated, ds.getRowsCount()).forEach(in -> ids.add(in.getId()));
+        final List<Long> expectedIds = new ArrayList<>();
+        rows.forEach(in -> expectedIds.add(in.getId()));
+        Collections.sort(ids);
+        Collections.sort(expectedIds);
+        assertThat(ids, equalTo(expectedIds));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void closedRefuses() {
+        final ConcurrentIngestor ingestor = new ConcurrentIngestor(new DataSource(DataSource.Store.LIST, null), 16);
+        ingestor.close();
+        ingestor.offer(new ImmutableInstruction(DataSource.ENTITIES.foo, ImmutableInstruction.BUYSELL.B,
+                new BigDecimal("0.50"), ISO4217.Currency.USD, LocalDate.now(), LocalDate.now(), 1, BigDecimal.ONE));
+    }
+
+    /**
+     * An append that fails stops the consumer, and the producers and flush() hear about it
+     */
+    @Test
+    public void consumerFailure() {
+        final DataSource ds = new DataSource(DataSource.Store.LIST, null);
+        final ImmutableInstruction rejected = new ImmutableInstruction(DataSource.ENTITIES.foo, ImmutableInstruction.BUYSELL.B,
+                new BigDecimal("0.50"), ISO4217.Currency.USD, LocalDate.now(), LocalDate.now(), 1, BigDecimal.ONE);
+        ds.addListener(in -> {
+            if (in == rejected) {
+                throw new IllegalArgumentException("rejected");
+            }
+        });
+        final ConcurrentIngestor ingestor = new ConcurrentIngestor(ds, 16);
+        ingestor.publish(rejected);
+        try {
+            ingestor.flush();
+            fail("flush() should have thrown");
+        } catch (IllegalStateException e) {
+            assertThat(e.getCause(), instanceOf(IllegalArgumentException.class));
+        }
+    }
+
+    /**
+     * An Error stopping the consumer is reported too, rather than flush() and publish() waiting on it for ever
+     */
+    @Test(timeout = 10_000)
+    public void consumerError() {
+        final DataSource ds = new DataSource(DataSource.Store.LIST,
+                InstructionSource.of(Collections.<ImmutableInstruction>emptyList()), null, false);
+        ds.addListener(in -> {
+            throw new OutOfMemoryError("simulated");
+        });
+        final ConcurrentIngestor ingestor = new ConcurrentIngestor(ds, 16);
+        try {
+            for (int i = 0; i < 64; i++) { // more than the ring holds
+                ingestor.publish(new ImmutableInstruction(DataSource.ENTITIES.foo, ImmutableInstruction.BUYSELL.B,
+                        new BigDecimal("0.50"), ISO4217.Currency.USD, LocalDate.now(), LocalDate.now(), 1, BigDecimal.ONE));
+            }
+            ingestor.flush();
+            fail("publish() or flush() should have thrown");
+        } catch (IllegalStateException e) {
+            assertThat(e.getCause(), instanceOf(OutOfMemoryError.class));
+        }
+    }
+}
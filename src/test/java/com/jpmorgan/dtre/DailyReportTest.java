@@ -0,0 +1,75 @@
+package com.jpmorgan.dtre;
+
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the single-pass DailyReport
+ */
+public class DailyReportTest {
+
+    /**
+     * The fused pass must agree with filtering per side and aggregating each report separately
+     */
+    @Test
+    public void singlePassMatchesSeparateAggregation() {
+        final DailyTrades dt = new DailyTrades();
+        final List<ImmutableInstruction> rows = DataSource.getInstance().getRows();
+        final DailyReport report = DailyReport.of(rows);
+
+        for (final ImmutableInstruction.BUYSELL side : ImmutableInstruction.BUYSELL.values()) {
+            final List<ImmutableInstruction> orders = rows.stream()
+                    .filter(r -> r.getBuySell() == side)
+                    .collect(Collectors.toList());
+            assertThat(report.perDay(side), equalTo(dt.aggregateSumPerDay(orders)));
+            assertThat(report.perEntity(side), equalTo(dt.aggregateSumByEntity(orders)));
+        }
+    }
+
+    /**
+     * Two identical-looking instructions are two trades, both must be counted
+     */
+    @Test
+    public void identicalInstructionsBothCounted() {
+        final ImmutableInstruction foo = new ImmutableInstruction(
+                DataSource.ENTITIES.foo,
+                ImmutableInstruction.BUYSELL.S,
+                new BigDecimal("0.50"),
+                ISO4217.Currency.SGD,
+                LocalDate.parse("2016-01-01"),
+                LocalDate.parse("2016-01-04"),
+                200,
+                DataSource.ENTITIES.foo.getLastValueUSD()
+        );
+
+        final DailyReport report = DailyReport.of(Arrays.asList(foo, foo));
+        assertThat(report.perDay(ImmutableInstruction.BUYSELL.S).get(LocalDate.parse("2016-01-04")),
+                comparesEqualTo(new BigDecimal("20050.00")));
+        assertThat(report.perEntity(ImmutableInstruction.BUYSELL.S).get(DataSource.ENTITIES.foo.ordinal()),
+                comparesEqualTo(new BigDecimal("20050.00")));
+        assertThat(report.perDay(ImmutableInstruction.BUYSELL.B).entrySet(), empty());
+        assertThat(report.perEntity(ImmutableInstruction.BUYSELL.B).entrySet(), empty());
+    }
+
+    /**
+     * Scaled long and BigDecimal aggregation must give identical totals, scale included
+     */
+    @Test
+    public void scaledLongMatchesBigDecimal() {
+        final List<ImmutableInstruction> rows = DataSource.getInstance().getRows();
+        final DailyReport scaled = DailyReport.of(rows, AggregationMode.SCALED_LONG);
+        final DailyReport reference = DailyReport.of(rows, AggregationMode.BIG_DECIMAL);
+
+        for (final ImmutableInstruction.BUYSELL side : ImmutableInstruction.BUYSELL.values()) {
+            assertThat(scaled.perDay(side), equalTo(reference.perDay(side)));
+            assertThat(scaled.perEntity(side), equalTo(reference.perEntity(side)));
+        }
+    }
+}
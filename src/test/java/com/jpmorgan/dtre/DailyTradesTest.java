@@ -5,7 +5,9 @@ package com.jpmorgan.dtre;
 
 import org.junit.Test;
 
+import java.io.ByteArrayOutputStream;
 import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
 import java.text.NumberFormat;
 import java.time.LocalDate;
 import java.util.*;
@@ -137,4 +139,68 @@ public class DailyTradesTest {
         assertThat(nf.format(agg.get(LocalDate.parse("2016-01-04"))), equalTo(nf.format(foo.getAmountOfTradeUSD().add(bar.getAmountOfTradeUSD()))));
         assertThat(nf.format(agg.get(LocalDate.parse("2016-01-04"))), equalTo(nf.format(new BigDecimal("24924.50"))));
     }
+
+    /**
+     * The end-of-day batch, on each kernel in this JVM, prints the per-day reports reports() prints from the totals
+     */
+    @Test
+    public void batchReportsMatchReports() {
+        final DataSource ds = new DataSource(DataSource.Store.COLUMNAR,
+                InstructionSource.generated(11L, LocalDate.parse("2016-01-01"), LocalDate.parse("2016-02-29"), 5_000), null, false);
+        final DailyTrades dt = new DailyTrades(ds);
+        final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        try (ReportSink sink = ReportSink.console(expected)) {
+            dt.incomingSettledUSDDaily(ds.getDailyReport(), sink);
+            dt.outgoingSettledUSDDaily(ds.getDailyReport(), sink);
+        }
+        final List<AggregationKernel> kernels = new ArrayList<>();
+        kernels.add(AggregationKernel.scalar());
+        if (AggregationKernel.vector() != null) {
+            kernels.add(AggregationKernel.vector());
+        }
+        for (final AggregationKernel kernel : kernels) {
+            final ByteArrayOutputStream batch = new ByteArrayOutputStream();
+            try (ReportSink sink = ReportSink.console(batch)) {
+                dt.batchReports(kernel, sink);
+            }
+            assertThat(kernel.name(), new String(batch.toByteArray(), StandardCharsets.UTF_8),
+                    equalTo(new String(expected.toByteArray(), StandardCharsets.UTF_8)));
+        }
+        assertThat(new String(expected.toByteArray(), StandardCharsets.UTF_8), containsString("=== Amount in USD settled incoming (Sell) every day ===\n2016-01-"));
+    }
+
+    /**
+     * The per-currency reports render the aggregate cube's roll-up, rounded to cents on the console and exact in CSV
+     */
+    @Test
+    public void currencyReportsRenderTheCube() {
+        final DataSource ds = new DataSource(DataSource.Store.LIST,
+                InstructionSource.generated(12L, LocalDate.parse("2016-01-01"), LocalDate.parse("2016-01-31"), 2_000), null, false);
+        final DailyTrades dt = new DailyTrades(ds);
+        final AggregateCube cube = ds.getAggregateCube();
+        final StringBuilder console = new StringBuilder();
+        final StringBuilder csv = new StringBuilder("report,date,rank,entity,currency,usd\n");
+        for (final ReportSink.Report report : new ReportSink.Report[]{ReportSink.Report.INCOMING_PER_CURRENCY, ReportSink.Report.OUTGOING_PER_CURRENCY}) {
+            final ImmutableInstruction.BUYSELL side = report == ReportSink.Report.INCOMING_PER_CURRENCY
+                    ? ImmutableInstruction.BUYSELL.S : ImmutableInstruction.BUYSELL.B;
+            final Map<ISO4217.Currency, BigDecimal> perCurrency = cube.perCurrency(AggregateCube.Slice.all().side(side));
+            assertThat(perCurrency.size(), greaterThan(1));
+            console.append("=== ").append(report.title).append(" ===\n");
+            for (final Map.Entry<ISO4217.Currency, BigDecimal> e : perCurrency.entrySet()) {
+                console.append(e.getKey().name()).append(" => ").append(nf.format(e.getValue())).append('\n');
+                csv.append(report.key).append(",,,,").append(e.getKey().name()).append(',').append(e.getValue().toPlainString()).append('\n');
+            }
+        }
+
+        final ByteArrayOutputStream consoleBytes = new ByteArrayOutputStream();
+        try (ReportSink sink = ReportSink.console(consoleBytes)) {
+            dt.currencyReports(sink);
+        }
+        assertThat(new String(consoleBytes.toByteArray(), StandardCharsets.UTF_8), equalTo(console.toString()));
+        final ByteArrayOutputStream csvBytes = new ByteArrayOutputStream();
+        try (ReportSink sink = ReportSink.csv(csvBytes)) {
+            dt.currencyReports(sink);
+        }
+        assertThat(new String(csvBytes.toByteArray(), StandardCharsets.UTF_8), equalTo(csv.toString()));
+    }
 }
\ No newline at end of file
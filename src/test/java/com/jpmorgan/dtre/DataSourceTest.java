@@ -3,7 +3,10 @@ package com.jpmorgan.dtre;
 import org.junit.Test;
 
 import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 import static org.hamcrest.Matchers.*;
 import static org.junit.Assert.*;
@@ -71,4 +74,57 @@ public class DataSourceTest {
             assertThat(r.getPricePerUnit().compareTo(BigDecimal.ZERO), greaterThan(0));
         });
     }
-}
\ No newline at end of file
+
+    /**
+     * Appending updates the maintained report, which always matches a full recompute
+     */
+    @Test
+    public void appendKeepsDailyReportCurrent() {
+        for (final DataSource.Store store : DataSource.Store.values()) {
+            final DataSource ds = new DataSource(store, null);
+            final DailyReport maintained = ds.getDailyReport();
+            assertSame(maintained, ds.getDailyReport());
+
+            final int before = ds.getRowsCount();
+            ds.append(new ImmutableInstruction(
+                    DataSource.ENTITIES.foo,
+                    ImmutableInstruction.BUYSELL.S,
+                    new BigDecimal("0.50"),
+                    ISO4217.Currency.GBP,
+                    LocalDate.parse("2016-01-01"),
+                    LocalDate.parse("2016-01-04"),
+                    200,
+                    DataSource.ENTITIES.foo.getLastValueUSD()
+            ));
+            assertThat(ds.getRowsCount(), is(before + 1));
+
+            final DailyReport recomputed = DailyReport.of(ds.getRows(), AggregationMode.BIG_DECIMAL);
+            for (final ImmutableInstruction.BUYSELL side : ImmutableInstruction.BUYSELL.values()) {
+                assertThat(maintained.perDay(side), equalTo(recomputed.perDay(side)));
+                assertThat(maintained.perEntity(side), equalTo(recomputed.perEntity(side)));
+            }
+        }
+    }
+
+    /**
+     * A listener hears about the rows already held, then each append, until removed
+     */
+    @Test
+    public void listenerReplayThenAppend() {
+        final DataSource ds = new DataSource(DataSource.Store.LIST, null);
+        final List<ImmutableInstruction> heard = new ArrayList<>();
+        final InstructionListener listener = heard::add;
+
+        ds.addListener(listener);
+        assertThat(heard, equalTo(ds.getRows()));
+
+        final ImmutableInstruction in = ds.getRows().get(0);
+        ds.append(in);
+        assertThat(heard.size(), is(ds.getRowsCount()));
+        assertSame(in, heard.get(heard.size() - 1));
+
+        ds.removeListener(listener);
+        ds.append(in);
+        assertThat(heard.size(), is(ds.getRowsCount() - 1));
+    }
+}
@@ -0,0 +1,100 @@
+package com.jpmorgan.dtre;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.Collections;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the DedupIndex of client references, and its use by DataSource
+ */
+public class DedupIndexTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static ImmutableInstruction foo() {
+        return new ImmutableInstruction(
+                DataSource.ENTITIES.foo,
+                ImmutableInstruction.BUYSELL.B,
+                new BigDecimal("0.50"),
+                ISO4217.Currency.SGD,
+                LocalDate.parse("2016-01-01"),
+                LocalDate.parse("2016-01-02"),
+                200,
+                DataSource.ENTITIES.foo.getLastValueUSD()
+        );
+    }
+
+    @Test
+    public void firstReferenceWins() {
+        final DedupIndex index = new DedupIndex();
+        assertThat(index.accept("REF-1", 10L), is(DedupIndex.NONE));
+        assertThat(index.accept("REF-2", 11L), is(DedupIndex.NONE));
+        assertThat(index.accept("REF-1", 12L), is(10L));
+        assertThat(index.find("REF-1"), is(10L));
+        assertThat(index.find("REF-3"), is(DedupIndex.NONE));
+        assertThat(index.size(), is(2));
+    }
+
+    @Test
+    public void restoreKeepsAccepted() {
+        final DedupIndex index = new DedupIndex();
+        index.accept("REF-1", 10L);
+        index.restore(Collections.singletonMap("REF-1", 99L));
+        index.restore(Collections.singletonMap("REF-2", 20L));
+        assertThat(index.find("REF-1"), is(10L));
+        assertThat(index.find("REF-2"), is(20L));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void emptyReference() {
+        new DedupIndex().accept("", 1L);
+    }
+
+    /**
+     * Identical-looking trades under different references are both kept, a resend under the same one isn't
+     */
+    @Test
+    public void dataSourceRejectsResend() {
+        final DataSource ds = new DataSource(DataSource.Store.COLUMNAR, null, null, null, true);
+        final int generated = ds.getRowsCount();
+        assertTrue(ds.append(foo(), "REF-1"));
+        assertTrue(ds.append(foo(), "REF-2"));
+        assertFalse(ds.append(foo(), "REF-1"));
+        assertTrue(ds.append(foo(), null));
+        assertThat(ds.getRowsCount(), is(generated + 3));
+    }
+
+    @Test
+    public void dataSourceWithoutDedupAcceptsAll() {
+        final DataSource ds = new DataSource(DataSource.Store.LIST, null);
+        final int generated = ds.getRowsCount();
+        assertTrue(ds.append(foo(), "REF-1"));
+        assertTrue(ds.append(foo(), "REF-1"));
+        assertThat(ds.getRowsCount(), is(generated + 2));
+    }
+
+    /**
+     * References accepted by a journaling DataSource are still rejected after it restarts
+     */
+    @Test
+    public void referencesSurviveRestart() throws Exception {
+        final String dir = folder.newFolder().toString();
+        final DataSource first = new DataSource(DataSource.Store.COLUMNAR, null, null, dir, true);
+        final ImmutableInstruction in = foo();
+        assertTrue(first.append(in, "REF-1"));
+        first.syncJournal();
+
+        final DataSource second = new DataSource(DataSource.Store.COLUMNAR, null, null, dir, true);
+        assertThat(second.getRows(), hasItem(in));
+        assertFalse(second.append(foo(), "REF-1"));
+        assertTrue(second.append(foo(), "REF-2"));
+    }
+}
@@ -0,0 +1,134 @@
+package com.jpmorgan.dtre;
+
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the runtime EntityRegistry
+ */
+public class EntityRegistryTest {
+
+    @Test
+    public void seededIdsAreOrdinals() {
+        final EntityRegistry registry = EntityRegistry.getInstance();
+        for (final DataSource.ENTITIES e : DataSource.ENTITIES.values()) {
+            assertThat(registry.find(e.name()), equalTo(e.ordinal()));
+            assertThat(registry.symbol(e.ordinal()), equalTo(e.name()));
+            assertThat(registry.name(e.ordinal()), equalTo(e.getEntityName()));
+            assertThat(registry.referencePrice(e.ordinal()), equalTo(e.getLastValueUSD()));
+        }
+    }
+
+    @Test
+    public void internFromBytes() {
+        final EntityRegistry registry = new EntityRegistry();
+        final ByteBuffer line = ByteBuffer.wrap("ACME|B|ACME|S".getBytes(StandardCharsets.US_ASCII));
+        assertThat(registry.find(line, 0, 4), equalTo(-1));
+
+        final int id = registry.intern(line, 0, 4);
+        assertThat(id, equalTo(0));
+        assertThat(registry.intern(line, 7, 11), equalTo(id));
+        assertThat(registry.find("ACME"), equalTo(id));
+        assertThat(registry.find("ACM"), equalTo(-1));
+        assertThat(registry.symbol(id), equalTo("ACME"));
+        assertThat(registry.name(id), nullValue());
+        assertThat(registry.referencePrice(id), nullValue());
+        assertThat(registry.size(), equalTo(1));
+    }
+
+    /**
+     * Symbols are UTF-8, so one read from a file's raw bytes and one interned as a String are the same entity
+     */
+    @Test
+    public void nonAsciiSymbol() {
+        final EntityRegistry registry = new EntityRegistry();
+        final int id = registry.intern("\u00c9CLAIR");
+        final byte[] bytes = "\u00c9CLAIR|B".getBytes(StandardCharsets.UTF_8);
+        assertThat(registry.find(ByteBuffer.wrap(bytes), 0, bytes.length - 2), equalTo(id));
+        assertThat(registry.symbol(id), equalTo("\u00c9CLAIR"));
+        assertThat(registry.find("?CLAIR"), equalTo(-1));
+        assertThat(registry.intern("\u00c8CLAIR"), not(equalTo(id)));
+    }
+
+    @Test
+    public void growsToManyEntities() {
+        final EntityRegistry registry = new EntityRegistry();
+        final int n = 50_000;
+        for (int i = 0; i < n; i++) {
+            assertThat(registry.intern("E" + i, "Entity " + i, BigDecimal.valueOf(i, 2)), equalTo(i));
+        }
+        assertThat(registry.size(), equalTo(n));
+        for (int i = 0; i < n; i += 997) {
+            assertThat(registry.find("E" + i), equalTo(i));
+            assertThat(registry.symbol(i), equalTo("E" + i));
+            assertThat(registry.name(i), equalTo("Entity " + i));
+            assertThat(registry.referencePrice(i), equalTo(BigDecimal.valueOf(i, 2)));
+        }
+    }
+
+    @Test
+    public void firstRegistrationWins() {
+        final EntityRegistry registry = new EntityRegistry();
+        final int id = registry.intern("ACME", "Acme Corp", new BigDecimal("1.50"));
+        assertThat(registry.intern("ACME", "Other", new BigDecimal("9.99")), equalTo(id));
+        assertThat(registry.name(id), equalTo("Acme Corp"));
+        assertThat(registry.referencePrice(id), equalTo(new BigDecimal("1.50")));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void emptySymbol() {
+        new EntityRegistry().intern("");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownId() {
+        new EntityRegistry().symbol(0);
+    }
+
+    /**
+     * Threads interning overlapping symbols must all agree on one dense id per symbol
+     */
+    @Test
+    public void concurrentIntern() throws Exception {
+        final EntityRegistry registry = new EntityRegistry();
+        final int threads = 4;
+        final int symbols = 5_000;
+        final ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            final List<Future<int[]>> results = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                final int offset = t;
+                results.add(pool.submit(() -> {
+                    final int[] ids = new int[symbols];
+                    for (int i = 0; i < symbols; i++) {
+                        final int s = (i + offset * 1_237) % symbols;
+                        ids[s] = registry.intern("S" + s);
+                    }
+                    return ids;
+                }));
+            }
+            final int[] first = results.get(0).get();
+            for (final Future<int[]> result : results) {
+                assertArrayEquals(first, result.get());
+            }
+        } finally {
+            pool.shutdown();
+        }
+        assertThat(registry.size(), equalTo(symbols));
+        final Set<Integer> ids = new HashSet<>();
+        for (int s = 0; s < symbols; s++) {
+            final int id = registry.find("S" + s);
+            assertThat(registry.symbol(id), equalTo("S" + s));
+            ids.add(id);
+        }
+        assertThat(ids.size(), equalTo(symbols));
+    }
+}
@@ -0,0 +1,134 @@
+package com.jpmorgan.dtre;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.util.*;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the bitset HolidayCalendar
+ */
+public class HolidayCalendarTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final int START = (int) LocalDate.parse("2016-01-01").toEpochDay();
+    private static final int END = (int) LocalDate.parse("2018-12-31").toEpochDay();
+
+    private static int day(String iso) {
+        return (int) LocalDate.parse(iso).toEpochDay();
+    }
+
+    private Path write(String content) throws IOException {
+        final Path file = folder.newFile().toPath();
+        Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    /**
+     * Bit scanning must agree with stepping through the dates one by one, inside the bitset and past its end
+     */
+    @Test
+    public void matchesDayByDaySearch() {
+        final Set<DayOfWeek> weekend = EnumSet.of(DayOfWeek.SATURDAY, DayOfWeek.SUNDAY);
+        final Random random = new Random(42);
+        final Set<Integer> holidays = new HashSet<>();
+        for (int i = 0; i < 100; i++) {
+            holidays.add(START + random.nextInt(END - START));
+        }
+        final HolidayCalendar calendar = new HolidayCalendar(weekend,
+                holidays.stream().mapToInt(Integer::intValue).toArray(), START, END);
+
+        for (int d = START - 30; d < END + 100; d++) {
+            int expected = d;
+            while (weekend.contains(LocalDate.ofEpochDay(expected).getDayOfWeek())
+                    || (calendar.covers(expected) && holidays.contains(expected))) {
+                expected++;
+            }
+            assertThat(LocalDate.ofEpochDay(d).toString(), calendar.nextBusinessDay(d), equalTo((long) expected));
+            assertThat(calendar.isBusinessDay(d), equalTo(expected == d));
+        }
+    }
+
+    /**
+     * A run of holidays longer than a 64-day word is crossed
+     */
+    @Test
+    public void longHolidayRun() {
+        final int[] holidays = new int[200];
+        for (int i = 0; i < holidays.length; i++) {
+            holidays[i] = day("2017-01-01") + i;
+        }
+        final HolidayCalendar calendar = new HolidayCalendar(EnumSet.noneOf(DayOfWeek.class), holidays, START, END);
+        assertThat(calendar.nextBusinessDay(day("2017-01-01")), equalTo((long) day("2017-01-01") + 200));
+        assertThat(calendar.nextBusinessDay(day("2016-12-31")), equalTo((long) day("2016-12-31")));
+    }
+
+    @Test
+    public void loadFile() throws IOException {
+        final Map<ISO4217.Currency, HolidayCalendar> calendars = HolidayCalendar.load(write(
+                "# holidays\n" +
+                "GBP|2017-12-25\n" +
+                "GBP|2017-12-26\n" +
+                "\n" +
+                "AED|weekend|FRIDAY,SATURDAY\n" +
+                "AED|2017-05-07\n"), START, END);
+
+        assertThat(calendars.keySet(), containsInAnyOrder(ISO4217.Currency.GBP, ISO4217.Currency.AED));
+        // Christmas Day 2017 is a Monday, Boxing Day a Tuesday
+        assertThat(calendars.get(ISO4217.Currency.GBP).nextBusinessDay(day("2017-12-23")), equalTo((long) day("2017-12-27")));
+        // Friday 5th May 2017, Sunday the 7th is a holiday, so Monday the 8th
+        assertThat(calendars.get(ISO4217.Currency.AED).nextBusinessDay(day("2017-05-05")), equalTo((long) day("2017-05-08")));
+    }
+
+    @Test
+    public void malformedLineReportsLineNumber() throws IOException {
+        try {
+            HolidayCalendar.load(write("GBP|2017-12-25\nGBP|2017-02-30\n"), START, END);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            assertThat(e.getMessage(), containsString("line 2"));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownCurrency() throws IOException {
+        HolidayCalendar.load(write("XXY|2017-12-25\n"), START, END);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void weekendIsWholeWeek() {
+        new HolidayCalendar(EnumSet.allOf(DayOfWeek.class), new int[0], START, END);
+    }
+
+    /**
+     * With a calendar, settlement skips that currency's holidays, other currencies are untouched
+     */
+    @Test
+    public void workingWeekUsesCalendars() {
+        final Map<ISO4217.Currency, HolidayCalendar> calendars = new EnumMap<>(ISO4217.Currency.class);
+        calendars.put(ISO4217.Currency.GBP, new HolidayCalendar(WorkingWeek.getWeekend(ISO4217.Currency.GBP),
+                new int[]{day("2017-12-25"), day("2017-12-26")}, START, END));
+        WorkingWeek.setHolidayCalendars(calendars);
+        try {
+            assertThat(WorkingWeek.adjustEpochDay(ISO4217.Currency.GBP, day("2017-12-24")), equalTo(day("2017-12-27")));
+            assertThat(WorkingWeek.adjustForWeekendByCurrency(ISO4217.Currency.GBP, LocalDate.parse("2017-12-25")),
+                    equalTo(LocalDate.parse("2017-12-27")));
+            assertThat(WorkingWeek.isWeekendByCurrency(ISO4217.Currency.GBP, LocalDate.parse("2017-12-26")), is(true));
+            assertThat(WorkingWeek.adjustEpochDay(ISO4217.Currency.USD, day("2017-12-24")), equalTo(day("2017-12-25")));
+        } finally {
+            WorkingWeek.setHolidayCalendars(Collections.emptyMap());
+        }
+    }
+}
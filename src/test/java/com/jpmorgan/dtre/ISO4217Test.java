@@ -127,4 +127,45 @@ public class ISO4217Test {
     public void invalidCurrencySampleData() {
         ISO4217.Currency.valueOf("SGP");
     }
-}
\ No newline at end of file
+
+    /**
+     * Every currency resolves from its alphabetic code and its numeric code, and numeric codes are unique
+     */
+    @Test
+    public void lookupByCode() {
+        for (final ISO4217.Currency c : ISO4217.Currency.values()) {
+            assertThat(ISO4217.Currency.fromAlpha(c.name()), is(c));
+            assertThat(ISO4217.Currency.fromAlpha((byte) c.name().charAt(0), (byte) c.name().charAt(1), (byte) c.name().charAt(2)), is(c));
+            assertThat(ISO4217.Currency.fromNumeric(c.numericCode), is(c));
+            assertThat(ISO4217.Currency.fromNumeric(Integer.parseInt(c.getNumericCode3Digits())), is(c));
+        }
+    }
+
+    @Test
+    public void lookupUnknownCode() {
+        assertThat(ISO4217.Currency.fromAlpha("SGP"), nullValue());
+        assertThat(ISO4217.Currency.fromAlpha("sgd"), nullValue());
+        assertThat(ISO4217.Currency.fromAlpha("AB"), nullValue());
+        assertThat(ISO4217.Currency.fromAlpha("FOUR"), nullValue());
+        assertThat(ISO4217.Currency.fromAlpha("#']"), nullValue());
+        assertThat(ISO4217.Currency.fromNumeric(-1), nullValue());
+        assertThat(ISO4217.Currency.fromNumeric(1), nullValue());
+        assertThat(ISO4217.Currency.fromNumeric(1000), nullValue());
+    }
+
+    /**
+     * Cached strings and scales must be the same as computing them
+     */
+    @Test
+    public void cachedStrings() {
+        for (final ISO4217.Currency c : ISO4217.Currency.values()) {
+            assertThat(c.getNumericCode3Digits(), equalTo(String.format("%03d", c.numericCode)));
+            assertThat(c.getNumericCode3Digits(), sameInstance(c.getNumericCode3Digits()));
+            assertThat(c.toString(), equalTo(c.name()+","+c.numericCode+","+String.format("%03d", c.numericCode)+","+c.minorUnit+","+c.currency));
+            assertThat(c.scale, equalTo(c.minorUnit == null ? 0 : c.minorUnit));
+        }
+        assertThat(ISO4217.Currency.USD.scale, is(2));
+        assertThat(ISO4217.Currency.BHD.scale, is(3));
+        assertThat(ISO4217.Currency.XAU.scale, is(0));
+    }
+}
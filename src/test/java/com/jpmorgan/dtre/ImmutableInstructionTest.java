@@ -6,6 +6,7 @@ import java.math.BigDecimal;
 import java.math.RoundingMode;
 import java.text.DecimalFormat;
 import java.time.DayOfWeek;
+import java.time.LocalDate;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Set;
@@ -25,6 +26,44 @@ public class ImmutableInstructionTest {
         assertThat(Arrays.asList(BUYSELL.values()), hasItem(BUYSELL.randomBuySell()));
     }
 
+    /**
+     * Identity is the id: identical-looking trades stay distinct in a Set, a rebuilt row is equal to its original
+     */
+    @Test
+    public void identityIsTheId() {
+        final ImmutableInstruction a = sample();
+        final ImmutableInstruction b = sample();
+        assertThat(b.getId(), greaterThan(a.getId()));
+        assertTrue(a.sameTradeAs(b));
+        assertNotEquals(a, b);
+        assertThat(new HashSet<>(Arrays.asList(a, b, a)), hasSize(2));
+
+        final InstructionColumns columns = new InstructionColumns();
+        columns.append(a);
+        assertThat(columns.get(0), equalTo(a));
+        assertThat(columns.get(0).hashCode(), is(a.hashCode()));
+        assertThat(columns.get(0), not(equalTo(b)));
+    }
+
+    @Test
+    public void reservedIdsNotReissued() {
+        final long restored = ImmutableInstruction.nextId() + 1_000;
+        ImmutableInstruction.reserveId(restored);
+        assertThat(sample().getId(), greaterThan(restored));
+    }
+
+    private static ImmutableInstruction sample() {
+        return new ImmutableInstruction(
+                DataSource.ENTITIES.foo,
+                BUYSELL.B,
+                new BigDecimal("0.50"),
+                ISO4217.Currency.SGD,
+                LocalDate.parse("2016-01-01"),
+                LocalDate.parse("2016-01-02"),
+                200,
+                DataSource.ENTITIES.foo.getLastValueUSD());
+    }
+
     @Test
     public void calculatedUSDAmountOfTrade() {
         final DataSource ds = DataSource.getInstance();
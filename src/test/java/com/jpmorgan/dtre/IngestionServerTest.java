@@ -0,0 +1,213 @@
+package com.jpmorgan.dtre;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the IngestionServer, against clients on the loopback interface
+ */
+public class IngestionServerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final static LocalDate FROM = LocalDate.parse("2016-01-01");
+
+    private static IngestionServer server(DataSource ds, int capacity) {
+        return new IngestionServer(ds, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), capacity);
+    }
+
+    private static Socket connect(IngestionServer server) throws Exception {
+        return new Socket(InetAddress.getLoopbackAddress(), server.getPort());
+    }
+
+    /**
+     * Waits until the server has read count instructions, good or bad, and they have reached the DataSource
+     */
+    private static void awaitRead(IngestionServer server, long count) {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (server.getAccepted() + server.getRejected() < count) {
+            assertTrue("timed out", System.nanoTime() < deadline);
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+        server.flush();
+    }
+
+    /**
+     * Lines of a generated instruction file, with its header
+     */
+    private List<String> lines(long rows) throws Exception {
+        final Path file = folder.newFile().toPath();
+        new SampleDataGenerator(21L, FROM, FROM.plusDays(30)).write(rows, file, 2);
+        return Files.readAllLines(file, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Many newline-delimited connections at once all land in the DataSource, totalling what a parse of the file gives
+     */
+    @Test
+    public void manyLineConnections() throws Exception {
+        final List<String> lines = lines(5_000);
+        final List<ImmutableInstruction> expected = InstructionFileParser.parse(writeLines(lines)).asList();
+        final DataSource ds = new DataSource(DataSource.Store.COLUMNAR, null);
+        final int generated = ds.getRowsCount();
+        final int clients = 25;
+
+        try (IngestionServer server = server(ds, 256)) {
+            final List<Thread> threads = new ArrayList<>();
+            for (int c = 0; c < clients; c++) {
+                final int first = c;
+                final Thread thread = new Thread(() -> {
+                    try (Socket socket = connect(server)) {
+                        final OutputStream out = socket.getOutputStream();
+                        for (int i = first; i < lines.size(); i += clients) {
+                            out.write((lines.get(i) + (i % 2 == 0 ? "\n" : "\r\n")).getBytes(StandardCharsets.US_ASCII));
+                        }
+                    } catch (Exception e) {
+                        throw new IllegalStateException(e);
+                    }
+                });
+                thread.start();
+                threads.add(thread);
+            }
+            for (final Thread thread : threads) {
+                thread.join();
+            }
+            awaitRead(server, expected.size());
+            assertThat(server.getAccepted(), is((long) expected.size()));
+            assertThat(server.getRejected(), is(0L));
+            assertThat(server.getConnections(), is((long) clients));
+        }
+
+        final List<ImmutableInstruction> taken = ds.getRows().subList(generated, ds.getRowsCount());
+        final DailyReport expectedReport = DailyReport.of(expected, AggregationMode.BIG_DECIMAL);
+        final DailyReport takenReport = DailyReport.of(new ArrayList<>(taken), AggregationMode.BIG_DECIMAL);
+        for (final ImmutableInstruction.BUYSELL side : ImmutableInstruction.BUYSELL.values()) {
+            assertThat(takenReport.perDay(side), equalTo(expectedReport.perDay(side)));
+            assertThat(takenReport.perEntity(side), equalTo(expectedReport.perEntity(side)));
+        }
+    }
+
+    private Path writeLines(List<String> lines) throws Exception {
+        final Path file = folder.newFile().toPath();
+        Files.write(file, lines, StandardCharsets.US_ASCII);
+        return file;
+    }
+
+    /**
+     * Length-delimited frames, split across writes, with a malformed one skipped and the rest taken
+     */
+    @Test
+    public void lengthDelimitedFrames() throws Exception {
+        final DataSource ds = new DataSource(DataSource.Store.LIST, null);
+        final int generated = ds.getRowsCount();
+        try (IngestionServer server = server(ds, 16)) {
+            try (Socket socket = connect(server)) {
+                final DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                frame(out, "foo | B | 0.50 | SGD | 01 Jan 2016 | 02 Jan 2016 | 200 | 100.25");
+                frame(out, "foo | X | 0.50 | SGD | 01 Jan 2016 | 02 Jan 2016 | 200 | 100.25");
+                final byte[] last = "bar|S|0.22|AED|05 Jan 2016|07 Jan 2016|450|150.5".getBytes(StandardCharsets.US_ASCII);
+                out.writeInt(last.length);
+                out.write(last, 0, 10);
+                out.flush();
+                out.write(last, 10, last.length - 10);
+            }
+            awaitRead(server, 3);
+            assertThat(server.getAccepted(), is(2L));
+            assertThat(server.getRejected(), is(1L));
+        }
+        assertThat(ds.getRowsCount(), is(generated + 2));
+        final ImmutableInstruction bar = ds.getRows().get(generated + 1);
+        assertThat(bar.getUnits(), is(450));
+        assertThat(bar.getAgreedFx(), is(new BigDecimal("0.22")));
+        assertThat(bar.getCurrency(), is(ISO4217.Currency.AED));
+    }
+
+    private static void frame(DataOutputStream out, String instruction) throws Exception {
+        final byte[] bytes = instruction.getBytes(StandardCharsets.US_ASCII);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * A malformed line is skipped, a line too long to be an instruction drops only its own connection
+     */
+    @Test
+    public void badInput() throws Exception {
+        final DataSource ds = new DataSource(DataSource.Store.LIST, null);
+        try (IngestionServer server = server(ds, 16)) {
+            try (Socket socket = connect(server)) {
+                socket.getOutputStream().write(("Entity|Buy/Sell|AgreedFx|Currency|InstructionDate|SettlementDate|Units|Price\n"
+                        + "foo|B|0.50|SGD|01 Jan 2016|02 Jan 2016|two hundred|100.25\n"
+                        + "\n"
+                        + "foo|B|0.50|SGD|01 Jan 2016|02 Jan 2016|200|100.25").getBytes(StandardCharsets.US_ASCII));
+            }
+            try (Socket socket = connect(server)) {
+                final byte[] tooLong = new byte[IngestionServer.MAX_FRAME + 1];
+                Arrays.fill(tooLong, (byte) 'x');
+                socket.getOutputStream().write(tooLong);
+            } catch (IOException e) {
+                // the server may hang up before all of it is sent
+            }
+            awaitRead(server, 2);
+            assertThat(server.getAccepted(), is(1L));
+            assertThat(server.getRejected(), is(1L));
+        }
+    }
+
+    /**
+     * With the DataSource slow to take instructions the connections wait for room in the ring, and none are lost
+     */
+    @Test
+    public void backpressure() throws Exception {
+        final DataSource ds = new DataSource(DataSource.Store.LIST, null);
+        final int generated = ds.getRowsCount();
+        ds.addListener(in -> LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(200)));
+        final List<String> lines = lines(500);
+        try (IngestionServer server = server(ds, 2)) {
+            try (Socket socket = connect(server)) {
+                final OutputStream out = socket.getOutputStream();
+                for (final String line : lines) {
+                    out.write((line + "\n").getBytes(StandardCharsets.US_ASCII));
+                }
+            }
+            awaitRead(server, lines.size() - 1); // not the header
+            assertThat(server.getStalls(), greaterThan(0L));
+        }
+        assertThat(ds.getRowsCount(), is(generated + lines.size() - 1));
+    }
+
+    @Test
+    public void platformThreadsWhenAskedFor() throws Exception {
+        try (IngestionServer server = new IngestionServer(new DataSource(DataSource.Store.LIST, null),
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 16, false)) {
+            assertFalse(server.isVirtual());
+            try (Socket socket = connect(server)) {
+                socket.getOutputStream().write("foo|B|0.50|SGD|01 Jan 2016|02 Jan 2016|200|100.25\n".getBytes(StandardCharsets.US_ASCII));
+            }
+            awaitRead(server, 1);
+            assertThat(server.getAccepted(), is(1L));
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package com.jpmorgan.dtre;
+
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.List;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the columnar instruction store
+ */
+public class InstructionColumnsTest {
+
+    private static InstructionColumns columnsOf(List<ImmutableInstruction> rows) {
+        final InstructionColumns columns = new InstructionColumns(1); // force the columns to grow
+        rows.forEach(columns::append);
+        return columns;
+    }
+
+    @Test
+    public void rowsRoundTrip() {
+        final List<ImmutableInstruction> rows = DataSource.getInstance().getRows();
+        final InstructionColumns columns = columnsOf(rows);
+
+        assertThat(columns.size(), is(rows.size()));
+        assertThat(columns.asList(), equalTo(rows));
+        for (int row = 0; row < rows.size(); row++) {
+            final ImmutableInstruction in = rows.get(row);
+            assertThat(columns.get(row), equalTo(in));
+            assertThat(columns.buySell(row), is(in.getBuySell()));
+            assertThat(columns.settlementEpochDay(row), is((int) in.getSettlementDate().toEpochDay()));
+            assertThat(columns.amountOfTradeUSD().get(row), equalTo(in.getAmountOfTradeUSD()));
+        }
+    }
+
+    /**
+     * Aggregating straight from the columns gives the same totals as from the objects
+     */
+    @Test
+    public void reportFromColumns() {
+        final List<ImmutableInstruction> rows = DataSource.getInstance().getRows();
+        final InstructionColumns columns = columnsOf(rows);
+        final DailyReport reference = DailyReport.of(rows, AggregationMode.BIG_DECIMAL);
+
+        for (final AggregationMode mode : AggregationMode.values()) {
+            final DailyReport report = DailyReport.of(columns, mode);
+            for (final ImmutableInstruction.BUYSELL side : ImmutableInstruction.BUYSELL.values()) {
+                assertThat(report.perDay(side), equalTo(reference.perDay(side)));
+                assertThat(report.perEntity(side), equalTo(reference.perEntity(side)));
+            }
+        }
+    }
+
+    /**
+     * Values too big for a scaled long are still held exactly
+     */
+    @Test
+    public void decimalOverflow() {
+        final ImmutableInstruction in = new ImmutableInstruction(
+                DataSource.ENTITIES.foo,
+                ImmutableInstruction.BUYSELL.B,
+                new BigDecimal("0.123456789012345678901234567890"),
+                ISO4217.Currency.SGD,
+                LocalDate.parse("2016-01-01"),
+                LocalDate.parse("2016-01-02"),
+                200,
+                new BigDecimal("100.25")
+        );
+        final InstructionColumns columns = new InstructionColumns();
+        columns.append(in);
+
+        assertFalse(columns.agreedFx().isScaledLong(0));
+        assertFalse(columns.amountOfTradeUSD().isScaledLong(0));
+        assertTrue(columns.pricePerUnit().isScaledLong(0));
+        assertThat(columns.pricePerUnit().unscaled(0), is(10025L));
+        assertThat(columns.pricePerUnit().scale(0), is(2));
+        assertThat(columns.get(0), equalTo(in));
+        assertThat(columns.amountOfTradeUSD().get(0), equalTo(in.getAmountOfTradeUSD()));
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void rowOutOfRange() {
+        new InstructionColumns().get(0);
+    }
+
+    @Test
+    public void columnarDataSource() {
+        final DataSource ds = new DataSource(DataSource.Store.COLUMNAR, null);
+        assertTrue(ds.isColumnar());
+        assertThat(ds.getRowsCount(), greaterThan(0));
+        assertThat(ds.getColumns().size(), is(ds.getRowsCount()));
+        assertThat(ds.getRows().get(0), equalTo(ds.getColumns().get(0)));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void listDataSourceHasNoColumns() {
+        new DataSource(DataSource.Store.LIST, null).getColumns();
+    }
+}
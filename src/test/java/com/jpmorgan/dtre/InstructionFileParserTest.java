@@ -0,0 +1,151 @@
+package com.jpmorgan.dtre;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+
+import static com.jpmorgan.dtre.SameTrade.*;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the memory-mapped pipe-delimited instruction parser
+ */
+public class InstructionFileParserTest {
+
+    private final static String SAMPLE =
+            "Entity | Buy/Sell |  AgreedFx | Currency | InstructionDate | SettlementDate | Units |  Price per unit\n" +
+            " foo   |    B     |    0.50   |   SGD    |   01 Jan 2016   |   02 Jan 2016  |  200  |     100.25\n" +
+            " bar   |    S     |    0.22   |   AED    |   05 Jan 2016   |   07 Jan 2016  |  450  |     150.5\r\n" +
+            "\n" +
+            "ABEOW|S|1.00001|SAR|29 Feb 2016|04 Mar 2016|1|2.77";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path write(String content) throws IOException {
+        final Path file = folder.newFile().toPath();
+        Files.write(file, content.getBytes(StandardCharsets.US_ASCII));
+        return file;
+    }
+
+    private static ImmutableInstruction instruction(DataSource.ENTITIES entity, ImmutableInstruction.BUYSELL buySell,
+                                                    String fx, ISO4217.Currency currency, String instructionDate,
+                                                    String settlementDate, int units, String price) {
+        return new ImmutableInstruction(entity, buySell, new BigDecimal(fx), currency,
+                LocalDate.parse(instructionDate), LocalDate.parse(settlementDate), units, new BigDecimal(price));
+    }
+
+    @Test
+    public void sampleData() throws IOException {
+        final InstructionColumns columns = InstructionFileParser.parse(write(SAMPLE));
+
+        assertThat(columns.size(), is(3));
+        assertThat(columns.get(0), sameTradeAs(instruction(DataSource.ENTITIES.foo, ImmutableInstruction.BUYSELL.B,
+                "0.50", ISO4217.Currency.SGD, "2016-01-01", "2016-01-02", 200, "100.25")));
+        assertThat(columns.get(1), sameTradeAs(instruction(DataSource.ENTITIES.bar, ImmutableInstruction.BUYSELL.S,
+                "0.22", ISO4217.Currency.AED, "2016-01-05", "2016-01-07", 450, "150.5")));
+        assertThat(columns.get(2), sameTradeAs(instruction(DataSource.ENTITIES.ABEOW, ImmutableInstruction.BUYSELL.S,
+                "1.00001", ISO4217.Currency.SAR, "2016-02-29", "2016-03-04", 1, "2.77")));
+
+        // settlement adjusted and amount computed on the way in
+        assertThat(columns.settlementEpochDay(0), is((int) LocalDate.parse("2016-01-04").toEpochDay()));
+        assertThat(columns.amountOfTradeUSD().get(0), equalTo(new BigDecimal("10025.0000")));
+        assertThat(columns.settlementEpochDay(2), is((int) LocalDate.parse("2016-03-06").toEpochDay()));
+    }
+
+    /**
+     * Windows smaller than the file must split on line boundaries only
+     */
+    @Test
+    public void smallWindows() throws IOException {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            sb.append("PIH|B|0.5|GBP|01 Jan 2016|0").append(1 + i % 9).append(" Feb 2016|").append(i).append("|7.1\n");
+        }
+        final Path file = write(sb.toString());
+        final InstructionColumns columns = new InstructionColumns();
+        new InstructionFileParser(columns).parseFile(file, 64);
+
+        assertThat(columns.size(), is(100));
+        for (int i = 0; i < 100; i++) {
+            assertThat(columns.units(i), is(i));
+        }
+    }
+
+    @Test
+    public void decimalTooLongForScaledLong() throws IOException {
+        final InstructionColumns columns = InstructionFileParser.parse(
+                write("foo|B|0.123456789012345678901234567890|SGD|01 Jan 2016|04 Jan 2016|200|100.25\n"));
+        assertThat(columns.get(0), sameTradeAs(instruction(DataSource.ENTITIES.foo, ImmutableInstruction.BUYSELL.B,
+                "0.123456789012345678901234567890", ISO4217.Currency.SGD, "2016-01-01", "2016-01-04", 200, "100.25")));
+    }
+
+    @Test
+    public void epochDayMatchesLocalDate() {
+        for (LocalDate d = LocalDate.parse("1899-12-25"); d.isBefore(LocalDate.parse("2101-01-10")); d = d.plusDays(1)) {
+            assertThat(InstructionFileParser.epochDay(d.getYear(), d.getMonthValue(), d.getDayOfMonth()), is((int) d.toEpochDay()));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownCurrency() throws IOException {
+        InstructionFileParser.parse(write("foo|B|0.50|SGP|01 Jan 2016|02 Jan 2016|200|100.25\n"));
+    }
+
+    /**
+     * A symbol outside DataSource.ENTITIES is interned as a new entity, not rejected
+     */
+    @Test
+    public void newEntityInterned() throws IOException {
+        final InstructionColumns columns = InstructionFileParser.parse(
+                write("food|B|0.50|SGD|01 Jan 2016|02 Jan 2016|200|100.25\nfood|S|0.50|SGD|01 Jan 2016|02 Jan 2016|100|100.25\n"));
+        final int id = columns.entityId(0);
+        assertThat(id, greaterThanOrEqualTo(DataSource.ENTITIES.values().length));
+        assertThat(columns.entityId(1), equalTo(id));
+        assertThat(EntityRegistry.getInstance().symbol(id), equalTo("food"));
+        assertThat(columns.get(0).getEntitySymbol(), equalTo("food"));
+        assertThat(columns.get(0).getEntity(), nullValue());
+    }
+
+    /**
+     * Only the header row is skipped, not an instruction for an entity whose symbol starts with "Entity"
+     */
+    @Test
+    public void entityNamedLikeHeader() throws IOException {
+        final InstructionColumns columns = InstructionFileParser.parse(write(
+                "Entity | Buy/Sell | AgreedFx | Currency | InstructionDate | SettlementDate | Units | Price\n"
+                + "EntityCo|B|0.50|SGD|01 Jan 2016|02 Jan 2016|200|100.25\n"
+                + "Entity|S|0.50|SGD|01 Jan 2016|02 Jan 2016|100|100.25\n"));
+        assertThat(columns.size(), is(2));
+        assertThat(columns.get(0).getEntitySymbol(), equalTo("EntityCo"));
+        assertThat(columns.get(1).getEntitySymbol(), equalTo("Entity"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void emptyEntity() throws IOException {
+        InstructionFileParser.parse(write("|B|0.50|SGD|01 Jan 2016|02 Jan 2016|200|100.25\n"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void noSuchDay() throws IOException {
+        InstructionFileParser.parse(write("foo|B|0.50|SGD|29 Feb 2017|02 Mar 2017|200|100.25\n"));
+    }
+
+    @Test
+    public void missingFieldReportsOffset() throws IOException {
+        try {
+            InstructionFileParser.parse(write("foo|B|0.50|SGD|01 Jan 2016|02 Jan 2016|200\n"));
+            fail("Missing price did not throw IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            assertThat(e.getMessage(), containsString("at byte"));
+        }
+    }
+}
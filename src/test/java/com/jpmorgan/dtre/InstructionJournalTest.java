@@ -0,0 +1,206 @@
+package com.jpmorgan.dtre;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the memory-mapped InstructionJournal
+ */
+public class InstructionJournalTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final int SMALL_SEGMENT = 4096;
+
+    private static List<ImmutableInstruction> sample() {
+        final List<ImmutableInstruction> rows = new ArrayList<>(DataSource.getInstance().getRows());
+        rows.add(new ImmutableInstruction(
+                EntityRegistry.getInstance().intern("JRNL"),
+                ImmutableInstruction.BUYSELL.S,
+                new BigDecimal("0.123456789012345678901234567890"), // too wide for a scaled long
+                ISO4217.Currency.AED,
+                LocalDate.parse("2016-01-01"),
+                LocalDate.parse("2016-01-08"),
+                200,
+                new BigDecimal("100.25")
+        ));
+        return rows;
+    }
+
+    private Path directory() throws IOException {
+        return folder.newFolder().toPath();
+    }
+
+    @Test
+    public void reopenRecoversEverything() throws IOException {
+        final Path dir = directory();
+        final List<ImmutableInstruction> rows = sample();
+        try (InstructionJournal journal = new InstructionJournal(dir, SMALL_SEGMENT, 16, 1000)) {
+            assertThat(journal.recovered().size(), is(0));
+            rows.forEach(journal::append);
+        }
+        try (InstructionJournal journal = new InstructionJournal(dir, SMALL_SEGMENT, 16, 1000)) {
+            assertThat(journal.recovered().asList(), equalTo(rows));
+            assertThat(journal.recovered().get(rows.size() - 1).getEntitySymbol(), equalTo("JRNL"));
+        }
+        // small segments, so the rows must have spanned several
+        assertThat(Files.list(dir).count(), greaterThan(1L));
+    }
+
+    @Test
+    public void nonAsciiSymbolRecovered() throws IOException {
+        final Path dir = directory();
+        final ImmutableInstruction row = new ImmutableInstruction(
+                EntityRegistry.getInstance().intern("J\u00d6RNL"),
+                ImmutableInstruction.BUYSELL.B,
+                new BigDecimal("0.50"),
+                ISO4217.Currency.SGD,
+                LocalDate.parse("2016-01-01"),
+                LocalDate.parse("2016-01-04"),
+                10,
+                new BigDecimal("20.00")
+        );
+        try (InstructionJournal journal = new InstructionJournal(dir, SMALL_SEGMENT, 16, 1000)) {
+            journal.append(row);
+        }
+        try (InstructionJournal journal = new InstructionJournal(dir, SMALL_SEGMENT, 16, 1000)) {
+            assertThat(journal.recovered().get(0).getEntitySymbol(), equalTo("J\u00d6RNL"));
+            assertThat(journal.recovered().get(0).getEntityId(), equalTo(row.getEntityId()));
+        }
+    }
+
+    /**
+     * Records appended just before appends stop are still forced to disk, by the timer
+     */
+    @Test
+    public void idleJournalSyncedOnTime() throws Exception {
+        try (InstructionJournal journal = new InstructionJournal(directory(), SMALL_SEGMENT, 1 << 20, 20)) {
+            journal.append(sample().get(0));
+            final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (journal.unsyncedRecords() > 0 && System.nanoTime() < deadline) {
+                Thread.sleep(5);
+            }
+            assertThat(journal.unsyncedRecords(), is(0));
+        }
+    }
+
+    /**
+     * Closing a DataSource closes its journal: nothing more is appended, and everything is recovered on reopening
+     */
+    @Test
+    public void dataSourceClosesJournal() throws IOException {
+        final String dir = directory().toString();
+        final List<ImmutableInstruction> rows = sample();
+        final DataSource ds = new DataSource(DataSource.Store.LIST,
+                InstructionSource.of(Collections.<ImmutableInstruction>emptyList()), dir, false);
+        rows.forEach(ds::append);
+        ds.close();
+        try {
+            ds.append(rows.get(0));
+            fail("Appended to a closed DataSource");
+        } catch (IllegalStateException e) {
+            assertThat(ds.getRowsCount(), is(rows.size()));
+        }
+        final DataSource reopened = new DataSource(DataSource.Store.LIST,
+                InstructionSource.of(Collections.<ImmutableInstruction>emptyList()), dir, false);
+        assertThat(reopened.getRows(), equalTo(rows));
+        reopened.close();
+    }
+
+    /**
+     * Appends after recovery carry on from the end, across runs
+     */
+    @Test
+    public void appendAfterRecovery() throws IOException {
+        final Path dir = directory();
+        final List<ImmutableInstruction> rows = sample();
+        final int half = rows.size() / 2;
+        try (InstructionJournal journal = new InstructionJournal(dir, SMALL_SEGMENT, 1, 1000)) {
+            rows.subList(0, half).forEach(journal::append);
+        }
+        try (InstructionJournal journal = new InstructionJournal(dir, SMALL_SEGMENT, 1, 1000)) {
+            assertThat(journal.recovered().asList(), equalTo(rows.subList(0, half)));
+            rows.subList(half, rows.size()).forEach(journal::append);
+        }
+        try (InstructionJournal journal = new InstructionJournal(dir, SMALL_SEGMENT, 1, 1000)) {
+            assertThat(journal.recovered().asList(), equalTo(rows));
+        }
+    }
+
+    /**
+     * A record torn part way through is dropped, along with anything after it, and the journal stays usable
+     */
+    @Test
+    public void tornTailTruncated() throws IOException {
+        final Path dir = directory();
+        final List<ImmutableInstruction> rows = sample().subList(0, 10);
+        try (InstructionJournal journal = new InstructionJournal(dir, 1 << 16, 1, 1000)) {
+            rows.forEach(journal::append);
+        }
+        final Path segment = Files.list(dir).sorted().collect(Collectors.toList()).get(0);
+        try (RandomAccessFile raf = new RandomAccessFile(segment.toFile(), "rw")) {
+            // find the end of the data, then damage a byte of the last record
+            int end = InstructionJournal.SEGMENT_HEADER_BYTES;
+            int last = end;
+            raf.seek(end);
+            int length;
+            while ((length = Integer.reverseBytes(raf.readInt())) != 0) {
+                last = end;
+                end += length + 8;
+                raf.seek(end);
+            }
+            raf.seek(last + 10);
+            final int b = raf.read();
+            raf.seek(last + 10);
+            raf.write(b ^ 0xff);
+        }
+        try (InstructionJournal journal = new InstructionJournal(dir, 1 << 16, 1, 1000)) {
+            assertThat(journal.recovered().asList(), equalTo(rows.subList(0, rows.size() - 1)));
+            journal.append(rows.get(rows.size() - 1));
+        }
+        try (InstructionJournal journal = new InstructionJournal(dir, 1 << 16, 1, 1000)) {
+            assertThat(journal.recovered().asList(), equalTo(rows));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void notAJournal() throws IOException {
+        final Path dir = directory();
+        Files.write(dir.resolve("journal-0000000000.seg"), new byte[SMALL_SEGMENT]);
+        new InstructionJournal(dir, SMALL_SEGMENT, 1, 1000);
+    }
+
+    /**
+     * Instructions appended to a journaling DataSource come back when it restarts
+     */
+    @Test
+    public void dataSourceRecovers() throws IOException {
+        final String dir = directory().toString();
+        final ImmutableInstruction in = sample().get(0);
+        final DataSource first = new DataSource(DataSource.Store.COLUMNAR, null, null, dir);
+        final int generated = first.getRowsCount();
+        first.append(in);
+        first.syncJournal();
+
+        final DataSource second = new DataSource(DataSource.Store.LIST, null, null, dir);
+        assertThat(second.getRows().get(second.getRowsCount() - 1), equalTo(in));
+        assertThat(second.getRowsCount(), is(generated + 1));
+    }
+}
@@ -0,0 +1,340 @@
+package com.jpmorgan.dtre;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static com.jpmorgan.dtre.SameTrade.sameTradesAs;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for InstructionPipeline and the FlowStages it's built from
+ */
+public class InstructionPipelineTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final static LocalDate FROM = LocalDate.parse("2016-01-01");
+
+    private Path sampleFile(long rows) throws Exception {
+        final Path file = folder.newFile().toPath();
+        new SampleDataGenerator(7L, FROM, FROM.plusDays(60)).write(rows, file, 2);
+        return file;
+    }
+
+    /**
+     * Small chunks, so lines straddle them, and the same totals as parsing the whole file
+     */
+    @Test
+    public void aggregateMatchesParsingTheFile() throws Exception {
+        final Path file = sampleFile(20_000);
+        final InstructionPipeline pipeline = new InstructionPipeline(4_096, 2);
+        final DailyReport streamed = pipeline.aggregate(file).join();
+        final DailyReport parsed = DailyReport.of(InstructionFileParser.parse(file), AggregationMode.SCALED_LONG);
+        assertThat(pipeline.getRows(), is(20_000L));
+        assertThat(pipeline.getRejected(), is(0L));
+        for (final ImmutableInstruction.BUYSELL side : ImmutableInstruction.BUYSELL.values()) {
+            assertThat(streamed.perDay(side), equalTo(parsed.perDay(side)));
+            assertThat(streamed.perEntity(side), equalTo(parsed.perEntity(side)));
+        }
+    }
+
+    @Test
+    public void loadAppendsInFileOrder() throws Exception {
+        final Path file = sampleFile(5_000);
+        final DataSource ds = new DataSource(DataSource.Store.LIST,
+                InstructionSource.of(Collections.<ImmutableInstruction>emptyList()), null, false);
+        final long loaded = new InstructionPipeline(1_000, 3).load(file, ds).join();
+        assertThat(loaded, is(5_000L));
+        final List<ImmutableInstruction> expected = InstructionFileParser.parse(file).asList();
+        assertThat(ds.getRows(), sameTradesAs(expected));
+        assertThat(ds.getDailyReport().perDay(ImmutableInstruction.BUYSELL.S),
+                equalTo(DailyReport.of(expected).perDay(ImmutableInstruction.BUYSELL.S)));
+    }
+
+    @Test
+    public void malformedLinesRejectedOnTheirOwn() throws Exception {
+        final Path file = folder.newFile().toPath();
+        final String content = "Entity|Buy/Sell|AgreedFx|Currency|InstructionDate|SettlementDate|Units|Price per unit\n"
+                + "foo|B|0.50|SGD|01 Jan 2016|02 Jan 2016|200|100.25\n"
+                + "foo|X|0.50|SGD|01 Jan 2016|02 Jan 2016|200|100.25\n"
+                + "bar|S|0.22|AED|05 Jan 2016|07 Jan 2016|450|150.5\n"
+                + "bar|S|0.22|AED|05 Jan 2016|31 Feb 2016|450|150.5\n"
+                + "\n"
+                + "bar|B|1|USD|05 Jan 2016|07 Jan 2016|1|10";
+        Files.write(file, content.getBytes(StandardCharsets.US_ASCII));
+        final InstructionPipeline pipeline = new InstructionPipeline(64, 1);
+        final DailyReport report = pipeline.aggregate(file).join();
+        assertThat(pipeline.getRows(), is(3L));
+        assertThat(pipeline.getRejected(), is(2L));
+        // just after the X, in a later chunk, reported at its position in the file rather than in the chunk
+        assertThat(pipeline.getFirstRejection(), containsString("at byte " + (content.indexOf("|X|") + 2) + ":"));
+        assertThat(report.perDay(ImmutableInstruction.BUYSELL.B).size(), is(2)); // SGD adjusted to Monday 4th
+    }
+
+    @Test
+    public void outstandingChunksBounded() throws Exception {
+        final Path file = sampleFile(50_000);
+        final InstructionPipeline pipeline = new InstructionPipeline(2_048, 2);
+        pipeline.aggregate(file).join();
+        assertThat(pipeline.getRows(), is(50_000L));
+        assertThat(pipeline.getMaxOutstandingChunks(), is(both(greaterThan(0)).and(lessThanOrEqualTo(3))));
+    }
+
+    @Test(expected = java.io.UncheckedIOException.class)
+    public void missingFileFails() throws Throwable {
+        try {
+            new InstructionPipeline().aggregate(folder.getRoot().toPath().resolve("missing.txt")).join();
+        } catch (CompletionException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Publishes 0, 1, 2... as asked, recording the most it has had outstanding
+     */
+    private static final class Counter implements Flow.Publisher<Integer> {
+        final int count;
+        final AtomicInteger outstanding = new AtomicInteger();
+        final AtomicInteger maxOutstanding = new AtomicInteger();
+        volatile boolean cancelled;
+        private int next;
+
+        Counter(int count) {
+            this.count = count;
+        }
+
+        @Override
+        public void subscribe(Flow.Subscriber<? super Integer> subscriber) {
+            subscriber.onSubscribe(new Flow.Subscription() {
+                @Override
+                public synchronized void request(long n) {
+                    maxOutstanding.accumulateAndGet(outstanding.addAndGet((int) n), Math::max);
+                    for (long i = 0; i < n && next < count && !cancelled; i++) {
+                        outstanding.decrementAndGet();
+                        subscriber.onNext(next++);
+                    }
+                    if (next == count) {
+                        next++;
+                        subscriber.onComplete();
+                    }
+                }
+
+                @Override
+                public void cancel() {
+                    cancelled = true;
+                }
+            });
+        }
+    }
+
+    /**
+     * Collects what it's given, asking for one item at a time
+     */
+    private static final class SlowSubscriber<T> implements Flow.Subscriber<T> {
+        final List<T> items = Collections.synchronizedList(new ArrayList<>());
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        final CountDownLatch done = new CountDownLatch(1);
+        private Flow.Subscription subscription;
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            subscription.request(1);
+        }
+
+        @Override
+        public void onNext(T item) {
+            items.add(item);
+            subscription.request(1);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            error.set(throwable);
+            done.countDown();
+        }
+
+        @Override
+        public void onComplete() {
+            done.countDown();
+        }
+    }
+
+    /**
+     * Asks for everything at once
+     */
+    private static final class EagerSubscriber<T> implements Flow.Subscriber<T> {
+        final List<T> items = Collections.synchronizedList(new ArrayList<>());
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        final CountDownLatch done = new CountDownLatch(1);
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            subscription.request(Long.MAX_VALUE);
+        }
+
+        @Override
+        public void onNext(T item) {
+            items.add(item);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            error.set(throwable);
+            done.countDown();
+        }
+
+        @Override
+        public void onComplete() {
+            done.countDown();
+        }
+    }
+
+    @Test
+    public void stageBuffersAtMostCapacity() throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            final Counter counter = new Counter(1_000);
+            final FlowStage<Integer, Integer> doubled = new FlowStage<>(i -> i * 2, executor, 8);
+            final SlowSubscriber<Integer> subscriber = new SlowSubscriber<>();
+            counter.subscribe(doubled);
+            doubled.subscribe(subscriber);
+            assertTrue(subscriber.done.await(10, TimeUnit.SECONDS));
+            assertThat(subscriber.error.get(), is(nullValue()));
+            assertThat(subscriber.items.size(), is(1_000));
+            for (int i = 0; i < 1_000; i++) {
+                assertThat(subscriber.items.get(i), is(i * 2));
+            }
+            assertThat(counter.maxOutstanding.get(), lessThanOrEqualTo(8));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void stageFailureCancelsUpstream() throws Exception {
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final Counter counter = new Counter(100);
+            final FlowStage<Integer, Integer> failing = new FlowStage<>(i -> {
+                if (i == 10) {
+                    throw new IllegalArgumentException("bad item " + i);
+                }
+                return i;
+            }, executor, 4);
+            final SlowSubscriber<Integer> subscriber = new SlowSubscriber<>();
+            counter.subscribe(failing);
+            failing.subscribe(subscriber);
+            assertTrue(subscriber.done.await(10, TimeUnit.SECONDS));
+            assertThat(subscriber.error.get(), instanceOf(IllegalArgumentException.class));
+            assertThat(subscriber.items.size(), is(10));
+            assertThat(counter.cancelled, is(true));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void stageErrorReachesDownstream() throws Exception {
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final Counter counter = new Counter(100);
+            final FlowStage<Integer, Integer> failing = new FlowStage<>(i -> {
+                if (i == 3) {
+                    throw new StackOverflowError("simulated");
+                }
+                return i;
+            }, executor, 4);
+            final SlowSubscriber<Integer> subscriber = new SlowSubscriber<>();
+            counter.subscribe(failing);
+            failing.subscribe(subscriber);
+            assertTrue(subscriber.done.await(10, TimeUnit.SECONDS));
+            assertThat(subscriber.error.get(), instanceOf(StackOverflowError.class));
+            assertThat(subscriber.items.size(), is(3));
+            assertThat(counter.cancelled, is(true));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Upstream fails while the stage is busy with its first item, then the rest of the buffer drains: the failure
+     * must reach downstream rather than a completion
+     */
+    @Test
+    public void upstreamFailureWhileBusy() throws Exception {
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final CountDownLatch busyWithFirst = new CountDownLatch(1);
+            final CountDownLatch failed = new CountDownLatch(1);
+            final FlowStage<Integer, Integer> busy = new FlowStage<>(i -> {
+                if (i == 0) {
+                    busyWithFirst.countDown();
+                    try {
+                        failed.await(10, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return i;
+            }, executor, 8);
+            final EagerSubscriber<Integer> subscriber = new EagerSubscriber<>();
+            busy.subscribe(subscriber);
+            final Flow.Publisher<Integer> failing = stage -> stage.onSubscribe(new Flow.Subscription() {
+                private boolean publishing;
+
+                @Override
+                public synchronized void request(long n) {
+                    if (publishing) {
+                        return;
+                    }
+                    publishing = true;
+                    new Thread(() -> {
+                        for (int i = 0; i < 5; i++) {
+                            stage.onNext(i);
+                        }
+                        try {
+                            busyWithFirst.await(10, TimeUnit.SECONDS);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        stage.onError(new java.io.UncheckedIOException(new java.io.IOException("disk gone")));
+                        failed.countDown();
+                    }).start();
+                }
+
+                @Override
+                public void cancel() {
+                }
+            });
+            failing.subscribe(busy);
+            assertTrue(subscriber.done.await(10, TimeUnit.SECONDS));
+            assertThat(subscriber.error.get(), instanceOf(java.io.UncheckedIOException.class));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void capacityMustBePositive() {
+        new FlowStage<Integer, Integer>(i -> i, Runnable::run, 0);
+    }
+}
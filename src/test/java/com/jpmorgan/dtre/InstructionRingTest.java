@@ -0,0 +1,110 @@
+package com.jpmorgan.dtre;
+
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the InstructionRing: every instruction published is taken exactly once, each producer's in order
+ */
+public class InstructionRingTest {
+
+    private static ImmutableInstruction instruction(int units) {
+        return new ImmutableInstruction(DataSource.ENTITIES.foo, ImmutableInstruction.BUYSELL.B, new BigDecimal("0.50"),
+                ISO4217.Currency.USD, LocalDate.parse("2016-01-01"), LocalDate.parse("2016-01-04"), units, BigDecimal.ONE);
+    }
+
+    @Test
+    public void capacityRoundsUpToPowerOfTwo() {
+        assertThat(new InstructionRing(1).capacity(), is(1));
+        assertThat(new InstructionRing(5).capacity(), is(8));
+        assertThat(new InstructionRing(1024).capacity(), is(1024));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void zeroCapacity() {
+        new InstructionRing(0);
+    }
+
+    /**
+     * A full ring refuses, and takes again once drained, wrapping round its slots
+     */
+    @Test
+    public void fullThenDrained() {
+        final InstructionRing ring = new InstructionRing(4);
+        final List<ImmutableInstruction> taken = new ArrayList<>();
+        for (int lap = 0; lap < 3; lap++) {
+            for (int i = 1; i <= 4; i++) {
+                assertTrue(ring.offer(instruction(i)));
+            }
+            assertFalse(ring.offer(instruction(5)));
+            assertThat(ring.size(), is(4));
+            assertThat(ring.drain(taken::add, 3), is(3));
+            assertThat(ring.drain(taken::add, 10), is(1));
+            assertThat(ring.drain(taken::add, 10), is(0));
+            assertTrue(ring.isEmpty());
+        }
+        assertThat(taken, hasSize(12));
+        assertThat(taken.get(11).getUnits(), is(4));
+        assertThat(ring.claimed(), is(12L));
+    }
+
+    @Test
+    public void manyProducersOneConsumer() throws InterruptedException {
+        final int producers = 4;
+        final int each = 20_000;
+        final InstructionRing ring = new InstructionRing(64); // small, so producers keep finding it full
+        final ImmutableInstruction[][] published = new ImmutableInstruction[producers][each];
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            final ImmutableInstruction[] mine = published[p];
+            final Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < each; i++) {
+                    mine[i] = instruction(i + 1);
+                    while (!ring.offer(mine[i])) {
+                        Thread.yield();
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+
+        final List<ImmutableInstruction> taken = new ArrayList<>();
+        while (taken.size() < producers * each) {
+            if (ring.drain(taken::add, 100) == 0) {
+                Thread.yield();
+            }
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(ring.isEmpty());
+
+        // each producer's instructions arrive once each, in the order it published them
+        for (final ImmutableInstruction[] mine : published) {
+            int next = 0;
+            for (final ImmutableInstruction in : taken) {
+                if (next < each && in == mine[next]) {
+                    next++;
+                }
+            }
+            assertThat(next, is(each));
+        }
+        assertThat(taken.stream().map(ImmutableInstruction::getId).distinct().count(), is((long) producers * each));
+    }
+}
@@ -0,0 +1,145 @@
+package com.jpmorgan.dtre;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the binary InstructionSnapshot
+ */
+public class InstructionSnapshotTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static InstructionColumns sample() {
+        final InstructionColumns columns = new InstructionColumns();
+        DataSource.getInstance().getRows().forEach(columns::append);
+        // a value too wide for a scaled long, and an entity outside DataSource.ENTITIES
+        columns.append(new ImmutableInstruction(
+                DataSource.ENTITIES.foo,
+                ImmutableInstruction.BUYSELL.S,
+                new BigDecimal("0.123456789012345678901234567890"),
+                ISO4217.Currency.AED,
+                LocalDate.parse("2016-01-01"),
+                LocalDate.parse("2016-01-08"),
+                200,
+                new BigDecimal("100.25")
+        ));
+        columns.append(EntityRegistry.getInstance().intern("SNAP"), ImmutableInstruction.BUYSELL.B, ISO4217.Currency.GBP,
+                (int) LocalDate.parse("2016-01-01").toEpochDay(), (int) LocalDate.parse("2016-01-02").toEpochDay(),
+                10, 12345L, 2, 15L, 1);
+        return columns;
+    }
+
+    @Test
+    public void roundTrip() throws IOException {
+        final InstructionColumns columns = sample();
+        final Path file = folder.getRoot().toPath().resolve("rows.snapshot");
+        InstructionSnapshot.write(columns, file);
+
+        final InstructionColumns read = InstructionSnapshot.read(file);
+        assertThat(read.size(), is(columns.size()));
+        assertThat(read.asList(), equalTo(columns.asList()));
+        for (int row = 0; row < columns.size(); row++) {
+            assertThat(read.settlementEpochDay(row), is(columns.settlementEpochDay(row)));
+            assertThat(read.amountOfTradeUSD().get(row), equalTo(columns.amountOfTradeUSD().get(row)));
+        }
+        assertThat(read.get(columns.size() - 1).getEntitySymbol(), equalTo("SNAP"));
+    }
+
+    @Test
+    public void nonAsciiSymbol() throws IOException {
+        final InstructionColumns columns = new InstructionColumns();
+        final int entityId = EntityRegistry.getInstance().intern("SN\u00c5P");
+        columns.append(entityId, ImmutableInstruction.BUYSELL.S, ISO4217.Currency.GBP,
+                (int) LocalDate.parse("2016-01-01").toEpochDay(), (int) LocalDate.parse("2016-01-02").toEpochDay(),
+                10, 12345L, 2, 15L, 1);
+        final Path file = folder.getRoot().toPath().resolve("rows.snapshot");
+        InstructionSnapshot.write(columns, file);
+
+        final InstructionColumns read = InstructionSnapshot.read(file);
+        assertThat(read.get(0).getEntitySymbol(), equalTo("SN\u00c5P"));
+        assertThat(read.get(0).getEntityId(), equalTo(entityId));
+    }
+
+    @Test
+    public void streamedBlockByBlock() throws IOException {
+        final InstructionColumns columns = new SampleDataGenerator(7L, LocalDate.parse("2016-01-01"), LocalDate.parse("2016-01-31"))
+                .generate(40_000, 2);
+        // overflow in the third block, restored at its row within the block
+        columns.append(new ImmutableInstruction(
+                DataSource.ENTITIES.bar,
+                ImmutableInstruction.BUYSELL.B,
+                new BigDecimal("0.123456789012345678901234567890"),
+                ISO4217.Currency.GBP,
+                LocalDate.parse("2016-01-04"),
+                LocalDate.parse("2016-01-05"),
+                10,
+                new BigDecimal("3.5")
+        ));
+        final Path file = folder.getRoot().toPath().resolve("rows.snapshot");
+        InstructionSnapshot.write(columns, file);
+
+        final List<ImmutableInstruction> streamed = new ArrayList<>();
+        InstructionSnapshot.forEach(file, streamed::add);
+        assertThat(streamed, equalTo(columns.asList()));
+    }
+
+    @Test
+    public void emptyStore() throws IOException {
+        final Path file = folder.getRoot().toPath().resolve("empty.snapshot");
+        InstructionSnapshot.write(new InstructionColumns(), file);
+        assertThat(InstructionSnapshot.read(file).size(), is(0));
+    }
+
+    @Test
+    public void corruptionDetected() throws IOException {
+        final Path file = folder.getRoot().toPath().resolve("rows.snapshot");
+        InstructionSnapshot.write(sample(), file);
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            final long at = raf.length() / 2;
+            raf.seek(at);
+            final int b = raf.read();
+            raf.seek(at);
+            raf.write(b ^ 0x01);
+        }
+        try {
+            InstructionSnapshot.read(file);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            assertThat(e.getMessage(), containsString("checksum"));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void notASnapshot() throws IOException {
+        final Path file = folder.newFile().toPath();
+        Files.write(file, "foo|B|0.50|SGD|01 Jan 2016|02 Jan 2016|200|100.25\n".getBytes(StandardCharsets.US_ASCII));
+        InstructionSnapshot.read(file);
+    }
+
+    /**
+     * The first start writes the snapshot, the next one reloads the same rows from it
+     */
+    @Test
+    public void dataSourceRestart() {
+        final String file = folder.getRoot().toPath().resolve("ds.snapshot").toString();
+        final DataSource first = new DataSource(DataSource.Store.LIST, null, file, null);
+        final DataSource second = new DataSource(DataSource.Store.COLUMNAR, null, file, null);
+        assertThat(second.getRows(), equalTo(first.getRows()));
+    }
+}
@@ -0,0 +1,135 @@
+package com.jpmorgan.dtre;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import static com.jpmorgan.dtre.SameTrade.sameTradesAs;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the InstructionSources, and DataSources reading them only when first needed
+ */
+public class InstructionSourceTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final static LocalDate FROM = LocalDate.parse("2016-01-01");
+
+    /**
+     * Counts how many times it's read
+     */
+    private static final class CountingSource implements InstructionSource {
+        final AtomicInteger reads = new AtomicInteger();
+        final InstructionSource source;
+
+        CountingSource(InstructionSource source) {
+            this.source = source;
+        }
+
+        @Override
+        public void forEach(Consumer<? super ImmutableInstruction> action) {
+            reads.incrementAndGet();
+            source.forEach(action);
+        }
+    }
+
+    @Test
+    public void readOnFirstUseOnly() {
+        for (final DataSource.Store store : DataSource.Store.values()) {
+            final CountingSource source = new CountingSource(InstructionSource.generated(1L, FROM, FROM.plusDays(10), 500));
+            final DataSource ds = new DataSource(store, source, null, false);
+            final DailyTrades dt = new DailyTrades(ds, 5);
+            assertThat(store.name(), source.reads.get(), is(0));
+            assertThat(dt.dataRowsLoaded(), is(500));
+            assertThat(ds.getDailyReport().perDay(ImmutableInstruction.BUYSELL.S).isEmpty(), is(false));
+            ds.append(InstructionSource.sampleInstructions().get(0));
+            assertThat(ds.getRowsCount(), is(501));
+            assertThat(store.name(), source.reads.get(), is(1));
+        }
+    }
+
+    /**
+     * Two books in one JVM, each over its own source, neither seeing the other's instructions
+     */
+    @Test
+    public void independentBooks() {
+        final List<ImmutableInstruction> first = new SampleDataGenerator(2L, FROM, FROM.plusDays(10)).generate(300, 2).asList();
+        final List<ImmutableInstruction> second = new SampleDataGenerator(3L, FROM, FROM.plusDays(10)).generate(700, 2).asList();
+        final DataSource one = new DataSource(DataSource.Store.LIST, InstructionSource.of(first), null, false);
+        final DataSource two = new DataSource(DataSource.Store.COLUMNAR, InstructionSource.of(second), null, false);
+        one.append(second.get(0));
+        assertThat(one.getRowsCount(), is(301));
+        assertThat(two.getRowsCount(), is(700));
+        assertThat(two.getRows(), sameTradesAs(second));
+        assertThat(one.getDailyReport().perDay(ImmutableInstruction.BUYSELL.B),
+                not(equalTo(two.getDailyReport().perDay(ImmutableInstruction.BUYSELL.B))));
+    }
+
+    /**
+     * The same rows from a file, from the snapshot written on the way, and from the snapshot alone
+     */
+    @Test
+    public void fileAndSnapshot() throws Exception {
+        final Path file = folder.newFile().toPath();
+        new SampleDataGenerator(4L, FROM, FROM.plusDays(30)).write(2_000, file, 2);
+        final Path snapshot = folder.getRoot().toPath().resolve("rows.snapshot");
+        final List<ImmutableInstruction> parsed = InstructionSource.file(file).load().asList();
+        assertThat(parsed, hasSize(2_000));
+
+        final InstructionSource viaSnapshot = InstructionSource.snapshot(snapshot, InstructionSource.file(file));
+        assertFalse(Files.exists(snapshot));
+        assertThat(viaSnapshot.load().asList(), sameTradesAs(parsed));
+        assertTrue(Files.exists(snapshot));
+
+        Files.delete(file); // only the snapshot is read from now on
+        final DataSource ds = new DataSource(DataSource.Store.LIST, viaSnapshot, null, false);
+        assertThat(ds.getRows(), sameTradesAs(parsed));
+    }
+
+    @Test
+    public void forEachStreamsWhatLoadHolds() throws Exception {
+        final InstructionSource generated = InstructionSource.generated(6L, FROM, FROM.plusDays(10), 3 * SampleDataGenerator.BLOCK_ROWS + 5);
+        final List<ImmutableInstruction> loaded = generated.load().asList();
+        assertThat(streamed(generated), sameTradesAs(loaded));
+
+        final Path file = folder.newFile().toPath();
+        new SampleDataGenerator(6L, FROM, FROM.plusDays(10)).write(loaded.size(), file, 2);
+        assertThat(streamed(InstructionSource.file(file)), sameTradesAs(loaded));
+
+        final Path snapshot = folder.getRoot().toPath().resolve("streamed.snapshot");
+        final InstructionSource viaSnapshot = InstructionSource.snapshot(snapshot, InstructionSource.file(file));
+        assertThat(streamed(viaSnapshot), sameTradesAs(loaded)); // written, then streamed back
+        assertTrue(Files.exists(snapshot));
+        assertThat(streamed(viaSnapshot), sameTradesAs(loaded));
+    }
+
+    private static List<ImmutableInstruction> streamed(InstructionSource source) {
+        final List<ImmutableInstruction> streamed = new ArrayList<>();
+        source.forEach(streamed::add);
+        return streamed;
+    }
+
+    @Test
+    public void generatedIsRepeatable() {
+        final InstructionSource a = InstructionSource.generated(5L, FROM, FROM.plusDays(10), 1_000);
+        final InstructionSource b = InstructionSource.generated(5L, FROM, FROM.plusDays(10), 1_000);
+        assertThat(a.load().asList(), sameTradesAs(b.load().asList()));
+    }
+
+    @Test
+    public void sampleStartsWithTheBrief() {
+        final DataSource ds = new DataSource(DataSource.Store.LIST, InstructionSource.sample(), null, false);
+        assertThat(ds.getRows().subList(0, 2), sameTradesAs(InstructionSource.sampleInstructions()));
+    }
+}
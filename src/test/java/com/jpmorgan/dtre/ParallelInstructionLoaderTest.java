@@ -0,0 +1,104 @@
+package com.jpmorgan.dtre;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import static com.jpmorgan.dtre.SameTrade.*;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the parallel, chunked instruction loader
+ */
+public class ParallelInstructionLoaderTest {
+
+    private final static String[] MONTHS = {"Jan", "Feb", "Mar", "Apr", "May", "Jun", "Jul", "Aug", "Sep", "Oct", "Nov", "Dec"};
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path sampleFile(int rows) throws IOException {
+        final Random random = new Random(5);
+        final StringBuilder sb = new StringBuilder("Entity|Buy/Sell|AgreedFx|Currency|InstructionDate|SettlementDate|Units|Price\n");
+        final DataSource.ENTITIES[] entities = DataSource.ENTITIES.values();
+        final ISO4217.Currency[] currencies = ISO4217.Currency.values();
+        for (int i = 0; i < rows; i++) {
+            sb.append(entities[random.nextInt(entities.length)].name()).append(" | ")
+                    .append(random.nextBoolean() ? 'B' : 'S').append(" | ")
+                    .append("0.").append(10000 + random.nextInt(90000)).append(" | ")
+                    .append(currencies[random.nextInt(currencies.length)].name()).append(" | ")
+                    .append(String.format("%02d %s 2017", 1 + random.nextInt(28), MONTHS[random.nextInt(12)])).append(" | ")
+                    .append(String.format("%02d %s 2018", 1 + random.nextInt(28), MONTHS[random.nextInt(12)])).append(" | ")
+                    .append(random.nextInt(1_000_000)).append(" | ")
+                    .append(random.nextInt(1000)).append('.').append(random.nextInt(100)).append('\n');
+        }
+        final Path file = folder.newFile().toPath();
+        Files.write(file, sb.toString().getBytes(StandardCharsets.US_ASCII));
+        return file;
+    }
+
+    /**
+     * Whatever the parallelism, chunking and windowing, rows come out exactly as a sequential parse
+     */
+    @Test
+    public void sameRowsInSameOrderAsSequential() throws IOException {
+        final Path file = sampleFile(2000);
+        final InstructionColumns sequential = InstructionFileParser.parse(file);
+        assertThat(sequential.size(), is(2000));
+
+        for (final int parallelism : new int[] {1, 2, 4, 7}) {
+            for (final int window : new int[] {1 << 10, 1 << 20}) {
+                final InstructionColumns parallel = new ParallelInstructionLoader(parallelism, 100, window).load(file);
+                assertThat(parallel.asList(), sameTradesAs(sequential.asList()));
+                for (int row = 0; row < sequential.size(); row++) {
+                    assertThat(parallel.settlementEpochDay(row), is(sequential.settlementEpochDay(row)));
+                    assertThat(parallel.amountOfTradeUSD().get(row), equalTo(sequential.amountOfTradeUSD().get(row)));
+                }
+            }
+        }
+    }
+
+    /**
+     * Ids follow file order, one after another, whatever the parallelism: the same ids as a sequential parse,
+     * offset by the ids handed out in between
+     */
+    @Test
+    public void idsInFileOrderAtAnyParallelism() throws IOException {
+        final Path file = sampleFile(3000);
+        final InstructionColumns sequential = new ParallelInstructionLoader(1, 100, 1 << 20).load(file);
+        for (final int parallelism : new int[] {2, 4, 7}) {
+            final InstructionColumns parallel = new ParallelInstructionLoader(parallelism, 100, 1 << 10).load(file);
+            final long offset = parallel.id(0) - sequential.id(0);
+            assertThat(offset, greaterThan(0L));
+            for (int row = 0; row < sequential.size(); row++) {
+                assertThat(parallel.id(row), is(sequential.id(row) + offset));
+                assertThat(parallel.id(row), is(parallel.id(0) + row));
+            }
+            assertThat(parallel.get(2999).getId(), is(parallel.id(2999)));
+        }
+    }
+
+    @Test
+    public void emptyFile() throws IOException {
+        assertThat(new ParallelInstructionLoader(4).load(folder.newFile().toPath()).size(), is(0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void malformedLineFails() throws IOException {
+        final Path file = folder.newFile().toPath();
+        Files.write(file, "foo|X|0.50|SGD|01 Jan 2016|02 Jan 2016|200|100.25\n".getBytes(StandardCharsets.US_ASCII));
+        new ParallelInstructionLoader(2).load(file);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void parallelismMustBePositive() {
+        new ParallelInstructionLoader(0);
+    }
+}
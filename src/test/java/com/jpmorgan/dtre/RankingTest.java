@@ -0,0 +1,101 @@
+package com.jpmorgan.dtre;
+
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for top-K Ranking
+ */
+public class RankingTest {
+
+    private static Map<Integer, BigDecimal> randomTotals(long seed, int n) {
+        final Random random = new Random(seed);
+        final Map<Integer, BigDecimal> totals = new HashMap<>();
+        for (int key = 0; key < n; key++) {
+            totals.put(key, BigDecimal.valueOf(random.nextInt(50), 2)); // plenty of ties
+        }
+        return totals;
+    }
+
+    /**
+     * The top K is the first K of a full sort (value descending, then key ascending)
+     */
+    @Test
+    public void topKIsPrefixOfFullSort() {
+        final Map<Integer, BigDecimal> totals = randomTotals(7, 1000);
+        final List<Map.Entry<Integer, BigDecimal>> all = Ranking.top(totals, Integer.MAX_VALUE);
+        assertThat(all.size(), is(1000));
+
+        for (final int k : new int[] {1, 2, 10, 999, 1000}) {
+            final List<Map.Entry<Integer, BigDecimal>> top = Ranking.top(totals, k);
+            assertThat(top.size(), is(k));
+            assertThat(top, equalTo(all.subList(0, k)));
+        }
+        for (int i = 1; i < all.size(); i++) {
+            final int byValue = all.get(i - 1).getValue().compareTo(all.get(i).getValue());
+            assertTrue(byValue > 0 || (byValue == 0 && all.get(i - 1).getKey() < all.get(i).getKey()));
+        }
+    }
+
+    /**
+     * Ties are broken by key, whatever order the map iterates in
+     */
+    @Test
+    public void tieBreakIndependentOfIterationOrder() {
+        final Map<DataSource.ENTITIES, BigDecimal> forward = new LinkedHashMap<>();
+        final Map<DataSource.ENTITIES, BigDecimal> backward = new LinkedHashMap<>();
+        final List<DataSource.ENTITIES> entities = Arrays.asList(DataSource.ENTITIES.values());
+        entities.forEach(e -> forward.put(e, BigDecimal.ONE));
+        final List<DataSource.ENTITIES> reversed = new ArrayList<>(entities);
+        Collections.reverse(reversed);
+        reversed.forEach(e -> backward.put(e, BigDecimal.ONE));
+
+        final List<DataSource.ENTITIES> expected = entities.subList(0, 5);
+        assertThat(Ranking.top(forward, 5).stream().map(Map.Entry::getKey).collect(Collectors.toList()), equalTo(expected));
+        assertThat(Ranking.top(backward, 5).stream().map(Map.Entry::getKey).collect(Collectors.toList()), equalTo(expected));
+    }
+
+    @Test
+    public void nothingToRank() {
+        assertThat(Ranking.top(randomTotals(1, 10), 0), empty());
+        assertThat(Ranking.top(new HashMap<Integer, BigDecimal>(), 3), empty());
+    }
+
+    @Test
+    public void dailyTradesRankLimit() {
+        final Map<Integer, BigDecimal> totals = new HashMap<>();
+        totals.put(DataSource.ENTITIES.foo.ordinal(), new BigDecimal("1.00"));
+        totals.put(DataSource.ENTITIES.bar.ordinal(), new BigDecimal("3.00"));
+        totals.put(DataSource.ENTITIES.PIH.ordinal(), new BigDecimal("2.00"));
+
+        final List<Map.Entry<Integer, BigDecimal>> ranked = new DailyTrades(2).printRanking(totals);
+        assertThat(ranked.stream().map(Map.Entry::getKey).collect(Collectors.toList()),
+                contains(DataSource.ENTITIES.bar.ordinal(), DataSource.ENTITIES.PIH.ordinal()));
+    }
+
+    /**
+     * Equal totals rank by symbol, not by id, since ids are handed out in whatever order entities were first seen
+     */
+    @Test
+    public void dailyTradesTiesRankBySymbol() {
+        final EntityRegistry entities = EntityRegistry.getInstance();
+        final int zulu = entities.intern("TIEZULU");
+        final int mike = entities.intern("TIEMIKE");
+        final int alfa = entities.intern("TIEALFA");
+        assertTrue(zulu < mike && mike < alfa);
+
+        final Map<Integer, BigDecimal> totals = new HashMap<>();
+        totals.put(zulu, new BigDecimal("5.00"));
+        totals.put(mike, new BigDecimal("5.00"));
+        totals.put(alfa, new BigDecimal("5.00"));
+
+        final List<Map.Entry<Integer, BigDecimal>> ranked = new DailyTrades(2).printRanking(totals);
+        assertThat(ranked.stream().map(Map.Entry::getKey).collect(Collectors.toList()), contains(alfa, mike));
+    }
+}
@@ -0,0 +1,165 @@
+package com.jpmorgan.dtre;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.NumberFormat;
+import java.time.LocalDate;
+import java.util.*;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the ReportSinks, and the ReportBuffer they render into
+ */
+public class ReportSinkTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final static LocalDate FROM = LocalDate.parse("2016-01-01");
+
+    private static String render(ReportSink sink, ByteArrayOutputStream bytes) {
+        sink.heading("Settling 2016-01-07 to 2016-01-08"); // console only
+        sink.begin(ReportSink.Report.INCOMING_PER_DAY);
+        sink.day((int) LocalDate.parse("2016-01-07").toEpochDay());
+        sink.amount(148_995_000L, 4);
+        sink.day((int) LocalDate.parse("2016-01-08").toEpochDay());
+        sink.amount(new BigDecimal("123456789012345678901.5"));
+        sink.begin(ReportSink.Report.RANK_OUTGOING);
+        sink.rank(1, "foo, \"inc\"");
+        sink.amount(1_002_500L, 2);
+        sink.begin(ReportSink.Report.INCOMING_PER_CURRENCY);
+        sink.currency(ISO4217.Currency.SGD);
+        sink.amount(-25L, 1);
+        assertThat("nothing written before close", bytes.size(), is(0));
+        sink.close();
+        return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void console() {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        assertThat(render(ReportSink.console(bytes), bytes), is(
+                "=== Settling 2016-01-07 to 2016-01-08 ===\n"
+                        + "=== Amount in USD settled incoming (Sell) every day ===\n"
+                        + "2016-01-07 => $14,899.50\n"
+                        + "2016-01-08 => $123,456,789,012,345,678,901.50\n"
+                        + "=== Rank Outgoing (Buy) ===\n"
+                        + "1. foo, \"inc\" => $10,025.00\n"
+                        + "=== Amount in USD settled incoming (Sell) per currency ===\n"
+                        + "SGD => -$2.50\n"));
+    }
+
+    @Test
+    public void csv() {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        assertThat(render(ReportSink.csv(bytes), bytes), is(
+                "report,date,rank,entity,currency,usd\n"
+                        + "incoming_per_day,2016-01-07,,,,14899.5000\n"
+                        + "incoming_per_day,2016-01-08,,,,123456789012345678901.5\n"
+                        + "rank_outgoing,,1,\"foo, \"\"inc\"\"\",,10025.00\n"
+                        + "incoming_per_currency,,,,SGD,-2.5\n"));
+    }
+
+    @Test
+    public void jsonLines() {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        assertThat(render(ReportSink.jsonLines(bytes), bytes), is(
+                "{\"report\":\"incoming_per_day\",\"date\":\"2016-01-07\",\"usd\":14899.5000}\n"
+                        + "{\"report\":\"incoming_per_day\",\"date\":\"2016-01-08\",\"usd\":123456789012345678901.5}\n"
+                        + "{\"report\":\"rank_outgoing\",\"rank\":1,\"entity\":\"foo, \\\"inc\\\"\",\"usd\":10025.00}\n"
+                        + "{\"report\":\"incoming_per_currency\",\"currency\":\"SGD\",\"usd\":-2.5}\n"));
+    }
+
+    /**
+     * The console reports read the same as when each line was formatted by NumberFormat and println'd
+     */
+    @Test
+    public void consoleReportsAsBefore() {
+        final List<ImmutableInstruction> rows = new SampleDataGenerator(3L, FROM, FROM.plusDays(40)).generate(2_000, 2).asList();
+        final DailyReport report = DailyReport.of(rows);
+        final DailyTrades dt = new DailyTrades(10);
+
+        final NumberFormat nf = NumberFormat.getCurrencyInstance(Locale.US);
+        final StringBuilder expected = new StringBuilder("=== Amount in USD settled incoming (Sell) every day ===\n");
+        for (final Map.Entry<LocalDate, BigDecimal> e : report.perDay(ImmutableInstruction.BUYSELL.S).entrySet()) {
+            expected.append(e.getKey()).append(" => ").append(nf.format(e.getValue())).append('\n');
+        }
+        for (final ImmutableInstruction.BUYSELL side : new ImmutableInstruction.BUYSELL[]{ImmutableInstruction.BUYSELL.S, ImmutableInstruction.BUYSELL.B}) {
+            expected.append(side == ImmutableInstruction.BUYSELL.S ? "=== Rank Incoming (Sell) ===\n" : "=== Rank Outgoing (Buy) ===\n");
+            int rank = 1;
+            for (final Map.Entry<Integer, BigDecimal> e : Ranking.top(report.perEntity(side), 10)) {
+                expected.append(rank++).append(". ").append(EntityRegistry.getInstance().symbol(e.getKey()))
+                        .append(" => ").append(nf.format(e.getValue())).append('\n');
+            }
+        }
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final PrintStream stdout = System.out;
+        System.setOut(new PrintStream(bytes, true));
+        try {
+            dt.incomingSettledUSDDaily(report);
+            dt.rank(report);
+        } finally {
+            System.setOut(stdout);
+        }
+        assertThat(new String(bytes.toByteArray(), StandardCharsets.UTF_8), is(expected.toString()));
+    }
+
+    @Test
+    public void toFile() throws Exception {
+        final Path file = folder.newFile().toPath();
+        final List<ImmutableInstruction> rows = new SampleDataGenerator(3L, FROM, FROM.plusDays(40)).generate(500, 1).asList();
+        try (ReportSink sink = ReportSink.open(ReportSink.Format.CSV, file)) {
+            new DailyTrades().reports(DailyReport.of(rows), sink);
+        }
+        final List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        final DailyReport report = DailyReport.of(rows);
+        final int days = report.perDay(ImmutableInstruction.BUYSELL.S).size() + report.perDay(ImmutableInstruction.BUYSELL.B).size();
+        final int ranked = report.perEntity(ImmutableInstruction.BUYSELL.S).size() + report.perEntity(ImmutableInstruction.BUYSELL.B).size();
+        assertThat(lines, hasSize(1 + days + ranked));
+        // every amount exact
+        BigDecimal incoming = BigDecimal.ZERO;
+        for (final String line : lines) {
+            if (line.startsWith("incoming_per_day,")) {
+                incoming = incoming.add(new BigDecimal(line.substring(line.lastIndexOf(',') + 1)));
+            }
+        }
+        BigDecimal expected = BigDecimal.ZERO;
+        for (final ImmutableInstruction in : rows) {
+            if (in.getBuySell() == ImmutableInstruction.BUYSELL.S) {
+                expected = expected.add(in.getAmountOfTradeUSD());
+            }
+        }
+        assertThat(incoming, is(expected));
+    }
+
+    @Test
+    public void datesAsLocalDate() {
+        final ReportBuffer out = new ReportBuffer(0);
+        final Random random = new Random(6);
+        for (int i = 0; i < 10_000; i++) {
+            final int day = i < 5_000 ? (int) LocalDate.parse("1999-12-01").toEpochDay() + i : random.nextInt(4_000_000) - 2_000_000;
+            out.clear();
+            out.appendDate(day);
+            assertThat(out.toString(), equalTo(LocalDate.ofEpochDay(day).toString()));
+        }
+    }
+
+    @Test
+    public void textAndNumbers() {
+        final ReportBuffer out = new ReportBuffer(0);
+        out.append("Zürich ").append('é').append(' ').append(Long.MIN_VALUE).append(' ').append(-42L).append(' ')
+                .appendDigits(1_234_567L, 1, true).append(' ').appendDigits(7L, 3, false);
+        assertThat(out.toString(), is("Zürich é -9223372036854775808 -42 1,234,567 007"));
+    }
+}
@@ -0,0 +1,53 @@
+package com.jpmorgan.dtre;
+
+import org.hamcrest.Description;
+import org.hamcrest.Matcher;
+import org.hamcrest.TypeSafeMatcher;
+
+import java.util.List;
+
+/**
+ * Matchers comparing instructions by their fields (ImmutableInstruction.sameTradeAs()) rather than their ids,
+ * for instructions ingested separately from the same data
+ */
+final class SameTrade {
+
+    private SameTrade() {
+    }
+
+    static Matcher<ImmutableInstruction> sameTradeAs(ImmutableInstruction expected) {
+        return new TypeSafeMatcher<ImmutableInstruction>() {
+            @Override
+            protected boolean matchesSafely(ImmutableInstruction actual) {
+                return actual.sameTradeAs(expected);
+            }
+
+            @Override
+            public void describeTo(Description description) {
+                description.appendText("same trade as ").appendValue(expected);
+            }
+        };
+    }
+
+    static Matcher<List<ImmutableInstruction>> sameTradesAs(List<ImmutableInstruction> expected) {
+        return new TypeSafeMatcher<List<ImmutableInstruction>>() {
+            @Override
+            protected boolean matchesSafely(List<ImmutableInstruction> actual) {
+                if (actual.size() != expected.size()) {
+                    return false;
+                }
+                for (int i = 0; i < actual.size(); i++) {
+                    if (!actual.get(i).sameTradeAs(expected.get(i))) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+
+            @Override
+            public void describeTo(Description description) {
+                description.appendText(expected.size() + " instructions, each the same trade as ").appendValue(expected);
+            }
+        };
+    }
+}
@@ -0,0 +1,110 @@
+package com.jpmorgan.dtre;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.jpmorgan.dtre.SameTrade.*;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the seeded SampleDataGenerator
+ */
+public class SampleDataGeneratorTest {
+
+    private final static LocalDate FROM = LocalDate.parse("2016-01-01");
+    private final static LocalDate TO = LocalDate.parse("2016-03-31");
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * More rows than one block, so the blocks are spread over the threads
+     */
+    private final static int ROWS = SampleDataGenerator.BLOCK_ROWS * 3 + 17;
+
+    @Test
+    public void sameSeedSameRowsOnAnyThreads() {
+        final SampleDataGenerator generator = new SampleDataGenerator(42L, FROM, TO);
+        final InstructionColumns one = generator.generate(ROWS, 1);
+        final InstructionColumns four = generator.generate(ROWS, 4);
+        assertThat(one.size(), equalTo(ROWS));
+        assertThat(four.asList(), sameTradesAs(one.asList()));
+        for (int row = 0; row < ROWS; row++) {
+            assertThat(four.id(row), is(four.id(0) + row)); // numbered in order as the blocks are merged
+        }
+    }
+
+    @Test
+    public void differentSeedDifferentRows() {
+        final InstructionColumns a = new SampleDataGenerator(1L, FROM, TO).generate(100, 1);
+        final InstructionColumns b = new SampleDataGenerator(2L, FROM, TO).generate(100, 1);
+        assertThat(a.asList(), not(sameTradesAs(b.asList())));
+    }
+
+    @Test
+    public void rowsWithinBounds() {
+        final InstructionColumns rows = new SampleDataGenerator(7L, FROM, TO).generate(10_000, 2);
+        for (final ImmutableInstruction in : rows.asList()) {
+            assertThat(in.getEntity(), notNullValue());
+            assertFalse(in.getInstructionDate().isBefore(FROM));
+            assertFalse(in.getInstructionDate().isAfter(TO));
+            assertFalse(in.getOriginalUnadjustedSettlementDate().isBefore(in.getInstructionDate()));
+            assertFalse(in.getOriginalUnadjustedSettlementDate().isAfter(in.getInstructionDate().plusDays(6)));
+            assertThat(in.getUnits(), allOf(greaterThan(0), lessThanOrEqualTo(1_000_000)));
+            assertThat(in.getAgreedFx().signum(), equalTo(1));
+            assertThat(in.getPricePerUnit().signum(), equalTo(1));
+        }
+    }
+
+    @Test
+    public void weightsRespected() {
+        final Map<Integer, Double> entities = new HashMap<>();
+        entities.put(DataSource.ENTITIES.foo.ordinal(), 3.0);
+        entities.put(DataSource.ENTITIES.bar.ordinal(), 1.0);
+        final Map<ISO4217.Currency, Double> currencies = new EnumMap<>(ISO4217.Currency.class);
+        currencies.put(ISO4217.Currency.SGD, 1.0);
+        currencies.put(ISO4217.Currency.AED, 0.0);
+        final InstructionColumns rows = new SampleDataGenerator(42L, FROM, TO)
+                .withEntityWeights(entities)
+                .withCurrencyWeights(currencies)
+                .generate(20_000, 2);
+
+        int foo = 0;
+        for (int row = 0; row < rows.size(); row++) {
+            assertThat(rows.currencyOrdinal(row), equalTo(ISO4217.Currency.SGD.ordinal()));
+            assertThat(rows.entityId(row), anyOf(equalTo(DataSource.ENTITIES.foo.ordinal()), equalTo(DataSource.ENTITIES.bar.ordinal())));
+            if (rows.entityId(row) == DataSource.ENTITIES.foo.ordinal()) {
+                foo++;
+            }
+        }
+        assertThat((double) foo / rows.size(), closeTo(0.75, 0.02));
+    }
+
+    @Test
+    public void writtenFileParsesToSameRows() throws Exception {
+        final Path file = folder.getRoot().toPath().resolve("instructions.txt");
+        final SampleDataGenerator generator = new SampleDataGenerator(42L, FROM, TO);
+        generator.write(ROWS, file, 3);
+        assertThat(InstructionFileParser.parse(file).asList(), sameTradesAs(generator.generate(ROWS, 1).asList()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void zeroWeights() {
+        final Map<ISO4217.Currency, Double> currencies = new EnumMap<>(ISO4217.Currency.class);
+        currencies.put(ISO4217.Currency.SGD, 0.0);
+        new SampleDataGenerator(42L, FROM, TO).withCurrencyWeights(currencies);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rangeBackwards() {
+        new SampleDataGenerator(42L, TO, FROM);
+    }
+}
@@ -0,0 +1,114 @@
+package com.jpmorgan.dtre;
+
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.Random;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for ScaledSums, which must always agree exactly with BigDecimal.add
+ */
+public class ScaledSumsTest {
+
+    @Test
+    public void emptyBucketIsNull() {
+        final ScaledSums sums = new ScaledSums(2);
+        assertThat(sums.size(), is(0));
+        assertThat(sums.get(42), nullValue());
+        assertFalse(sums.contains(42));
+    }
+
+    /**
+     * Same value and same scale as BigDecimal.ZERO.add(...).add(...)
+     */
+    @Test
+    public void mixedScalesMatchBigDecimal() {
+        final ScaledSums sums = new ScaledSums(2);
+        sums.add(7, new BigDecimal("10"));
+        assertThat(sums.get(7), equalTo(BigDecimal.ZERO.add(new BigDecimal("10"))));
+        sums.add(7, new BigDecimal("0.12345"));
+        sums.add(7, new BigDecimal("1.5"));
+        assertThat(sums.get(7), equalTo(new BigDecimal("11.62345")));
+        assertThat(sums.get(7).scale(), is(5));
+    }
+
+    @Test
+    public void negativeScaleMatchesBigDecimal() {
+        final ScaledSums sums = new ScaledSums(2);
+        sums.add(0, new BigDecimal("1E+3"));
+        assertThat(sums.get(0), equalTo(BigDecimal.ZERO.add(new BigDecimal("1E+3"))));
+    }
+
+    /**
+     * Only the overflowing bucket falls back to BigDecimal, and it stays exact
+     */
+    @Test
+    public void overflowFallsBackPerBucket() {
+        final ScaledSums sums = new ScaledSums(2);
+        final BigDecimal big = BigDecimal.valueOf(Long.MAX_VALUE, 2);
+        sums.add(1, big);
+        sums.add(1, big);
+        sums.add(1, new BigDecimal("0.01"));
+        sums.add(2, new BigDecimal("0.01"));
+        assertThat(sums.get(1), equalTo(big.add(big).add(new BigDecimal("0.01"))));
+        assertThat(sums.get(2), equalTo(new BigDecimal("0.01")));
+
+        // unscaled value too big for a long on the way in
+        final BigDecimal huge = new BigDecimal("123456789012345678901234567890.123");
+        sums.add(3, huge);
+        sums.add(3, 5L, 1);
+        assertThat(sums.get(3), equalTo(huge.add(new BigDecimal("0.5"))));
+    }
+
+    /**
+     * Keys either side of the first one grow the buckets without losing any totals
+     */
+    @Test
+    public void keysGrowInBothDirections() {
+        final ScaledSums sums = new ScaledSums(2);
+        final Random random = new Random(17);
+        final BigDecimal[] expected = new BigDecimal[200];
+        final int[] keys = new int[1000];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = random.nextInt(expected.length);
+        }
+        keys[0] = 100; // start in the middle
+        for (final int key : keys) {
+            final BigDecimal amount = BigDecimal.valueOf(random.nextInt(1_000_000), random.nextInt(8));
+            expected[key] = (expected[key] == null ? BigDecimal.ZERO : expected[key]).add(amount);
+            sums.add(key - 100, amount);
+        }
+        for (int key = 0; key < expected.length; key++) {
+            assertThat(sums.get(key - 100), equalTo(expected[key]));
+        }
+        assertThat(sums.lowKey(), greaterThanOrEqualTo(-100));
+        assertThat(sums.highKey(), lessThan(100));
+    }
+
+    /**
+     * Adding one ScaledSums to another gives what adding all the amounts to one would
+     */
+    @Test
+    public void addAllMatchesAddingEverything() {
+        final Random random = new Random(2);
+        final ScaledSums all = new ScaledSums(2);
+        final ScaledSums left = new ScaledSums(2);
+        final ScaledSums right = new ScaledSums(2);
+        for (int i = 0; i < 10_000; i++) {
+            final int key = random.nextInt(40) - (i < 5_000 ? 0 : 20);
+            final BigDecimal amount = i % 997 == 0
+                    ? BigDecimal.valueOf(Long.MAX_VALUE, 1)
+                    : BigDecimal.valueOf(random.nextInt(), random.nextInt(3)); // scales 0 and 1 below minScale
+            all.add(key, amount);
+            (i % 3 == 0 ? left : right).add(key, amount);
+        }
+        left.addAll(right);
+        assertThat(left.size(), is(all.size()));
+        for (int key = all.lowKey(); key <= all.highKey(); key++) {
+            assertThat(left.get(key), equalTo(all.get(key)));
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package com.jpmorgan.dtre;
+
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for SettlementBatch and the AggregationKernels summing it, which must agree exactly with DailyReport
+ */
+public class SettlementBatchTest {
+
+    private final static LocalDate FROM = LocalDate.parse("2016-01-01");
+
+    /**
+     * The scalar kernel, and the vector kernel when this JVM can load it
+     */
+    private static List<AggregationKernel> kernels() {
+        final List<AggregationKernel> kernels = new ArrayList<>();
+        kernels.add(AggregationKernel.scalar());
+        final AggregationKernel vector = AggregationKernel.vector();
+        if (vector != null) {
+            kernels.add(vector);
+        }
+        return kernels;
+    }
+
+    @Test
+    public void perDayMatchesDailyReport() {
+        final InstructionColumns columns = new SampleDataGenerator(9L, FROM, FROM.plusDays(120)).generate(100_003, 4);
+        final DailyReport report = DailyReport.of(columns, AggregationMode.BIG_DECIMAL);
+        final SettlementBatch fromColumns = SettlementBatch.of(columns);
+        final SettlementBatch fromList = SettlementBatch.of(columns.asList());
+        assertThat(fromColumns.rows(), is(columns.size()));
+        for (final AggregationKernel kernel : kernels()) {
+            for (final ImmutableInstruction.BUYSELL side : ImmutableInstruction.BUYSELL.values()) {
+                assertThat(kernel.name(), fromColumns.perDay(side, kernel), equalTo(report.perDay(side)));
+                assertThat(kernel.name(), fromList.perDay(side, kernel), equalTo(report.perDay(side)));
+            }
+            final BigDecimal[] totals = fromColumns.totalBySide(kernel);
+            assertThat(totals[0].compareTo(sum(report.perDay(ImmutableInstruction.BUYSELL.B).values())), is(0));
+            assertThat(totals[1].compareTo(sum(report.perDay(ImmutableInstruction.BUYSELL.S).values())), is(0));
+        }
+    }
+
+    private static BigDecimal sum(Collection<BigDecimal> amounts) {
+        return amounts.stream().reduce(BigDecimal.ZERO, BigDecimal::add);
+    }
+
+    /**
+     * Runs of every length, to cover the tail after the last full vector, of amounts summing far past a long
+     */
+    @Test
+    public void kernelsAgree() {
+        final Random random = new Random(3);
+        final long[] amount = new long[1_000];
+        final boolean[] incoming = new boolean[amount.length];
+        for (int i = 0; i < amount.length; i++) {
+            amount[i] = i % 10 == 0 ? random.nextLong() : random.nextInt();
+            incoming[i] = random.nextBoolean();
+        }
+        amount[1] = Long.MIN_VALUE;
+        amount[2] = Long.MAX_VALUE;
+        for (int from = 0; from < 20; from++) {
+            for (int to = from; to < amount.length; to += 1 + random.nextInt(40)) {
+                final BigInteger[] expected = {BigInteger.ZERO, BigInteger.ZERO};
+                for (int i = from; i < to; i++) {
+                    expected[incoming[i] ? 1 : 0] = expected[incoming[i] ? 1 : 0].add(BigInteger.valueOf(amount[i]));
+                }
+                for (final AggregationKernel kernel : kernels()) {
+                    final long[] totals = new long[4];
+                    kernel.sumBySide(amount, incoming, from, to, totals);
+                    assertThat(kernel.name(), AggregationKernel.total(totals[0], totals[1]), is(expected[0]));
+                    assertThat(kernel.name(), AggregationKernel.total(totals[2], totals[3]), is(expected[1]));
+                }
+            }
+        }
+    }
+
+    /**
+     * Amounts that won't fit the batch scale, or would let a long sum overflow, are summed as BigDecimal instead
+     */
+    @Test
+    public void largeAmountsStayExact() {
+        final List<ImmutableInstruction> rows = new ArrayList<>();
+        final LocalDate monday = LocalDate.parse("2016-01-04");
+        rows.add(new ImmutableInstruction(DataSource.ENTITIES.foo, ImmutableInstruction.BUYSELL.S, new BigDecimal("1.00"),
+                ISO4217.Currency.SGD, monday, monday, 1, BigDecimal.valueOf(Long.MAX_VALUE / 4, 2)));
+        rows.add(new ImmutableInstruction(DataSource.ENTITIES.foo, ImmutableInstruction.BUYSELL.S, new BigDecimal("1.00"),
+                ISO4217.Currency.SGD, monday, monday, 3, BigDecimal.valueOf(Long.MAX_VALUE / 4, 2)));
+        rows.add(new ImmutableInstruction(DataSource.ENTITIES.bar, ImmutableInstruction.BUYSELL.S, new BigDecimal("0.1234567"),
+                ISO4217.Currency.SGD, monday, monday, 7, new BigDecimal("0.25")));
+        rows.add(new ImmutableInstruction(DataSource.ENTITIES.bar, ImmutableInstruction.BUYSELL.B, new BigDecimal("0.5"),
+                ISO4217.Currency.SGD, monday, monday.plusDays(2), 2, new BigDecimal("10")));
+        final SettlementBatch batch = SettlementBatch.of(rows);
+        final DailyReport report = DailyReport.of(rows, AggregationMode.BIG_DECIMAL);
+        assertThat(batch.rows(), lessThan(rows.size()));
+        for (final AggregationKernel kernel : kernels()) {
+            for (final ImmutableInstruction.BUYSELL side : ImmutableInstruction.BUYSELL.values()) {
+                assertThat(kernel.name(), batch.perDay(side, kernel), equalTo(report.perDay(side)));
+            }
+        }
+    }
+
+    @Test
+    public void empty() {
+        final SettlementBatch batch = SettlementBatch.of(new ArrayList<>());
+        assertThat(batch.rows(), is(0));
+        assertThat(batch.perDay(ImmutableInstruction.BUYSELL.S, AggregationKernel.scalar()).isEmpty(), is(true));
+        assertThat(batch.totalBySide(AggregationKernel.scalar()), is(new BigDecimal[]{BigDecimal.ZERO.setScale(2), BigDecimal.ZERO.setScale(2)}));
+    }
+
+    /**
+     * The build profile adds jdk.incubator.vector on JDK 17+, where the vector kernel must then be the one chosen
+     */
+    @Test
+    public void autoPrefersVector() {
+        final AggregationKernel vector = AggregationKernel.vector();
+        assertThat(AggregationKernel.fromSystemProperty().name(), is(vector == null ? "scalar" : vector.name()));
+        if (System.getProperty("java.specification.version").startsWith("1.")) {
+            assertThat(vector, nullValue());
+        }
+    }
+}
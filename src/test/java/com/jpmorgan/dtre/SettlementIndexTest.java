@@ -0,0 +1,121 @@
+package com.jpmorgan.dtre;
+
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the SettlementIndex and the windowed reports it serves
+ */
+public class SettlementIndexTest {
+
+    /**
+     * Every window gives the rows a scan would, in settlement day then row order
+     */
+    @Test
+    public void windowsMatchScan() {
+        final Random random = new Random(17);
+        final int[] days = new int[5_000];
+        for (int row = 0; row < days.length; row++) {
+            days[row] = 16_800 + random.nextInt(60);
+        }
+        final SettlementIndex index = new SettlementIndex(days.length, row -> days[row]);
+        assertThat(index.rowCount(), is(days.length));
+        for (int i = 0; i < 200; i++) {
+            final int from = 16_790 + random.nextInt(80);
+            final int to = from + random.nextInt(10) - 1;
+            assertThat(rows(index, from, to), equalTo(scan(days, from, to)));
+            assertThat(index.count(from, to), is(scan(days, from, to).size()));
+        }
+    }
+
+    /**
+     * Days too far apart to count into a table are sorted instead, with the same result
+     */
+    @Test
+    public void sparseDays() {
+        final int[] days = {Integer.MAX_VALUE, 0, -5, Integer.MIN_VALUE, 0, 40_000};
+        final SettlementIndex index = new SettlementIndex(days.length, row -> days[row]);
+        assertThat(rows(index, Integer.MIN_VALUE, Integer.MAX_VALUE), contains(3, 2, 1, 4, 5, 0));
+        assertThat(rows(index, -5, 0), contains(2, 1, 4));
+        assertThat(rows(index, 1, 39_999), empty());
+    }
+
+    @Test
+    public void emptyIndexAndWindow() {
+        assertThat(rows(new SettlementIndex(0, row -> 0), 0, 100), empty());
+        final int[] days = {10, 11, 12};
+        final SettlementIndex index = new SettlementIndex(days.length, row -> days[row]);
+        assertThat(rows(index, 12, 10), empty());
+        assertThat(index.count(12, 10), is(0));
+        assertThat(rows(index, 13, 20), empty());
+        assertThat(rows(index, 0, 9), empty());
+    }
+
+    /**
+     * A windowed report holds the totals of the rows settling in it, including rows appended after the index was built
+     */
+    @Test
+    public void windowedReportMatchesFilteredRows() {
+        for (final DataSource.Store store : DataSource.Store.values()) {
+            final DataSource ds = new DataSource(store, null);
+            final LocalDate from = ds.getRows().get(0).getSettlementDate();
+            final LocalDate to = from.plusDays(3);
+            ds.getSettlementIndex();
+            ds.append(new ImmutableInstruction(
+                    DataSource.ENTITIES.foo,
+                    ImmutableInstruction.BUYSELL.S,
+                    new BigDecimal("0.50"),
+                    ISO4217.Currency.USD,
+                    from,
+                    from,
+                    100,
+                    new BigDecimal("1.25")
+            ));
+
+            final DailyReport report = ds.getDailyReport(from, to);
+            final DailyReport expected = DailyReport.of(ds.getRows().stream()
+                    .filter(in -> !in.getSettlementDate().isBefore(from) && !in.getSettlementDate().isAfter(to))
+                    .collect(Collectors.toList()));
+            for (final ImmutableInstruction.BUYSELL side : ImmutableInstruction.BUYSELL.values()) {
+                assertThat(report.perDay(side), equalTo(expected.perDay(side)));
+                assertThat(report.perEntity(side), equalTo(expected.perEntity(side)));
+            }
+            assertThat(report.perDay(ImmutableInstruction.BUYSELL.S).keySet(), everyItem(
+                    allOf(greaterThanOrEqualTo(from), lessThanOrEqualTo(to))));
+        }
+    }
+
+    @Test
+    public void businessDaysAfter() {
+        // Thursday 7th Jan 2016, the next three USD business days end on Tuesday
+        assertThat(DailyTrades.businessDaysAfter(LocalDate.parse("2016-01-07"), 3), is(LocalDate.parse("2016-01-12")));
+        assertThat(DailyTrades.businessDaysAfter(LocalDate.parse("2016-01-07"), 0), is(LocalDate.parse("2016-01-07")));
+    }
+
+    private static List<Integer> rows(SettlementIndex index, int from, int to) {
+        final List<Integer> rows = new ArrayList<>();
+        index.forEachRow(from, to, rows::add);
+        return rows;
+    }
+
+    private static List<Integer> scan(int[] days, int from, int to) {
+        final List<Integer> rows = new ArrayList<>();
+        for (int day = from; day <= to; day++) {
+            for (int row = 0; row < days.length; row++) {
+                if (days[row] == day) {
+                    rows.add(row);
+                }
+            }
+        }
+        return rows;
+    }
+}
@@ -0,0 +1,69 @@
+package com.jpmorgan.dtre;
+
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for StripedDayTotals: totals must equal, value and scale, those of DailyReport in BigDecimal mode
+ */
+public class StripedDayTotalsTest {
+
+    private final static LocalDate FROM = LocalDate.parse("2016-01-01");
+
+    @Test
+    public void matchesDailyReport() throws InterruptedException {
+        final List<ImmutableInstruction> rows = new SampleDataGenerator(5L, FROM, FROM.plusDays(20)).generate(20_000, 2).asList();
+        final StripedDayTotals totals = new StripedDayTotals();
+        final List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            final int first = t;
+            final Thread thread = new Thread(() -> {
+                for (int row = first; row < rows.size(); row += 4) {
+                    totals.add(rows.get(row));
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        final DailyReport report = DailyReport.of(rows, AggregationMode.BIG_DECIMAL);
+        for (final ImmutableInstruction.BUYSELL side : ImmutableInstruction.BUYSELL.values()) {
+            assertThat(totals.perDay(side), equalTo(report.perDay(side)));
+        }
+        assertThat(totals.count(), is((long) rows.size()));
+    }
+
+    /**
+     * Amounts too large, or too fine, for the striped longs are summed exactly beside them
+     */
+    @Test
+    public void largeAndFineAmounts() {
+        final StripedDayTotals totals = new StripedDayTotals();
+        final int day = (int) FROM.toEpochDay();
+        final BigDecimal[] amounts = {
+                new BigDecimal("12.34"),
+                new BigDecimal("-21474836.48"), // unscaled -2^31
+                new BigDecimal("92233720368547758.07"),
+                new BigDecimal("92233720368547758.07"),
+                new BigDecimal("0.1234567890123456789012"),
+                new BigDecimal("1E+3"),
+        };
+        BigDecimal expected = null;
+        for (final BigDecimal amount : amounts) {
+            totals.add(day, ImmutableInstruction.BUYSELL.S, amount);
+            expected = expected == null ? amount : expected.add(amount);
+        }
+        assertThat(totals.get(FROM, ImmutableInstruction.BUYSELL.S), is(expected));
+        assertThat(totals.get(FROM, ImmutableInstruction.BUYSELL.B), nullValue());
+        assertThat(totals.perDay(ImmutableInstruction.BUYSELL.B).entrySet(), empty());
+    }
+}
@@ -0,0 +1,80 @@
+package com.jpmorgan.dtre;
+
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.text.NumberFormat;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for UsdFormat: the same text as NumberFormat.getCurrencyInstance(Locale.US), and exact plain values
+ */
+public class UsdFormatTest {
+
+    private static String currency(long unscaled, int scale) {
+        final ReportBuffer out = new ReportBuffer(0);
+        UsdFormat.currency(out, unscaled, scale);
+        return out.toString();
+    }
+
+    private static String currency(BigDecimal amount) {
+        final ReportBuffer out = new ReportBuffer(0);
+        UsdFormat.currency(out, amount);
+        return out.toString();
+    }
+
+    private static String plain(long unscaled, int scale) {
+        final ReportBuffer out = new ReportBuffer(0);
+        UsdFormat.plain(out, unscaled, scale);
+        return out.toString();
+    }
+
+    @Test
+    public void matchesNumberFormat() {
+        final NumberFormat nf = NumberFormat.getCurrencyInstance(Locale.US);
+        final Random random = new Random(4);
+        for (int i = 0; i < 20_000; i++) {
+            final long unscaled = random.nextInt(4) == 0 ? random.nextInt(1_000) : Math.abs(random.nextLong() >> random.nextInt(60));
+            final int scale = random.nextInt(9);
+            final BigDecimal amount = BigDecimal.valueOf(unscaled, scale);
+            assertThat(amount.toPlainString(), currency(unscaled, scale), equalTo(nf.format(amount)));
+            assertThat(currency(amount), equalTo(nf.format(amount)));
+        }
+    }
+
+    @Test
+    public void roundsHalfEvenToCents() {
+        assertThat(currency(1_0050L, 4), is("$1.00"));
+        assertThat(currency(1_0150L, 4), is("$1.02"));
+        assertThat(currency(1_00501L, 5), is("$1.01"));
+        assertThat(currency(-1_0150L, 4), is("-$1.02"));
+        assertThat(currency(5L, 3), is("$0.00"));
+        assertThat(currency(1_234_567L, 0), is("$1,234,567.00"));
+        assertThat(currency(12L, -3), is("$12,000.00"));
+        assertThat(currency(-1_234_567_89L, 2), is("-$1,234,567.89"));
+    }
+
+    @Test
+    public void beyondALong() {
+        assertThat(currency(Long.MAX_VALUE, 0), is("$9,223,372,036,854,775,807.00"));
+        assertThat(currency(Long.MIN_VALUE, 2), is("-$92,233,720,368,547,758.08"));
+        assertThat(currency(new BigDecimal("-123456789012345678901234.565")), is("-$123,456,789,012,345,678,901,234.56"));
+        assertThat(currency(7L, 25), is("$0.00"));
+    }
+
+    @Test
+    public void plainIsExact() {
+        final Random random = new Random(8);
+        for (int i = 0; i < 20_000; i++) {
+            final long unscaled = random.nextLong() >> random.nextInt(64);
+            final int scale = random.nextInt(24) - 3;
+            assertThat(plain(unscaled, scale), equalTo(BigDecimal.valueOf(unscaled, scale).toPlainString()));
+        }
+        assertThat(plain(Long.MIN_VALUE, 4), equalTo(BigDecimal.valueOf(Long.MIN_VALUE, 4).toPlainString()));
+        assertThat(plain(-5L, 3), is("-0.005"));
+    }
+}
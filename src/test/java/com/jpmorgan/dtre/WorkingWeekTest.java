@@ -4,6 +4,7 @@ import org.junit.Test;
 
 import java.time.DayOfWeek;
 import java.time.LocalDate;
+import java.time.temporal.TemporalAdjusters;
 import java.time.temporal.TemporalField;
 import java.time.temporal.WeekFields;
 import java.util.*;
@@ -77,4 +78,37 @@ public class WorkingWeekTest {
                     assertThat(WorkingWeek.adjustForWeekendByCurrency(c, LocalDate.parse("2017-05-07")), is(LocalDate.parse("2017-05-08")));
                 });
     }
-}
\ No newline at end of file
+
+    /**
+     * The epoch-day tables must agree with adjusting by day of week, inside the horizon and either side of it
+     */
+    @Test
+    public void epochDayMatchesDayOfWeekAdjustment() {
+        final LocalDate[] from = {LocalDate.parse("1989-12-01"), LocalDate.parse("2016-01-01"), LocalDate.parse("2099-12-01"),
+                LocalDate.parse("1850-06-01")};
+        for (final ISO4217.Currency c : ISO4217.Currency.values()) {
+            final DayOfWeek first = WorkingWeek.getFirstDayOfWeek(c);
+            final Set<DayOfWeek> weekend = WorkingWeek.isAdjustedCurrency(c)
+                    ? EnumSet.of(DayOfWeek.FRIDAY, DayOfWeek.SATURDAY)
+                    : EnumSet.of(DayOfWeek.SATURDAY, DayOfWeek.SUNDAY);
+            for (final LocalDate start : from) {
+                for (LocalDate date = start; date.isBefore(start.plusDays(60)); date = date.plusDays(1)) {
+                    final LocalDate expected = weekend.contains(date.getDayOfWeek())
+                            ? date.with(TemporalAdjusters.nextOrSame(first))
+                            : date;
+                    assertThat(WorkingWeek.adjustForWeekendByCurrency(c, date), is(expected));
+                    assertThat(WorkingWeek.adjustEpochDay(c, (int) date.toEpochDay()), is((int) expected.toEpochDay()));
+                }
+            }
+        }
+    }
+
+    /**
+     * A date already on a business day comes back as the same instance, nothing is allocated
+     */
+    @Test
+    public void businessDayNotCopied() {
+        final LocalDate monday = LocalDate.parse("2017-05-01");
+        assertThat(WorkingWeek.adjustForWeekendByCurrency(ISO4217.Currency.USD, monday), sameInstance(monday));
+    }
+}